@@ -100,14 +100,42 @@ class BlockEntry
 {
     private static final Class BLOCK_CLASS = getBlockClass();
 
-    private Object m_object;
-    private final ComponentProfile m_componentProfile;
-    private BlockInvocationHandler m_invocationHandler;
+    /**
+     * The profile is replaced when the block is reconfigured. It is only
+     * modified while holding the lock on this entry.
+     */
+    private volatile ComponentProfile m_componentProfile;
+
+    /**
+     * The object and proxy are only modified while holding the lock on
+     * this entry but are volatile so they can be read without locking.
+     */
+    private volatile Object m_object;
+    private volatile Object m_proxy;
+
+    ///True if calls made via the proxy are recorded
+    private final boolean m_metered;
+
+    ///The metrics recorded by the current proxy, if any
+    private volatile BlockMetrics m_metrics;
 
     public BlockEntry( final ComponentProfile componentProfile )
+    {
+        this( componentProfile, false );
+    }
+
+    /**
+     * Create an entry for a block.
+     *
+     * @param componentProfile the profile of block
+     * @param metered true if calls made via the proxy should be recorded
+     */
+    BlockEntry( final ComponentProfile componentProfile,
+                final boolean metered )
     {
         invalidate();
         m_componentProfile = componentProfile;
+        m_metered = metered;
     }
 
     public ComponentInfo getInfo()
@@ -125,7 +153,22 @@ class BlockEntry
         return m_componentProfile.getTemplate().getName();
     }
 
-    public synchronized Object getObject()
+    ComponentProfile getProfile()
+    {
+        return m_componentProfile;
+    }
+
+    /**
+     * Replace the profile of block. The object and proxy are untouched.
+     *
+     * @param componentProfile the new profile
+     */
+    synchronized void setProfile( final ComponentProfile componentProfile )
+    {
+        m_componentProfile = componentProfile;
+    }
+
+    public Object getObject()
     {
         return m_object;
     }
@@ -140,13 +183,32 @@ class BlockEntry
             final ComponentInfo blockInfo = m_componentProfile.getInfo();
             final Class[] interfaces = getServiceClasses( object,
                                                           blockInfo.getServices() );
-            m_invocationHandler =
-            new BlockInvocationHandler( object, interfaces );
+            if( m_metered )
+            {
+                m_proxy =
+                    BlockProxyFactory.createMeteredProxy( object, interfaces );
+                m_metrics = BlockProxyFactory.getMetrics( m_proxy );
+            }
+            else
+            {
+                m_proxy = BlockProxyFactory.createProxy( object, interfaces );
+            }
         }
         m_object = object;
     }
 
-    public synchronized Object getProxy()
+    /**
+     * Return the metrics recorded by the proxy of block or null if the
+     * block is not metered or has not been started.
+     *
+     * @return the metrics or null
+     */
+    BlockMetrics getMetrics()
+    {
+        return m_metrics;
+    }
+
+    public Object getProxy()
     {
         if( m_componentProfile.getTemplate().isDisableProxy() )
         {
@@ -154,24 +216,18 @@ class BlockEntry
         }
         else
         {
-            if( null != m_invocationHandler )
-            {
-                return m_invocationHandler.getProxy();
-            }
-            else
-            {
-                return null;
-            }
+            return m_proxy;
         }
     }
 
     synchronized void invalidate()
     {
-        if( null != m_invocationHandler )
+        if( null != m_proxy )
         {
-            m_invocationHandler.invalidate();
-            m_invocationHandler = null;
+            BlockProxyFactory.invalidate( m_proxy );
+            m_proxy = null;
         }
+        m_metrics = null;
         m_object = null;
     }
 
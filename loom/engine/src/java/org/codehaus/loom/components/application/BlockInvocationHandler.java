@@ -112,7 +112,7 @@ import java.lang.reflect.Proxy;
 final class BlockInvocationHandler
     implements InvocationHandler
 {
-    private transient Object m_object;
+    private transient volatile Object m_object;
     private transient Object m_proxy;
 
     /**
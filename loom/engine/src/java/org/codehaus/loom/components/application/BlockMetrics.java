@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the number of calls, the number of calls that failed and a
+ * histogram of call durations for each service method of a block. The
+ * metrics are updated by the proxy of block and exported into the
+ * management system next to the block.
+ *
+ * <p>The counters are split into a fixed number of stripes and each thread
+ * updates the stripe picked by the identity hash of thread, so threads
+ * rarely contend for the lock on a stripe. The stripes are added together
+ * when the metrics are read. The memory used does not depend on the number
+ * of threads that have called the block.</p>
+ *
+ * <p>Reading the clock costs more than a call through the proxy so only
+ * one call in {@link #SAMPLE} made by each thread is timed. The total time
+ * and the histogram cover the timed calls. The proxy times calls with the
+ * clock named by {@link #getClockMethod()}. On virtual machines that
+ * provide <code>System.nanoTime()</code> that clock is used and the
+ * histogram has buckets below one millisecond. Otherwise calls are timed
+ * with <code>System.currentTimeMillis()</code> and the smallest bucket
+ * holds every call that took less than a millisecond.</p>
+ *
+ * @author Peter Donald
+ * @mx.component
+ */
+public final class BlockMetrics
+{
+    ///The number of calls made by a thread for each call that is timed
+    static final int SAMPLE = 16;
+
+    ///The number of stripes of counters, a power of two
+    static final int STRIPES = getStripeCount();
+
+    ///True if calls are timed in nanoseconds rather than milliseconds
+    private static final boolean NANO_CLOCK = hasNanoClock();
+
+    ///The upper bounds in microseconds of the histogram buckets
+    private static final long[] BOUNDS =
+        new long[]{10, 100, 1000, 2000, 5000, 10000, 20000, 50000, 100000,
+                   200000, 500000, 1000000, 2000000, 5000000};
+
+    ///The upper bounds of the buckets in the units of clock
+    private static final long[] CLOCK_BOUNDS = getClockBounds();
+
+    ///The index in BOUNDS of the first bucket that the clock can measure
+    private static final int FIRST_BOUND =
+        BOUNDS.length - CLOCK_BOUNDS.length;
+
+    private static final int CALLS = 0;
+    private static final int ERRORS = 1;
+    private static final int TIMED = 2;
+    private static final int TIME = 3;
+    private static final int BUCKETS = 4;
+
+    ///The number of counters for each method
+    private static final int SLOTS = BUCKETS + CLOCK_BOUNDS.length + 1;
+
+    ///The names of methods in the order they are indexed
+    private final String[] m_methods;
+
+    ///The number of calls made by the current thread and its stripe
+    private final ThreadLocal m_thread = new ThreadLocal();
+
+    ///The stripes of counters, each guarded by its own lock
+    private final long[][] m_stripes;
+
+    ///The totals when the metrics were last reset, guarded by m_stripes
+    private long[] m_baseline;
+
+    /**
+     * Create metrics for the specified methods.
+     *
+     * @param methods the names of methods
+     */
+    public BlockMetrics( final String[] methods )
+    {
+        if( null == methods )
+        {
+            throw new NullPointerException( "methods" );
+        }
+        m_methods = methods;
+        m_stripes = new long[ STRIPES ][ methods.length * SLOTS ];
+        m_baseline = new long[ methods.length * SLOTS ];
+    }
+
+    /**
+     * Return the name of the static method of {@link System} that the
+     * proxy uses to time calls.
+     *
+     * @return the name of clock method
+     */
+    static String getClockMethod()
+    {
+        return NANO_CLOCK ? "nanoTime" : "currentTimeMillis";
+    }
+
+    /**
+     * Return true if the call that the current thread is about to make
+     * should be timed.
+     *
+     * @return true to time the call
+     */
+    public boolean isTimed()
+    {
+        final int[] thread = getThread();
+        return 0 == ( thread[ 0 ]++ % SAMPLE );
+    }
+
+    /**
+     * Record a call to method that returned normally.
+     *
+     * @param method the index of method
+     * @param time the duration of call measured by the clock or a negative
+     * value if the call was not timed
+     */
+    public void succeeded( final int method, final long time )
+    {
+        record( method, time, 0 );
+    }
+
+    /**
+     * Record a call to method that threw an exception.
+     *
+     * @param method the index of method
+     * @param time the duration of call measured by the clock or a negative
+     * value if the call was not timed
+     */
+    public void failed( final int method, final long time )
+    {
+        record( method, time, 1 );
+    }
+
+    /**
+     * Return the number of calls made to the block.
+     *
+     * @return the number of calls
+     * @mx.attribute description="The number of calls made to the block."
+     */
+    public long getInvocationCount()
+    {
+        return sum( CALLS );
+    }
+
+    /**
+     * Return the number of calls to the block that threw an exception.
+     *
+     * @return the number of failed calls
+     * @mx.attribute description="The number of calls that failed."
+     */
+    public long getErrorCount()
+    {
+        return sum( ERRORS );
+    }
+
+    /**
+     * Return a line for each method that has been called giving the number
+     * of calls, failed calls and timed calls, the total time of the timed
+     * calls and the number of timed calls that completed within each bucket
+     * of the histogram.
+     *
+     * @return the statistics of each method
+     * @mx.attribute description="The statistics of each method."
+     */
+    public String[] getStatistics()
+    {
+        final long[] totals = snapshot();
+        int count = 0;
+        for( int i = 0; i < m_methods.length; i++ )
+        {
+            if( 0 != totals[ i * SLOTS + CALLS ] )
+            {
+                count++;
+            }
+        }
+
+        final String[] statistics = new String[ count ];
+        count = 0;
+        for( int i = 0; i < m_methods.length; i++ )
+        {
+            final int base = i * SLOTS;
+            if( 0 == totals[ base + CALLS ] )
+            {
+                continue;
+            }
+            final StringBuffer sb = new StringBuffer();
+            sb.append( m_methods[ i ] );
+            sb.append( " calls=" );
+            sb.append( totals[ base + CALLS ] );
+            sb.append( " errors=" );
+            sb.append( totals[ base + ERRORS ] );
+            sb.append( " timed=" );
+            sb.append( totals[ base + TIMED ] );
+            sb.append( " time=" );
+            sb.append( toMillis( totals[ base + TIME ] ) );
+            sb.append( "ms" );
+            for( int j = 0; j <= CLOCK_BOUNDS.length; j++ )
+            {
+                final long calls = totals[ base + BUCKETS + j ];
+                if( 0 == calls )
+                {
+                    continue;
+                }
+                if( j < CLOCK_BOUNDS.length )
+                {
+                    sb.append( " <=" );
+                    appendBound( sb, j );
+                }
+                else
+                {
+                    sb.append( " >" );
+                    appendBound( sb, CLOCK_BOUNDS.length - 1 );
+                }
+                sb.append( ':' );
+                sb.append( calls );
+            }
+            statistics[ count++ ] = sb.toString();
+        }
+        return statistics;
+    }
+
+    /**
+     * Clear all of the metrics.
+     *
+     * @mx.operation description="Clear all of the metrics."
+     */
+    public void reset()
+    {
+        final long[] totals = getTotals();
+        synchronized( m_stripes )
+        {
+            m_baseline = totals;
+        }
+    }
+
+    private void record( final int method,
+                         final long time,
+                         final int errors )
+    {
+        final int base = method * SLOTS;
+        final long[] counters = m_stripes[ getThread()[ 1 ] ];
+        synchronized( counters )
+        {
+            counters[ base + CALLS ]++;
+            counters[ base + ERRORS ] += errors;
+
+            //Also negative if the millisecond clock was set back during call
+            if( time >= 0 )
+            {
+                int bucket = 0;
+                while( bucket < CLOCK_BOUNDS.length &&
+                    time > CLOCK_BOUNDS[ bucket ] )
+                {
+                    bucket++;
+                }
+                counters[ base + TIMED ]++;
+                counters[ base + TIME ] += time;
+                counters[ base + BUCKETS + bucket ]++;
+            }
+        }
+    }
+
+    /**
+     * Return the state of the current thread, creating it on the first call
+     * from thread. The first element is the number of calls made by thread
+     * that is used to pick the calls to time and the second is the index
+     * of the stripe that thread updates.
+     */
+    private int[] getThread()
+    {
+        int[] thread = (int[])m_thread.get();
+        if( null == thread )
+        {
+            int hash = System.identityHashCode( Thread.currentThread() );
+            hash ^= ( hash >>> 16 );
+            hash *= 0x85ebca6b;
+            hash ^= ( hash >>> 13 );
+            thread = new int[]{0, hash & ( STRIPES - 1 )};
+            m_thread.set( thread );
+        }
+        return thread;
+    }
+
+    /**
+     * Return the counters added together since the metrics were last
+     * reset.
+     */
+    private long[] snapshot()
+    {
+        final long[] totals = getTotals();
+        synchronized( m_stripes )
+        {
+            for( int i = 0; i < totals.length; i++ )
+            {
+                totals[ i ] -= m_baseline[ i ];
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Return the counters of all stripes added together.
+     */
+    private long[] getTotals()
+    {
+        final long[] totals = new long[ m_methods.length * SLOTS ];
+        for( int i = 0; i < m_stripes.length; i++ )
+        {
+            final long[] counters = m_stripes[ i ];
+            synchronized( counters )
+            {
+                for( int j = 0; j < counters.length; j++ )
+                {
+                    totals[ j ] += counters[ j ];
+                }
+            }
+        }
+        return totals;
+    }
+
+    private long sum( final int slot )
+    {
+        final long[] totals = snapshot();
+        long total = 0;
+        for( int i = 0; i < m_methods.length; i++ )
+        {
+            total += totals[ i * SLOTS + slot ];
+        }
+        return total;
+    }
+
+    /**
+     * Append the bound of specified bucket in microseconds or milliseconds.
+     */
+    private static void appendBound( final StringBuffer sb, final int bucket )
+    {
+        final long bound = BOUNDS[ FIRST_BOUND + bucket ];
+        if( bound < 1000 )
+        {
+            sb.append( bound );
+            sb.append( "us" );
+        }
+        else
+        {
+            sb.append( bound / 1000 );
+            sb.append( "ms" );
+        }
+    }
+
+    private static long toMillis( final long time )
+    {
+        return NANO_CLOCK ? time / 1000000 : time;
+    }
+
+    /**
+     * Return the bounds of the buckets in the units of clock. The
+     * millisecond clock can not measure the bounds below a millisecond so
+     * those buckets are left out.
+     */
+    private static long[] getClockBounds()
+    {
+        final List bounds = new ArrayList();
+        for( int i = 0; i < BOUNDS.length; i++ )
+        {
+            if( NANO_CLOCK )
+            {
+                bounds.add( new Long( BOUNDS[ i ] * 1000 ) );
+            }
+            else if( BOUNDS[ i ] >= 1000 )
+            {
+                bounds.add( new Long( BOUNDS[ i ] / 1000 ) );
+            }
+        }
+        final long[] result = new long[ bounds.size() ];
+        for( int i = 0; i < result.length; i++ )
+        {
+            result[ i ] = ( (Long)bounds.get( i ) ).longValue();
+        }
+        return result;
+    }
+
+    /**
+     * Return the number of stripes, the smallest power of two that is at
+     * least twice the number of processors.
+     */
+    private static int getStripeCount()
+    {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while( stripes < processors * 2 )
+        {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    /**
+     * Return true if the virtual machine provides a nanosecond clock.
+     */
+    private static boolean hasNanoClock()
+    {
+        try
+        {
+            System.class.getMethod( "nanoTime", new Class[ 0 ] );
+            return true;
+        }
+        catch( final NoSuchMethodException nsme )
+        {
+            //Calls are timed in milliseconds before JDK 1.5
+            return false;
+        }
+    }
+}
@@ -0,0 +1,734 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.CodeVisitor;
+import org.objectweb.asm.Constants;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+
+/**
+ * Creates the proxies that are handed out to other blocks. The proxy
+ * classes are generated with ASM and call directly through to the
+ * underlying block rather than via reflection. A proxy class is generated
+ * once for each set of interfaces in each ClassLoader and reused for every
+ * block that exposes the same services.
+ *
+ * <p>Each generated proxy holds the block in a single volatile field.
+ * Invalidating the proxy clears the field after which any call on the
+ * proxy results in an IllegalStateException.</p>
+ *
+ * <p>A metered proxy also records each call to a service method in a
+ * {@link BlockMetrics} object. The metered proxy classes are generated
+ * separately so that blocks that are not metered pay nothing.</p>
+ *
+ * <p>If a proxy class can not be generated for the interfaces (for example
+ * because one of them is not public) then a reflective proxy created
+ * via {@link BlockInvocationHandler} is returned instead. Reflective
+ * proxies are never metered.</p>
+ *
+ * @author Peter Donald
+ */
+final class BlockProxyFactory
+{
+    private static final String STALE_MESSAGE =
+        "Using a stale object reference to call a disposed Block.";
+
+    private static final String TARGET_FIELD = "m_object";
+    private static final String METRICS_FIELD = "m_metrics";
+    private static final String METERED_KEY = "metered:";
+    private static final String OBJECT_NAME = Type.getInternalName( Object.class );
+    private static final String OBJECT_DESC = Type.getDescriptor( Object.class );
+    private static final String STATE_EXCEPTION_NAME =
+        Type.getInternalName( IllegalStateException.class );
+    private static final String METRICS_NAME =
+        Type.getInternalName( BlockMetrics.class );
+    private static final String METRICS_DESC =
+        Type.getDescriptor( BlockMetrics.class );
+    private static final String PROXY_PREFIX =
+        BlockProxyFactory.class.getPackage().getName() + ".GeneratedBlockProxy";
+
+    /**
+     * The methods of Object that are passed through to the block.
+     */
+    private static final Method[] OBJECT_METHODS = getObjectMethods();
+
+    /**
+     * Map from ClassLoader to a WeakReference to the ProxyClassLoader
+     * used to define proxies for that ClassLoader. The references are weak
+     * so that neither map keeps an application ClassLoader alive.
+     */
+    private static final Map c_loaders = new WeakHashMap();
+
+    /**
+     * The index used to give each generated class a unique name.
+     */
+    private static int c_index;
+
+    private BlockProxyFactory()
+    {
+    }
+
+    /**
+     * Create a proxy for object that implements the specified interfaces.
+     *
+     * @param object the underlying object
+     * @param interfaces the interfaces to proxy
+     * @return the proxy object
+     */
+    static Object createProxy( final Object object, final Class[] interfaces )
+    {
+        final ClassLoader classLoader = object.getClass().getClassLoader();
+        final Class type = getProxyClass( classLoader, interfaces, false );
+        if( null == type )
+        {
+            return new BlockInvocationHandler( object, interfaces ).getProxy();
+        }
+        return newInstance( type,
+                            new Class[]{Object.class},
+                            new Object[]{object} );
+    }
+
+    /**
+     * Create a proxy for object that implements the specified interfaces
+     * and records calls to them in a {@link BlockMetrics} object that can
+     * be retrieved via {@link #getMetrics(Object)}. If a proxy class can
+     * not be generated then an unmetered reflective proxy is returned.
+     *
+     * @param object the underlying object
+     * @param interfaces the interfaces to proxy
+     * @return the proxy object
+     */
+    static Object createMeteredProxy( final Object object,
+                                      final Class[] interfaces )
+    {
+        final ClassLoader classLoader = object.getClass().getClassLoader();
+        final Class type = getProxyClass( classLoader, interfaces, true );
+        if( null == type )
+        {
+            return new BlockInvocationHandler( object, interfaces ).getProxy();
+        }
+        final String[] methods = getMetricNames( classLoader, type );
+        return newInstance( type,
+                            new Class[]{Object.class, BlockMetrics.class},
+                            new Object[]{object, new BlockMetrics( methods )} );
+    }
+
+    /**
+     * Return the metrics recorded by a proxy created by this factory or
+     * null if the proxy is not metered.
+     *
+     * @param proxy the proxy
+     * @return the metrics or null
+     */
+    static BlockMetrics getMetrics( final Object proxy )
+    {
+        final Class type = proxy.getClass();
+        if( Proxy.isProxyClass( type ) )
+        {
+            return null;
+        }
+
+        try
+        {
+            final Field field = type.getDeclaredField( METRICS_FIELD );
+            field.setAccessible( true );
+            return (BlockMetrics)field.get( proxy );
+        }
+        catch( final NoSuchFieldException nsfe )
+        {
+            return null;
+        }
+        catch( final Exception e )
+        {
+            final String message =
+                "Unable to get metrics of proxy of type " + type.getName();
+            throw new IllegalStateException( message + ": " + e );
+        }
+    }
+
+    private static Object newInstance( final Class type,
+                                       final Class[] parameterTypes,
+                                       final Object[] parameters )
+    {
+        try
+        {
+            return type.getConstructor( parameterTypes ).
+                newInstance( parameters );
+        }
+        catch( final Exception e )
+        {
+            final String message =
+                "Unable to create proxy of type " + type.getName();
+            throw new IllegalStateException( message + ": " + e );
+        }
+    }
+
+    /**
+     * Invalidate a proxy created by this factory making it impossible
+     * to call methods of the underlying object.
+     *
+     * @param proxy the proxy
+     */
+    static void invalidate( final Object proxy )
+    {
+        final Class type = proxy.getClass();
+        if( Proxy.isProxyClass( type ) )
+        {
+            final BlockInvocationHandler handler =
+                (BlockInvocationHandler)Proxy.getInvocationHandler( proxy );
+            handler.invalidate();
+            return;
+        }
+
+        try
+        {
+            final Field field = type.getDeclaredField( TARGET_FIELD );
+            field.setAccessible( true );
+            field.set( proxy, null );
+        }
+        catch( final Exception e )
+        {
+            final String message =
+                "Unable to invalidate proxy of type " + type.getName();
+            throw new IllegalStateException( message + ": " + e );
+        }
+    }
+
+    /**
+     * Return the generated proxy class for specified interfaces, generating
+     * it if necessary. Returns null if no proxy class can be generated.
+     *
+     * @param classLoader the ClassLoader that loaded the block
+     * @param interfaces the interfaces to proxy
+     * @param metered true if the proxy class records calls
+     * @return the proxy class or null
+     */
+    private static synchronized Class getProxyClass( final ClassLoader classLoader,
+                                                     final Class[] interfaces,
+                                                     final boolean metered )
+    {
+        final String key =
+            ( metered ? METERED_KEY : "" ) + getKey( interfaces );
+        final ProxyClassLoader loader = getLoader( classLoader );
+        Class type = loader.getProxyClass( key );
+        if( null == type )
+        {
+            final Method[] methods = getProxyMethods( classLoader, interfaces );
+            if( null == methods )
+            {
+                return null;
+            }
+
+            final String name = PROXY_PREFIX + c_index++;
+            try
+            {
+                final byte[] bytes =
+                    generate( name, interfaces, methods, metered );
+                type = loader.defineProxyClass( key,
+                                                name,
+                                                bytes,
+                                                getMethodNames( methods ) );
+            }
+            catch( final LinkageError le )
+            {
+                return null;
+            }
+        }
+        return type;
+    }
+
+    private static synchronized String[] getMetricNames(
+        final ClassLoader classLoader,
+        final Class type )
+    {
+        return getLoader( classLoader ).getMethodNames( type );
+    }
+
+    private static ProxyClassLoader getLoader( final ClassLoader classLoader )
+    {
+        final WeakReference reference = (WeakReference)c_loaders.get( classLoader );
+        ProxyClassLoader loader =
+            ( null != reference ) ? (ProxyClassLoader)reference.get() : null;
+        if( null == loader )
+        {
+            loader = new ProxyClassLoader( classLoader );
+            c_loaders.put( classLoader, new WeakReference( loader ) );
+        }
+        return loader;
+    }
+
+    private static String getKey( final Class[] interfaces )
+    {
+        final StringBuffer sb = new StringBuffer();
+        for( int i = 0; i < interfaces.length; i++ )
+        {
+            sb.append( interfaces[ i ].getName() );
+            sb.append( ',' );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Return the methods that the proxy class must implement or null if
+     * a proxy class can not be generated. Each method is returned once
+     * and is invoked via the first interface that declares it.
+     */
+    private static Method[] getProxyMethods( final ClassLoader classLoader,
+                                             final Class[] interfaces )
+    {
+        //Methods of Object are always passed through to the block so
+        //are skipped if an interface redeclares them
+        final Map signatures = new HashMap();
+        for( int i = 0; i < OBJECT_METHODS.length; i++ )
+        {
+            final Method method = OBJECT_METHODS[ i ];
+            signatures.put( getSignature( method ), Type.getMethodDescriptor( method ) );
+        }
+
+        final Method[] result = new Method[ countMethods( interfaces ) ];
+        int count = 0;
+        for( int i = 0; i < interfaces.length; i++ )
+        {
+            final Class type = interfaces[ i ];
+            if( null == type ||
+                !type.isInterface() ||
+                !Modifier.isPublic( type.getModifiers() ) ||
+                !isVisible( classLoader, type ) )
+            {
+                return null;
+            }
+
+            final Method[] candidates = type.getMethods();
+            for( int j = 0; j < candidates.length; j++ )
+            {
+                final Method method = candidates[ j ];
+                if( Modifier.isStatic( method.getModifiers() ) )
+                {
+                    continue;
+                }
+                final String signature = getSignature( method );
+                final String descriptor = Type.getMethodDescriptor( method );
+                final String existing = (String)signatures.get( signature );
+                if( null == existing )
+                {
+                    signatures.put( signature, descriptor );
+                    result[ count++ ] = method;
+                }
+                else if( !existing.equals( descriptor ) )
+                {
+                    //Same parameters but different return types
+                    return null;
+                }
+            }
+        }
+
+        final Method[] proxyMethods = new Method[ count ];
+        System.arraycopy( result, 0, proxyMethods, 0, count );
+        return proxyMethods;
+    }
+
+    private static int countMethods( final Class[] interfaces )
+    {
+        int count = 0;
+        for( int i = 0; i < interfaces.length; i++ )
+        {
+            if( null != interfaces[ i ] )
+            {
+                count += interfaces[ i ].getMethods().length;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the names used to identify the methods in metrics.
+     */
+    private static String[] getMethodNames( final Method[] methods )
+    {
+        final String[] names = new String[ methods.length ];
+        for( int i = 0; i < methods.length; i++ )
+        {
+            final StringBuffer sb = new StringBuffer();
+            sb.append( methods[ i ].getName() );
+            sb.append( '(' );
+            final Class[] types = methods[ i ].getParameterTypes();
+            for( int j = 0; j < types.length; j++ )
+            {
+                if( 0 != j )
+                {
+                    sb.append( ',' );
+                }
+                sb.append( getTypeName( types[ j ] ) );
+            }
+            sb.append( ')' );
+            names[ i ] = sb.toString();
+        }
+        return names;
+    }
+
+    private static String getTypeName( final Class type )
+    {
+        if( type.isArray() )
+        {
+            return getTypeName( type.getComponentType() ) + "[]";
+        }
+        else
+        {
+            return type.getName();
+        }
+    }
+
+    private static String getSignature( final Method method )
+    {
+        final String descriptor = Type.getMethodDescriptor( method );
+        return method.getName() + descriptor.substring( 0, descriptor.indexOf( ')' ) + 1 );
+    }
+
+    private static boolean isVisible( final ClassLoader classLoader,
+                                      final Class type )
+    {
+        try
+        {
+            return type == Class.forName( type.getName(), false, classLoader );
+        }
+        catch( final ClassNotFoundException cnfe )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Generate the bytecode for proxy class.
+     *
+     * @param name the name of class
+     * @param interfaces the interfaces that the class implements
+     * @param methods the interface methods to implement
+     * @param metered true if calls to interface methods are recorded
+     * @return the class bytes
+     */
+    private static byte[] generate( final String name,
+                                    final Class[] interfaces,
+                                    final Method[] methods,
+                                    final boolean metered )
+    {
+        final String className = name.replace( '.', '/' );
+        final String[] interfaceNames = new String[ interfaces.length ];
+        for( int i = 0; i < interfaces.length; i++ )
+        {
+            interfaceNames[ i ] = Type.getInternalName( interfaces[ i ] );
+        }
+
+        final ClassWriter writer = new ClassWriter( true );
+        writer.visit( Constants.ACC_PUBLIC | Constants.ACC_FINAL | Constants.ACC_SUPER,
+                      className,
+                      OBJECT_NAME,
+                      interfaceNames,
+                      null );
+        writer.visitField( Constants.ACC_PRIVATE | Constants.ACC_VOLATILE,
+                           TARGET_FIELD,
+                           OBJECT_DESC,
+                           null,
+                           null );
+        if( metered )
+        {
+            writer.visitField( Constants.ACC_PRIVATE | Constants.ACC_FINAL,
+                               METRICS_FIELD,
+                               METRICS_DESC,
+                               null,
+                               null );
+        }
+        generateConstructor( writer, className, metered );
+
+        for( int i = 0; i < methods.length; i++ )
+        {
+            final Method method = methods[ i ];
+            final Class owner = getOwner( interfaces, method );
+            generateMethod( writer, className, owner, method,
+                            true, metered ? i : -1 );
+        }
+        for( int i = 0; i < OBJECT_METHODS.length; i++ )
+        {
+            generateMethod( writer, className, Object.class, OBJECT_METHODS[ i ],
+                            false, -1 );
+        }
+
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static void generateConstructor( final ClassWriter writer,
+                                             final String className,
+                                             final boolean metered )
+    {
+        final String descriptor =
+            "(" + OBJECT_DESC + ( metered ? METRICS_DESC : "" ) + ")V";
+        final CodeVisitor code =
+            writer.visitMethod( Constants.ACC_PUBLIC,
+                                "<init>",
+                                descriptor,
+                                null,
+                                null );
+        code.visitVarInsn( Constants.ALOAD, 0 );
+        code.visitMethodInsn( Constants.INVOKESPECIAL, OBJECT_NAME, "<init>", "()V" );
+        code.visitVarInsn( Constants.ALOAD, 0 );
+        code.visitVarInsn( Constants.ALOAD, 1 );
+        code.visitFieldInsn( Constants.PUTFIELD, className, TARGET_FIELD, OBJECT_DESC );
+        if( metered )
+        {
+            code.visitVarInsn( Constants.ALOAD, 0 );
+            code.visitVarInsn( Constants.ALOAD, 2 );
+            code.visitFieldInsn( Constants.PUTFIELD, className, METRICS_FIELD, METRICS_DESC );
+        }
+        code.visitInsn( Constants.RETURN );
+        code.visitMaxs( 0, 0 );
+    }
+
+    /**
+     * Generate a method that reads the block from the volatile field once,
+     * fails if the proxy has been invalidated and otherwise calls straight
+     * through to the block. If the method is metered then the call is
+     * recorded when the block returns or throws. When the metrics ask for
+     * the call to be timed the time before the call is kept in a local
+     * variable.
+     *
+     * @param metric the index of method in metrics or -1 if not metered
+     */
+    private static void generateMethod( final ClassWriter writer,
+                                        final String className,
+                                        final Class owner,
+                                        final Method method,
+                                        final boolean isInterface,
+                                        final int metric )
+    {
+        final String descriptor = Type.getMethodDescriptor( method );
+        final Type[] arguments = Type.getArgumentTypes( method );
+        final Type returnType = Type.getReturnType( method );
+        final String ownerName = Type.getInternalName( owner );
+
+        final CodeVisitor code =
+            writer.visitMethod( Constants.ACC_PUBLIC | Constants.ACC_FINAL,
+                                method.getName(),
+                                descriptor,
+                                getExceptionNames( method ),
+                                null );
+
+        int local = 1;
+        for( int i = 0; i < arguments.length; i++ )
+        {
+            local += arguments[ i ].getSize();
+        }
+
+        final Label valid = new Label();
+        code.visitVarInsn( Constants.ALOAD, 0 );
+        code.visitFieldInsn( Constants.GETFIELD, className, TARGET_FIELD, OBJECT_DESC );
+        code.visitVarInsn( Constants.ASTORE, local );
+        code.visitVarInsn( Constants.ALOAD, local );
+        code.visitJumpInsn( Constants.IFNONNULL, valid );
+        code.visitTypeInsn( Constants.NEW, STATE_EXCEPTION_NAME );
+        code.visitInsn( Constants.DUP );
+        code.visitLdcInsn( STALE_MESSAGE );
+        code.visitMethodInsn( Constants.INVOKESPECIAL,
+                              STATE_EXCEPTION_NAME,
+                              "<init>",
+                              "(Ljava/lang/String;)V" );
+        code.visitInsn( Constants.ATHROW );
+
+        code.visitLabel( valid );
+        final Label start = new Label();
+        if( -1 != metric )
+        {
+            code.visitVarInsn( Constants.ALOAD, 0 );
+            code.visitFieldInsn( Constants.GETFIELD, className, METRICS_FIELD, METRICS_DESC );
+            code.visitVarInsn( Constants.ASTORE, local + 1 );
+            code.visitVarInsn( Constants.ALOAD, local + 1 );
+            code.visitMethodInsn( Constants.INVOKEVIRTUAL,
+                                  METRICS_NAME,
+                                  "isTimed",
+                                  "()Z" );
+            code.visitVarInsn( Constants.ISTORE, local + 5 );
+            code.visitInsn( Constants.LCONST_0 );
+            code.visitVarInsn( Constants.LSTORE, local + 2 );
+            code.visitVarInsn( Constants.ILOAD, local + 5 );
+            code.visitJumpInsn( Constants.IFEQ, start );
+            generateClock( code );
+            code.visitVarInsn( Constants.LSTORE, local + 2 );
+            code.visitLabel( start );
+        }
+        code.visitVarInsn( Constants.ALOAD, local );
+        if( isInterface )
+        {
+            code.visitTypeInsn( Constants.CHECKCAST, ownerName );
+        }
+        int index = 1;
+        for( int i = 0; i < arguments.length; i++ )
+        {
+            code.visitVarInsn( arguments[ i ].getOpcode( Constants.ILOAD ), index );
+            index += arguments[ i ].getSize();
+        }
+        code.visitMethodInsn( isInterface ? Constants.INVOKEINTERFACE : Constants.INVOKEVIRTUAL,
+                              ownerName,
+                              method.getName(),
+                              descriptor );
+        if( -1 == metric )
+        {
+            code.visitInsn( returnType.getOpcode( Constants.IRETURN ) );
+            code.visitMaxs( 0, 0 );
+            return;
+        }
+
+        //The return value stays on the stack while the call is recorded
+        final Label end = new Label();
+        final Label handler = new Label();
+        code.visitLabel( end );
+        generateRecord( code, "succeeded", local, metric );
+        code.visitInsn( returnType.getOpcode( Constants.IRETURN ) );
+
+        code.visitLabel( handler );
+        code.visitVarInsn( Constants.ASTORE, local + 4 );
+        generateRecord( code, "failed", local, metric );
+        code.visitVarInsn( Constants.ALOAD, local + 4 );
+        code.visitInsn( Constants.ATHROW );
+        code.visitTryCatchBlock( start, end, handler, null );
+        code.visitMaxs( 0, 0 );
+    }
+
+    private static void generateRecord( final CodeVisitor code,
+                                        final String name,
+                                        final int local,
+                                        final int metric )
+    {
+        final Label untimed = new Label();
+        final Label record = new Label();
+        code.visitVarInsn( Constants.ALOAD, local + 1 );
+        code.visitLdcInsn( new Integer( metric ) );
+        code.visitVarInsn( Constants.ILOAD, local + 5 );
+        code.visitJumpInsn( Constants.IFEQ, untimed );
+        generateClock( code );
+        code.visitVarInsn( Constants.LLOAD, local + 2 );
+        code.visitInsn( Constants.LSUB );
+        code.visitJumpInsn( Constants.GOTO, record );
+        code.visitLabel( untimed );
+        code.visitLdcInsn( new Long( -1 ) );
+        code.visitLabel( record );
+        code.visitMethodInsn( Constants.INVOKEVIRTUAL, METRICS_NAME, name, "(IJ)V" );
+    }
+
+    /**
+     * Generate a call to the clock that {@link BlockMetrics} expects calls
+     * to be timed with.
+     */
+    private static void generateClock( final CodeVisitor code )
+    {
+        code.visitMethodInsn( Constants.INVOKESTATIC,
+                              "java/lang/System",
+                              BlockMetrics.getClockMethod(),
+                              "()J" );
+    }
+
+    private static Class getOwner( final Class[] interfaces, final Method method )
+    {
+        for( int i = 0; i < interfaces.length; i++ )
+        {
+            if( method.getDeclaringClass().isAssignableFrom( interfaces[ i ] ) )
+            {
+                return interfaces[ i ];
+            }
+        }
+        return method.getDeclaringClass();
+    }
+
+    private static String[] getExceptionNames( final Method method )
+    {
+        final Class[] exceptions = method.getExceptionTypes();
+        final String[] names = new String[ exceptions.length ];
+        for( int i = 0; i < exceptions.length; i++ )
+        {
+            names[ i ] = Type.getInternalName( exceptions[ i ] );
+        }
+        return names;
+    }
+
+    private static Method[] getObjectMethods()
+    {
+        try
+        {
+            return new Method[]{
+                Object.class.getMethod( "hashCode", new Class[ 0 ] ),
+                Object.class.getMethod( "equals", new Class[]{Object.class} ),
+                Object.class.getMethod( "toString", new Class[ 0 ] )};
+        }
+        catch( final NoSuchMethodException nsme )
+        {
+            throw new IllegalStateException( nsme.toString() );
+        }
+    }
+
+    /**
+     * The ClassLoader that defines the proxy classes for a single
+     * block ClassLoader.
+     */
+    private static final class ProxyClassLoader
+        extends ClassLoader
+    {
+        private final Map m_classes = new HashMap();
+
+        ///Map from proxy class to the names of its methods
+        private final Map m_methodNames = new HashMap();
+
+        ProxyClassLoader( final ClassLoader parent )
+        {
+            super( parent );
+        }
+
+        Class getProxyClass( final String key )
+        {
+            return (Class)m_classes.get( key );
+        }
+
+        String[] getMethodNames( final Class type )
+        {
+            return (String[])m_methodNames.get( type );
+        }
+
+        Class defineProxyClass( final String key,
+                                final String name,
+                                final byte[] bytes,
+                                final String[] methodNames )
+        {
+            final Class type = defineClass( name, bytes, 0, bytes.length );
+            m_classes.put( key, type );
+            m_methodNames.put( type, methodNames );
+            return type;
+        }
+
+        /**
+         * Metered proxies refer to {@link BlockMetrics} which is not
+         * visible to the ClassLoader of block.
+         */
+        protected synchronized Class loadClass( final String name,
+                                                final boolean resolve )
+            throws ClassNotFoundException
+        {
+            if( BlockMetrics.class.getName().equals( name ) )
+            {
+                return BlockMetrics.class;
+            }
+            return super.loadClass( name, resolve );
+        }
+    }
+}
@@ -86,12 +86,8 @@
  */
 package org.codehaus.loom.components.application;
 
-import java.lang.reflect.Array;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import org.apache.avalon.framework.component.ComponentManager;
 import org.apache.avalon.framework.component.WrapperComponentManager;
@@ -103,14 +99,10 @@ import org.apache.avalon.framework.service.DefaultServiceManager;
 import org.apache.avalon.framework.service.ServiceManager;
 import org.apache.excalibur.instrument.InstrumentManager;
 import org.codehaus.dna.AbstractLogEnabled;
-import org.codehaus.loom.components.util.info.ComponentInfo;
-import org.codehaus.loom.components.util.info.DependencyDescriptor;
 import org.codehaus.loom.components.util.lifecycle.ResourceProvider;
 import org.codehaus.loom.components.util.metadata.ComponentTemplate;
-import org.codehaus.loom.components.util.metadata.DependencyDirective;
 import org.codehaus.loom.interfaces.Application;
 import org.codehaus.loom.interfaces.ApplicationContext;
-import org.codehaus.spice.alchemist.configuration.ConfigurationAlchemist;
 
 /**
  * The accessor used to access resources for a particular Block or Listener.
@@ -131,6 +123,12 @@ class BlockResourceProvider
      */
     private final Application m_application;
 
+    /**
+     * Map from the ComponentTemplate of a Block or Listener to its
+     * {@link WiringPlan}. Access must be synchronized on the map.
+     */
+    private final Map m_plans = new HashMap();
+
     public BlockResourceProvider( final ApplicationContext context,
                                   final Application application )
     {
@@ -260,123 +258,56 @@ class BlockResourceProvider
     private Map createServiceMap( final Object entry )
         throws Exception
     {
-        final BlockEntry blockEntry = getBlockEntry( entry );
-        final HashMap map = new HashMap();
-        final HashMap sets = new HashMap();
-
-        final ComponentInfo info = blockEntry.getInfo();
-        final DependencyDirective[] roles = blockEntry.getTemplate()
-            .getDependencies();
-
-        for( int i = 0; i < roles.length; i++ )
-        {
-            final DependencyDirective role = roles[ i ];
-            final Object dependency = m_application.getBlock(
-                role.getProviderName() );
-
-            final String key = role.getKey();
-            final DependencyDescriptor candidate =
-                info.getDependency( key );
-
-            if( candidate.isArray() )
-            {
-                ArrayList list = (ArrayList)sets.get( key );
-                if( null == list )
-                {
-                    list = new ArrayList();
-                    sets.put( key, list );
-                }
+        return getPlan( entry ).createServiceMap( m_application );
+    }
 
-                list.add( dependency );
-            }
-            else if( candidate.isMap() )
-            {
-                HashMap smap = (HashMap)sets.get( key );
-                if( null == smap )
-                {
-                    smap = new HashMap();
-                    sets.put( key, smap );
-                }
+    public Configuration createConfiguration( final Object entry )
+        throws Exception
+    {
+        return getPlan( entry ).getConfiguration();
+    }
 
-                smap.put( role.getAlias(), dependency );
-            }
-            else
-            {
-                map.put( key, dependency );
-            }
-        }
+    public Parameters createParameters( final Object entry )
+        throws Exception
+    {
+        return getPlan( entry ).getParameters();
+    }
 
-        final Iterator iterator = sets.keySet().iterator();
-        while( iterator.hasNext() )
+    /**
+     * Return the wiring plan for specified entry, compiling it the first
+     * time the entry is used.
+     *
+     * @param entry the entry
+     * @return the plan
+     */
+    private WiringPlan getPlan( final Object entry )
+    {
+        final BlockEntry blockEntry = getBlockEntry( entry );
+        final ComponentTemplate template = blockEntry.getTemplate();
+        synchronized( m_plans )
         {
-            final String key = (String)iterator.next();
-            final Object value = sets.get( key );
-            if( value instanceof List )
-            {
-                final List list = (List)value;
-                final DependencyDescriptor dependency = info.getDependency(
-                    key );
-
-                final Object[] result = toArray( list,
-                                                 dependency.getComponentType() );
-                map.put( key, result );
-
-                if( key.equals( dependency.getType() ) )
-                {
-                    final String classname =
-                        "[L" + dependency.getComponentType() + ";";
-                    map.put( classname, result );
-                }
-            }
-            else
+            WiringPlan plan = (WiringPlan)m_plans.get( template );
+            if( null == plan )
             {
-                final Map smap =
-                    Collections.unmodifiableMap( (Map)value );
-                map.put( key, smap );
+                plan = new WiringPlan( blockEntry.getInfo(), template );
+                m_plans.put( template, plan );
             }
+            return plan;
         }
-
-        return map;
     }
 
     /**
-     * Convert specified list into array of specified type. Note that the class
-     * for the type must be loaded from same classloader as the elements in the
-     * list are loaded from.
+     * Discard the wiring plan for specified template. Used when a block is
+     * given a new template so the plan for old template is not retained.
      *
-     * @param list the list
-     * @param type the classname of type
-     * @return array of objects that are in list
-     * @throws ClassNotFoundException if unable to find correct type
+     * @param template the template
      */
-    private Object[] toArray( final List list, final String type )
-        throws ClassNotFoundException
+    void removePlan( final ComponentTemplate template )
     {
-        final ClassLoader classLoader =
-            list.get( 0 ).getClass().getClassLoader();
-        final Class clazz = classLoader.loadClass( type );
-        final Object[] elements =
-            (Object[])Array.newInstance( clazz, list.size() );
-        return list.toArray( elements );
-    }
-
-    public Configuration createConfiguration( final Object entry )
-        throws Exception
-    {
-        final ComponentTemplate template = getBlockEntry( entry ).getTemplate();
-        return ConfigurationAlchemist.toAvalonConfiguration(
-            template.getConfiguration() );
-    }
-
-    public Parameters createParameters( final Object entry )
-        throws Exception
-    {
-        final Configuration configuration =
-            createConfiguration( entry );
-        final Parameters parameters =
-            Parameters.fromConfiguration( configuration );
-        parameters.makeReadOnly();
-        return parameters;
+        synchronized( m_plans )
+        {
+            m_plans.remove( template );
+        }
     }
 
     private BlockEntry getBlockEntry( final Object entry )
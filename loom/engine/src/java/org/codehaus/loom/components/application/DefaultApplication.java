@@ -87,16 +87,24 @@
 package org.codehaus.loom.components.application;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.avalon.framework.configuration.Reconfigurable;
 import org.apache.avalon.phoenix.ApplicationListener;
 import org.apache.avalon.phoenix.BlockListener;
 import org.apache.avalon.phoenix.metadata.SarMetaData;
 
 import org.codehaus.loom.components.util.ComponentMetaDataConverter;
 import org.codehaus.loom.components.util.lifecycle.LifecycleHelper;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
 import org.codehaus.loom.components.util.profile.ComponentProfile;
 import org.codehaus.loom.components.util.profile.PartitionProfile;
 import org.codehaus.loom.interfaces.Application;
@@ -107,6 +115,7 @@ import org.codehaus.spice.salt.i18n.ResourceManager;
 import org.codehaus.spice.salt.i18n.Resources;
 import org.codehaus.dna.AbstractLogEnabled;
 import org.codehaus.dna.Active;
+import org.codehaus.dna.Configuration;
 import org.codehaus.dna.Logger;
 
 /**
@@ -129,11 +138,21 @@ public final class DefaultApplication
 
     private static final String PHASE_SHUTDOWN = "shutdown";
 
-    private boolean m_running = false;
+    private volatile boolean m_running = false;
 
     private ApplicationContext m_context;
 
-    private final HashMap m_entries = new HashMap();
+    /**
+     * Map from block name to BlockEntry. The map is never modified once
+     * it has been published so blocks can be looked up without locking.
+     */
+    private volatile Map m_entries = Collections.EMPTY_MAP;
+
+    /**
+     * The dependencies between blocks. Built once when the application is
+     * initialized and used for both startup and shutdown.
+     */
+    private DependencyGraph m_graph;
 
     /**
      * ResourceProvider for blocks.
@@ -143,13 +162,83 @@ public final class DefaultApplication
     /**
      * Object to support notification of ApplicationListeners.
      */
-    private final ListenerSupport m_listenerSupport = new ListenerSupport();
+    private final ListenerSupport m_listenerSupport;
 
     /**
      * Object to support running objects through lifecycle phases.
      */
     private final LifecycleHelper m_lifecycleHelper = new LifecycleHelper();
 
+    /**
+     * Object used to run blocks through startup and shutdown phases.
+     */
+    private final PhaseExecutor m_phaseExecutor;
+
+    /**
+     * True if calls made to blocks via their proxies are recorded and
+     * exported to the management system.
+     */
+    private final boolean m_blockMetrics;
+
+    /**
+     * Create an application that processes blocks one at a time.
+     */
+    public DefaultApplication()
+    {
+        this( 1 );
+    }
+
+    /**
+     * Create an application that uses up to the specified number of threads
+     * to process blocks whose dependencies have been satisfied.
+     *
+     * @param phaseThreads the maximum number of threads used in a phase
+     */
+    public DefaultApplication( final int phaseThreads )
+    {
+        this( phaseThreads, 0, false );
+    }
+
+    /**
+     * Create an application that uses up to the specified number of threads
+     * to process blocks and that notifies listeners asynchronously if
+     * listenerQueueSize is greater than zero.
+     *
+     * @param phaseThreads the maximum number of threads used in a phase
+     * @param listenerQueueSize the maximum number of events queued for each
+     * listener or 0 to notify listeners synchronously
+     * @param discardListenerEvents true to discard events for a listener
+     * whose queue is full rather than waiting for room
+     */
+    public DefaultApplication( final int phaseThreads,
+                               final int listenerQueueSize,
+                               final boolean discardListenerEvents )
+    {
+        this( phaseThreads, listenerQueueSize, discardListenerEvents, false );
+    }
+
+    /**
+     * Create an application as above that also records the calls made to
+     * each block via its proxy if blockMetrics is true.
+     *
+     * @param phaseThreads the maximum number of threads used in a phase
+     * @param listenerQueueSize the maximum number of events queued for each
+     * listener or 0 to notify listeners synchronously
+     * @param discardListenerEvents true to discard events for a listener
+     * whose queue is full rather than waiting for room
+     * @param blockMetrics true to record calls made to blocks
+     */
+    public DefaultApplication( final int phaseThreads,
+                               final int listenerQueueSize,
+                               final boolean discardListenerEvents,
+                               final boolean blockMetrics )
+    {
+        m_phaseExecutor = new PhaseExecutor( phaseThreads );
+        m_listenerSupport =
+            new ListenerSupport( listenerQueueSize, discardListenerEvents );
+        m_blockMetrics = blockMetrics;
+    }
+
     ///////////////////////
     // LifeCycle Methods //
     ///////////////////////
@@ -157,6 +246,7 @@ public final class DefaultApplication
     {
         super.enableLogging( logger );
         setupLogger( m_lifecycleHelper );
+        setupLogger( m_listenerSupport, "listeners" );
     }
 
     public void initialize()
@@ -177,12 +267,16 @@ public final class DefaultApplication
             final PartitionProfile partition =
                 m_context.getPartitionProfile().getPartition( ContainerConstants.BLOCK_PARTITION );
             final ComponentProfile[] blocks = partition.getComponents();
+            final Map entries = new HashMap();
             for( int i = 0; i < blocks.length; i++ )
             {
                 final String blockName = blocks[i].getTemplate().getName();
-                final BlockEntry blockEntry = new BlockEntry( blocks[i] );
-                m_entries.put( blockName, blockEntry );
+                final BlockEntry blockEntry =
+                    new BlockEntry( blocks[i], m_blockMetrics );
+                entries.put( blockName, blockEntry );
             }
+            m_entries = entries;
+            m_graph = new DependencyGraph( blocks );
 
             // load blocks
             runPhase( PHASE_STARTUP );
@@ -191,17 +285,21 @@ public final class DefaultApplication
         {
             getLogger().info( "exception while starting:" + t.getMessage() + "\n" );
             t.printStackTrace();
+            m_listenerSupport.close();
             throw new LoomException( t.getMessage(), t );
         }
 
         m_running = true;
     }
 
-    public void dispose()
+    public synchronized void dispose()
     {
         try
         {
-            runPhase( PHASE_SHUTDOWN );
+            if( null != m_graph )
+            {
+                runPhase( PHASE_SHUTDOWN );
+            }
         }
         catch( final Throwable t )
         {
@@ -209,13 +307,96 @@ public final class DefaultApplication
                               t );
         }
 
+        m_listenerSupport.close();
         m_running = false;
-        m_entries.clear();
+        m_entries = Collections.EMPTY_MAP;
+        m_graph = null;
     }
 
     ////////////////////////////
     // Public Utility Methods //
     ////////////////////////////
+    public synchronized void reconfigure( final Map configurations )
+        throws Exception
+    {
+        checkRunning();
+
+        //Blocks that can not accept new configuration are restarted
+        //along with every block that uses them
+        final Map profiles = new HashMap();
+        final Set restart = new HashSet();
+        final Iterator iterator = configurations.keySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final String name = (String)iterator.next();
+            final BlockEntry entry = getEntry( name );
+            final ComponentTemplate template = entry.getTemplate();
+            final Configuration configuration =
+                (Configuration)configurations.get( name );
+            final ComponentTemplate newTemplate =
+                new ComponentTemplate( template.getName(),
+                                       template.getImplementationKey(),
+                                       template.getDependencies(),
+                                       template.getParameters(),
+                                       configuration,
+                                       template.isDisableProxy() );
+            profiles.put( name,
+                          new ComponentProfile( entry.getInfo(),
+                                                newTemplate ) );
+            if( !( entry.getObject() instanceof Reconfigurable ) )
+            {
+                addWithConsumers( m_graph, name, restart );
+            }
+        }
+
+        update( profiles, restart, m_graph, "reconfigure.notice" );
+    }
+
+    public synchronized void replaceBlocks( final ComponentProfile[] blocks )
+        throws Exception
+    {
+        checkRunning();
+
+        final Map profiles = new HashMap();
+        for( int i = 0; i < blocks.length; i++ )
+        {
+            final String name = blocks[ i ].getTemplate().getName();
+            getEntry( name );
+            profiles.put( name, blocks[ i ] );
+        }
+
+        //The dependencies of replaced blocks may have changed so the graph
+        //is rebuilt before any block is stopped. Blocks that used the old
+        //or will use the new version of a block are restarted with it
+        final String[] names = m_graph.getStartupOrder();
+        final ComponentProfile[] all = new ComponentProfile[ names.length ];
+        for( int i = 0; i < names.length; i++ )
+        {
+            final ComponentProfile profile =
+                (ComponentProfile)profiles.get( names[ i ] );
+            if( null != profile )
+            {
+                all[ i ] = profile;
+            }
+            else
+            {
+                all[ i ] = getEntry( names[ i ] ).getProfile();
+            }
+        }
+        final DependencyGraph graph = new DependencyGraph( all );
+
+        final Set restart = new HashSet();
+        final Iterator iterator = profiles.keySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final String name = (String)iterator.next();
+            addWithConsumers( m_graph, name, restart );
+            addWithConsumers( graph, name, restart );
+        }
+
+        update( profiles, restart, graph, "replace.notice" );
+    }
+
     public void setApplicationContext( final ApplicationContext context )
     {
         m_context = context;
@@ -284,6 +465,14 @@ public final class DefaultApplication
         return m_running;
     }
 
+    /**
+     * @mx.attribute description="the events delivered to each listener, time taken to deliver them and depth of queue."
+     */
+    public String[] getListenerStatistics()
+    {
+        return m_listenerSupport.getStatistics();
+    }
+
     /////////////////////////////
     // Private Utility Methods //
     /////////////////////////////
@@ -379,16 +568,22 @@ public final class DefaultApplication
     private final void doRunPhase( final String name )
         throws Exception
     {
-        final ComponentProfile[] blocks =
-            getComponentsInPartition( ContainerConstants.BLOCK_PARTITION );
-        final String[] order = DependencyGraph.walkGraph( PHASE_STARTUP == name, blocks );
+        final String[] order;
+        if( PHASE_STARTUP == name )
+        {
+            order = m_graph.getStartupOrder();
+        }
+        else
+        {
+            order = m_graph.getShutdownOrder();
+        }
 
         //Log message describing the number of blocks
         //the phase in and the order in which they will be
         //processed
         if( getLogger().isInfoEnabled() )
         {
-            final Integer count = new Integer( blocks.length );
+            final Integer count = new Integer( order.length );
             final List pathList = Arrays.asList( order );
             final String message =
                 REZ.format( "blocks-processing", count, name, pathList );
@@ -412,65 +607,380 @@ public final class DefaultApplication
             m_listenerSupport.applicationStopping();
         }
 
-        //Process blocks, one by one.
+        //Process blocks, each one once all of the blocks
+        //it waits upon have been processed.
+        final Map prerequisites =
+            m_graph.getPrerequisites( PHASE_STARTUP == name );
+        final PhaseExecutor.Task task = new PhaseExecutor.Task()
+        {
+            public void process( final String block )
+                throws Exception
+            {
+                processBlock( name, block );
+            }
+        };
+        try
+        {
+            m_phaseExecutor.execute( getName() + "-" + name,
+                                     order,
+                                     prerequisites,
+                                     task );
+        }
+        catch( final Exception e )
+        {
+            m_listenerSupport.applicationFailure( e );
+            throw e;
+        }
 
-        for( int i = 0; i < order.length; i++ )
+        //All blocks processed ...
+        if( PHASE_STARTUP == name )
+        {
+            //... for startup, so indicate to applicable listeners
+            m_listenerSupport.applicationStarted();
+        }
+        else
+        {
+            //... for shutdown, so indicate to applicable listeners
+            m_listenerSupport.applicationStopped();
+        }
+    }
+
+    /**
+     * Raise an exception if the application is not running.
+     */
+    private void checkRunning()
+        throws LoomException
+    {
+        if( !m_running )
         {
-            final String block = order[i];
+            final String message =
+                REZ.format( "reconfigure.not-running.error", getName() );
+            throw new LoomException( message );
+        }
+    }
 
-            //Log message saying we are processing block
-            if( getLogger().isDebugEnabled() )
+    /**
+     * Return the entry for named block.
+     *
+     * @throws LoomException if there is no such block
+     */
+    private BlockEntry getEntry( final String name )
+        throws LoomException
+    {
+        final BlockEntry entry = (BlockEntry)m_entries.get( name );
+        if( null == entry )
+        {
+            final String message =
+                REZ.format( "reconfigure.missing-block.error", name );
+            throw new LoomException( message );
+        }
+        return entry;
+    }
+
+    /**
+     * Give blocks new profiles with the thread context setup for calling
+     * blocks.
+     *
+     * @see #doUpdate
+     */
+    private void update( final Map profiles,
+                         final Set restart,
+                         final DependencyGraph graph,
+                         final String notice )
+        throws Exception
+    {
+        final ClassLoader loader = Thread.currentThread()
+            .getContextClassLoader();
+        Thread.currentThread().setContextClassLoader( m_context.getClassLoader() );
+
+        try
+        {
+            doUpdate( profiles, restart, graph, notice );
+        }
+        finally
+        {
+            Thread.currentThread().setContextClassLoader( loader );
+        }
+    }
+
+    /**
+     * Actually give blocks new profiles. Blocks that are not restarted are
+     * given their new profile and passed their new configuration before any
+     * block is stopped. Blocks to be restarted are then shutdown in the
+     * shutdown order of the current graph, given their new profile and
+     * started in the startup order of new graph. If any step fails the
+     * blocks are returned to their previous profiles and the restarted
+     * blocks are started again with them.
+     *
+     * @param profiles the map from block name to new ComponentProfile
+     * @param restart the names of blocks that must be restarted
+     * @param graph the graph of dependencies once profiles are applied
+     * @param notice the key of message describing the change
+     * @throws Exception if an error occurs
+     */
+    private void doUpdate( final Map profiles,
+                           final Set restart,
+                           final DependencyGraph graph,
+                           final String notice )
+        throws Exception
+    {
+        final String[] shutdownOrder =
+            select( m_graph.getShutdownOrder(), restart );
+        final String[] startupOrder =
+            select( graph.getStartupOrder(), restart );
+
+        if( getLogger().isInfoEnabled() )
+        {
+            final List changed = new ArrayList( profiles.keySet() );
+            final List restarted = Arrays.asList( startupOrder );
+            final String message =
+                REZ.format( notice, changed, restarted );
+            getLogger().info( message );
+        }
+
+        final Map previous = new HashMap();
+        final List reconfigured = new ArrayList();
+        final DependencyGraph previousGraph = m_graph;
+        final Set stopped = new HashSet();
+        try
+        {
+            final Iterator iterator = profiles.keySet().iterator();
+            while( iterator.hasNext() )
             {
-                final String message = REZ.format( "process-block",
-                                                   block,
-                                                   name );
-                getLogger().debug( message );
+                final String name = (String)iterator.next();
+                if( !restart.contains( name ) )
+                {
+                    final BlockEntry entry = (BlockEntry)m_entries.get( name );
+                    previous.put( name, entry.getProfile() );
+                    setProfile( entry, (ComponentProfile)profiles.get( name ) );
+                    reconfigure( entry );
+                    reconfigured.add( entry );
+                }
             }
 
-            try
+            stopped.addAll( restart );
+            for( int i = 0; i < shutdownOrder.length; i++ )
+            {
+                processBlock( PHASE_SHUTDOWN, shutdownOrder[ i ] );
+            }
+
+            for( int i = 0; i < startupOrder.length; i++ )
+            {
+                final String name = startupOrder[ i ];
+                if( profiles.containsKey( name ) )
+                {
+                    final BlockEntry entry = (BlockEntry)m_entries.get( name );
+                    previous.put( name, entry.getProfile() );
+                    setProfile( entry, (ComponentProfile)profiles.get( name ) );
+                }
+            }
+            m_graph = graph;
+
+            for( int i = 0; i < startupOrder.length; i++ )
+            {
+                processBlock( PHASE_STARTUP, startupOrder[ i ] );
+            }
+        }
+        catch( final Exception e )
+        {
+            rollback( previous, reconfigured, stopped, previousGraph );
+            throw e;
+        }
+    }
+
+    /**
+     * Return blocks to the profiles they had before a failed update. The
+     * blocks that were restarted by the update are stopped if they were
+     * started and then started again with their previous profiles. Failures
+     * are logged by {@link #processBlock} and {@link #reconfigure}.
+     *
+     * @param previous the map from block name to previous ComponentProfile
+     * @param reconfigured the entries of blocks that accepted new
+     * configuration in place
+     * @param restart the names of blocks that update began to restart
+     * @param graph the graph of dependencies before update
+     */
+    private void rollback( final Map previous,
+                           final List reconfigured,
+                           final Set restart,
+                           final DependencyGraph graph )
+    {
+        final String[] shutdownOrder =
+            select( m_graph.getShutdownOrder(), restart );
+        for( int i = 0; i < shutdownOrder.length; i++ )
+        {
+            final String name = shutdownOrder[ i ];
+            if( null != ( (BlockEntry)m_entries.get( name ) ).getObject() )
             {
-                final BlockEntry entry = (BlockEntry)m_entries.get( block );
-                if( PHASE_STARTUP == name )
+                try
                 {
-                    startup( entry );
+                    processBlock( PHASE_SHUTDOWN, name );
                 }
-                else
+                catch( final Exception e )
                 {
-                    shutdown( entry );
+                    //Logged by processBlock
                 }
             }
+        }
+
+        final Iterator iterator = previous.keySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final String name = (String)iterator.next();
+            final BlockEntry entry = (BlockEntry)m_entries.get( name );
+            setProfile( entry, (ComponentProfile)previous.get( name ) );
+        }
+        m_graph = graph;
+
+        final int count = reconfigured.size();
+        for( int i = 0; i < count; i++ )
+        {
+            try
+            {
+                reconfigure( (BlockEntry)reconfigured.get( i ) );
+            }
             catch( final Exception e )
             {
-                final String message =
-                    REZ.format( "app.error.run-phase",
-                                name,
-                                block,
-                                e.getMessage() );
-                getLogger().error( message, e );
-                m_listenerSupport.applicationFailure( e );
-                throw e;
+                //Logged by reconfigure
             }
+        }
 
-            //Log message saying we have processed block
-            if( getLogger().isDebugEnabled() )
+        final String[] startupOrder =
+            select( graph.getStartupOrder(), restart );
+        for( int i = 0; i < startupOrder.length; i++ )
+        {
+            try
+            {
+                processBlock( PHASE_STARTUP, startupOrder[ i ] );
+            }
+            catch( final Exception e )
             {
-                final String message = REZ.format( "processed-block",
-                                                   block,
-                                                   name );
-                getLogger().debug( message );
+                //Logged by processBlock
             }
         }
+    }
 
-        //All blocks processed ...
-        if( PHASE_STARTUP == name )
+    /**
+     * Give the entry of a block a new profile.
+     *
+     * @param entry the entry containing block
+     * @param profile the new profile
+     */
+    private void setProfile( final BlockEntry entry,
+                             final ComponentProfile profile )
+    {
+        m_blockAccessor.removePlan( entry.getTemplate() );
+        entry.setProfile( profile );
+    }
+
+    /**
+     * Pass the current configuration of entry to its Reconfigurable block.
+     *
+     * @param entry the entry containing block
+     * @throws Exception if block rejects configuration
+     */
+    private void reconfigure( final BlockEntry entry )
+        throws Exception
+    {
+        final Reconfigurable block = (Reconfigurable)entry.getObject();
+        try
         {
-            //... for startup, so indicate to applicable listeners
-            m_listenerSupport.applicationStarted();
+            block.reconfigure( m_blockAccessor.createConfiguration( entry ) );
         }
-        else
+        catch( final Exception e )
         {
-            //... for shutdown, so indicate to applicable listeners
-            m_listenerSupport.applicationStopped();
+            final String message =
+                REZ.format( "app.error.reconfigure",
+                            entry.getName(),
+                            e.getMessage() );
+            getLogger().error( message, e );
+            throw e;
+        }
+    }
+
+    /**
+     * Add the named block and every block that transitively uses it in
+     * specified graph to specified set.
+     */
+    private static void addWithConsumers( final DependencyGraph graph,
+                                          final String name,
+                                          final Set names )
+    {
+        if( names.add( name ) )
+        {
+            final String[] consumers = graph.getConsumers( name );
+            for( int i = 0; i < consumers.length; i++ )
+            {
+                addWithConsumers( graph, consumers[ i ], names );
+            }
+        }
+    }
+
+    /**
+     * Return the names in order that are contained in specified set.
+     */
+    private static String[] select( final String[] order, final Set names )
+    {
+        final List selected = new ArrayList();
+        for( int i = 0; i < order.length; i++ )
+        {
+            if( names.contains( order[ i ] ) )
+            {
+                selected.add( order[ i ] );
+            }
+        }
+        return (String[])selected.toArray( new String[ selected.size() ] );
+    }
+
+    /**
+     * Process a single Block through specified phase.
+     *
+     * @param name the name of phase
+     * @param block the name of block
+     * @throws Exception if an error occurs
+     */
+    private void processBlock( final String name, final String block )
+        throws Exception
+    {
+        //Log message saying we are processing block
+        if( getLogger().isDebugEnabled() )
+        {
+            final String message = REZ.format( "process-block",
+                                               block,
+                                               name );
+            getLogger().debug( message );
+        }
+
+        try
+        {
+            final BlockEntry entry = (BlockEntry)m_entries.get( block );
+            if( PHASE_STARTUP == name )
+            {
+                startup( entry );
+            }
+            else
+            {
+                shutdown( entry );
+            }
+        }
+        catch( final Exception e )
+        {
+            final String message =
+                REZ.format( "app.error.run-phase",
+                            name,
+                            block,
+                            e.getMessage() );
+            getLogger().error( message, e );
+            throw e;
+        }
+
+        //Log message saying we have processed block
+        if( getLogger().isDebugEnabled() )
+        {
+            final String message = REZ.format( "processed-block",
+                                               block,
+                                               name );
+            getLogger().debug( message );
         }
     }
 
@@ -494,6 +1004,7 @@ public final class DefaultApplication
 
         m_context.exportObject( entry.getName(), block );
         entry.setObject( block );
+        exportMetrics( entry );
 
         m_listenerSupport.fireBlockAddedEvent( entry );
     }
@@ -516,6 +1027,7 @@ public final class DefaultApplication
             //Remove block from Management system
             try
             {
+                unexportMetrics( entry );
                 m_context.unexportObject( entry.getName() );
             }
             finally
@@ -531,6 +1043,51 @@ public final class DefaultApplication
         }
     }
 
+    /**
+     * Export the metrics of block to the management system. Failure is
+     * logged as the block is usable without its metrics.
+     *
+     * @param entry the entry containing Block
+     */
+    private void exportMetrics( final BlockEntry entry )
+    {
+        final BlockMetrics metrics = entry.getMetrics();
+        if( null != metrics )
+        {
+            try
+            {
+                m_context.exportMetrics( entry.getName(), metrics );
+            }
+            catch( final Exception e )
+            {
+                final String message =
+                    REZ.format( "export-metrics.warning",
+                                entry.getName(),
+                                e.getMessage() );
+                getLogger().warn( message, e );
+            }
+        }
+    }
+
+    private void unexportMetrics( final BlockEntry entry )
+    {
+        if( null != entry.getMetrics() )
+        {
+            try
+            {
+                m_context.unexportMetrics( entry.getName() );
+            }
+            catch( final Exception e )
+            {
+                final String message =
+                    REZ.format( "unexport-metrics.warning",
+                                entry.getName(),
+                                e.getMessage() );
+                getLogger().warn( message, e );
+            }
+        }
+    }
+
     /**
      * Method to run a {@link ApplicationListener} through it's startup phase. This will involve creation of
      * BlockListener object and configuration of object if appropriate.
@@ -551,13 +1108,13 @@ public final class DefaultApplication
         // However onky ApplicationListners can avail of block events.
         if( listener instanceof ApplicationListener )
         {
-            m_listenerSupport.addApplicationListener( (ApplicationListener)listener );
+            m_listenerSupport.addApplicationListener( name, (ApplicationListener)listener );
         }
         else
         {
             // As ApplicationListners are BlockListeners then
             //this is applicable for all
-            m_listenerSupport.addBlockListener( (BlockListener)listener );
+            m_listenerSupport.addBlockListener( name, (BlockListener)listener );
 
             final String message =
                 REZ.format( "helper.isa-blocklistener.error",
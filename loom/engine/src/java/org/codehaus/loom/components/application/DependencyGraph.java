@@ -86,150 +86,390 @@
  */
 package org.codehaus.loom.components.application;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.codehaus.loom.components.util.info.DependencyDescriptor;
 import org.codehaus.loom.components.util.metadata.DependencyDirective;
 import org.codehaus.loom.components.util.profile.ComponentProfile;
+import org.codehaus.spice.salt.i18n.ResourceManager;
+import org.codehaus.spice.salt.i18n.Resources;
 
 /**
+ * The graph of dependencies between a set of blocks. The graph is indexed
+ * by block name when it is constructed and the startup order, shutdown order
+ * and dependency level of each block are all calculated at the same time so
+ * that they can be reused for the life of the application. Construction is
+ * linear in the number of blocks and dependencies.
+ *
+ * <p>It is expected that the specified Blocks have passed verification
+ * tests and are well formed. However if a dependency refers to an unknown
+ * block or the dependencies form a cycle then an
+ * {@link IllegalStateException} describing the problem is raised.</p>
+ *
  * @author Peter Donald
  */
 class DependencyGraph
 {
-    ///Private constructor to block instantiation
-    private DependencyGraph()
-    {
-    }
+    private static final Resources REZ =
+        ResourceManager.getPackageResources( DependencyGraph.class );
+
+    //Markers used while traversing graph
+    private static final byte UNVISITED = 0;
+    private static final byte VISITING = 1;
+    private static final byte VISITED = 2;
+
+    ///The names of blocks in the order they were supplied
+    private final String[] m_names;
+
+    ///Map of block name to Integer index of block
+    private final Map m_index;
+
+    ///For each block, the indices of the blocks that it uses
+    private final int[][] m_providers;
+
+    ///For each block, the indices of the blocks that use it
+    private final int[][] m_consumers;
+
+    ///For each block, the length of the longest chain of providers
+    private final int[] m_levels;
+
+    private final String[] m_startupOrder;
+    private final String[] m_shutdownOrder;
 
     /**
-     * Method to generate an ordering of nodes to traverse. It is expected that
-     * the specified Blocks have passed verification tests and are well formed.
+     * Build the graph for specified blocks.
      *
-     * @param forward true if forward dependencys traced, false if dependencies
-     * reversed
-     * @param blocks the blocks to traverse
-     * @return the ordered node names
+     * @param blocks the blocks
+     * @throws IllegalStateException if a dependency refers to an unknown
+     * block or the dependencies are circular
      */
-    public static String[] walkGraph( final boolean forward,
-                                      final ComponentProfile[] blocks )
+    DependencyGraph( final ComponentProfile[] blocks )
     {
-        final ArrayList result = new ArrayList();
+        final int count = blocks.length;
+        m_names = new String[ count ];
+        m_index = new HashMap( count * 2 );
+        for( int i = 0; i < count; i++ )
+        {
+            m_names[ i ] = blocks[ i ].getTemplate().getName();
+            m_index.put( m_names[ i ], new Integer( i ) );
+        }
 
-        //temporary storage to record those
-        //that are already traversed
-        final ArrayList done = new ArrayList();
+        m_providers = new int[ count ][];
+        final int[] consumerCounts = new int[ count ];
+        for( int i = 0; i < count; i++ )
+        {
+            m_providers[ i ] = buildProviders( blocks[ i ] );
+            for( int j = 0; j < m_providers[ i ].length; j++ )
+            {
+                consumerCounts[ m_providers[ i ][ j ] ]++;
+            }
+        }
 
-        for( int i = 0; i < blocks.length; i++ )
+        //Consumers are recorded in the order the blocks were supplied
+        m_consumers = new int[ count ][];
+        for( int i = 0; i < count; i++ )
         {
-            visitBlock( blocks[ i ], blocks, forward, done, result );
+            m_consumers[ i ] = new int[ consumerCounts[ i ] ];
+            consumerCounts[ i ] = 0;
+        }
+        for( int i = 0; i < count; i++ )
+        {
+            for( int j = 0; j < m_providers[ i ].length; j++ )
+            {
+                final int provider = m_providers[ i ][ j ];
+                m_consumers[ provider ][ consumerCounts[ provider ]++ ] = i;
+            }
         }
 
-        return (String[])result.toArray( new String[ 0 ] );
-    }
+        m_startupOrder = walk( m_providers );
+        m_shutdownOrder = walk( m_consumers );
 
-    private static void visitBlock( final ComponentProfile block,
-                                    final ComponentProfile[] blocks,
-                                    final boolean forward,
-                                    final ArrayList done,
-                                    final ArrayList order )
-    {
-        //If already visited this block then bug out early
-        final String name = block.getTemplate().getName();
-        if( done.contains( name ) )
+        //Providers always appear before their consumers in startup order
+        m_levels = new int[ count ];
+        for( int i = 0; i < count; i++ )
         {
-            return;
+            final int block = getIndex( m_startupOrder[ i ] );
+            final int[] providers = m_providers[ block ];
+            int level = 0;
+            for( int j = 0; j < providers.length; j++ )
+            {
+                level = Math.max( level, m_levels[ providers[ j ] ] + 1 );
+            }
+            m_levels[ block ] = level;
         }
-        done.add( name );
+    }
+
+    /**
+     * Return the names of blocks in the order that they should be started.
+     * Every block appears after all of the blocks that it uses.
+     *
+     * @return the ordered block names
+     */
+    String[] getStartupOrder()
+    {
+        return (String[])m_startupOrder.clone();
+    }
+
+    /**
+     * Return the names of blocks in the order that they should be shutdown.
+     * Every block appears after all of the blocks that use it.
+     *
+     * @return the ordered block names
+     */
+    String[] getShutdownOrder()
+    {
+        return (String[])m_shutdownOrder.clone();
+    }
 
-        if( forward )
+    /**
+     * Return the dependency level of the specified block. Blocks that use no
+     * other blocks are at level 0 and every other block is one level above
+     * the highest of its providers. All blocks at the same level can be
+     * processed at the same time once the lower levels are complete.
+     *
+     * @param name the name of block
+     * @return the dependency level of block
+     * @throws IllegalArgumentException if no such block
+     */
+    int getLevel( final String name )
+    {
+        return m_levels[ getIndex( name ) ];
+    }
+
+    /**
+     * Return the highest dependency level of any block or -1 if the graph
+     * contains no blocks.
+     *
+     * @return the highest dependency level
+     */
+    int getMaxLevel()
+    {
+        int max = -1;
+        for( int i = 0; i < m_levels.length; i++ )
         {
-            visitDependencies( block, blocks, done, order );
+            max = Math.max( max, m_levels[ i ] );
         }
-        else
+        return max;
+    }
+
+    /**
+     * Return the names of blocks that the specified block uses.
+     *
+     * @param name the name of block
+     * @return the names of providers
+     * @throws IllegalArgumentException if no such block
+     */
+    String[] getProviders( final String name )
+    {
+        return toNames( m_providers[ getIndex( name ) ] );
+    }
+
+    /**
+     * Return the names of blocks that use the specified block.
+     *
+     * @param name the name of block
+     * @return the names of consumers
+     * @throws IllegalArgumentException if no such block
+     */
+    String[] getConsumers( final String name )
+    {
+        return toNames( m_consumers[ getIndex( name ) ] );
+    }
+
+    /**
+     * Method to determine the blocks that must be processed before each
+     * block. When tracing forward dependencies these are the providers of a
+     * block, when tracing reverse dependencies these are the blocks that use
+     * the block.
+     *
+     * @param forward true if forward dependencys traced, false if dependencies
+     * reversed
+     * @return a map between block name and String[] of prerequisite names
+     */
+    Map getPrerequisites( final boolean forward )
+    {
+        final int[][] edges = forward ? m_providers : m_consumers;
+        final HashMap result = new HashMap( m_names.length * 2 );
+        for( int i = 0; i < m_names.length; i++ )
         {
-            visitReverseDependencies( block, blocks, done, order );
+            result.put( m_names[ i ], toNames( edges[ i ] ) );
         }
-
-        order.add( name );
+        return result;
     }
 
     /**
-     * Traverse dependencies of specified block.
+     * Determine the providers of specified block. The providers are listed
+     * in the order that the dependencies are declared in the ComponentInfo.
      *
-     * @param block the BlockMetaData
+     * @param block the block
+     * @return the indices of providers
      */
-    private static void visitDependencies( final ComponentProfile block,
-                                           final ComponentProfile[] blocks,
-                                           final ArrayList done,
-                                           final ArrayList order )
+    private int[] buildProviders( final ComponentProfile block )
     {
-        final DependencyDescriptor[] descriptors = block.getInfo()
-            .getDependencies();
+        final DependencyDescriptor[] descriptors =
+            block.getInfo().getDependencies();
+        final int[] providers =
+            new int[ block.getTemplate().getDependencies().length ];
+        int count = 0;
         for( int i = 0; i < descriptors.length; i++ )
         {
             final String key = descriptors[ i ].getKey();
-            final DependencyDirective[] dependencySet = block.getTemplate()
-                .getDependencies( key );
+            final DependencyDirective[] dependencySet =
+                block.getTemplate().getDependencies( key );
             for( int j = 0; j < dependencySet.length; j++ )
             {
-                final DependencyDirective dependency = dependencySet[ j ];
-                final ComponentProfile other = getBlock(
-                    dependency.getProviderName(), blocks );
-                visitBlock( other, blocks, true, done, order );
+                final String providerName = dependencySet[ j ].getProviderName();
+                final Integer provider = (Integer)m_index.get( providerName );
+                if( null == provider )
+                {
+                    final String message =
+                        REZ.format( "graph.missing-provider.error",
+                                    block.getTemplate().getName(),
+                                    providerName );
+                    throw new IllegalStateException( message );
+                }
+
+                if( !contains( providers, count, provider.intValue() ) )
+                {
+                    providers[ count++ ] = provider.intValue();
+                }
             }
         }
+
+        final int[] result = new int[ count ];
+        System.arraycopy( providers, 0, result, 0, count );
+        return result;
     }
 
     /**
-     * Traverse all reverse dependencies of specified block. A reverse
-     * dependency are those that dependend on block.
+     * Perform a depth first traversal of graph visiting every block in the
+     * order supplied and listing each block after all blocks reachable via
+     * the specified edges. The traversal is iterative so that long chains
+     * of dependencies can not exhaust the stack.
      *
-     * @param block the ComponentProfile
+     * @param edges the edges to follow
+     * @return the ordered block names
+     * @throws IllegalStateException if the edges form a cycle
      */
-    private static void visitReverseDependencies( final ComponentProfile block,
-                                                  final ComponentProfile[] blocks,
-                                                  final ArrayList done,
-                                                  final ArrayList order )
+    private String[] walk( final int[][] edges )
     {
-        final String name = block.getTemplate().getName();
+        final int count = m_names.length;
+        final String[] order = new String[ count ];
+        int size = 0;
 
-        for( int i = 0; i < blocks.length; i++ )
+        final byte[] state = new byte[ count ];
+        final int[] stack = new int[ count ];
+        final int[] next = new int[ count ];
+        for( int i = 0; i < count; i++ )
         {
-            final ComponentProfile other = blocks[ i ];
-            final DependencyDirective[] roles = other.getTemplate()
-                .getDependencies();
+            if( UNVISITED != state[ i ] )
+            {
+                continue;
+            }
 
-            for( int j = 0; j < roles.length; j++ )
+            int depth = 0;
+            stack[ depth ] = i;
+            next[ depth ] = 0;
+            state[ i ] = VISITING;
+            while( depth >= 0 )
             {
-                final String depends = roles[ j ].getProviderName();
-                if( depends.equals( name ) )
+                final int block = stack[ depth ];
+                final int[] targets = edges[ block ];
+                if( next[ depth ] < targets.length )
+                {
+                    final int target = targets[ next[ depth ]++ ];
+                    if( VISITING == state[ target ] )
+                    {
+                        throw new IllegalStateException( describeCycle( stack,
+                                                                        depth,
+                                                                        target ) );
+                    }
+                    else if( UNVISITED == state[ target ] )
+                    {
+                        depth++;
+                        stack[ depth ] = target;
+                        next[ depth ] = 0;
+                        state[ target ] = VISITING;
+                    }
+                }
+                else
                 {
-                    visitBlock( other, blocks, false, done, order );
+                    state[ block ] = VISITED;
+                    order[ size++ ] = m_names[ block ];
+                    depth--;
                 }
             }
         }
+
+        return order;
     }
 
     /**
-     * Utility method to get block with specified name from specified array.
+     * Build a message describing the cycle that ends at the top of stack and
+     * returns to specified block.
      *
-     * @param name the name of block
-     * @param blocks the Block array
-     * @return the Block
+     * @param stack the blocks currently being visited
+     * @param depth the index of the top of stack
+     * @param target the block that closes the cycle
+     * @return the message
      */
-    private static ComponentProfile getBlock( final String name,
-                                              final ComponentProfile[] blocks )
+    private String describeCycle( final int[] stack,
+                                  final int depth,
+                                  final int target )
+    {
+        int start = depth;
+        while( stack[ start ] != target )
+        {
+            start--;
+        }
+
+        final StringBuffer sb = new StringBuffer();
+        sb.append( "[ " );
+        for( int i = start; i <= depth; i++ )
+        {
+            sb.append( m_names[ stack[ i ] ] );
+            sb.append( ", " );
+        }
+        sb.append( m_names[ target ] );
+        sb.append( " ]" );
+
+        return REZ.format( "graph.circular-dependency.error",
+                           m_names[ target ],
+                           sb.toString() );
+    }
+
+    private int getIndex( final String name )
+    {
+        final Integer index = (Integer)m_index.get( name );
+        if( null == index )
+        {
+            throw new IllegalArgumentException( name );
+        }
+        return index.intValue();
+    }
+
+    private String[] toNames( final int[] indices )
     {
-        for( int i = 0; i < blocks.length; i++ )
+        final String[] names = new String[ indices.length ];
+        for( int i = 0; i < indices.length; i++ )
         {
-            if( blocks[ i ].getTemplate().getName().equals( name ) )
+            names[ i ] = m_names[ indices[ i ] ];
+        }
+        return names;
+    }
+
+    private static boolean contains( final int[] values,
+                                     final int count,
+                                     final int value )
+    {
+        for( int i = 0; i < count; i++ )
+        {
+            if( values[ i ] == value )
             {
-                return blocks[ i ];
+                return true;
             }
         }
-
-        //Should never happen if Verifier passed checks
-        throw new IllegalStateException();
+        return false;
     }
 }
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import org.apache.avalon.phoenix.ApplicationEvent;
+import org.apache.avalon.phoenix.ApplicationListener;
+import org.apache.avalon.phoenix.BlockEvent;
+import org.apache.avalon.phoenix.BlockListener;
+import org.codehaus.dna.Logger;
+import org.codehaus.spice.salt.i18n.ResourceManager;
+import org.codehaus.spice.salt.i18n.Resources;
+
+/**
+ * Delivers events to a single {@link BlockListener}. Events are either
+ * delivered on the thread that fires them or, if the dispatcher has a
+ * queue, placed on the queue and delivered in order by a thread that is
+ * dedicated to the listener. When the queue is full the event is either
+ * discarded or the firing thread waits for room.
+ *
+ * <p>The dispatcher also records how long the listener takes to handle
+ * events and how deep the queue has been.</p>
+ *
+ * @author Peter Donald
+ */
+final class ListenerDispatcher
+    implements Runnable
+{
+    private static final Resources REZ =
+        ResourceManager.getPackageResources( ListenerDispatcher.class );
+
+    static final int APPLICATION_STARTED = 1;
+    static final int APPLICATION_STOPPING = 2;
+    static final int APPLICATION_STOPPED = 3;
+    static final int APPLICATION_FAILURE = 4;
+    static final int BLOCK_ADDED = 5;
+    static final int BLOCK_REMOVED = 6;
+
+    ///The name of listener
+    private final String m_name;
+
+    ///The listener
+    private final BlockListener m_listener;
+
+    ///Logger used to report failures of the listener and discarded events
+    private final Logger m_logger;
+
+    ///True if events are discarded rather than waiting when queue is full
+    private final boolean m_discardOverflow;
+
+    ///The types of queued events, or null if events are not queued
+    private final int[] m_types;
+
+    ///The data of queued events
+    private final Object[] m_data;
+
+    ///The index of the next event to deliver in queue
+    private int m_head;
+
+    ///The number of events in queue
+    private int m_size;
+
+    ///True while the thread is delivering an event taken from the queue
+    private boolean m_delivering;
+
+    ///True once the dispatcher has been closed
+    private boolean m_closed;
+
+    ///The thread delivering queued events
+    private final Thread m_thread;
+
+    ///Lock held while delivering so the listener sees one event at a time
+    private final Object m_deliveryLock = new Object();
+
+    private long m_eventCount;
+    private long m_totalTime;
+    private long m_maxTime;
+    private int m_maxSize;
+    private long m_discardCount;
+
+    /**
+     * Create a dispatcher. If queueSize is greater than zero the events are
+     * queued and delivered on a thread that uses the context ClassLoader of
+     * the current thread.
+     *
+     * @param name the name of listener
+     * @param listener the listener
+     * @param queueSize the maximum number of queued events or 0 to deliver
+     * events on the thread that fires them
+     * @param discardOverflow true to discard events when queue is full
+     * rather than waiting for room
+     * @param logger the logger
+     */
+    ListenerDispatcher( final String name,
+                        final BlockListener listener,
+                        final int queueSize,
+                        final boolean discardOverflow,
+                        final Logger logger )
+    {
+        m_name = name;
+        m_listener = listener;
+        m_discardOverflow = discardOverflow;
+        m_logger = logger;
+        if( queueSize > 0 )
+        {
+            m_types = new int[ queueSize ];
+            m_data = new Object[ queueSize ];
+            m_thread = new Thread( this, "loom-listener-" + name );
+            m_thread.setDaemon( true );
+            m_thread.setContextClassLoader(
+                Thread.currentThread().getContextClassLoader() );
+            m_thread.start();
+        }
+        else
+        {
+            m_types = null;
+            m_data = null;
+            m_thread = null;
+        }
+    }
+
+    /**
+     * Return the listener.
+     *
+     * @return the listener
+     */
+    BlockListener getListener()
+    {
+        return m_listener;
+    }
+
+    /**
+     * Deliver the applicationStarting event on the current thread once all
+     * previously fired events have been delivered. The event is not queued
+     * as a listener may prevent the application starting by throwing an
+     * exception.
+     *
+     * @param event the event
+     * @throws Exception if the listener throws an exception
+     */
+    void applicationStarting( final ApplicationEvent event )
+        throws Exception
+    {
+        if( null != m_thread )
+        {
+            flush();
+        }
+        synchronized( m_deliveryLock )
+        {
+            final long start = System.currentTimeMillis();
+            try
+            {
+                final ApplicationListener listener =
+                    (ApplicationListener)m_listener;
+                listener.applicationStarting( event );
+            }
+            finally
+            {
+                recordEvent( System.currentTimeMillis() - start );
+            }
+        }
+    }
+
+    /**
+     * Fire an event at listener.
+     *
+     * @param type the type of event
+     * @param data the BlockEvent or Exception of event if any
+     */
+    void fire( final int type, final Object data )
+    {
+        if( null == m_thread || !enqueue( type, data ) )
+        {
+            deliver( type, data );
+        }
+    }
+
+    /**
+     * Deliver all the queued events and stop the thread delivering them.
+     */
+    void close()
+    {
+        if( null == m_thread )
+        {
+            return;
+        }
+        synchronized( this )
+        {
+            m_closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while( m_thread.isAlive() )
+        {
+            try
+            {
+                m_thread.join();
+            }
+            catch( final InterruptedException ie )
+            {
+                interrupted = true;
+            }
+        }
+        if( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return a description of the events delivered to listener.
+     *
+     * @return the description
+     */
+    synchronized String getStatistics()
+    {
+        final long average =
+            ( 0 == m_eventCount ) ? 0 : m_totalTime / m_eventCount;
+        final Object[] args = new Object[]
+        {
+            m_name,
+            new Long( m_eventCount ),
+            new Long( average ),
+            new Long( m_maxTime ),
+            new Integer( m_size ),
+            new Integer( m_maxSize ),
+            new Long( m_discardCount )
+        };
+        return REZ.format( "listener.statistics", args );
+    }
+
+    /**
+     * Deliver queued events until the dispatcher is closed.
+     */
+    public void run()
+    {
+        try
+        {
+            deliverQueuedEvents();
+        }
+        finally
+        {
+            //Wake threads waiting for room in queue or for the queue to
+            //be flushed in case the thread stopped unexpectedly
+            synchronized( this )
+            {
+                notifyAll();
+            }
+        }
+    }
+
+    private void deliverQueuedEvents()
+    {
+        while( true )
+        {
+            final int type;
+            final Object data;
+            synchronized( this )
+            {
+                m_delivering = false;
+                notifyAll();
+                while( 0 == m_size && !m_closed )
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch( final InterruptedException ie )
+                    {
+                        //Keep going until closed
+                    }
+                }
+                if( 0 == m_size )
+                {
+                    return;
+                }
+                type = m_types[ m_head ];
+                data = m_data[ m_head ];
+                m_data[ m_head ] = null;
+                m_head = ( m_head + 1 ) % m_types.length;
+                m_size--;
+                m_delivering = true;
+                notifyAll();
+            }
+            deliver( type, data );
+        }
+    }
+
+    /**
+     * Add an event to queue, waiting for room if the queue is full and
+     * events are not discarded.
+     *
+     * @return false if the event could not be queued as the thread
+     * delivering queued events is no longer running
+     */
+    private synchronized boolean enqueue( final int type, final Object data )
+    {
+        while( m_size == m_types.length && !m_closed && m_thread.isAlive() )
+        {
+            if( m_discardOverflow )
+            {
+                m_discardCount++;
+                final String message =
+                    REZ.format( "listener.discard.warning",
+                                m_name,
+                                new Integer( m_types.length ) );
+                m_logger.warn( message );
+                return true;
+            }
+            try
+            {
+                wait();
+            }
+            catch( final InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+        }
+        if( m_closed )
+        {
+            return true;
+        }
+        if( !m_thread.isAlive() )
+        {
+            return false;
+        }
+        final int index = ( m_head + m_size ) % m_types.length;
+        m_types[ index ] = type;
+        m_data[ index ] = data;
+        m_size++;
+        m_maxSize = Math.max( m_maxSize, m_size );
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait until every queued event has been delivered.
+     */
+    private synchronized void flush()
+        throws InterruptedException
+    {
+        while( ( 0 != m_size || m_delivering ) && m_thread.isAlive() )
+        {
+            wait();
+        }
+    }
+
+    /**
+     * Deliver an event to listener. Failures (including errors) are logged
+     * if events are queued and propagated otherwise.
+     */
+    private void deliver( final int type, final Object data )
+    {
+        synchronized( m_deliveryLock )
+        {
+            final long start = System.currentTimeMillis();
+            try
+            {
+                doDeliver( type, data );
+            }
+            catch( final RuntimeException re )
+            {
+                if( null == m_thread )
+                {
+                    throw re;
+                }
+                final String message =
+                    REZ.format( "listener.failure.error",
+                                m_name,
+                                re.toString() );
+                m_logger.error( message, re );
+            }
+            catch( final Error error )
+            {
+                //Errors such as NoClassDefFoundError must not stop
+                //the thread delivering queued events
+                if( null == m_thread )
+                {
+                    throw error;
+                }
+                final String message =
+                    REZ.format( "listener.failure.error",
+                                m_name,
+                                error.toString() );
+                m_logger.error( message, error );
+            }
+            finally
+            {
+                recordEvent( System.currentTimeMillis() - start );
+            }
+        }
+    }
+
+    private void doDeliver( final int type, final Object data )
+    {
+        switch( type )
+        {
+            case APPLICATION_STARTED:
+                ( (ApplicationListener)m_listener ).applicationStarted();
+                break;
+            case APPLICATION_STOPPING:
+                ( (ApplicationListener)m_listener ).applicationStopping();
+                break;
+            case APPLICATION_STOPPED:
+                ( (ApplicationListener)m_listener ).applicationStopped();
+                break;
+            case APPLICATION_FAILURE:
+                ( (ApplicationListener)m_listener )
+                    .applicationFailure( (Exception)data );
+                break;
+            case BLOCK_ADDED:
+                m_listener.blockAdded( (BlockEvent)data );
+                break;
+            case BLOCK_REMOVED:
+                m_listener.blockRemoved( (BlockEvent)data );
+                break;
+            default:
+                throw new IllegalArgumentException( "type" );
+        }
+    }
+
+    private synchronized void recordEvent( final long time )
+    {
+        m_eventCount++;
+        m_totalTime += time;
+        m_maxTime = Math.max( m_maxTime, time );
+    }
+}
@@ -92,6 +92,7 @@ import org.apache.avalon.phoenix.BlockEvent;
 import org.apache.avalon.phoenix.BlockListener;
 import org.apache.avalon.phoenix.metadata.SarMetaData;
 import org.apache.avalon.phoenix.metainfo.BlockInfo;
+import org.codehaus.dna.AbstractLogEnabled;
 import org.codehaus.loom.components.util.ComponentInfoConverter;
 
 /**
@@ -99,16 +100,51 @@ import org.codehaus.loom.components.util.ComponentInfoConverter;
  * ApplicationEvent} notifications to these listeners.  Not all events pass an
  * Applicationevent parameter.
  *
+ * <p>Each listener is notified via a {@link ListenerDispatcher}. If a queue
+ * size is given the events are delivered asynchronously, so that slow
+ * listeners do not hold up the startup and shutdown of blocks.</p>
+ *
  * @author Peter Donald
  * @author <a href="mailto:Paul_Hammant@yahoo.com">Paul Hammant</a>
  */
 final class ListenerSupport
+    extends AbstractLogEnabled
 {
-    //Set of block listeners. Must be accessed from synchronized code
-    private BlockListener[] m_blockListeners = new BlockListener[ 0 ];
+    //The maximum number of queued events per listener, 0 for none
+    private final int m_queueSize;
+
+    //Discard events rather than wait when queue of a listener is full?
+    private final boolean m_discardOverflow;
+
+    //Dispatchers for block listeners. Replaced rather than modified
+    private volatile ListenerDispatcher[] m_blockListeners =
+        new ListenerDispatcher[ 0 ];
 
-    //Set of listeners. Must be accessed from synchronized code
-    private ApplicationListener[] m_listeners = new ApplicationListener[ 0 ];
+    //Dispatchers for listeners. Replaced rather than modified
+    private volatile ListenerDispatcher[] m_listeners =
+        new ListenerDispatcher[ 0 ];
+
+    /**
+     * Create support that notifies listeners on the thread firing events.
+     */
+    ListenerSupport()
+    {
+        this( 0, false );
+    }
+
+    /**
+     * Create support that queues up to queueSize events for each listener.
+     *
+     * @param queueSize the maximum number of queued events per listener or
+     * 0 to notify listeners on the thread firing events
+     * @param discardOverflow true to discard events when a queue is full
+     * rather than wait for room
+     */
+    ListenerSupport( final int queueSize, final boolean discardOverflow )
+    {
+        m_queueSize = queueSize;
+        m_discardOverflow = discardOverflow;
+    }
 
     /**
      * fire Event indicating that the Application represented by specified
@@ -165,16 +201,13 @@ final class ListenerSupport
      * Add a ApplicationListener to those requiring notification of {@link
      * ApplicationEvent}s.
      *
+     * @param name the name of listener
      * @param listener the ApplicationListener
      */
     public synchronized void addApplicationListener(
-        final ApplicationListener listener )
+        final String name, final ApplicationListener listener )
     {
-        final ApplicationListener[] listeners = new ApplicationListener[ 1 +
-            m_listeners.length ];
-        System.arraycopy( m_listeners, 0, listeners, 0, m_listeners.length );
-        listeners[ m_listeners.length ] = listener;
-        m_listeners = listeners;
+        m_listeners = add( m_listeners, createDispatcher( name, listener ) );
     }
 
     /**
@@ -186,47 +219,21 @@ final class ListenerSupport
     public synchronized void removeApplicationListener(
         final ApplicationListener listener )
     {
-        int index = 0;
-        while( index < m_listeners.length )
-        {
-            if( m_listeners[ index ] == listener )
-            {
-                break;
-            }
-            index++;
-        }
-
-        if( m_listeners.length != index )
-        {
-            final ApplicationListener[] listeners =
-                new ApplicationListener[ m_listeners.length - 1 ];
-            System.arraycopy( m_listeners, 0, listeners, 0, index );
-            final int length = m_listeners.length - index - 1;
-            System.arraycopy( m_listeners,
-                              index + 1,
-                              listeners,
-                              index,
-                              length );
-        }
+        m_listeners = remove( m_listeners, listener );
     }
 
     /**
      * Add a BlockListener to those requiring notification of {@link
      * BlockEvent}s.
      *
+     * @param name the name of listener
      * @param listener the BlockListener
      */
-    public synchronized void addBlockListener( final BlockListener listener )
+    public synchronized void addBlockListener( final String name,
+                                               final BlockListener listener )
     {
-        final BlockListener[] listeners = new BlockListener[ 1 +
-            m_blockListeners.length ];
-        System.arraycopy( m_blockListeners,
-                          0,
-                          listeners,
-                          0,
-                          m_blockListeners.length );
-        listeners[ m_listeners.length ] = listener;
-        m_blockListeners = listeners;
+        m_blockListeners =
+            add( m_blockListeners, createDispatcher( name, listener ) );
     }
 
     /**
@@ -236,29 +243,109 @@ final class ListenerSupport
      * @param listener the BlockListener
      */
     public synchronized void removeBlockListener( final BlockListener listener )
+    {
+        m_blockListeners = remove( m_blockListeners, listener );
+    }
+
+    /**
+     * Deliver any queued events and stop delivering events asynchronously.
+     * Listeners are removed.
+     */
+    public void close()
+    {
+        final ListenerDispatcher[] listeners;
+        final ListenerDispatcher[] blockListeners;
+        synchronized( this )
+        {
+            listeners = m_listeners;
+            blockListeners = m_blockListeners;
+            m_listeners = new ListenerDispatcher[ 0 ];
+            m_blockListeners = new ListenerDispatcher[ 0 ];
+        }
+        for( int i = 0; i < listeners.length; i++ )
+        {
+            listeners[ i ].close();
+        }
+        for( int i = 0; i < blockListeners.length; i++ )
+        {
+            blockListeners[ i ].close();
+        }
+    }
+
+    /**
+     * Return a description of the events delivered to each listener.
+     *
+     * @return the descriptions
+     */
+    public String[] getStatistics()
+    {
+        final ListenerDispatcher[] listeners = m_listeners;
+        final ListenerDispatcher[] blockListeners = m_blockListeners;
+        final String[] statistics =
+            new String[ listeners.length + blockListeners.length ];
+        for( int i = 0; i < listeners.length; i++ )
+        {
+            statistics[ i ] = listeners[ i ].getStatistics();
+        }
+        for( int i = 0; i < blockListeners.length; i++ )
+        {
+            statistics[ listeners.length + i ] =
+                blockListeners[ i ].getStatistics();
+        }
+        return statistics;
+    }
+
+    private ListenerDispatcher createDispatcher( final String name,
+                                                 final BlockListener listener )
+    {
+        return new ListenerDispatcher( name,
+                                       listener,
+                                       m_queueSize,
+                                       m_discardOverflow,
+                                       getLogger() );
+    }
+
+    private static ListenerDispatcher[] add(
+        final ListenerDispatcher[] dispatchers,
+        final ListenerDispatcher dispatcher )
+    {
+        final ListenerDispatcher[] result =
+            new ListenerDispatcher[ dispatchers.length + 1 ];
+        System.arraycopy( dispatchers, 0, result, 0, dispatchers.length );
+        result[ dispatchers.length ] = dispatcher;
+        return result;
+    }
+
+    /**
+     * Return the dispatchers without the one for specified listener. The
+     * removed dispatcher is closed.
+     */
+    private static ListenerDispatcher[] remove(
+        final ListenerDispatcher[] dispatchers,
+        final BlockListener listener )
     {
         int index = 0;
-        while( index < m_blockListeners.length )
+        while( index < dispatchers.length )
         {
-            if( m_blockListeners[ index ] == listener )
+            if( dispatchers[ index ].getListener() == listener )
             {
                 break;
             }
             index++;
         }
 
-        if( m_blockListeners.length != index )
+        if( dispatchers.length == index )
         {
-            final BlockListener[] listeners =
-                new BlockListener[ m_blockListeners.length - 1 ];
-            System.arraycopy( m_blockListeners, 0, listeners, 0, index );
-            final int length = m_blockListeners.length - index - 1;
-            System.arraycopy( m_blockListeners,
-                              index + 1,
-                              listeners,
-                              index,
-                              length );
+            return dispatchers;
         }
+
+        final ListenerDispatcher[] result =
+            new ListenerDispatcher[ dispatchers.length - 1 ];
+        System.arraycopy( dispatchers, 0, result, 0, index );
+        final int length = dispatchers.length - index - 1;
+        System.arraycopy( dispatchers, index + 1, result, index, length );
+        dispatchers[ index ].close();
+        return result;
     }
 
     /**
@@ -266,59 +353,48 @@ final class ListenerSupport
      *
      * @param event the ApplicationEvent
      */
-    private synchronized void applicationStarting(
-        final ApplicationEvent event )
+    private void applicationStarting( final ApplicationEvent event )
         throws Exception
     {
-        for( int i = 0; i < m_listeners.length; i++ )
+        final ListenerDispatcher[] listeners = m_listeners;
+        for( int i = 0; i < listeners.length; i++ )
         {
-            m_listeners[ i ].applicationStarting( event );
+            listeners[ i ].applicationStarting( event );
         }
     }
 
     /**
      * Notification that the application has started.
      */
-    public synchronized void applicationStarted()
+    public void applicationStarted()
     {
-        for( int i = 0; i < m_listeners.length; i++ )
-        {
-            m_listeners[ i ].applicationStarted();
-        }
+        fire( m_listeners, ListenerDispatcher.APPLICATION_STARTED, null );
     }
 
     /**
      * Notification that the application is stopping
      */
-    public synchronized void applicationStopping()
+    public void applicationStopping()
     {
-        for( int i = 0; i < m_listeners.length; i++ )
-        {
-            m_listeners[ i ].applicationStopping();
-        }
+        fire( m_listeners, ListenerDispatcher.APPLICATION_STOPPING, null );
     }
 
     /**
      * Notification that the application has stopped
      */
-    public synchronized void applicationStopped()
+    public void applicationStopped()
     {
-        for( int i = 0; i < m_listeners.length; i++ )
-        {
-            m_listeners[ i ].applicationStopped();
-        }
+        fire( m_listeners, ListenerDispatcher.APPLICATION_STOPPED, null );
     }
 
     /**
      * Notification that the application has failed
      */
-    public synchronized void applicationFailure(
-        final Exception causeOfFailure )
+    public void applicationFailure( final Exception causeOfFailure )
     {
-        for( int i = 0; i < m_listeners.length; i++ )
-        {
-            m_listeners[ i ].applicationFailure( causeOfFailure );
-        }
+        fire( m_listeners,
+              ListenerDispatcher.APPLICATION_FAILURE,
+              causeOfFailure );
     }
 
     /**
@@ -326,18 +402,12 @@ final class ListenerSupport
      *
      * @param event the BlockEvent
      */
-    private synchronized void blockAdded( final BlockEvent event )
+    private void blockAdded( final BlockEvent event )
     {
-        for( int i = 0; i < m_listeners.length; i++ )
-        {
-            m_listeners[ i ].blockAdded( event );
-        }
+        fire( m_listeners, ListenerDispatcher.BLOCK_ADDED, event );
 
         //Now notify the plain BlockListeners
-        for( int i = 0; i < m_blockListeners.length; i++ )
-        {
-            m_blockListeners[ i ].blockAdded( event );
-        }
+        fire( m_blockListeners, ListenerDispatcher.BLOCK_ADDED, event );
     }
 
     /**
@@ -346,17 +416,21 @@ final class ListenerSupport
      *
      * @param event the BlockEvent
      */
-    private synchronized void blockRemoved( final BlockEvent event )
+    private void blockRemoved( final BlockEvent event )
     {
-        for( int i = 0; i < m_listeners.length; i++ )
-        {
-            m_listeners[ i ].blockRemoved( event );
-        }
+        fire( m_listeners, ListenerDispatcher.BLOCK_REMOVED, event );
 
         //Now notify the plain BlockListeners
-        for( int i = 0; i < m_blockListeners.length; i++ )
+        fire( m_blockListeners, ListenerDispatcher.BLOCK_REMOVED, event );
+    }
+
+    private static void fire( final ListenerDispatcher[] listeners,
+                              final int type,
+                              final Object data )
+    {
+        for( int i = 0; i < listeners.length; i++ )
         {
-            m_blockListeners[ i ].blockRemoved( event );
+            listeners[ i ].fire( type, data );
         }
     }
 }
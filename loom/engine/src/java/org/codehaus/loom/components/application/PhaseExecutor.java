@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Utility class that runs a phase over a set of blocks. A block is only
+ * handed to a worker thread once all the blocks it waits upon have been
+ * processed, so blocks that do not depend on each other are processed
+ * concurrently while the ordering described by the {@link DependencyGraph}
+ * is still honoured.
+ *
+ * <p>If the executor is created with a single thread then blocks are
+ * processed one at a time, in the supplied order, on the calling thread.</p>
+ *
+ * @author Peter Donald
+ */
+final class PhaseExecutor
+{
+    /**
+     * The unit of work performed for each block in phase.
+     */
+    interface Task
+    {
+        /**
+         * Process the block with specified name.
+         *
+         * @param name the name of block
+         * @throws Exception if an error occurs
+         */
+        void process( String name )
+            throws Exception;
+    }
+
+    ///The maximum number of worker threads to use for a phase
+    private final int m_threadCount;
+
+    /**
+     * Create an executor that uses at most the specified number of threads.
+     *
+     * @param threadCount the maximum number of worker threads
+     */
+    PhaseExecutor( final int threadCount )
+    {
+        if( threadCount < 1 )
+        {
+            throw new IllegalArgumentException( "threadCount" );
+        }
+        m_threadCount = threadCount;
+    }
+
+    /**
+     * Return the maximum number of worker threads used for a phase.
+     *
+     * @return the maximum number of worker threads
+     */
+    int getThreadCount()
+    {
+        return m_threadCount;
+    }
+
+    /**
+     * Process every block in order. Each block will only be processed after
+     * all of its prerequisites have been processed successfully. If any block
+     * fails then no further blocks are started and the first failure is
+     * rethrown once all running blocks have completed.
+     *
+     * @param name the name used for worker threads
+     * @param order the names of blocks in a valid serial order
+     * @param prerequisites map between block name and the String[] of block
+     * names that must be processed first
+     * @param task the task to perform for each block
+     * @throws Exception if an error occurs processing a block
+     */
+    void execute( final String name,
+                  final String[] order,
+                  final Map prerequisites,
+                  final Task task )
+        throws Exception
+    {
+        if( 1 == m_threadCount || order.length < 2 )
+        {
+            for( int i = 0; i < order.length; i++ )
+            {
+                task.process( order[ i ] );
+            }
+            return;
+        }
+
+        final Schedule schedule = new Schedule( order, prerequisites );
+        final ClassLoader classLoader =
+            Thread.currentThread().getContextClassLoader();
+        final int count = Math.min( m_threadCount, order.length );
+        final Thread[] workers = new Thread[ count ];
+        for( int i = 0; i < count; i++ )
+        {
+            final Worker worker = new Worker( schedule, task );
+            workers[ i ] = new Thread( worker, name + "-" + ( i + 1 ) );
+            workers[ i ].setContextClassLoader( classLoader );
+            workers[ i ].start();
+        }
+
+        boolean interrupted = false;
+        for( int i = 0; i < count; i++ )
+        {
+            while( workers[ i ].isAlive() )
+            {
+                try
+                {
+                    workers[ i ].join();
+                }
+                catch( final InterruptedException ie )
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        if( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        schedule.rethrowFailure();
+    }
+
+    /**
+     * Worker that repeatedly takes the next ready block from schedule until
+     * there is nothing left to do.
+     */
+    private static final class Worker
+        implements Runnable
+    {
+        private final Schedule m_schedule;
+        private final Task m_task;
+
+        Worker( final Schedule schedule, final Task task )
+        {
+            m_schedule = schedule;
+            m_task = task;
+        }
+
+        public void run()
+        {
+            String name = m_schedule.next();
+            while( null != name )
+            {
+                try
+                {
+                    m_task.process( name );
+                    m_schedule.complete( name );
+                }
+                catch( final Throwable t )
+                {
+                    m_schedule.fail( t );
+                }
+                name = m_schedule.next();
+            }
+        }
+    }
+
+    /**
+     * The record of which blocks are ready, running and waiting. All
+     * access is synchronized on the schedule.
+     */
+    private static final class Schedule
+    {
+        ///Map of block name to int[1] holding count of unprocessed prerequisites
+        private final Map m_waiting = new HashMap();
+
+        ///Map of block name to ArrayList of names waiting upon block
+        private final Map m_dependents = new HashMap();
+
+        ///Names of blocks that can be processed now
+        private final LinkedList m_ready = new LinkedList();
+
+        ///Number of blocks not yet processed
+        private int m_remaining;
+
+        ///Number of blocks currently being processed
+        private int m_active;
+
+        ///The first failure to occur
+        private Throwable m_failure;
+
+        Schedule( final String[] order, final Map prerequisites )
+        {
+            for( int i = 0; i < order.length; i++ )
+            {
+                m_waiting.put( order[ i ], new int[ 1 ] );
+            }
+
+            for( int i = 0; i < order.length; i++ )
+            {
+                final String[] names = (String[])prerequisites.get( order[ i ] );
+                if( null == names )
+                {
+                    continue;
+                }
+                for( int j = 0; j < names.length; j++ )
+                {
+                    if( !m_waiting.containsKey( names[ j ] ) )
+                    {
+                        continue;
+                    }
+                    ArrayList dependents = (ArrayList)m_dependents.get( names[ j ] );
+                    if( null == dependents )
+                    {
+                        dependents = new ArrayList();
+                        m_dependents.put( names[ j ], dependents );
+                    }
+                    if( !dependents.contains( order[ i ] ) )
+                    {
+                        dependents.add( order[ i ] );
+                        ( (int[])m_waiting.get( order[ i ] ) )[ 0 ]++;
+                    }
+                }
+            }
+
+            for( int i = 0; i < order.length; i++ )
+            {
+                if( 0 == ( (int[])m_waiting.get( order[ i ] ) )[ 0 ] )
+                {
+                    m_ready.add( order[ i ] );
+                }
+            }
+            m_remaining = order.length;
+        }
+
+        /**
+         * Wait for the next block that is ready to be processed.
+         *
+         * @return the name of block or null if there is no more work
+         */
+        synchronized String next()
+        {
+            while( null == m_failure && m_remaining > 0 && m_ready.isEmpty() )
+            {
+                if( 0 == m_active )
+                {
+                    //Nothing running and nothing ready so the remaining
+                    //blocks can never be processed
+                    m_failure =
+                        new IllegalStateException( "Circular dependency between "
+                                                   + m_remaining + " blocks." );
+                    notifyAll();
+                    break;
+                }
+                try
+                {
+                    wait();
+                }
+                catch( final InterruptedException ie )
+                {
+                    m_failure = ie;
+                    notifyAll();
+                }
+            }
+
+            if( null != m_failure || m_ready.isEmpty() )
+            {
+                return null;
+            }
+            m_active++;
+            return (String)m_ready.removeFirst();
+        }
+
+        synchronized void complete( final String name )
+        {
+            m_active--;
+            m_remaining--;
+            final ArrayList dependents = (ArrayList)m_dependents.get( name );
+            if( null != dependents )
+            {
+                final int size = dependents.size();
+                for( int i = 0; i < size; i++ )
+                {
+                    final String dependent = (String)dependents.get( i );
+                    final int[] count = (int[])m_waiting.get( dependent );
+                    count[ 0 ]--;
+                    if( 0 == count[ 0 ] )
+                    {
+                        m_ready.add( dependent );
+                    }
+                }
+            }
+            notifyAll();
+        }
+
+        synchronized void fail( final Throwable t )
+        {
+            m_active--;
+            if( null == m_failure )
+            {
+                m_failure = t;
+            }
+            notifyAll();
+        }
+
+        synchronized void rethrowFailure()
+            throws Exception
+        {
+            if( null == m_failure )
+            {
+                return;
+            }
+            else if( m_failure instanceof Exception )
+            {
+                throw (Exception)m_failure;
+            }
+            else if( m_failure instanceof Error )
+            {
+                throw (Error)m_failure;
+            }
+            else
+            {
+                throw new Exception( m_failure.toString() );
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.parameters.Parameters;
+import org.codehaus.loom.components.util.info.ComponentInfo;
+import org.codehaus.loom.components.util.info.DependencyDescriptor;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
+import org.codehaus.loom.components.util.metadata.DependencyDirective;
+import org.codehaus.loom.interfaces.Application;
+import org.codehaus.spice.alchemist.configuration.ConfigurationAlchemist;
+
+/**
+ * The resources of a Block or Listener that are derived from its metadata.
+ * The dependencies are resolved against the {@link ComponentInfo} once so
+ * that creating the service map of a block only involves looking up the
+ * providing blocks.
+ *
+ * <p>Each block is given its own Configuration as a block may modify it.
+ * The configuration is converted to an Avalon Configuration each time it
+ * is requested, as copying the converted tree would cost about as much as
+ * converting it again. The Parameters are read only and are built once
+ * and shared by every instance of the block.</p>
+ *
+ * @author Peter Donald
+ */
+final class WiringPlan
+{
+    ///The keys of dependencies that are satisfied by a single block
+    private final String[] m_keys;
+
+    ///The names of the blocks that satisfy single dependencies
+    private final String[] m_providers;
+
+    ///The dependencies satisfied by an array of blocks
+    private final ArrayDependency[] m_arrays;
+
+    ///The dependencies satisfied by a map of blocks
+    private final MapDependency[] m_maps;
+
+    ///The template of component
+    private final ComponentTemplate m_template;
+
+    ///The read only parameters of component, built on first use
+    private Parameters m_parameters;
+
+    /**
+     * Compile the plan for the component with specified info and template.
+     *
+     * @param info the info of component
+     * @param template the template of component
+     */
+    WiringPlan( final ComponentInfo info, final ComponentTemplate template )
+    {
+        m_template = template;
+
+        final List keys = new ArrayList();
+        final List providers = new ArrayList();
+        final Map arrays = new LinkedHashMap();
+        final Map maps = new LinkedHashMap();
+
+        final DependencyDirective[] roles = template.getDependencies();
+        for( int i = 0; i < roles.length; i++ )
+        {
+            final DependencyDirective role = roles[ i ];
+            final String key = role.getKey();
+            final DependencyDescriptor candidate = info.getDependency( key );
+            if( candidate.isArray() )
+            {
+                ArrayDependency array = (ArrayDependency)arrays.get( key );
+                if( null == array )
+                {
+                    array = new ArrayDependency( candidate );
+                    arrays.put( key, array );
+                }
+                array.m_providers.add( role.getProviderName() );
+            }
+            else if( candidate.isMap() )
+            {
+                MapDependency map = (MapDependency)maps.get( key );
+                if( null == map )
+                {
+                    map = new MapDependency( key );
+                    maps.put( key, map );
+                }
+                map.m_aliases.add( role.getAlias() );
+                map.m_providers.add( role.getProviderName() );
+            }
+            else
+            {
+                keys.add( key );
+                providers.add( role.getProviderName() );
+            }
+        }
+
+        m_keys = (String[])keys.toArray( new String[ keys.size() ] );
+        m_providers =
+            (String[])providers.toArray( new String[ providers.size() ] );
+        m_arrays = (ArrayDependency[])arrays.values().toArray(
+            new ArrayDependency[ arrays.size() ] );
+        m_maps = (MapDependency[])maps.values().toArray(
+            new MapDependency[ maps.size() ] );
+    }
+
+    /**
+     * Create the map from service key to the object that satisfies it,
+     * using the blocks of specified application.
+     *
+     * @param application the application containing providers
+     * @return the service map
+     * @throws ClassNotFoundException if unable to load the component type
+     * of an array dependency
+     */
+    Map createServiceMap( final Application application )
+        throws ClassNotFoundException
+    {
+        final Map map = new HashMap();
+        for( int i = 0; i < m_keys.length; i++ )
+        {
+            map.put( m_keys[ i ], application.getBlock( m_providers[ i ] ) );
+        }
+
+        for( int i = 0; i < m_arrays.length; i++ )
+        {
+            final ArrayDependency dependency = m_arrays[ i ];
+            final Object[] result = dependency.createArray( application );
+            map.put( dependency.m_key, result );
+            if( null != dependency.m_arrayKey )
+            {
+                map.put( dependency.m_arrayKey, result );
+            }
+        }
+
+        for( int i = 0; i < m_maps.length; i++ )
+        {
+            final MapDependency dependency = m_maps[ i ];
+            final Map smap = new HashMap();
+            for( int j = 0; j < dependency.m_providers.size(); j++ )
+            {
+                final String provider =
+                    (String)dependency.m_providers.get( j );
+                smap.put( dependency.m_aliases.get( j ),
+                          application.getBlock( provider ) );
+            }
+            map.put( dependency.m_key, Collections.unmodifiableMap( smap ) );
+        }
+
+        return map;
+    }
+
+    /**
+     * Return a new Avalon Configuration containing the configuration of
+     * component.
+     *
+     * @return the configuration
+     * @throws Exception if unable to convert configuration
+     */
+    Configuration getConfiguration()
+        throws Exception
+    {
+        return ConfigurationAlchemist.toAvalonConfiguration(
+            m_template.getConfiguration() );
+    }
+
+    /**
+     * Return the configuration of component as read only Parameters.
+     *
+     * @return the parameters
+     * @throws Exception if unable to convert configuration
+     */
+    synchronized Parameters getParameters()
+        throws Exception
+    {
+        if( null == m_parameters )
+        {
+            final Parameters parameters =
+                Parameters.fromConfiguration( getConfiguration() );
+            parameters.makeReadOnly();
+            m_parameters = parameters;
+        }
+        return m_parameters;
+    }
+
+    /**
+     * A dependency that is satisfied by an array of blocks.
+     */
+    private static final class ArrayDependency
+    {
+        ///The key of dependency
+        final String m_key;
+
+        ///The name of component type of array
+        final String m_componentType;
+
+        ///The second key that array is stored under or null
+        final String m_arrayKey;
+
+        ///The names of the providing blocks
+        final List m_providers = new ArrayList();
+
+        ///The component type of array, loaded on first use
+        private Class m_componentClass;
+
+        ///The ClassLoader that component type was loaded via
+        private ClassLoader m_classLoader;
+
+        ArrayDependency( final DependencyDescriptor descriptor )
+        {
+            m_key = descriptor.getKey();
+            m_componentType = descriptor.getComponentType();
+            if( m_key.equals( descriptor.getType() ) )
+            {
+                m_arrayKey = "[L" + m_componentType + ";";
+            }
+            else
+            {
+                m_arrayKey = null;
+            }
+        }
+
+        /**
+         * Create the array of providing blocks. The component type must be
+         * loaded from the same ClassLoader as the blocks.
+         */
+        Object[] createArray( final Application application )
+            throws ClassNotFoundException
+        {
+            final int size = m_providers.size();
+            final Object[] blocks = new Object[ size ];
+            for( int i = 0; i < size; i++ )
+            {
+                blocks[ i ] =
+                    application.getBlock( (String)m_providers.get( i ) );
+            }
+            final Class clazz =
+                getComponentClass( blocks[ 0 ].getClass().getClassLoader() );
+            final Object[] result = (Object[])Array.newInstance( clazz, size );
+            System.arraycopy( blocks, 0, result, 0, size );
+            return result;
+        }
+
+        private synchronized Class getComponentClass(
+            final ClassLoader classLoader )
+            throws ClassNotFoundException
+        {
+            if( null == m_componentClass || m_classLoader != classLoader )
+            {
+                m_componentClass = classLoader.loadClass( m_componentType );
+                m_classLoader = classLoader;
+            }
+            return m_componentClass;
+        }
+    }
+
+    /**
+     * A dependency that is satisfied by a map of blocks.
+     */
+    private static final class MapDependency
+    {
+        ///The key of dependency
+        final String m_key;
+
+        ///The aliases that blocks are stored under
+        final List m_aliases = new ArrayList();
+
+        ///The names of the providing blocks
+        final List m_providers = new ArrayList();
+
+        MapDependency( final String key )
+        {
+            m_key = key;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.security.CodeSource;
+import java.security.cert.Certificate;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * An element of the classpath of a {@link PolicyClassLoader} that is
+ * located in a {@link SarArchive}. The element is either a jar in the Sar
+ * or a directory in the Sar (such as SAR-INF/classes).
+ *
+ * <p>URLs to resources have the same form as they would if the Sar had
+ * been expanded but are opened using a handler that reads the resource
+ * from the Sar.</p>
+ *
+ * @author Peter Donald
+ */
+final class ArchiveSource
+{
+    /** The URL of classpath element. */
+    private final URL m_url;
+
+    /** The index of archive containing resources. */
+    private final ZipIndex m_index;
+
+    /** The prefix added to resource names to get entry names in index. */
+    private final String m_prefix;
+
+    /** The code source of classes loaded from element. */
+    private final CodeSource m_codeSource;
+
+    /** The start of URLs to resources in element. */
+    private final String m_resourceBase;
+
+    /** The handler used to open resources in element. */
+    private final URLStreamHandler m_handler = new ArchiveURLHandler();
+
+    private Manifest m_manifest;
+    private boolean m_manifestRead;
+
+    /**
+     * Create a source.
+     *
+     * @param url the URL of classpath element
+     * @param index the index of archive containing resources
+     * @param prefix the directory of resources in archive or the empty
+     * string if archive is a jar
+     */
+    ArchiveSource( final URL url,
+                   final ZipIndex index,
+                   final String prefix )
+    {
+        m_url = url;
+        m_index = index;
+        m_prefix = prefix;
+        m_codeSource = new CodeSource( url, (Certificate[])null );
+        if( isJar() )
+        {
+            m_resourceBase = url.toString() + "!/";
+        }
+        else
+        {
+            m_resourceBase = url.getFile();
+        }
+    }
+
+    /**
+     * Return the URL of classpath element.
+     *
+     * @return the URL of classpath element
+     */
+    URL getURL()
+    {
+        return m_url;
+    }
+
+    /**
+     * Return the code source for classes loaded from element.
+     *
+     * @return the code source
+     */
+    CodeSource getCodeSource()
+    {
+        return m_codeSource;
+    }
+
+    /**
+     * Read the resource with specified name.
+     *
+     * @param name the name of resource
+     * @return the contents of resource or null if not in element
+     * @throws IOException if the resource can not be read
+     */
+    byte[] read( final String name )
+        throws IOException
+    {
+        return m_index.read( m_prefix + name );
+    }
+
+    /**
+     * Return a URL for the resource with specified name.
+     *
+     * @param name the name of resource
+     * @return the URL or null if resource is not in element
+     */
+    URL getResource( final String name )
+    {
+        if( !m_index.containsFile( m_prefix + name ) )
+        {
+            return null;
+        }
+        try
+        {
+            if( isJar() )
+            {
+                return new URL( "jar",
+                                "",
+                                -1,
+                                m_resourceBase + name,
+                                m_handler );
+            }
+            else
+            {
+                return new URL( m_url.getProtocol(),
+                                m_url.getHost(),
+                                m_url.getPort(),
+                                m_resourceBase + name,
+                                m_handler );
+            }
+        }
+        catch( final MalformedURLException mue )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Return the names of the directories that contain files in element.
+     * The names are relative to the root of element and have no trailing
+     * "/". Files at the root of element are in the directory "".
+     *
+     * @return the names of directories
+     */
+    Set getDirectories()
+    {
+        final Set directories = new HashSet();
+        final String[] names = m_index.getFileNames();
+        for( int i = 0; i < names.length; i++ )
+        {
+            final String name = names[ i ];
+            if( name.startsWith( m_prefix ) )
+            {
+                final int index = name.lastIndexOf( '/' );
+                if( index < m_prefix.length() )
+                {
+                    directories.add( "" );
+                }
+                else
+                {
+                    directories.add(
+                        name.substring( m_prefix.length(), index ) );
+                }
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Return the manifest of element if it is a jar.
+     *
+     * @return the manifest or null if element has no manifest
+     * @throws IOException if the manifest can not be read
+     */
+    synchronized Manifest getManifest()
+        throws IOException
+    {
+        if( !m_manifestRead )
+        {
+            if( isJar() )
+            {
+                final byte[] data = m_index.read( JarFile.MANIFEST_NAME );
+                if( null != data )
+                {
+                    m_manifest =
+                        new Manifest( new ByteArrayInputStream( data ) );
+                }
+            }
+            m_manifestRead = true;
+        }
+        return m_manifest;
+    }
+
+    private boolean isJar()
+    {
+        return 0 == m_prefix.length();
+    }
+
+    /**
+     * Handler that opens URLs to resources in element.
+     */
+    private final class ArchiveURLHandler
+        extends URLStreamHandler
+    {
+        protected URLConnection openConnection( final URL url )
+            throws IOException
+        {
+            final String file = url.getFile();
+            if( !file.startsWith( m_resourceBase ) )
+            {
+                throw new FileNotFoundException( url.toString() );
+            }
+            final String name = file.substring( m_resourceBase.length() );
+            return new ArchiveURLConnection( url, name );
+        }
+    }
+
+    /**
+     * Connection that reads a resource in element.
+     */
+    private final class ArchiveURLConnection
+        extends URLConnection
+    {
+        private final String m_name;
+        private byte[] m_data;
+
+        ArchiveURLConnection( final URL url, final String name )
+        {
+            super( url );
+            m_name = name;
+        }
+
+        public void connect()
+            throws IOException
+        {
+            if( !connected )
+            {
+                m_data = read( m_name );
+                if( null == m_data )
+                {
+                    throw new FileNotFoundException( url.toString() );
+                }
+                connected = true;
+            }
+        }
+
+        public InputStream getInputStream()
+            throws IOException
+        {
+            connect();
+            return new ByteArrayInputStream( m_data );
+        }
+
+        public int getContentLength()
+        {
+            try
+            {
+                connect();
+                return m_data.length;
+            }
+            catch( final IOException ioe )
+            {
+                return -1;
+            }
+        }
+    }
+}
@@ -89,12 +89,12 @@ package org.codehaus.loom.components.classloader;
 import java.io.File;
 import java.net.URL;
 import java.security.Policy;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.codehaus.loom.classman.builder.LoaderBuilder;
-import org.codehaus.loom.classman.builder.LoaderResolver;
 import org.codehaus.loom.classman.metadata.ClassLoaderMetaData;
 import org.codehaus.loom.classman.metadata.ClassLoaderSetMetaData;
 import org.codehaus.loom.classman.metadata.FileSetMetaData;
@@ -110,9 +110,12 @@ import org.codehaus.loom.xmlpolicy.builder.PolicyBuilder;
 import org.codehaus.loom.xmlpolicy.metadata.PolicyMetaData;
 import org.codehaus.loom.xmlpolicy.reader.PolicyReader;
 import org.codehaus.spice.configkit.PropertyExpander;
+import org.codehaus.spice.salt.i18n.ResourceManager;
+import org.codehaus.spice.salt.i18n.Resources;
 import org.codehaus.dna.AbstractLogEnabled;
 import org.codehaus.dna.Active;
 import org.codehaus.dna.Composable;
+import org.codehaus.dna.Configurable;
 import org.codehaus.dna.Configuration;
 import org.codehaus.dna.ConfigurationException;
 import org.codehaus.dna.MissingResourceException;
@@ -131,13 +134,21 @@ import org.w3c.dom.Element;
  * <p>In the future this class will scan the manifests for "Optional Packages"
  * formely called "Extensions" which it will add to the {@link ClassLoader}</p>
  *
+ * <p>If shared libraries are configured then the library jars that are
+ * identical in several applications are loaded by a single ClassLoader
+ * shared by the applications. See {@link SharedLibraryRegistry}.</p>
+ *
  * @author Peter Donald
  * @see ClassLoaderManager
+ * @mx.component
  */
 public class DefaultClassLoaderManager
     extends AbstractLogEnabled
-    implements ClassLoaderManager, Composable, Active
+    implements ClassLoaderManager, Composable, Configurable, Active
 {
+    private static final Resources REZ =
+        ResourceManager.getPackageResources( DefaultClassLoaderManager.class );
+
     /**
      * Constant for name of element that indicates custom classloader tree to
      * define.
@@ -188,6 +199,27 @@ public class DefaultClassLoaderManager
      */
     private final PropertyExpander m_expander = new PropertyExpander();
 
+    /**
+     * The directory that shared library jars are stored in or null if
+     * libraries are not shared.
+     */
+    private File m_libraryDirectory;
+
+    /** The patterns for names of jars that may be shared. */
+    private String[] m_libraryIncludes;
+
+    /** The patterns for names of jars that are never shared. */
+    private String[] m_libraryExcludes;
+
+    /** The registry of shared libraries or null if libraries are not shared. */
+    private SharedLibraryRegistry m_libraries;
+
+    /**
+     * Map from {@link ClassLoaderSet} to the shared libraries acquired for
+     * it.
+     */
+    private final Map m_sharedLibraries = new HashMap();
+
     /**
      * @dna.dependency type="ExtensionManager"
      * @dna.dependency type="ClassLoader/common"
@@ -202,6 +234,28 @@ public class DefaultClassLoaderManager
             ClassLoader.class.getName() + "/common" );
     }
 
+    /**
+     * Read the configuration of shared libraries. Libraries are only
+     * shared if the "shared-libraries" element is present.
+     *
+     * @param configuration the configuration
+     * @throws ConfigurationException if the configuration is invalid
+     */
+    public void configure( final Configuration configuration )
+        throws ConfigurationException
+    {
+        final Configuration libraries =
+            configuration.getChild( "shared-libraries", false );
+        if( null == libraries )
+        {
+            return;
+        }
+        m_libraryDirectory =
+            new File( libraries.getChild( "directory" ).getValue() );
+        m_libraryIncludes = getValues( libraries.getChildren( "include" ) );
+        m_libraryExcludes = getValues( libraries.getChildren( "exclude" ) );
+    }
+
     /**
      * Setup the map of predefined classloaders.
      *
@@ -216,6 +270,20 @@ public class DefaultClassLoaderManager
         defined.put( "*common*", m_commonClassLoader );
         defined.put( "*shared*", m_commonClassLoader );
         m_predefinedLoaders = Collections.unmodifiableMap( defined );
+
+        if( null != m_libraryDirectory )
+        {
+            final ClassLoader[] parents = new ClassLoader[]
+            {
+                ClassLoader.getSystemClassLoader(), m_commonClassLoader
+            };
+            m_libraries = new SharedLibraryRegistry( m_libraryDirectory,
+                                                     m_libraryIncludes,
+                                                     m_libraryExcludes,
+                                                     parents );
+            setupLogger( m_libraries );
+            m_libraries.clean();
+        }
     }
 
     public void dispose() throws Exception
@@ -229,7 +297,9 @@ public class DefaultClassLoaderManager
      * @param environment   the configuration "environment.xml" for the
      *                      application
      * @param homeDirectory the base directory of application
-     * @param workDirectory the work directory of application
+     * @param workDirectory the directory containing code of application
+     * @param archive the Sar to load code from if application is installed
+     *                in place, else null
      * @return the ClassLoader created
      * @throws Exception if an error occurs
      */
@@ -237,7 +307,8 @@ public class DefaultClassLoaderManager
         final Configuration environment,
         final Map data,
         final File homeDirectory,
-        final File workDirectory ) throws Exception
+        final File workDirectory,
+        final File archive ) throws Exception
     {
         //Configure policy
         final Configuration policyConfig = environment.getChild( "policy" );
@@ -250,15 +321,135 @@ public class DefaultClassLoaderManager
 
         m_verifier.verifyClassLoaderSet( metaData );
 
-        final LoaderResolver resolver = new SarLoaderResolver(
-            m_packageManager, policy, homeDirectory, workDirectory );
+        SarArchive sarArchive = null;
+        if( null != archive )
+        {
+            sarArchive = new SarArchive( archive, workDirectory );
+        }
+
+        final SarLoaderResolver resolver =
+            new SarLoaderResolver( m_packageManager,
+                                   policy,
+                                   homeDirectory,
+                                   workDirectory,
+                                   sarArchive,
+                                   m_libraries );
         setupLogger( resolver );
-        final Map map = m_builder.buildClassLoaders( metaData,
-                                                     resolver,
-                                                     m_predefinedLoaders );
+        final Map map;
+        try
+        {
+            map = m_builder.buildClassLoaders( metaData,
+                                               resolver,
+                                               m_predefinedLoaders );
+        }
+        catch( final Exception e )
+        {
+            release( resolver.getSharedLibraries() );
+            throw e;
+        }
         final ClassLoader defaultClassLoader = (ClassLoader) map.get(
             metaData.getDefault() );
-        return new ClassLoaderSet( defaultClassLoader, map );
+        final ClassLoaderSet classLoaderSet =
+            new ClassLoaderSet( defaultClassLoader, map );
+        final SharedLibraryRegistry.Library[] libraries =
+            resolver.getSharedLibraries();
+        if( 0 != libraries.length )
+        {
+            synchronized( m_sharedLibraries )
+            {
+                m_sharedLibraries.put( classLoaderSet, libraries );
+            }
+        }
+        return classLoaderSet;
+    }
+
+    /**
+     * Release the shared libraries acquired for the ClassLoaderSet.
+     *
+     * @param classLoaderSet the ClassLoaderSet
+     */
+    public void releaseClassLoaderSet( final ClassLoaderSet classLoaderSet )
+    {
+        final SharedLibraryRegistry.Library[] libraries;
+        synchronized( m_sharedLibraries )
+        {
+            libraries = (SharedLibraryRegistry.Library[])
+                m_sharedLibraries.remove( classLoaderSet );
+        }
+        if( null != libraries )
+        {
+            release( libraries );
+        }
+    }
+
+    /**
+     * @mx.attribute description="the number of libraries shared by
+     * applications"
+     */
+    public int getSharedLibraryCount()
+    {
+        if( null == m_libraries )
+        {
+            return 0;
+        }
+        return m_libraries.getLibraries().length;
+    }
+
+    /**
+     * @mx.attribute description="the bytes of class files that are loaded
+     * once in a shared library rather than once per application"
+     */
+    public long getSharedClassBytesSaved()
+    {
+        if( null == m_libraries )
+        {
+            return 0;
+        }
+        return m_libraries.getSavedClassBytes();
+    }
+
+    /**
+     * @mx.attribute description="the jars, size of classes and number of
+     * applications for each shared library"
+     */
+    public String[] getSharedLibraries()
+    {
+        if( null == m_libraries )
+        {
+            return new String[ 0 ];
+        }
+        final SharedLibraryRegistry.Library[] libraries =
+            m_libraries.getLibraries();
+        final String[] report = new String[ libraries.length ];
+        for( int i = 0; i < libraries.length; i++ )
+        {
+            final SharedLibraryRegistry.Library library = libraries[ i ];
+            report[ i ] =
+                REZ.format( "shared-library.report",
+                            Arrays.asList( library.getNames() ),
+                            new Long( library.getClassBytes() ),
+                            new Integer( library.getReferences() ) );
+        }
+        return report;
+    }
+
+    private void release( final SharedLibraryRegistry.Library[] libraries )
+    {
+        for( int i = 0; i < libraries.length; i++ )
+        {
+            m_libraries.release( libraries[ i ] );
+        }
+    }
+
+    private static String[] getValues( final Configuration[] configurations )
+        throws ConfigurationException
+    {
+        final String[] values = new String[ configurations.length ];
+        for( int i = 0; i < configurations.length; i++ )
+        {
+            values[ i ] = configurations[ i ].getValue();
+        }
+        return values;
     }
 
     /**
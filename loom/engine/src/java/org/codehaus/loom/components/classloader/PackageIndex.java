@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.codehaus.loom.classman.runtime.DirectoryIndex;
+
+/**
+ * An index of the directories (ie packages) in the classpath of a
+ * {@link PolicyClassLoader}. For each directory the index records the
+ * elements located in the Sar that contain it and whether any element
+ * outside the Sar contains it. A resource then only needs to be looked
+ * for in the elements that contain its directory.
+ *
+ * <p>Elements outside the Sar are indexed if they are local directories
+ * or jars that do not refer to other jars. If any element can not be
+ * indexed then every directory is assumed to be outside the Sar.</p>
+ *
+ * @author Peter Donald
+ */
+final class PackageIndex
+{
+    private static final ArchiveSource[] EMPTY_SOURCES = new ArchiveSource[ 0 ];
+
+    /**
+     * Map from directory to the array of elements located in Sar that
+     * contain it.
+     */
+    private final Map m_sources = new HashMap();
+
+    /**
+     * The directories in elements outside the Sar or null if an element
+     * could not be indexed.
+     */
+    private final Set m_external;
+
+    /**
+     * Create an index of the specified elements.
+     *
+     * @param sources the elements located in Sar
+     * @param urls the elements outside the Sar
+     */
+    PackageIndex( final ArchiveSource[] sources, final URL[] urls )
+    {
+        final Map sourceLists = new HashMap();
+        for( int i = 0; i < sources.length; i++ )
+        {
+            final Iterator iterator = sources[ i ].getDirectories().iterator();
+            while( iterator.hasNext() )
+            {
+                final String directory = (String)iterator.next();
+                List list = (List)sourceLists.get( directory );
+                if( null == list )
+                {
+                    list = new ArrayList();
+                    sourceLists.put( directory, list );
+                }
+                list.add( sources[ i ] );
+            }
+        }
+
+        final Iterator iterator = sourceLists.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final List list = (List)entry.getValue();
+            m_sources.put( entry.getKey(),
+                           list.toArray( new ArchiveSource[ list.size() ] ) );
+        }
+
+        m_external = DirectoryIndex.getDirectories( urls );
+    }
+
+    /**
+     * Return the elements located in Sar that may contain the resource
+     * with specified name in classpath order.
+     *
+     * @param name the name of resource
+     * @return the elements
+     */
+    ArchiveSource[] getSources( final String name )
+    {
+        final String directory = DirectoryIndex.getDirectory( name );
+        final ArchiveSource[] sources =
+            (ArchiveSource[])m_sources.get( directory );
+        return ( null == sources ) ? EMPTY_SOURCES : sources;
+    }
+
+    /**
+     * Return true if an element outside the Sar may contain the resource
+     * with specified name. Names with relative addressing may be resolved
+     * by a directory outside the Sar so they are always external.
+     *
+     * @param name the name of resource
+     * @return true if an element outside the Sar may contain resource
+     */
+    boolean isExternal( final String name )
+    {
+        return null == m_external ||
+            m_external.contains( DirectoryIndex.getDirectory( name ) ) ||
+            -1 != name.indexOf( "./" );
+    }
+}
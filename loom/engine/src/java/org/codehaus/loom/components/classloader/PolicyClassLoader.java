@@ -87,12 +87,19 @@
 package org.codehaus.loom.components.classloader;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
 import java.security.Policy;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Manifest;
 import org.codehaus.dna.LogEnabled;
 import org.codehaus.dna.Logger;
 
@@ -100,6 +107,20 @@ import org.codehaus.dna.Logger;
  * Classloader that uses a specified {@link Policy} object rather than system
  * {@link Policy} object.
  *
+ * <p>If the application was installed in place then the classpath elements
+ * located in the Sar are served directly from the {@link SarArchive}. They
+ * are searched before any other classpath elements.</p>
+ *
+ * <p>The directories in each classpath element are indexed when the
+ * ClassLoader is created so that a class or resource is only looked for
+ * in the elements that contain its directory. The names of resources
+ * that could not be found are remembered so that repeated misses, such
+ * as probes for optional resources, are cheap.</p>
+ *
+ * <p>On virtual machines that support it the ClassLoader is registered as
+ * parallel capable so that the blocks of an application can load classes
+ * with different names at the same time.</p>
+ *
  * <p>Note that parts of this were cloned from other projects</p>
  *
  * @author Peter Donald
@@ -108,12 +129,35 @@ class PolicyClassLoader
     extends URLClassLoader
     implements LogEnabled
 {
+    /**
+     * The maximum number of names of missing resources that are remembered.
+     */
+    private static final int MAX_MISSING = 1000;
+
+    /**
+     * The reason this class could not be registered as parallel capable or
+     * null if it was registered.
+     */
+    private static final Exception c_parallelFailure = enableParallelLoading();
+
     ///Policy to use to define permissions for classes loaded in classloader
     private final Policy m_policy;
 
     ///Logger to use when reporting information
     private Logger m_logger;
 
+    ///The complete classpath including elements located in Sar
+    private final URL[] m_urls;
+
+    ///The classpath elements located in Sar
+    private final ArchiveSource[] m_sources;
+
+    ///The index of directories in classpath elements
+    private final PackageIndex m_index;
+
+    ///The names of resources (including classes) that could not be found
+    private final Set m_missing = new HashSet();
+
     /**
      * Construct a ClassLoader using specified URLs, parent ClassLoader and
      * Policy object.
@@ -126,17 +170,54 @@ class PolicyClassLoader
                        final ClassLoader parent,
                        final Policy policy )
     {
-        super( urls, parent );
+        this( urls, parent, policy, new ArchiveSource[ 0 ] );
+    }
+
+    /**
+     * Construct a ClassLoader using specified URLs, parent ClassLoader and
+     * Policy object. URLs located in specified Sar are loaded directly from
+     * the Sar.
+     *
+     * @param urls the URLs to load resources from
+     * @param parent the parent ClassLoader
+     * @param policy the Policy object
+     * @param archive the Sar
+     * @throws IOException if unable to read classpath elements in Sar
+     */
+    PolicyClassLoader( final URL[] urls,
+                       final ClassLoader parent,
+                       final Policy policy,
+                       final SarArchive archive )
+        throws IOException
+    {
+        this( urls, parent, policy, createSources( urls, archive ) );
+    }
+
+    private PolicyClassLoader( final URL[] urls,
+                               final ClassLoader parent,
+                               final Policy policy,
+                               final ArchiveSource[] sources )
+    {
+        super( getExternalURLs( urls, sources ), parent );
         if( null == policy )
         {
             throw new NullPointerException( "policy" );
         }
         m_policy = policy;
+        m_urls = urls;
+        m_sources = sources;
+        m_index = new PackageIndex( sources, getExternalURLs( urls, sources ) );
     }
 
     public void enableLogging( final Logger logger )
     {
         m_logger = logger;
+        if( null != c_parallelFailure && m_logger.isDebugEnabled() )
+        {
+            m_logger.debug( "Unable to register as parallel capable so " +
+                            "classes are loaded one at a time",
+                            c_parallelFailure );
+        }
     }
 
     /**
@@ -154,7 +235,42 @@ class PolicyClassLoader
         {
             m_logger.debug( "findClass(" + name + ")" );
         }
-        return super.findClass( name );
+        final String resource = name.replace( '.', '/' ) + ".class";
+        if( isMissing( resource ) )
+        {
+            throw new ClassNotFoundException( name );
+        }
+
+        final Class clazz = findArchiveClass( name, resource );
+        if( null != clazz )
+        {
+            return clazz;
+        }
+        if( m_index.isExternal( resource ) )
+        {
+            try
+            {
+                return super.findClass( name );
+            }
+            catch( final ClassNotFoundException cnfe )
+            {
+                addMissing( resource );
+                throw cnfe;
+            }
+        }
+        addMissing( resource );
+        throw new ClassNotFoundException( name );
+    }
+
+    /**
+     * Return the complete classpath of ClassLoader including any elements
+     * that are loaded directly from the Sar.
+     *
+     * @return the classpath
+     */
+    public URL[] getURLs()
+    {
+        return (URL[])m_urls.clone();
     }
 
     /**
@@ -193,7 +309,30 @@ class PolicyClassLoader
             m_logger.debug( "findResources(" + name + ")" );
         }
 
-        return super.findResources( name );
+        final ArchiveSource[] sources = m_index.getSources( name );
+        if( 0 == sources.length && m_index.isExternal( name ) )
+        {
+            return super.findResources( name );
+        }
+
+        final List urls = new ArrayList();
+        for( int i = 0; i < sources.length; i++ )
+        {
+            final URL url = sources[ i ].getResource( name );
+            if( null != url )
+            {
+                urls.add( url );
+            }
+        }
+        if( m_index.isExternal( name ) )
+        {
+            final Enumeration resources = super.findResources( name );
+            while( resources.hasMoreElements() )
+            {
+                urls.add( resources.nextElement() );
+            }
+        }
+        return Collections.enumeration( urls );
     }
 
     /**
@@ -213,7 +352,19 @@ class PolicyClassLoader
             m_logger.debug( "findResource(" + name + ")" );
         }
 
-        final URL url = super.findResource( name );
+        URL url = null;
+        if( !isMissing( name ) )
+        {
+            url = findArchiveResource( name );
+            if( null == url && m_index.isExternal( name ) )
+            {
+                url = super.findResource( name );
+            }
+            if( null == url )
+            {
+                addMissing( name );
+            }
+        }
 
         if( m_logger.isDebugEnabled() )
         {
@@ -229,4 +380,203 @@ class PolicyClassLoader
 
         return url;
     }
+
+    /**
+     * Find a resource in the classpath elements located in Sar.
+     */
+    private URL findArchiveResource( final String name )
+    {
+        final ArchiveSource[] sources = m_index.getSources( name );
+        for( int i = 0; i < sources.length; i++ )
+        {
+            final URL url = sources[ i ].getResource( name );
+            if( null != url )
+            {
+                return url;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Define a class from the classpath elements located in Sar.
+     *
+     * @return the class or null if not located in Sar
+     */
+    private Class findArchiveClass( final String name,
+                                    final String resource )
+        throws ClassNotFoundException
+    {
+        final ArchiveSource[] sources = m_index.getSources( resource );
+        for( int i = 0; i < sources.length; i++ )
+        {
+            final ArchiveSource source = sources[ i ];
+            try
+            {
+                final byte[] data = source.read( resource );
+                if( null != data )
+                {
+                    definePackageFor( name, source );
+                    return defineClass( name,
+                                        data,
+                                        0,
+                                        data.length,
+                                        source.getCodeSource() );
+                }
+            }
+            catch( final IOException ioe )
+            {
+                throw new ClassNotFoundException( name, ioe );
+            }
+        }
+        return null;
+    }
+
+    private boolean isMissing( final String name )
+    {
+        synchronized( m_missing )
+        {
+            return m_missing.contains( name );
+        }
+    }
+
+    private void addMissing( final String name )
+    {
+        synchronized( m_missing )
+        {
+            if( m_missing.size() >= MAX_MISSING )
+            {
+                m_missing.clear();
+            }
+            m_missing.add( name );
+        }
+    }
+
+    /**
+     * Define the package of class if it has not already been defined.
+     */
+    private void definePackageFor( final String name,
+                                   final ArchiveSource source )
+        throws IOException
+    {
+        final int index = name.lastIndexOf( '.' );
+        if( -1 == index )
+        {
+            return;
+        }
+        final String packageName = name.substring( 0, index );
+        synchronized( this )
+        {
+            if( null != getPackage( packageName ) )
+            {
+                return;
+            }
+            final Manifest manifest = source.getManifest();
+            try
+            {
+                if( null != manifest )
+                {
+                    definePackage( packageName, manifest, source.getURL() );
+                }
+                else
+                {
+                    definePackage( packageName,
+                                   null, null, null, null, null, null, null );
+                }
+            }
+            catch( final IllegalArgumentException iae )
+            {
+                //Defined concurrently while loading a class from outside
+                //the Sar
+                if( null == getPackage( packageName ) )
+                {
+                    throw iae;
+                }
+            }
+        }
+    }
+
+    /**
+     * Return true if this class was registered as parallel capable.
+     *
+     * @return true if classes with different names can be loaded at once
+     */
+    static boolean isParallelCapable()
+    {
+        return null == c_parallelFailure;
+    }
+
+    /**
+     * Register this class as parallel capable if the virtual machine
+     * supports it. The method registers the class that calls it so it
+     * must be invoked from this class.
+     *
+     * @return the reason registration failed or null if it succeeded
+     */
+    private static Exception enableParallelLoading()
+    {
+        try
+        {
+            final Method method =
+                ClassLoader.class.getDeclaredMethod( "registerAsParallelCapable",
+                                                     new Class[ 0 ] );
+            final Object result = method.invoke( null, new Object[ 0 ] );
+            if( Boolean.FALSE.equals( result ) )
+            {
+                return new IllegalStateException( "Superclass not registered" );
+            }
+            return null;
+        }
+        catch( final Exception e )
+        {
+            //Not supported so loading is serialized on the ClassLoader
+            return e;
+        }
+    }
+
+    /**
+     * Create the sources for classpath elements located in Sar.
+     */
+    private static ArchiveSource[] createSources( final URL[] urls,
+                                                  final SarArchive archive )
+        throws IOException
+    {
+        final List sources = new ArrayList();
+        for( int i = 0; i < urls.length; i++ )
+        {
+            final ArchiveSource source = archive.createSource( urls[ i ] );
+            if( null != source )
+            {
+                sources.add( source );
+            }
+        }
+        return (ArchiveSource[])sources.toArray(
+            new ArchiveSource[ sources.size() ] );
+    }
+
+    /**
+     * Return the URLs that are not located in Sar.
+     */
+    private static URL[] getExternalURLs( final URL[] urls,
+                                          final ArchiveSource[] sources )
+    {
+        final List external = new ArrayList();
+        for( int i = 0; i < urls.length; i++ )
+        {
+            boolean found = false;
+            for( int j = 0; j < sources.length; j++ )
+            {
+                if( sources[ j ].getURL() == urls[ i ] )
+                {
+                    found = true;
+                    break;
+                }
+            }
+            if( !found )
+            {
+                external.add( urls[ i ] );
+            }
+        }
+        return (URL[])external.toArray( new URL[ external.size() ] );
+    }
 }
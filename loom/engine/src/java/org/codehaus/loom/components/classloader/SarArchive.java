@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Sar that the code of an application is loaded from without being
+ * expanded. The Sar is memory mapped and its central directory indexed.
+ * Jars in the Sar are indexed the first time they are used. Jars that are
+ * stored in the Sar are read straight from the mapping while jars that are
+ * compressed are inflated once into a file next to the Sar which is then
+ * mapped, so that neither is held on the heap.
+ *
+ * <p>A mapping is never released before it is garbage collected and the
+ * file must not change while it is mapped. The Sar is therefore a private
+ * copy made by the installer, rather than the deployed Sar, and is only
+ * deleted once the application has been uninstalled.</p>
+ *
+ * <p>The code is addressed as if it had been expanded into the code
+ * directory of application. ie The URL of SAR-INF/lib/foo.jar is the URL
+ * of that file in code directory. This means that code sources and the
+ * "sar:" codebases in the policy of application still match.</p>
+ *
+ * @author Peter Donald
+ */
+final class SarArchive
+{
+    /** The Sar file. */
+    private final File m_file;
+
+    /** The URL of code directory, ending in "/". */
+    private final String m_codeBase;
+
+    /** The index of Sar. */
+    private final ZipIndex m_index;
+
+    /**
+     * Map from entry name to the {@link ZipIndex} of jar. The indexes are
+     * shared by all the ClassLoaders of application.
+     */
+    private final Map m_jars = new HashMap();
+
+    /**
+     * Map and index the specified Sar.
+     *
+     * @param file the Sar file
+     * @param codeDirectory the directory that code is addressed relative to
+     * @throws IOException if the Sar can not be read
+     */
+    SarArchive( final File file, final File codeDirectory )
+        throws IOException
+    {
+        if( null == file )
+        {
+            throw new NullPointerException( "file" );
+        }
+        if( null == codeDirectory )
+        {
+            throw new NullPointerException( "codeDirectory" );
+        }
+        m_file = file;
+        final String codeBase = codeDirectory.toURL().toString();
+        m_codeBase = codeBase.endsWith( "/" ) ? codeBase : codeBase + "/";
+        m_index = new ZipIndex( map( file ) );
+    }
+
+    /**
+     * Return the Sar file.
+     *
+     * @return the Sar file
+     */
+    File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Return the name of entry that specified URL refers to or null if the
+     * URL is not located in code directory.
+     *
+     * @param url the URL
+     * @return the name of entry
+     */
+    String getEntryName( final URL url )
+    {
+        final String location = url.toString();
+        if( location.startsWith( m_codeBase ) )
+        {
+            return location.substring( m_codeBase.length() );
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Return true if the Sar contains a file with specified name.
+     *
+     * @param name the name of file
+     * @return true if the Sar contains file
+     */
+    boolean containsFile( final String name )
+    {
+        return m_index.containsFile( name );
+    }
+
+    /**
+     * Return true if the Sar contains a directory with specified name.
+     *
+     * @param name the name of directory
+     * @return true if the Sar contains directory
+     */
+    boolean isDirectory( final String name )
+    {
+        if( name.endsWith( "/" ) )
+        {
+            return m_index.containsDirectory(
+                name.substring( 0, name.length() - 1 ) );
+        }
+        else
+        {
+            return m_index.containsDirectory( name );
+        }
+    }
+
+    /**
+     * Return the names of all the files in Sar.
+     *
+     * @return the names of files
+     */
+    String[] getFileNames()
+    {
+        return m_index.getFileNames();
+    }
+
+    /**
+     * Read the file with specified name in Sar.
+     *
+     * @param name the name of file
+     * @return the content of file or null if Sar does not contain file
+     * @throws IOException if the file can not be read
+     */
+    byte[] read( final String name )
+        throws IOException
+    {
+        return m_index.read( name );
+    }
+
+    /**
+     * Create a source for the classpath element with specified URL.
+     *
+     * @param url the URL of classpath element
+     * @return the source or null if URL is not located in Sar
+     * @throws IOException if the classpath element can not be read
+     */
+    ArchiveSource createSource( final URL url )
+        throws IOException
+    {
+        final String name = getEntryName( url );
+        if( null == name )
+        {
+            return null;
+        }
+        else if( m_index.containsFile( name ) )
+        {
+            return new ArchiveSource( url, getJar( name ), "" );
+        }
+        else if( isDirectory( name ) )
+        {
+            final String prefix = name.endsWith( "/" ) ? name : name + "/";
+            return new ArchiveSource( url, m_index, prefix );
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Return the index of the jar with specified name.
+     */
+    private synchronized ZipIndex getJar( final String name )
+        throws IOException
+    {
+        ZipIndex jar = (ZipIndex)m_jars.get( name );
+        if( null == jar )
+        {
+            try
+            {
+                ByteBuffer data = m_index.getStoredData( name );
+                if( null == data )
+                {
+                    data = map( inflate( name ) );
+                }
+                jar = new ZipIndex( data );
+            }
+            catch( final IOException ioe )
+            {
+                throw new IOException( "Unable to read " + name + " in " +
+                                       m_file + ": " + ioe.getMessage() );
+            }
+            m_jars.put( name, jar );
+        }
+        return jar;
+    }
+
+    /**
+     * Inflate the jar with specified name into a file in the directory of
+     * Sar.
+     */
+    private File inflate( final String name )
+        throws IOException
+    {
+        final byte[] data = m_index.read( name );
+        final File file =
+            File.createTempFile( "jar", ".jar", m_file.getParentFile() );
+        final OutputStream output = new FileOutputStream( file );
+        try
+        {
+            output.write( data );
+        }
+        finally
+        {
+            output.close();
+        }
+        return file;
+    }
+
+    /**
+     * Map the whole of specified file into memory. The file is closed
+     * immediately as the mapping remains valid without it.
+     */
+    private static ByteBuffer map( final File file )
+        throws IOException
+    {
+        final RandomAccessFile input = new RandomAccessFile( file, "r" );
+        try
+        {
+            final FileChannel channel = input.getChannel();
+            return channel.map( FileChannel.MapMode.READ_ONLY,
+                                0,
+                                channel.size() );
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+}
@@ -87,10 +87,14 @@
 package org.codehaus.loom.components.classloader;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URL;
 import java.security.Policy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
+import java.util.jar.Manifest;
 import org.codehaus.loom.classman.builder.SimpleLoaderResolver;
 import org.codehaus.loom.components.extensions.pkgmgr.OptionalPackage;
 import org.codehaus.loom.components.extensions.pkgmgr.PackageManager;
@@ -98,6 +102,7 @@ import org.codehaus.loom.components.util.ResourceUtil;
 import org.codehaus.loom.extension.Extension;
 import org.codehaus.spice.salt.i18n.ResourceManager;
 import org.codehaus.spice.salt.i18n.Resources;
+import org.codehaus.spice.salt.io.PathMatcher;
 import org.codehaus.dna.LogEnabled;
 import org.codehaus.dna.Logger;
 import org.codehaus.dna.impl.ContainerUtil;
@@ -128,6 +133,21 @@ class SarLoaderResolver
     /** Base work directory for application. */
     private File m_workDirectory;
 
+    /**
+     * The Sar that the work hierarchy is loaded from if application was
+     * installed in place, else null.
+     */
+    private SarArchive m_archive;
+
+    /**
+     * The registry of libraries shared with other applications or null if
+     * libraries are not shared.
+     */
+    private SharedLibraryRegistry m_libraries;
+
+    /** The shared libraries acquired for the ClassLoaders created. */
+    private final List m_acquired = new ArrayList();
+
     /**
      * Create a resolver for a jar. The resolver merges both the work and base
      * directory hierarchies.
@@ -141,6 +161,49 @@ class SarLoaderResolver
                        final Policy policy,
                        final File baseDirectory,
                        final File workDirectory )
+    {
+        this( manager, policy, baseDirectory, workDirectory, null );
+    }
+
+    /**
+     * Create a resolver for a jar. The resolver merges both the work and base
+     * directory hierarchies. If an archive is specified then the work
+     * hierarchy is not expanded and is loaded directly from the archive.
+     *
+     * @param manager the PackageManager
+     * @param policy the policy to use when creating classloaders
+     * @param baseDirectory the base directory
+     * @param workDirectory the base work directory
+     * @param archive the Sar containing the work hierarchy or null
+     */
+    SarLoaderResolver( final PackageManager manager,
+                       final Policy policy,
+                       final File baseDirectory,
+                       final File workDirectory,
+                       final SarArchive archive )
+    {
+        this( manager, policy, baseDirectory, workDirectory, archive, null );
+    }
+
+    /**
+     * Create a resolver for a jar. The resolver merges both the work and base
+     * directory hierarchies. If a registry is specified then the library
+     * jars in each ClassLoader are loaded from a library shared with other
+     * applications where possible.
+     *
+     * @param manager the PackageManager
+     * @param policy the policy to use when creating classloaders
+     * @param baseDirectory the base directory
+     * @param workDirectory the base work directory
+     * @param archive the Sar containing the work hierarchy or null
+     * @param libraries the registry of shared libraries or null
+     */
+    SarLoaderResolver( final PackageManager manager,
+                       final Policy policy,
+                       final File baseDirectory,
+                       final File workDirectory,
+                       final SarArchive archive,
+                       final SharedLibraryRegistry libraries )
     {
         super( baseDirectory );
         if( null == manager )
@@ -163,6 +226,8 @@ class SarLoaderResolver
         m_manager = manager;
         m_policy = policy;
         m_workDirectory = workDirectory;
+        m_archive = archive;
+        m_libraries = libraries;
     }
 
     /**
@@ -203,7 +268,20 @@ class SarLoaderResolver
             ResourceUtil.getFileForResource( location,
                                              getBaseDirectory(),
                                              m_workDirectory );
-        return file.toURL();
+        final URL url = file.toURL();
+        if( null != m_archive )
+        {
+            //Directories in archive do not exist on the filesystem so
+            //make sure they are still treated as directories
+            final String name = m_archive.getEntryName( url );
+            if( null != name &&
+                !name.endsWith( "/" ) &&
+                m_archive.isDirectory( name ) )
+            {
+                return new URL( url + "/" );
+            }
+        }
+        return url;
     }
 
     /**
@@ -226,11 +304,20 @@ class SarLoaderResolver
                             baseDirectory,
                             includes,
                             excludes );
-        final URL[] workURLs =
-            resolveFileSet( m_workDirectory,
-                            baseDirectory,
-                            includes,
-                            excludes );
+        final URL[] workURLs;
+        if( null != m_archive )
+        {
+            workURLs = resolveArchiveFileSet( baseDirectory,
+                                              includes,
+                                              excludes );
+        }
+        else
+        {
+            workURLs = resolveFileSet( m_workDirectory,
+                                       baseDirectory,
+                                       includes,
+                                       excludes );
+        }
         final URL[] urls = new URL[ baseURLs.length + workURLs.length ];
         System.arraycopy( baseURLs, 0, urls, 0, baseURLs.length );
         System.arraycopy( workURLs,
@@ -242,7 +329,21 @@ class SarLoaderResolver
     }
 
     /**
-     * Create a ClassLoader that obeys policy in environment.xml.
+     * Return the shared libraries acquired for the ClassLoaders created by
+     * resolver. They must be released when the ClassLoaders are discarded.
+     *
+     * @return the shared libraries
+     */
+    SharedLibraryRegistry.Library[] getSharedLibraries()
+    {
+        return (SharedLibraryRegistry.Library[])m_acquired.toArray(
+            new SharedLibraryRegistry.Library[ m_acquired.size() ] );
+    }
+
+    /**
+     * Create a ClassLoader that obeys policy in environment.xml. If
+     * libraries are shared then the shared library jars are removed from
+     * classpath and the shared library becomes the parent of ClassLoader.
      *
      * @param parent the parent classloader
      * @param urls the set of URLs for classloader
@@ -253,7 +354,36 @@ class SarLoaderResolver
                                           final URL[] urls )
         throws Exception
     {
-        final URL[] classpath = determineCompleteClasspath( urls );
+        URL[] classpath = determineCompleteClasspath( urls );
+        ClassLoader actualParent = parent;
+        if( null != m_libraries )
+        {
+            final List shared = new ArrayList();
+            final SharedLibraryRegistry.Library library =
+                m_libraries.acquire( parent,
+                                     classpath,
+                                     m_policy,
+                                     m_archive,
+                                     shared );
+            if( null != library )
+            {
+                m_acquired.add( library );
+                actualParent = library.getClassLoader();
+                final List remaining =
+                    new ArrayList( Arrays.asList( classpath ) );
+                remaining.removeAll( shared );
+                classpath =
+                    (URL[])remaining.toArray( new URL[ remaining.size() ] );
+                if( m_logger.isDebugEnabled() )
+                {
+                    final String message =
+                        REZ.format( "resolver.shared-library.notice",
+                                    shared,
+                                    Arrays.asList( library.getNames() ) );
+                    m_logger.debug( message );
+                }
+            }
+        }
         if( m_logger.isDebugEnabled() )
         {
             final String message =
@@ -261,12 +391,81 @@ class SarLoaderResolver
                             Arrays.asList( classpath ) );
             m_logger.debug( message );
         }
-        final PolicyClassLoader loader =
-            new PolicyClassLoader( classpath, parent, m_policy );
+        final PolicyClassLoader loader;
+        if( null != m_archive )
+        {
+            loader = new PolicyClassLoader( classpath,
+                                            actualParent,
+                                            m_policy,
+                                            m_archive );
+        }
+        else
+        {
+            loader = new PolicyClassLoader( classpath,
+                                            actualParent,
+                                            m_policy );
+        }
         ContainerUtil.enableLogging( loader, m_logger );
         return loader;
     }
 
+    /**
+     * Read the manifest of jar. Jars in the archive are read through a
+     * classpath source as they have not been expanded.
+     *
+     * @param jar the URL of jar
+     * @return the manifest or null if jar has no manifest
+     * @throws IOException if unable to read jar
+     */
+    protected Manifest getManifest( final URL jar )
+        throws IOException
+    {
+        if( null != m_archive )
+        {
+            final ArchiveSource source = m_archive.createSource( jar );
+            if( null != source )
+            {
+                return source.getManifest();
+            }
+        }
+        return super.getManifest( jar );
+    }
+
+    /**
+     * Resolve a fileset against the files in archive.
+     *
+     * @param baseDirectory the base directory of fileset
+     * @param includes the fileset includes
+     * @param excludes the ant style excludes
+     * @return the URLs that are in fileset
+     * @throws Exception if unable to resolve fileset
+     */
+    private URL[] resolveArchiveFileSet( final String baseDirectory,
+                                         final String[] includes,
+                                         final String[] excludes )
+        throws Exception
+    {
+        final PathMatcher matcher =
+            createPathMatcher( baseDirectory, includes, excludes );
+        final String[] names = m_archive.getFileNames();
+        Arrays.sort( names );
+        final List urls = new ArrayList();
+        for( int i = 0; i < names.length; i++ )
+        {
+            if( matcher.match( names[ i ] ) )
+            {
+                //Files outside the work hierarchy were expanded into
+                //the base directory and are already in the fileset
+                final URL url = resolveURL( names[ i ] );
+                if( null != m_archive.getEntryName( url ) )
+                {
+                    urls.add( url );
+                }
+            }
+        }
+        return (URL[])urls.toArray( new URL[ urls.size() ] );
+    }
+
     /**
      * Route Logging to Avalons Logger.
      *
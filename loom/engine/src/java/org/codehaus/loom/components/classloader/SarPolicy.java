@@ -107,6 +107,9 @@ class SarPolicy
     private Logger m_logger;
     private final Map m_grants;
 
+    ///True once the grants have been added to policy
+    private volatile boolean m_granted;
+
     public SarPolicy( final Map grants )
         throws Exception
     {
@@ -121,7 +124,13 @@ class SarPolicy
     public void initialize()
         throws Exception
     {
-        processGrants( m_grants );
+        //Without a SecurityManager the permissions are rarely checked so
+        //the grants are not processed until permissions are first needed
+        if( null != System.getSecurityManager() )
+        {
+            processGrants( m_grants );
+            m_granted = true;
+        }
     }
 
     public void dispose()
@@ -137,9 +146,30 @@ class SarPolicy
                 "getPermissions(" + codeSource.getLocation() + ");" );
         }
 
+        if( !m_granted )
+        {
+            processGrants();
+        }
         return super.getPermissions( codeSource );
     }
 
+    private synchronized void processGrants()
+    {
+        if( !m_granted )
+        {
+            try
+            {
+                processGrants( m_grants );
+            }
+            catch( final Exception e )
+            {
+                error( "Error processing grants", e );
+            }
+            //Only published once every grant has been added
+            m_granted = true;
+        }
+    }
+
     protected Permissions createPermissionSetFor( final CodeSource codeSource )
     {
         if( m_logger.isDebugEnabled() )
@@ -0,0 +1,778 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Permission;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.Policy;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import org.codehaus.dna.AbstractLogEnabled;
+import org.codehaus.dna.impl.ContainerUtil;
+import org.codehaus.spice.salt.io.PathMatcher;
+
+/**
+ * A registry of the library jars that are shared between applications.
+ * The jars are identified by the SHA-1 digest of their content and copied
+ * into a store directory. Applications whose ClassLoaders have the same
+ * parent and contain the same set of library jars, granted the same
+ * permissions, share a single {@link Library} ClassLoader that sits
+ * between the parent and the ClassLoader of each application. The classes
+ * of the libraries are then only loaded (and compiled) once.
+ *
+ * <p>A Library is reference counted and is removed from the registry when
+ * the last application using it releases it. A stored jar is deleted when
+ * the last Library using it is removed.</p>
+ *
+ * <p>The jars are read and digested without holding the lock of registry.
+ * The digest of a local jar is remembered along with its size and time of
+ * last modification so that it is only read again if it has changed.</p>
+ *
+ * <p>The libraries can not see the classes of application so the jars
+ * selected for sharing must only depend on each other and the parent.
+ * Signed jars and jars that refer to other jars in their manifest are
+ * never shared.</p>
+ *
+ * @author Peter Donald
+ */
+final class SharedLibraryRegistry
+    extends AbstractLogEnabled
+{
+    /** The size of buffer used to read jars. */
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** The suffix of files that jars are written to before being stored. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The directory that the jars are stored in. */
+    private final File m_directory;
+
+    /** The matcher for the names of jars that may be shared. */
+    private final PathMatcher m_matcher;
+
+    /** The ClassLoaders that libraries may have as their parent. */
+    private final Set m_parents = new HashSet();
+
+    /** Map from digest to the {@link Content} of jar used by libraries. */
+    private final Map m_contents = new HashMap();
+
+    /** Map from URL of jar to the {@link Stamp} it had when last read. */
+    private final Map m_stamps = new HashMap();
+
+    /** Map from key to the {@link Library} for it. */
+    private final Map m_libraries = new HashMap();
+
+    /**
+     * Create a registry.
+     *
+     * @param directory the directory to store jars in
+     * @param includes the patterns for names of jars that may be shared
+     * @param excludes the patterns for names of jars that are never shared
+     * @param parents the ClassLoaders that libraries may have as parent
+     */
+    SharedLibraryRegistry( final File directory,
+                           final String[] includes,
+                           final String[] excludes,
+                           final ClassLoader[] parents )
+    {
+        if( null == directory )
+        {
+            throw new NullPointerException( "directory" );
+        }
+        m_directory = directory;
+        m_matcher = new PathMatcher( includes, excludes );
+        for( int i = 0; i < parents.length; i++ )
+        {
+            m_parents.add( parents[ i ] );
+        }
+    }
+
+    /**
+     * Acquire the library for the jars in classpath that can be shared.
+     * The URLs of the jars in library are added to specified list.
+     *
+     * @param parent the parent of ClassLoader for classpath
+     * @param classpath the classpath
+     * @param policy the policy of application
+     * @param archive the Sar that the classpath may be located in or null
+     * @param shared the list to add URLs of shared jars to
+     * @return the library or null if no jar can be shared
+     * @throws IOException if unable to read or store a jar
+     */
+    Library acquire( final ClassLoader parent,
+                     final URL[] classpath,
+                     final Policy policy,
+                     final SarArchive archive,
+                     final List shared )
+        throws IOException
+    {
+        if( !m_parents.contains( parent ) )
+        {
+            return null;
+        }
+
+        Library library = null;
+        List sources = null;
+        while( null == library )
+        {
+            //The parent is compared by identity as ClassLoaders do
+            //not overide equals
+            final List key = new ArrayList();
+            key.add( parent );
+            final List contents = new ArrayList();
+            final List permissions = new ArrayList();
+            sources = new ArrayList();
+            for( int i = 0; i < classpath.length; i++ )
+            {
+                final URL url = classpath[ i ];
+                if( !isIncluded( url ) )
+                {
+                    continue;
+                }
+                final Content content = getContent( url, archive );
+                if( null == content || !content.m_shareable )
+                {
+                    continue;
+                }
+                final PermissionCollection granted =
+                    policy.getPermissions(
+                        new CodeSource( url, (Certificate[])null ) );
+                key.add( content.m_digest );
+                key.add( toSet( granted ) );
+                contents.add( content );
+                permissions.add( granted );
+                sources.add( url );
+            }
+            if( contents.isEmpty() )
+            {
+                return null;
+            }
+
+            //Null if a stored jar was deleted by a release since it was
+            //read in which case the jars are read again
+            library =
+                register( key, parent, contents, permissions, sources );
+        }
+        shared.addAll( sources );
+        return library;
+    }
+
+    /**
+     * Release a library acquired by an application. The library is
+     * removed when no application uses it and the stored jars that no
+     * other library uses are deleted.
+     *
+     * @param library the library
+     */
+    synchronized void release( final Library library )
+    {
+        if( 0 != library.removeReference() )
+        {
+            return;
+        }
+        m_libraries.remove( library.m_key );
+        for( int i = 0; i < library.m_contents.length; i++ )
+        {
+            final Content content = library.m_contents[ i ];
+            content.m_references--;
+            if( 0 == content.m_references )
+            {
+                m_contents.remove( content.m_digest );
+                forget( content.m_digest );
+                content.m_file.delete();
+            }
+        }
+    }
+
+    /**
+     * Return the libraries that are in use.
+     *
+     * @return the libraries
+     */
+    synchronized Library[] getLibraries()
+    {
+        return (Library[])m_libraries.values().
+            toArray( new Library[ m_libraries.size() ] );
+    }
+
+    /**
+     * Return the number of bytes of class files that would have been loaded
+     * again if each application loaded the libraries itself.
+     *
+     * @return the number of bytes
+     */
+    synchronized long getSavedClassBytes()
+    {
+        long saved = 0;
+        final Iterator iterator = m_libraries.values().iterator();
+        while( iterator.hasNext() )
+        {
+            final Library library = (Library)iterator.next();
+            saved += library.getSavedClassBytes();
+        }
+        return saved;
+    }
+
+    /**
+     * Delete the jars in store directory left by a previous run. Only files
+     * named after a digest and temporary files are deleted.
+     */
+    synchronized void clean()
+    {
+        final File[] files = m_directory.listFiles();
+        if( null == files )
+        {
+            return;
+        }
+        for( int i = 0; i < files.length; i++ )
+        {
+            final String name = files[ i ].getName();
+            if( name.endsWith( TEMP_SUFFIX ) )
+            {
+                files[ i ].delete();
+            }
+            else if( name.endsWith( ".jar" ) )
+            {
+                final String digest = name.substring( 0, name.length() - 4 );
+                if( isDigest( digest ) && !m_contents.containsKey( digest ) )
+                {
+                    files[ i ].delete();
+                }
+            }
+        }
+    }
+
+    private boolean isIncluded( final URL url )
+    {
+        final String path = url.getPath();
+        if( !path.endsWith( ".jar" ) )
+        {
+            return false;
+        }
+        return m_matcher.match( path.substring( path.lastIndexOf( '/' ) + 1 ) );
+    }
+
+    /**
+     * Add a reference to the library for specified key, creating it if it
+     * does not exist.
+     *
+     * @return the library or null if a stored jar no longer exists
+     */
+    private synchronized Library register( final List key,
+                                           final ClassLoader parent,
+                                           final List contents,
+                                           final List permissions,
+                                           final List sources )
+        throws IOException
+    {
+        Library library = (Library)m_libraries.get( key );
+        if( null == library )
+        {
+            //Stored jars are only deleted while holding the lock so the
+            //jars that exist now remain until the library is released
+            for( int i = 0; i < contents.size(); i++ )
+            {
+                final Content content = (Content)contents.get( i );
+                if( !m_contents.containsKey( content.m_digest ) &&
+                    !content.m_file.exists() )
+                {
+                    return null;
+                }
+            }
+            library =
+                createLibrary( key, parent, contents, permissions, sources );
+            m_libraries.put( key, library );
+        }
+        library.addReference();
+        return library;
+    }
+
+    private Library createLibrary( final List key,
+                                   final ClassLoader parent,
+                                   final List contents,
+                                   final List permissions,
+                                   final List sources )
+        throws IOException
+    {
+        final URL[] urls = new URL[ contents.size() ];
+        final String[] names = new String[ contents.size() ];
+        final Content[] stored = new Content[ contents.size() ];
+        final Map grants = new HashMap();
+        long classBytes = 0;
+        for( int i = 0; i < urls.length; i++ )
+        {
+            final Content content = (Content)contents.get( i );
+            urls[ i ] = content.m_file.toURL();
+            final String path = ( (URL)sources.get( i ) ).getPath();
+            names[ i ] = path.substring( path.lastIndexOf( '/' ) + 1 );
+            grants.put( urls[ i ].toString(), permissions.get( i ) );
+            classBytes += content.m_classBytes;
+        }
+        final PolicyClassLoader classLoader =
+            new PolicyClassLoader( urls, parent, new LibraryPolicy( grants ) );
+        ContainerUtil.enableLogging( classLoader, getLogger() );
+
+        //The jars are counted once per digest however they were read
+        for( int i = 0; i < stored.length; i++ )
+        {
+            final Content content = (Content)contents.get( i );
+            stored[ i ] = (Content)m_contents.get( content.m_digest );
+            if( null == stored[ i ] )
+            {
+                stored[ i ] = content;
+                m_contents.put( content.m_digest, content );
+            }
+            stored[ i ].m_references++;
+        }
+        return new Library( key, classLoader, names, classBytes, stored );
+    }
+
+    /**
+     * Return the content of jar at specified URL. The jar is read, digested
+     * and stored unless it is a local jar that has not changed since it was
+     * last read. The lock of registry is not held while doing so.
+     *
+     * @return the content or null if the jar does not exist
+     */
+    private Content getContent( final URL url, final SarArchive archive )
+        throws IOException
+    {
+        final File source = getSource( url, archive );
+        if( null != source && !source.isFile() )
+        {
+            return null;
+        }
+
+        final String location = url.toString();
+        Stamp stamp = null;
+        if( null != source )
+        {
+            synchronized( m_stamps )
+            {
+                stamp = (Stamp)m_stamps.get( location );
+            }
+            if( null != stamp && stamp.isCurrent( source ) )
+            {
+                return stamp.m_content;
+            }
+            //Taken before reading so a change while reading is noticed
+            stamp = new Stamp( source.length(), source.lastModified() );
+        }
+
+        final byte[] data = read( url, archive );
+        if( null == data )
+        {
+            return null;
+        }
+        final Content content = store( digest( data ), data );
+        if( null != stamp )
+        {
+            stamp.m_content = content;
+            synchronized( m_stamps )
+            {
+                m_stamps.put( location, stamp );
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Forget the stamps of jars with specified digest.
+     */
+    private void forget( final String digest )
+    {
+        synchronized( m_stamps )
+        {
+            final Iterator iterator = m_stamps.values().iterator();
+            while( iterator.hasNext() )
+            {
+                final Stamp stamp = (Stamp)iterator.next();
+                if( digest.equals( stamp.m_content.m_digest ) )
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the data to a temporary file and inspect it. A jar that can be
+     * shared is renamed to its digest, unless already stored, so that a
+     * partially written jar is never used. Other jars are not kept.
+     */
+    private Content store( final String digest, final byte[] data )
+        throws IOException
+    {
+        m_directory.mkdirs();
+        final File file = new File( m_directory, digest + ".jar" );
+        final File temp =
+            File.createTempFile( "jar", TEMP_SUFFIX, m_directory );
+        try
+        {
+            final OutputStream output = new FileOutputStream( temp );
+            try
+            {
+                output.write( data );
+            }
+            finally
+            {
+                output.close();
+            }
+            final Content content = inspect( digest, file, temp );
+            if( content.m_shareable && !file.exists() &&
+                !temp.renameTo( file ) && !file.exists() )
+            {
+                throw new IOException( "Unable to store " + file );
+            }
+            return content;
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Determine whether the jar can be shared and how many bytes of class
+     * files it contains.
+     *
+     * @param digest the digest of jar
+     * @param file the file that jar is stored in
+     * @param source the file to read jar from
+     */
+    private static Content inspect( final String digest,
+                                    final File file,
+                                    final File source )
+        throws IOException
+    {
+        final JarFile jar = new JarFile( source, false );
+        try
+        {
+            final Manifest manifest = jar.getManifest();
+            boolean shareable = null == manifest ||
+                null == manifest.getMainAttributes()
+                .getValue( Attributes.Name.CLASS_PATH );
+            long classBytes = 0;
+            final Enumeration entries = jar.entries();
+            while( entries.hasMoreElements() )
+            {
+                final ZipEntry entry = (ZipEntry)entries.nextElement();
+                final String name = entry.getName();
+                if( name.endsWith( ".class" ) )
+                {
+                    classBytes += Math.max( 0, entry.getSize() );
+                }
+                else if( name.startsWith( "META-INF/" ) &&
+                    name.toUpperCase().endsWith( ".SF" ) )
+                {
+                    shareable = false;
+                }
+            }
+            return new Content( digest, file, shareable, classBytes );
+        }
+        finally
+        {
+            jar.close();
+        }
+    }
+
+    /**
+     * Read the whole of jar at specified URL.
+     *
+     * @return the data or null if the jar does not exist
+     */
+    private static byte[] read( final URL url, final SarArchive archive )
+        throws IOException
+    {
+        if( null != archive )
+        {
+            final String name = archive.getEntryName( url );
+            if( null != name )
+            {
+                final byte[] data = archive.read( name );
+                if( null != data )
+                {
+                    return data;
+                }
+            }
+        }
+
+        final InputStream input = url.openStream();
+        try
+        {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[ BUFFER_SIZE ];
+            int count = input.read( buffer );
+            while( -1 != count )
+            {
+                output.write( buffer, 0, count );
+                count = input.read( buffer );
+            }
+            return output.toByteArray();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Return the file whose size and time of last modification change when
+     * the jar at specified URL changes or null if the jar is not local.
+     */
+    private static File getSource( final URL url, final SarArchive archive )
+    {
+        if( null != archive )
+        {
+            final String name = archive.getEntryName( url );
+            if( null != name && archive.containsFile( name ) )
+            {
+                return archive.getFile();
+            }
+        }
+        if( "file".equals( url.getProtocol() ) )
+        {
+            return new File( url.getFile() );
+        }
+        return null;
+    }
+
+    private static String digest( final byte[] data )
+    {
+        final byte[] digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "SHA-1" ).digest( data );
+        }
+        catch( final NoSuchAlgorithmException nsae )
+        {
+            throw new IllegalStateException( nsae.toString() );
+        }
+        final char[] chars = new char[ digest.length * 2 ];
+        for( int i = 0; i < digest.length; i++ )
+        {
+            chars[ i * 2 ] = HEX_DIGITS[ ( digest[ i ] >> 4 ) & 0xF ];
+            chars[ i * 2 + 1 ] = HEX_DIGITS[ digest[ i ] & 0xF ];
+        }
+        return new String( chars );
+    }
+
+    private static boolean isDigest( final String name )
+    {
+        if( 40 != name.length() )
+        {
+            return false;
+        }
+        for( int i = 0; i < name.length(); i++ )
+        {
+            if( -1 == Character.digit( name.charAt( i ), 16 ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Set toSet( final PermissionCollection permissions )
+    {
+        final Set set = new HashSet();
+        if( null != permissions )
+        {
+            final Enumeration elements = permissions.elements();
+            while( elements.hasMoreElements() )
+            {
+                set.add( elements.nextElement() );
+            }
+        }
+        return set;
+    }
+
+    /**
+     * A ClassLoader for a set of jars shared by applications.
+     */
+    static final class Library
+    {
+        private final List m_key;
+        private final ClassLoader m_classLoader;
+        private final String[] m_names;
+        private final long m_classBytes;
+        private final Content[] m_contents;
+        private int m_references;
+
+        Library( final List key,
+                 final ClassLoader classLoader,
+                 final String[] names,
+                 final long classBytes,
+                 final Content[] contents )
+        {
+            m_key = key;
+            m_classLoader = classLoader;
+            m_names = names;
+            m_classBytes = classBytes;
+            m_contents = contents;
+        }
+
+        ClassLoader getClassLoader()
+        {
+            return m_classLoader;
+        }
+
+        /**
+         * Return the names of jars in library when it was created.
+         */
+        String[] getNames()
+        {
+            return m_names;
+        }
+
+        /**
+         * Return the number of bytes of class files in jars.
+         */
+        long getClassBytes()
+        {
+            return m_classBytes;
+        }
+
+        /**
+         * Return the number of applications using library.
+         */
+        synchronized int getReferences()
+        {
+            return m_references;
+        }
+
+        synchronized void addReference()
+        {
+            m_references++;
+        }
+
+        synchronized int removeReference()
+        {
+            return --m_references;
+        }
+
+        long getSavedClassBytes()
+        {
+            return m_classBytes * Math.max( 0, getReferences() - 1 );
+        }
+    }
+
+    /**
+     * A stored jar.
+     */
+    private static final class Content
+    {
+        final String m_digest;
+        final File m_file;
+        final boolean m_shareable;
+        final long m_classBytes;
+
+        /** The number of libraries using jar, guarded by registry. */
+        int m_references;
+
+        Content( final String digest,
+                 final File file,
+                 final boolean shareable,
+                 final long classBytes )
+        {
+            m_digest = digest;
+            m_file = file;
+            m_shareable = shareable;
+            m_classBytes = classBytes;
+        }
+    }
+
+    /**
+     * The size and time of last modification of the file a jar was read
+     * from and the content that was read.
+     */
+    private static final class Stamp
+    {
+        final long m_length;
+        final long m_lastModified;
+        Content m_content;
+
+        Stamp( final long length, final long lastModified )
+        {
+            m_length = length;
+            m_lastModified = lastModified;
+        }
+
+        boolean isCurrent( final File file )
+        {
+            return m_length == file.length() &&
+                m_lastModified == file.lastModified();
+        }
+    }
+
+    /**
+     * The policy of a library. Each stored jar is granted the permissions
+     * that the policy of applications granted the jar it was copied from.
+     */
+    private static final class LibraryPolicy
+        extends Policy
+    {
+        /** Map from URL of stored jar to the permissions granted to it. */
+        private final Map m_grants;
+
+        LibraryPolicy( final Map grants )
+        {
+            m_grants = grants;
+        }
+
+        public PermissionCollection getPermissions(
+            final CodeSource codeSource )
+        {
+            final URL location = codeSource.getLocation();
+            final PermissionCollection granted = ( null == location ) ?
+                null : (PermissionCollection)m_grants.get(
+                    location.toString() );
+
+            //A copy as the collection returned is made read only when
+            //a ProtectionDomain is created for it
+            final Permissions permissions = new Permissions();
+            if( null != granted )
+            {
+                final Enumeration elements = granted.elements();
+                while( elements.hasMoreElements() )
+                {
+                    permissions.add( (Permission)elements.nextElement() );
+                }
+            }
+            return permissions;
+        }
+
+        public void refresh()
+        {
+        }
+    }
+}
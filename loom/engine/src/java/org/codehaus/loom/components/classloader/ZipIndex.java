@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * An index of the central directory of a zip archive that is held in a
+ * ByteBuffer. The buffer is usually a mapping of a Sar or a region of the
+ * mapping that holds a jar stored in the Sar. Entries are read directly
+ * from the buffer and no file handles are held once the buffer has been
+ * created.
+ *
+ * @author Peter Donald
+ */
+final class ZipIndex
+{
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    /** The buffer holding the archive. */
+    private final ByteBuffer m_buffer;
+
+    /** Map from entry name to {@link Entry}. */
+    private final Map m_entries = new HashMap();
+
+    /** The names of all directories in archive without trailing "/". */
+    private final Set m_directories = new HashSet();
+
+    /**
+     * Create an index of the archive held in specified buffer.
+     *
+     * @param buffer the buffer
+     * @throws IOException if the archive is malformed
+     */
+    ZipIndex( final ByteBuffer buffer )
+        throws IOException
+    {
+        m_buffer = buffer;
+        readCentralDirectory();
+    }
+
+    /**
+     * Return true if the archive contains a file with specified name.
+     *
+     * @param name the name of entry
+     * @return true if the archive contains a file with specified name
+     */
+    boolean containsFile( final String name )
+    {
+        final Entry entry = (Entry)m_entries.get( name );
+        return null != entry && !name.endsWith( "/" );
+    }
+
+    /**
+     * Return true if the archive contains a directory with specified name.
+     *
+     * @param name the name of directory with no trailing "/"
+     * @return true if the archive contains the directory
+     */
+    boolean containsDirectory( final String name )
+    {
+        return m_directories.contains( name );
+    }
+
+    /**
+     * Return the names of all the files in archive.
+     *
+     * @return the names of all the files in archive
+     */
+    String[] getFileNames()
+    {
+        final List names = new ArrayList();
+        final Iterator iterator = m_entries.keySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final String name = (String)iterator.next();
+            if( !name.endsWith( "/" ) )
+            {
+                names.add( name );
+            }
+        }
+        return (String[])names.toArray( new String[ names.size() ] );
+    }
+
+    /**
+     * Return the buffer holding the data of a stored file. The buffer
+     * shares content with the buffer of this archive.
+     *
+     * @param name the name of file
+     * @return the buffer or null if the file is not stored
+     * @throws IOException if the archive is malformed
+     */
+    ByteBuffer getStoredData( final String name )
+        throws IOException
+    {
+        final Entry entry = (Entry)m_entries.get( name );
+        if( null == entry || ZipEntry.STORED != entry.m_method )
+        {
+            return null;
+        }
+        return getData( name, entry );
+    }
+
+    /**
+     * Read the contents of specified file.
+     *
+     * @param name the name of file
+     * @return the contents of file or null if no such file
+     * @throws IOException if the file can not be read
+     */
+    byte[] read( final String name )
+        throws IOException
+    {
+        final Entry entry = (Entry)m_entries.get( name );
+        if( null == entry || name.endsWith( "/" ) )
+        {
+            return null;
+        }
+
+        final ByteBuffer data = getData( name, entry );
+        if( ZipEntry.STORED == entry.m_method )
+        {
+            final byte[] bytes = new byte[ entry.m_size ];
+            data.get( bytes );
+            return bytes;
+        }
+        else if( ZipEntry.DEFLATED == entry.m_method )
+        {
+            //The inflater needs an extra byte when there
+            //is no zlib header
+            final byte[] input = new byte[ entry.m_compressedSize + 1 ];
+            data.get( input, 0, entry.m_compressedSize );
+            final byte[] bytes = new byte[ entry.m_size ];
+            final Inflater inflater = new Inflater( true );
+            try
+            {
+                inflater.setInput( input );
+                int offset = 0;
+                while( offset < bytes.length )
+                {
+                    final int count = inflater.inflate( bytes,
+                                                        offset,
+                                                        bytes.length - offset );
+                    if( 0 == count )
+                    {
+                        throw new IOException( "Truncated entry " + name );
+                    }
+                    offset += count;
+                }
+            }
+            catch( final DataFormatException dfe )
+            {
+                throw new IOException( "Corrupt entry " + name +
+                                       ": " + dfe.getMessage() );
+            }
+            finally
+            {
+                inflater.end();
+            }
+            return bytes;
+        }
+        else
+        {
+            throw new IOException( "Unsupported compression method " +
+                                   entry.m_method + " for " + name );
+        }
+    }
+
+    /**
+     * Return a buffer positioned over the raw data of entry.
+     */
+    private ByteBuffer getData( final String name, final Entry entry )
+        throws IOException
+    {
+        final int header = entry.m_headerOffset;
+        if( header + LOCAL_HEADER_SIZE > m_buffer.limit() ||
+            LOCAL_HEADER_SIGNATURE != readInt( header ) )
+        {
+            throw new IOException( "Bad local header for " + name );
+        }
+        final int offset = header + LOCAL_HEADER_SIZE +
+            readShort( header + 26 ) + readShort( header + 28 );
+        final int length = ZipEntry.STORED == entry.m_method ?
+            entry.m_size : entry.m_compressedSize;
+        if( offset + length > m_buffer.limit() )
+        {
+            throw new IOException( "Truncated entry " + name );
+        }
+
+        final ByteBuffer data = m_buffer.duplicate();
+        data.position( offset );
+        data.limit( offset + length );
+        return data.slice();
+    }
+
+    private void readCentralDirectory()
+        throws IOException
+    {
+        final int limit = m_buffer.limit();
+        final int last = Math.max( 0, limit - END_SIZE - MAX_COMMENT_SIZE );
+        int end = -1;
+        for( int i = limit - END_SIZE; i >= last; i-- )
+        {
+            if( END_SIGNATURE == readInt( i ) )
+            {
+                end = i;
+                break;
+            }
+        }
+        if( -1 == end )
+        {
+            throw new IOException( "No central directory" );
+        }
+
+        final int count = readShort( end + 10 );
+        final long directoryOffset = readInt( end + 16 ) & 0xFFFFFFFFL;
+        if( directoryOffset > end )
+        {
+            throw new IOException( "Bad central directory" );
+        }
+
+        int position = (int)directoryOffset;
+        for( int i = 0; i < count; i++ )
+        {
+            if( position + CENTRAL_HEADER_SIZE > end ||
+                CENTRAL_HEADER_SIGNATURE != readInt( position ) )
+            {
+                throw new IOException( "Bad central directory entry" );
+            }
+            final Entry entry = new Entry();
+            entry.m_method = readShort( position + 10 );
+            entry.m_compressedSize = readInt( position + 20 );
+            entry.m_size = readInt( position + 24 );
+            final int nameLength = readShort( position + 28 );
+            final int extraLength = readShort( position + 30 );
+            final int commentLength = readShort( position + 32 );
+            entry.m_headerOffset = readInt( position + 42 );
+            if( entry.m_compressedSize < 0 || entry.m_size < 0 ||
+                entry.m_headerOffset < 0 )
+            {
+                throw new IOException( "Entry too large" );
+            }
+
+            final String name =
+                readName( position + CENTRAL_HEADER_SIZE, nameLength );
+            m_entries.put( name, entry );
+            addDirectories( name );
+
+            position += CENTRAL_HEADER_SIZE +
+                nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Add all the directories that contain specified entry.
+     */
+    private void addDirectories( final String name )
+    {
+        int index = name.lastIndexOf( '/' );
+        while( index > 0 )
+        {
+            final String directory = name.substring( 0, index );
+            if( !m_directories.add( directory ) )
+            {
+                return;
+            }
+            index = directory.lastIndexOf( '/' );
+        }
+    }
+
+    private String readName( final int offset, final int length )
+        throws UnsupportedEncodingException
+    {
+        final byte[] bytes = new byte[ length ];
+        for( int i = 0; i < length; i++ )
+        {
+            bytes[ i ] = m_buffer.get( offset + i );
+        }
+        return new String( bytes, "UTF8" );
+    }
+
+    private int readShort( final int offset )
+    {
+        return ( m_buffer.get( offset ) & 0xFF ) |
+            ( ( m_buffer.get( offset + 1 ) & 0xFF ) << 8 );
+    }
+
+    private int readInt( final int offset )
+    {
+        return readShort( offset ) | ( readShort( offset + 2 ) << 16 );
+    }
+
+    /**
+     * The details of an entry from the central directory.
+     */
+    private static final class Entry
+    {
+        int m_method;
+        int m_compressedSize;
+        int m_size;
+        int m_headerOffset;
+    }
+}
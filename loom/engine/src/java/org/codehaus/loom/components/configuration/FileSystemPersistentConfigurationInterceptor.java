@@ -89,12 +89,12 @@ package org.codehaus.loom.components.configuration;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.HashMap;
 import java.util.Map;
 import javax.xml.transform.stream.StreamResult;
 
 import org.codehaus.loom.components.configuration.merger.ConfigurationMerger;
-import org.codehaus.loom.components.util.ExtensionFileFilter;
 import org.codehaus.loom.interfaces.ConfigurationInterceptor;
 import org.codehaus.spice.salt.i18n.ResourceManager;
 import org.codehaus.spice.salt.i18n.Resources;
@@ -111,7 +111,12 @@ import org.xml.sax.InputSource;
  * <p> A ConfigurationInterceptor that will store partial configurations on
  * disk. </p><p> When a Configuration is retrieved from the repository, the
  * configuration from disk is <i>merged</i> with the configuration from the SAR.
- * This merge is accompilished via {@link ConfigurationMerger#merge}. </p>
+ * This merge is accompilished via {@link ConfigurationMerger#merge}. </p><p>
+ * Partial configurations are stored as
+ * <code>storage-directory/application/block.xml</code> and are only loaded
+ * when the configuration of that block is processed. Loaded configurations
+ * are softly referenced so that they do not stay on the heap and are loaded
+ * again if the file is modified. </p>
  *
  * @author Peter Royal
  * @see ConfigurationMerger
@@ -124,6 +129,10 @@ public class FileSystemPersistentConfigurationInterceptor
         ResourceManager.getPackageResources(
             FileSystemPersistentConfigurationInterceptor.class );
 
+    /**
+     * Map from key of block to {@link PersistedConfiguration} that
+     * was last loaded for block.
+     */
     private final Map m_persistedConfigurations = new HashMap();
 
     private File m_storageDirectory;
@@ -176,8 +185,7 @@ public class FileSystemPersistentConfigurationInterceptor
         throws ConfigurationException
     {
         final Configuration persistedConfiguration =
-            (Configuration)m_persistedConfigurations.get(
-                genKey( application, block ) );
+            getPersistedConfiguration( application, block );
 
         if( null != persistedConfiguration )
         {
@@ -193,8 +201,6 @@ public class FileSystemPersistentConfigurationInterceptor
     public void initialize()
         throws Exception
     {
-        loadConfigurations();
-
         if( null != m_debugPath )
         {
             FileUtil.forceMkdir( new File( m_debugPath ) );
@@ -204,47 +210,80 @@ public class FileSystemPersistentConfigurationInterceptor
     public void dispose()
         throws Exception
     {
+        synchronized( m_persistedConfigurations )
+        {
+            m_persistedConfigurations.clear();
+        }
     }
 
-    private void loadConfigurations()
-        throws Exception
+    /**
+     * Return the persisted configuration for block, loading it if it has
+     * not been loaded, has been collected or the file has been modified.
+     *
+     * @return the configuration or null if there is no persisted
+     *         configuration for block
+     */
+    private Configuration getPersistedConfiguration( final String app,
+                                                     final String block )
+        throws ConfigurationException
     {
-        final File[] apps = m_storageDirectory.listFiles(
-            new ConfigurationDirectoryFilter() );
-        for( int i = 0; i < apps.length; i++ )
+        final File file =
+            new File( new File( m_storageDirectory, app ), block + ".xml" );
+        final String key = genKey( app, block );
+        final long lastModified = file.lastModified();
+        if( 0 == lastModified )
         {
-            loadConfigurations( apps[ i ] );
+            synchronized( m_persistedConfigurations )
+            {
+                m_persistedConfigurations.remove( key );
+            }
+            return null;
         }
-    }
 
-    private void loadConfigurations( final File appPath )
-        throws Exception
-    {
-        final String app = appPath.getName();
-        final File[] blocks = appPath.listFiles(
-            new ExtensionFileFilter( ".xml" ) );
+        synchronized( m_persistedConfigurations )
+        {
+            final PersistedConfiguration persisted =
+                (PersistedConfiguration)m_persistedConfigurations.get( key );
+            if( null != persisted &&
+                lastModified == persisted.getLastModified() )
+            {
+                final Configuration configuration =
+                    persisted.getConfiguration();
+                if( null != configuration )
+                {
+                    return configuration;
+                }
+            }
+        }
 
-        for( int i = 0; i < blocks.length; i++ )
+        final Configuration configuration;
+        try
         {
-            final String block =
-                blocks[ i ].getName().substring( 0,
-                                                 blocks[ i ].getName().indexOf(
-                                                     ".xml" ) );
+            final InputSource input =
+                new InputSource( file.getAbsolutePath() );
+            configuration = ConfigurationUtil.buildFromXML( input );
+        }
+        catch( final Exception e )
+        {
+            final String message =
+                REZ.format( "config.error.persisted.load", file );
+            throw new ConfigurationException( message, e );
+        }
 
-            final InputSource input = new InputSource(
-                blocks[ i ].getAbsolutePath() );
-            final Configuration configuration =
-                ConfigurationUtil.buildFromXML( input );
-            m_persistedConfigurations.put( genKey( app, block ),
-                                           configuration );
+        synchronized( m_persistedConfigurations )
+        {
+            m_persistedConfigurations.put(
+                key, new PersistedConfiguration( configuration,
+                                                 lastModified ) );
+        }
 
-            if( getLogger().isDebugEnabled() )
-            {
-                getLogger().debug( "Loaded persistent configuration [app: " +
-                                   app
-                                   + ", block: " + block + "]" );
-            }
+        if( getLogger().isDebugEnabled() )
+        {
+            getLogger().debug( "Loaded persistent configuration [app: " +
+                               app
+                               + ", block: " + block + "]" );
         }
+        return configuration;
     }
 
     private String genKey( final String app, final String block )
@@ -278,4 +317,30 @@ public class FileSystemPersistentConfigurationInterceptor
             getLogger().error( message, e );
         }
     }
+
+    /**
+     * A persisted configuration that can be collected when memory is low.
+     */
+    private static final class PersistedConfiguration
+    {
+        private final SoftReference m_configuration;
+        private final long m_lastModified;
+
+        PersistedConfiguration( final Configuration configuration,
+                                final long lastModified )
+        {
+            m_configuration = new SoftReference( configuration );
+            m_lastModified = lastModified;
+        }
+
+        Configuration getConfiguration()
+        {
+            return (Configuration)m_configuration.get();
+        }
+
+        long getLastModified()
+        {
+            return m_lastModified;
+        }
+    }
 }
@@ -87,8 +87,10 @@
 package org.codehaus.loom.components.configuration.merger;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.codehaus.dna.Configuration;
 import org.codehaus.dna.ConfigurationException;
@@ -157,10 +159,21 @@ public class ConfigurationMerger
         final Set baseUsed = new HashSet();
         final List toMergeUsed = new ArrayList();
 
+        //Indexes are only built if a child of layer is to be merged
+        ChildIndex layerIndex = null;
+        ChildIndex baseIndex = null;
         for( int i = 0; i < lc.length; i++ )
         {
-            final Configuration mergeWith =
-                getMergePartner( lc[ i ], layer, base );
+            Configuration mergeWith = null;
+            if( lc[ i ].getAttributeAsBoolean( Constants.MERGE_ATTR, false ) )
+            {
+                if( null == layerIndex )
+                {
+                    layerIndex = new ChildIndex( lc );
+                    baseIndex = new ChildIndex( bc );
+                }
+                mergeWith = getMergePartner( lc[ i ], layerIndex, baseIndex );
+            }
 
             if( null == mergeWith )
             {
@@ -189,45 +202,38 @@ public class ConfigurationMerger
     }
 
     private static Configuration getMergePartner( final Configuration toMerge,
-                                                  final Configuration layer,
-                                                  final Configuration base )
+                                                  final ChildIndex layer,
+                                                  final ChildIndex base )
         throws ConfigurationException
     {
-        if( toMerge.getAttributeAsBoolean( Constants.MERGE_ATTR, false ) )
-        {
-            final String keyAttribute = toMerge.getAttribute(
-                Constants.KEY_ATTR, null );
-            final String keyvalue =
-                keyAttribute == null ?
-                null :
-                toMerge.getAttribute( keyAttribute );
+        final String keyAttribute = toMerge.getAttribute(
+            Constants.KEY_ATTR, null );
+        final String keyvalue =
+            keyAttribute == null ?
+            null :
+            toMerge.getAttribute( keyAttribute );
 
-            final Configuration[] layerKids = match( layer,
-                                                     toMerge.getName(),
-                                                     keyAttribute,
-                                                     keyvalue );
+        final List layerKids = layer.match( toMerge.getName(),
+                                            keyAttribute,
+                                            keyvalue );
 
-            final Configuration[] baseKids = match( base,
-                                                    toMerge.getName(),
-                                                    keyAttribute,
-                                                    keyvalue );
+        final List baseKids = base.match( toMerge.getName(),
+                                          keyAttribute,
+                                          keyvalue );
 
-            if( layerKids.length == 1 && baseKids.length == 1 )
-            {
-                return baseKids[ 0 ];
-            }
-            else
-            {
-                throw new ConfigurationException( "Unable to merge configuration item, "
-                                                  +
-                                                  "multiple matches on child or base [name: "
-                                                  + toMerge.getName() + "]",
-                                                  toMerge.getPath(),
-                                                  toMerge.getLocation() );
-            }
+        if( layerKids.size() == 1 && baseKids.size() == 1 )
+        {
+            return (Configuration)baseKids.get( 0 );
+        }
+        else
+        {
+            throw new ConfigurationException( "Unable to merge configuration item, "
+                                              +
+                                              "multiple matches on child or base [name: "
+                                              + toMerge.getName() + "]",
+                                              toMerge.getPath(),
+                                              toMerge.getLocation() );
         }
-
-        return null;
     }
 
     private static String getValue( final Configuration layer,
@@ -322,4 +328,87 @@ public class ConfigurationMerger
 
         return (Configuration[])list.toArray( new Configuration[ list.size() ] );
     }
+
+    /**
+     * Index of the children of a configuration by name and by the value of
+     * key attributes. This means that matching every child of a layer
+     * against the base is linear in the number of children rather than
+     * quadratic. Each key attribute is only indexed when first used.
+     */
+    private static final class ChildIndex
+    {
+        private static final List EMPTY = new ArrayList();
+
+        ///Map from name to list of children with that name
+        private final Map m_names = new HashMap();
+
+        ///Map from name and key attribute to map of value to children
+        private final Map m_keys = new HashMap();
+
+        ChildIndex( final Configuration[] children )
+        {
+            for( int i = 0; i < children.length; i++ )
+            {
+                final String name = children[ i ].getName();
+                List list = (List)m_names.get( name );
+                if( null == list )
+                {
+                    list = new ArrayList();
+                    m_names.put( name, list );
+                }
+                list.add( children[ i ] );
+            }
+        }
+
+        /**
+         * Return the children with specified name that have the attribute
+         * with specified value. This gives the same result as
+         * {@link ConfigurationMerger#match}.
+         */
+        List match( final String name,
+                    final String attribute,
+                    final String value )
+        {
+            final List named = (List)m_names.get( name );
+            if( null == named )
+            {
+                return EMPTY;
+            }
+            else if( null == attribute )
+            {
+                return named;
+            }
+
+            final String key = name + '\0' + attribute;
+            Map values = (Map)m_keys.get( key );
+            if( null == values )
+            {
+                values = new HashMap();
+                final List all = new ArrayList();
+                final int count = named.size();
+                for( int i = 0; i < count; i++ )
+                {
+                    final Configuration child = (Configuration)named.get( i );
+                    final String v = child.getAttribute( attribute, null );
+                    if( null != v )
+                    {
+                        List list = (List)values.get( v );
+                        if( null == list )
+                        {
+                            list = new ArrayList();
+                            values.put( v, list );
+                        }
+                        list.add( child );
+                        all.add( child );
+                    }
+                }
+                //The null value matches every child that has attribute
+                values.put( null, all );
+                m_keys.put( key, values );
+            }
+
+            final List list = (List)values.get( value );
+            return null == list ? EMPTY : list;
+        }
+    }
 }
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.deployer;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the ClassLoaders of undeployed applications until they are
+ * garbage collected. A ClassLoader that is still reachable some time
+ * after its application was undeployed has leaked and keeps every class
+ * it loaded (and usually the blocks of application) in memory.
+ *
+ * <p>The ClassLoaders are only weakly referenced. When a leak is found the
+ * threads of virtual machine are inspected to suggest what is holding on
+ * to the ClassLoader.</p>
+ *
+ * @author Peter Donald
+ */
+final class ClassLoaderTracker
+{
+    /** The queue that collected ClassLoaders are reported to. */
+    private final ReferenceQueue m_queue = new ReferenceQueue();
+
+    /** Map from reference to the {@link Entry} describing ClassLoader. */
+    private final Map m_entries = new HashMap();
+
+    /** The number of tracked ClassLoaders that have been collected. */
+    private long m_collected;
+
+    /** True once the thread locals of a thread could not be inspected. */
+    private static volatile boolean c_threadLocalsHidden;
+
+    /**
+     * Start tracking a ClassLoader of an undeployed application.
+     *
+     * @param application the name of application
+     * @param name the name of ClassLoader in application
+     * @param classLoader the ClassLoader
+     * @param time the time at which application was undeployed
+     */
+    synchronized void track( final String application,
+                             final String name,
+                             final ClassLoader classLoader,
+                             final long time )
+    {
+        final Reference reference = new WeakReference( classLoader, m_queue );
+        m_entries.put( reference, new Entry( application, name, time ) );
+    }
+
+    /**
+     * Check for ClassLoaders that have not been collected within specified
+     * delay of their application being undeployed. If collect is true and
+     * any are found then a garbage collection is requested before they are
+     * reported. Otherwise a ClassLoader may be reported only because the
+     * virtual machine has not yet needed to collect it. Each leaked
+     * ClassLoader is only reported once.
+     *
+     * @param now the current time
+     * @param delay the time ClassLoaders are given to be collected
+     * @param collect true to request a garbage collection before reporting
+     * @return the ClassLoaders that leaked since the last check
+     */
+    Leak[] check( final long now, final long delay, final boolean collect )
+    {
+        if( collect && isDue( now, delay ) )
+        {
+            System.gc();
+        }
+        return report( now, delay );
+    }
+
+    private synchronized Leak[] report( final long now, final long delay )
+    {
+        poll();
+
+        final List leaks = new ArrayList();
+        final Iterator iterator = m_entries.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry mapEntry = (Map.Entry)iterator.next();
+            final Reference reference = (Reference)mapEntry.getKey();
+            final Entry entry = (Entry)mapEntry.getValue();
+            if( entry.m_leaked || now - entry.m_time < delay )
+            {
+                continue;
+            }
+            final ClassLoader classLoader = (ClassLoader)reference.get();
+            if( null == classLoader )
+            {
+                //Cleared but not yet enqueued
+                continue;
+            }
+            entry.m_leaked = true;
+            leaks.add( new Leak( entry.m_application,
+                                 entry.m_name,
+                                 now - entry.m_time,
+                                 getReferrers( classLoader ) ) );
+        }
+        return (Leak[])leaks.toArray( new Leak[ leaks.size() ] );
+    }
+
+    /**
+     * Return the number of tracked ClassLoaders that have not been
+     * collected.
+     *
+     * @return the number of ClassLoaders
+     */
+    synchronized int getPendingCount()
+    {
+        poll();
+        return m_entries.size();
+    }
+
+    /**
+     * Return the number of ClassLoaders that have been reported as leaked
+     * and have still not been collected.
+     *
+     * @return the number of leaked ClassLoaders
+     */
+    synchronized int getLeakedCount()
+    {
+        return getLeaked().length;
+    }
+
+    /**
+     * Return the number of tracked ClassLoaders that have been collected.
+     *
+     * @return the number of collected ClassLoaders
+     */
+    synchronized long getCollectedCount()
+    {
+        poll();
+        return m_collected;
+    }
+
+    /**
+     * Return the application and name of each ClassLoader that has been
+     * reported as leaked and has still not been collected.
+     *
+     * @return the application and name of each leaked ClassLoader
+     */
+    synchronized String[] getLeaked()
+    {
+        poll();
+        final List leaked = new ArrayList();
+        final Iterator iterator = m_entries.values().iterator();
+        while( iterator.hasNext() )
+        {
+            final Entry entry = (Entry)iterator.next();
+            if( entry.m_leaked )
+            {
+                leaked.add( entry.m_application + "/" + entry.m_name );
+            }
+        }
+        return (String[])leaked.toArray( new String[ leaked.size() ] );
+    }
+
+    private synchronized boolean isDue( final long now, final long delay )
+    {
+        poll();
+        final Iterator iterator = m_entries.values().iterator();
+        while( iterator.hasNext() )
+        {
+            final Entry entry = (Entry)iterator.next();
+            if( !entry.m_leaked && now - entry.m_time >= delay )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the entries of ClassLoaders that have been collected.
+     */
+    private void poll()
+    {
+        Reference reference = m_queue.poll();
+        while( null != reference )
+        {
+            if( null != m_entries.remove( reference ) )
+            {
+                m_collected++;
+            }
+            reference = m_queue.poll();
+        }
+    }
+
+    /**
+     * Reset the context ClassLoader of each thread whose context
+     * ClassLoader is specified ClassLoader or one of its descendants.
+     * Threads that were created by the application are left alone.
+     *
+     * @param classLoader the ClassLoader
+     * @param replacement the ClassLoader to make the context ClassLoader
+     * @return the number of threads that were reset
+     */
+    static int clearContextClassLoaders( final ClassLoader classLoader,
+                                         final ClassLoader replacement )
+    {
+        int count = 0;
+        final Thread[] threads = getThreads();
+        for( int i = 0; i < threads.length; i++ )
+        {
+            final Thread thread = threads[ i ];
+            if( !isLoadedBy( thread.getClass(), classLoader ) &&
+                isDescendant( thread.getContextClassLoader(), classLoader ) )
+            {
+                thread.setContextClassLoader( replacement );
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Describe the likely reasons that specified ClassLoader is still
+     * reachable.
+     *
+     * @param classLoader the ClassLoader
+     * @return the description of each reason
+     */
+    static String[] getReferrers( final ClassLoader classLoader )
+    {
+        final List referrers = new ArrayList();
+        final Thread[] threads = getThreads();
+        for( int i = 0; i < threads.length; i++ )
+        {
+            final Thread thread = threads[ i ];
+            final String name = "\"" + thread.getName() + "\"";
+            if( isLoadedBy( thread.getClass(), classLoader ) )
+            {
+                referrers.add( "thread " + name + " of application" );
+            }
+            else if( isDescendant( thread.getContextClassLoader(),
+                                   classLoader ) )
+            {
+                referrers.add( "context ClassLoader of thread " + name );
+            }
+            if( hasThreadLocal( thread, classLoader ) )
+            {
+                referrers.add( "thread local of thread " + name );
+            }
+        }
+        return (String[])referrers.toArray( new String[ referrers.size() ] );
+    }
+
+    /**
+     * Return true if the thread locals of threads could be inspected
+     * when looking for referrers. If they could not then leaks held by
+     * thread locals are not reported.
+     *
+     * @return false if thread locals could not be inspected
+     */
+    static boolean canInspectThreadLocals()
+    {
+        return !c_threadLocalsHidden;
+    }
+
+    /**
+     * Return true if specified thread has a thread local whose key or
+     * value was loaded by ClassLoader. The thread locals can not be
+     * inspected on all virtual machines in which case false is returned
+     * and {@link #canInspectThreadLocals()} returns false.
+     */
+    private static boolean hasThreadLocal( final Thread thread,
+                                           final ClassLoader classLoader )
+    {
+        try
+        {
+            final Object map = getField( thread, Thread.class, "threadLocals" );
+            if( null == map )
+            {
+                return false;
+            }
+            final Object[] table =
+                (Object[])getField( map, map.getClass(), "table" );
+            for( int i = 0; i < table.length; i++ )
+            {
+                final Reference entry = (Reference)table[ i ];
+                if( null == entry )
+                {
+                    continue;
+                }
+                final Object key = entry.get();
+                final Object value =
+                    getField( entry, entry.getClass(), "value" );
+                if( isReferenced( key, classLoader ) ||
+                    isReferenced( value, classLoader ) )
+                {
+                    return true;
+                }
+            }
+        }
+        catch( final Exception e )
+        {
+            //The thread locals can not be inspected
+            c_threadLocalsHidden = true;
+        }
+        return false;
+    }
+
+    private static Object getField( final Object object,
+                                    final Class type,
+                                    final String name )
+        throws Exception
+    {
+        final Field field = type.getDeclaredField( name );
+        field.setAccessible( true );
+        return field.get( object );
+    }
+
+    private static boolean isReferenced( final Object object,
+                                         final ClassLoader classLoader )
+    {
+        if( null == object )
+        {
+            return false;
+        }
+        else if( object instanceof ClassLoader )
+        {
+            return isDescendant( (ClassLoader)object, classLoader );
+        }
+        else if( object instanceof Class )
+        {
+            return isLoadedBy( (Class)object, classLoader );
+        }
+        else
+        {
+            return isLoadedBy( object.getClass(), classLoader );
+        }
+    }
+
+    private static boolean isLoadedBy( final Class clazz,
+                                       final ClassLoader classLoader )
+    {
+        return isDescendant( clazz.getClassLoader(), classLoader );
+    }
+
+    /**
+     * Return true if candidate is specified ClassLoader or one of its
+     * descendants.
+     */
+    static boolean isDescendant( final ClassLoader candidate,
+                                 final ClassLoader classLoader )
+    {
+        ClassLoader current = candidate;
+        while( null != current )
+        {
+            if( current == classLoader )
+            {
+                return true;
+            }
+            current = current.getParent();
+        }
+        return false;
+    }
+
+    /**
+     * Return all the live threads in virtual machine.
+     */
+    private static Thread[] getThreads()
+    {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        while( null != group.getParent() )
+        {
+            group = group.getParent();
+        }
+        Thread[] threads = new Thread[ group.activeCount() + 16 ];
+        int count = group.enumerate( threads, true );
+        while( count == threads.length )
+        {
+            threads = new Thread[ threads.length * 2 ];
+            count = group.enumerate( threads, true );
+        }
+        final Thread[] result = new Thread[ count ];
+        System.arraycopy( threads, 0, result, 0, count );
+        return result;
+    }
+
+    /**
+     * A ClassLoader that was not collected within the delay.
+     */
+    static final class Leak
+    {
+        private final String m_application;
+        private final String m_name;
+        private final long m_age;
+        private final String[] m_referrers;
+
+        Leak( final String application,
+              final String name,
+              final long age,
+              final String[] referrers )
+        {
+            m_application = application;
+            m_name = name;
+            m_age = age;
+            m_referrers = referrers;
+        }
+
+        String getApplication()
+        {
+            return m_application;
+        }
+
+        String getName()
+        {
+            return m_name;
+        }
+
+        /**
+         * Return the time since the application was undeployed.
+         */
+        long getAge()
+        {
+            return m_age;
+        }
+
+        /**
+         * Return the likely reasons the ClassLoader is still reachable.
+         */
+        String[] getReferrers()
+        {
+            return m_referrers;
+        }
+    }
+
+    private static final class Entry
+    {
+        final String m_application;
+        final String m_name;
+        final long m_time;
+        boolean m_leaked;
+
+        Entry( final String application,
+               final String name,
+               final long time )
+        {
+            m_application = application;
+            m_name = name;
+            m_time = time;
+        }
+    }
+}
@@ -89,18 +89,25 @@ package org.codehaus.loom.components.deployer;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.avalon.phoenix.BlockContext;
 
 import org.codehaus.loom.components.util.ConfigurationBuilder;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
 import org.codehaus.loom.components.util.profile.ComponentProfile;
 import org.codehaus.loom.components.util.profile.PartitionProfile;
 import org.codehaus.loom.components.util.profile.ProfileBuilder;
 import org.codehaus.loom.components.util.verifier.SarVerifier;
+import org.codehaus.loom.interfaces.Application;
 import org.codehaus.loom.interfaces.ClassLoaderManager;
 import org.codehaus.loom.interfaces.ClassLoaderSet;
 import org.codehaus.loom.interfaces.ConfigurationInterceptor;
@@ -117,23 +124,38 @@ import org.codehaus.spice.salt.i18n.Resources;
 import org.codehaus.dna.AbstractLogEnabled;
 import org.codehaus.dna.Active;
 import org.codehaus.dna.Composable;
+import org.codehaus.dna.Configurable;
 import org.codehaus.dna.Configuration;
 import org.codehaus.dna.ConfigurationException;
 import org.codehaus.dna.MissingResourceException;
 import org.codehaus.dna.ResourceLocator;
+import org.codehaus.dna.impl.ConfigurationUtil;
 import org.codehaus.dna.impl.DefaultConfiguration;
 import org.xml.sax.InputSource;
 
 /**
  * Deploy .sar files into a kernel using this class.
  *
+ * <p>The ClassLoaders of undeployed applications are tracked until they
+ * are garbage collected. Any that are still reachable after a delay are
+ * reported along with the threads that appear to be holding on to
+ * them.</p>
+ *
+ * <p>Applications with different names may be deployed at the same time.
+ * The name of an application is reserved while it is deployed, redeployed,
+ * reconfigured or undeployed so that only one thread works on it. The
+ * verifier, installer and configuration validator are shared by all
+ * deployments and are safe to use from several threads for different
+ * applications. The i18n cache of ResourceManager is shared by the whole
+ * JVM so it is only cleared when an application is undeployed.</p>
+ *
  * @author Peter Donald
  * @dna.component
  * @mx.component
  */
 public class DefaultDeployer
     extends AbstractLogEnabled
-    implements Deployer, Composable, Active
+    implements Deployer, Composable, Configurable, Active
 {
     private static final Resources REZ =
         ResourceManager.getPackageResources( DefaultDeployer.class );
@@ -141,6 +163,19 @@ public class DefaultDeployer
     private final SarVerifier m_verifier = new SarVerifier();
     private final ProfileBuilder m_builder = new PhoenixProfileBuilder();
     private final Map m_installations = new Hashtable();
+
+    /**
+     * The names of applications that are currently being deployed,
+     * redeployed, reconfigured or undeployed. Guarded by the lock on
+     * m_installations.
+     */
+    private final Set m_deploying = new HashSet();
+
+    /**
+     * Map from name of application to the {@link Deployment} describing
+     * what it was deployed with.
+     */
+    private final Map m_deployments = new Hashtable();
     private LogManager m_logManager;
     private Kernel m_kernel;
     private Installer m_installer;
@@ -148,6 +183,41 @@ public class DefaultDeployer
     private ClassLoaderManager m_classLoaderManager;
     private ConfigurationValidator m_validator;
 
+    /**
+     * The ClassLoaders of undeployed applications that have not been
+     * collected.
+     */
+    private final ClassLoaderTracker m_tracker = new ClassLoaderTracker();
+
+    /**
+     * The time in milliseconds that the ClassLoaders of an undeployed
+     * application are given to be collected or 0 if they are not tracked.
+     */
+    private long m_leakDelay;
+
+    /**
+     * True if threads should stop using the ClassLoaders of an undeployed
+     * application as their context ClassLoader.
+     */
+    private boolean m_clearContextClassLoaders;
+
+    /**
+     * True if a garbage collection is requested before ClassLoaders are
+     * reported as leaked.
+     */
+    private boolean m_leakCollect;
+
+    /**
+     * True once it has been reported that thread locals can not be
+     * inspected for references to leaked ClassLoaders.
+     */
+    private boolean m_threadLocalsReported;
+
+    /**
+     * The thread that periodically checks for leaked ClassLoaders.
+     */
+    private Thread m_leakChecker;
+
     /**
      * @dna.dependency type="Kernel"
      * @dna.dependency type="ConfigurationInterceptor"
@@ -171,11 +241,59 @@ public class DefaultDeployer
         m_installer = (Installer)locator.lookup( Installer.class.getName() );
     }
 
+    public void configure( final Configuration configuration )
+        throws ConfigurationException
+    {
+        final int leakDelay = configuration.getChild( "classloader-leak-delay" )
+            .getValueAsInteger( 60 );
+        if( leakDelay < 0 )
+        {
+            final String message =
+                REZ.format( "deploy.bad-leak-delay.error",
+                            new Integer( leakDelay ) );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+        m_leakDelay = leakDelay * 1000L;
+        m_leakCollect =
+            configuration.getChild( "classloader-leak-gc" )
+            .getValueAsBoolean( false );
+        m_clearContextClassLoaders =
+            configuration.getChild( "clear-context-classloaders" )
+            .getValueAsBoolean( false );
+    }
+
     public void initialize()
         throws Exception
     {
         setupLogger( m_verifier );
         setupLogger( m_builder );
+
+        if( 0 != m_leakDelay )
+        {
+            final long interval = Math.max( 1000, m_leakDelay / 2 );
+            m_leakChecker = new Thread( "loom-leak-checker" )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        while( true )
+                        {
+                            Thread.sleep( interval );
+                            checkClassLoaders();
+                        }
+                    }
+                    catch( final InterruptedException ie )
+                    {
+                        //Deployer disposed
+                    }
+                }
+            };
+            m_leakChecker.setDaemon( true );
+            m_leakChecker.start();
+        }
     }
 
     /**
@@ -202,6 +320,92 @@ public class DefaultDeployer
                 getLogger().error( message, de );
             }
         }
+
+        if( null != m_leakChecker )
+        {
+            m_leakChecker.interrupt();
+            m_leakChecker = null;
+        }
+    }
+
+    /**
+     * Report the ClassLoaders of undeployed applications that have not
+     * been collected within the delay.
+     *
+     * @mx.operation description="Report the ClassLoaders of undeployed
+     * applications that have not been collected."
+     */
+    public void checkClassLoaders()
+    {
+        final ClassLoaderTracker.Leak[] leaks =
+            m_tracker.check( System.currentTimeMillis(),
+                             m_leakDelay,
+                             m_leakCollect );
+        for( int i = 0; i < leaks.length; i++ )
+        {
+            final ClassLoaderTracker.Leak leak = leaks[ i ];
+            final String[] referrers = leak.getReferrers();
+            final String roots;
+            if( 0 == referrers.length )
+            {
+                roots = REZ.getString( "deploy.classloader-leak.unknown" );
+            }
+            else
+            {
+                roots = Arrays.asList( referrers ).toString();
+            }
+            final String message =
+                REZ.format( "deploy.classloader-leak.warning",
+                            leak.getApplication(),
+                            leak.getName(),
+                            new Long( leak.getAge() / 1000 ),
+                            roots );
+            getLogger().warn( message );
+        }
+        if( 0 != leaks.length && !m_threadLocalsReported &&
+            !ClassLoaderTracker.canInspectThreadLocals() )
+        {
+            m_threadLocalsReported = true;
+            final String message =
+                REZ.getString( "deploy.classloader-leak.no-thread-locals" );
+            getLogger().warn( message );
+        }
+    }
+
+    /**
+     * @mx.attribute description="the number of ClassLoaders of undeployed
+     * applications that have not been collected"
+     */
+    public int getUncollectedClassLoaderCount()
+    {
+        return m_tracker.getPendingCount();
+    }
+
+    /**
+     * @mx.attribute description="the number of ClassLoaders of undeployed
+     * applications that have been collected"
+     */
+    public long getCollectedClassLoaderCount()
+    {
+        return m_tracker.getCollectedCount();
+    }
+
+    /**
+     * @mx.attribute description="the number of ClassLoaders reported as
+     * leaked that have not been collected"
+     */
+    public int getLeakedClassLoaderCount()
+    {
+        return m_tracker.getLeakedCount();
+    }
+
+    /**
+     * @mx.attribute description="the application and name of each
+     * ClassLoader reported as leaked that has not been collected"
+     */
+    public String[] getLeakedClassLoaders()
+    {
+        return m_tracker.getLeaked();
     }
 
     /**
@@ -237,7 +441,11 @@ public class DefaultDeployer
     }
 
     /**
-     * Undeploy and deploy an installation.
+     * Redeploy an installation. If the code of application and the
+     * environment it is loaded in are unchanged then only the blocks whose
+     * profile changed are replaced, along with the blocks that depend upon
+     * them, and the other blocks keep running. Otherwise the installation
+     * is undeployed and deployed again.
      *
      * @param name     the name of deployment
      * @param location the installation to redeploy
@@ -250,8 +458,15 @@ public class DefaultDeployer
         m_kernel.lock();
         try
         {
-            undeploy( name );
-            deploy( name, location );
+            reserveDeployed( name );
+            try
+            {
+                doRedeploy( name, location );
+            }
+            finally
+            {
+                release( name );
+            }
         }
         catch( final Exception e )
         {
@@ -263,6 +478,158 @@ public class DefaultDeployer
         }
     }
 
+    /**
+     * Actually redeploy an installation. The kernel is locked and the name
+     * of application reserved by caller.
+     *
+     * @param name the name of deployment
+     * @param location the installation to redeploy
+     * @throws Exception if an error occurs
+     */
+    private void doRedeploy( final String name, final URL location )
+        throws Exception
+    {
+        final Map installation = m_installer.install( name, location );
+        boolean deployed = false;
+        try
+        {
+            if( !replaceChangedBlocks( name, installation ) )
+            {
+                doUndeploy( name );
+
+                //From here the installation is uninstalled on failure
+                deployed = true;
+                doDeploy( name, installation );
+            }
+        }
+        finally
+        {
+            if( !deployed )
+            {
+                //The running application keeps its previous installation
+                uninstall( installation );
+            }
+        }
+    }
+
+    /**
+     * Replace the blocks of a running application whose profile differs in
+     * specified installation. This is only possible if the code of the
+     * running application and its environment are the same in installation
+     * and the only difference is in the assembly or configuration of
+     * blocks.
+     *
+     * @param name the name of deployment
+     * @param installation the new installation
+     * @return true if blocks were replaced or false if the application must
+     * be redeployed, including when the blocks could not be replaced
+     * @throws Exception if an error occurs
+     */
+    private boolean replaceChangedBlocks( final String name,
+                                          final Map installation )
+        throws Exception
+    {
+        final Map previous = (Map)m_installations.get( name );
+        final Deployment deployment = (Deployment)m_deployments.get( name );
+        final Object digest =
+            installation.get( ContainerConstants.INSTALL_CODE_DIGEST );
+        if( null == previous || null == deployment || null == digest ||
+            !digest.equals(
+                previous.get( ContainerConstants.INSTALL_CODE_DIGEST ) ) )
+        {
+            final String message =
+                REZ.format( "deploy.redeploy.code-changed.notice", name );
+            getLogger().info( message );
+            return false;
+        }
+
+        final Configuration config =
+            getConfigurationFor( installation,
+                                 ContainerConstants.INSTALL_CONFIG,
+                                 null );
+        final Configuration assembly =
+            getConfigurationFor( installation,
+                                 ContainerConstants.INSTALL_ASSEMBLY,
+                                 ConfigurationBuilder.ASSEMBLY_SCHEMA );
+        final ClassLoader classLoader = deployment.getClassLoader();
+        final Configuration newConfig = processConfiguration( name, config );
+        final PartitionProfile profile =
+            buildProfile( name,
+                          assembly,
+                          newConfig,
+                          classLoader,
+                          installation );
+        m_verifier.verifySar( profile, classLoader );
+        verifyConfiguration( profile, newConfig );
+        validateConfiguration( profile, classLoader );
+
+        final ComponentProfile[] blocks =
+            ProfileDiff.getChangedBlocks( deployment.getProfile(), profile );
+        if( null == blocks )
+        {
+            final String message =
+                REZ.format( "deploy.redeploy.structure-changed.notice",
+                            name );
+            getLogger().info( message );
+            return false;
+        }
+
+        if( 0 != blocks.length )
+        {
+            try
+            {
+                m_kernel.getApplication( name ).replaceBlocks( blocks );
+            }
+            catch( final Exception e )
+            {
+                final String message =
+                    REZ.format( "deploy.redeploy.replace-failed.warning",
+                                name,
+                                e.getMessage() );
+                getLogger().warn( message, e );
+                return false;
+            }
+        }
+
+        //The application keeps running from its previous installation
+        //but is redeployed from the new source in future
+        final Map updated = new HashMap( previous );
+        updated.put( ContainerConstants.INSTALL_SOURCE,
+                     installation.get( ContainerConstants.INSTALL_SOURCE ) );
+        m_installations.put( name, updated );
+        m_deployments.put( name,
+                           new Deployment( profile,
+                                           deployment.getClassLoaderSet(),
+                                           newConfig ) );
+
+        final List names = new ArrayList();
+        for( int i = 0; i < blocks.length; i++ )
+        {
+            names.add( blocks[ i ].getTemplate().getName() );
+        }
+        final String message =
+            REZ.format( "deploy.notice.blocks-replaced", name, names );
+        getLogger().info( message );
+        return true;
+    }
+
+    /**
+     * Uninstall an installation that is not in use, logging any error.
+     *
+     * @param installation the installation
+     */
+    private void uninstall( final Map installation )
+    {
+        try
+        {
+            m_installer.uninstall( installation );
+        }
+        catch( final LoomException ie )
+        {
+            getLogger().error( ie.getMessage(), ie );
+        }
+    }
+
     /**
      * @throws LoomException if an error occurs
      * @mx.operation description="Undeploy an installation."
@@ -270,9 +637,31 @@ public class DefaultDeployer
      */
     public void undeploy( final String name )
         throws LoomException
+    {
+        reserveDeployed( name );
+        try
+        {
+            doUndeploy( name );
+        }
+        finally
+        {
+            release( name );
+        }
+    }
+
+    /**
+     * Actually undeploy an installation. The name of application is
+     * reserved by caller.
+     *
+     * @param name the name of deployment
+     * @throws LoomException if an error occurs
+     */
+    private void doUndeploy( final String name )
+        throws LoomException
     {
         final Map installation =
             (Map)m_installations.remove( name );
+        final Deployment deployment = (Deployment)m_deployments.remove( name );
         if( null == installation )
         {
             final String message =
@@ -288,6 +677,245 @@ public class DefaultDeployer
         {
             throw new LoomException( e.getMessage(), e );
         }
+        finally
+        {
+            if( null != deployment )
+            {
+                m_classLoaderManager.releaseClassLoaderSet(
+                    deployment.getClassLoaderSet() );
+            }
+
+            /*
+             * Clear all the resources out of ResourceManager cache
+             * so that reloaded applications will have their i18n bundles
+             * reloaded. This is not done on every deploy as applications
+             * that are being deployed concurrently would keep discarding
+             * each others bundles.
+             */
+            ResourceManager.clearResourceCache();
+        }
+        if( null != deployment )
+        {
+            trackClassLoaders( name, deployment.getClassLoaderSet() );
+        }
+    }
+
+    /**
+     * Track the ClassLoaders of an undeployed application until they are
+     * collected. The predefined ClassLoaders shared with the container are
+     * not tracked.
+     *
+     * @param name the name of application
+     * @param classLoaderSet the ClassLoaders of application
+     */
+    private void trackClassLoaders( final String name,
+                                    final ClassLoaderSet classLoaderSet )
+    {
+        if( 0 == m_leakDelay )
+        {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final ClassLoader container = getClass().getClassLoader();
+        final ClassLoader system = ClassLoader.getSystemClassLoader();
+        final Iterator iterator =
+            classLoaderSet.getClassLoaders().entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final String loaderName = (String)entry.getKey();
+            final ClassLoader classLoader = (ClassLoader)entry.getValue();
+            if( loaderName.startsWith( "*" ) ||
+                ClassLoaderTracker.isDescendant( container, classLoader ) ||
+                ClassLoaderTracker.isDescendant( system, classLoader ) )
+            {
+                continue;
+            }
+            m_tracker.track( name, loaderName, classLoader, now );
+
+            if( m_clearContextClassLoaders )
+            {
+                final int count =
+                    ClassLoaderTracker.clearContextClassLoaders( classLoader,
+                                                                 container );
+                if( 0 != count )
+                {
+                    final String message =
+                        REZ.format(
+                            "deploy.context-classloaders-cleared.notice",
+                            name,
+                            loaderName,
+                            new Integer( count ) );
+                    getLogger().info( message );
+                }
+            }
+        }
+    }
+
+    /**
+     * Reload the configuration of an installation and apply it to the
+     * blocks whose configuration changed. If the configuration of a
+     * listener changed then the installation is redeployed.
+     *
+     * @throws LoomException if an error occurs
+     * @mx.operation description="Reload the configuration of an installation."
+     * @mx.parameter name="name" description="the name of deployment"
+     */
+    public void reconfigure( final String name )
+        throws LoomException
+    {
+        m_kernel.lock();
+        try
+        {
+            reserveDeployed( name );
+            try
+            {
+                doReconfigure( name );
+            }
+            finally
+            {
+                release( name );
+            }
+        }
+        finally
+        {
+            m_kernel.unlock();
+        }
+    }
+
+    /**
+     * Actually reconfigure an installation. The kernel is locked and the
+     * name of application reserved by caller.
+     *
+     * @param name the name of deployment
+     * @throws LoomException if an error occurs
+     */
+    private void doReconfigure( final String name )
+        throws LoomException
+    {
+        final Map installation = (Map)m_installations.get( name );
+        final Deployment deployment = (Deployment)m_deployments.get( name );
+        if( null == installation || null == deployment )
+        {
+            final String message =
+                REZ.format( "deploy.no-deployment.error", name );
+            throw new LoomException( message );
+        }
+
+        final Configuration config =
+            getConfigurationFor( installation,
+                                 ContainerConstants.INSTALL_CONFIG,
+                                 null );
+        final Configuration newConfig = processConfiguration( name, config );
+        final Configuration oldConfig = deployment.getConfiguration();
+        final PartitionProfile profile = deployment.getProfile();
+        verifyConfiguration( profile, newConfig );
+
+        //Listeners can not be restarted independently of application
+        final ComponentProfile[] listeners =
+            profile.getPartition( ContainerConstants.LISTENER_PARTITION )
+            .getComponents();
+        for( int i = 0; i < listeners.length; i++ )
+        {
+            final String listener = listeners[ i ].getTemplate().getName();
+            if( isChanged( listener, oldConfig, newConfig ) )
+            {
+                final String message =
+                    REZ.format( "deploy.reconfigure.redeploy.notice",
+                                name,
+                                listener );
+                getLogger().info( message );
+                redeploySource( name, installation );
+                return;
+            }
+        }
+
+        final ComponentProfile[] blocks =
+            profile.getPartition( ContainerConstants.BLOCK_PARTITION )
+            .getComponents();
+        final Map configurations = new HashMap();
+        final Map templates = new HashMap();
+        for( int i = 0; i < blocks.length; i++ )
+        {
+            final ComponentTemplate template = blocks[ i ].getTemplate();
+            final String block = template.getName();
+            if( isChanged( block, oldConfig, newConfig ) )
+            {
+                final Configuration configuration = newConfig.getChild( block );
+                final ComponentTemplate newTemplate =
+                    new ComponentTemplate( block,
+                                           template.getImplementationKey(),
+                                           template.getDependencies(),
+                                           template.getParameters(),
+                                           configuration,
+                                           template.isDisableProxy() );
+                validateComponent(
+                    new ComponentProfile( blocks[ i ].getInfo(), newTemplate ),
+                    deployment.getClassLoader() );
+                configurations.put( block, configuration );
+                templates.put( block, newTemplate );
+            }
+        }
+
+        if( !configurations.isEmpty() )
+        {
+            final Application application = m_kernel.getApplication( name );
+            try
+            {
+                application.reconfigure( configurations );
+            }
+            catch( final Exception e )
+            {
+                //The application returns to its previous configuration but
+                //is redeployed in case a block could not be restarted
+                final String message =
+                    REZ.format( "deploy.reconfigure.failed.warning",
+                                name,
+                                e.getMessage() );
+                getLogger().warn( message, e );
+                redeploySource( name, installation );
+                return;
+            }
+        }
+
+        //Later redeploys compare against the configuration now in use
+        m_deployments.put( name,
+                           new Deployment( replaceBlocks( profile, templates ),
+                                           deployment.getClassLoaderSet(),
+                                           newConfig ) );
+
+        final String message =
+            REZ.format( "deploy.notice.reconfigured",
+                        name,
+                        configurations.keySet() );
+        getLogger().info( message );
+    }
+
+    /**
+     * Redeploy an application from the source of its installation. The
+     * kernel is locked and the name of application reserved by caller.
+     *
+     * @param name the name of deployment
+     * @param installation the installation of application
+     * @throws LoomException if an error occurs
+     */
+    private void redeploySource( final String name, final Map installation )
+        throws LoomException
+    {
+        final File source =
+            (File)installation.get( ContainerConstants.INSTALL_SOURCE );
+        try
+        {
+            doRedeploy( name, source.toURL() );
+        }
+        catch( final LoomException le )
+        {
+            throw le;
+        }
+        catch( final Exception e )
+        {
+            throw new LoomException( e.getMessage(), e );
+        }
     }
 
     /**
@@ -318,28 +946,101 @@ public class DefaultDeployer
     public void deploy( final String name, final URL location )
         throws LoomException
     {
-        if( m_installations.containsKey( name ) )
+        reserve( name );
+        try
         {
-            final String message =
-                REZ.format( "deploy.already-deployed.error",
-                            name );
-            throw new LoomException( message );
+            doDeploy( name, m_installer.install( name, location ) );
+        }
+        finally
+        {
+            release( name );
+        }
+    }
+
+    /**
+     * Reserve the name so that the same application can not be deployed
+     * twice by concurrent callers.
+     *
+     * @param name the name of deployment
+     * @throws LoomException if application is deployed or being deployed
+     */
+    private void reserve( final String name )
+        throws LoomException
+    {
+        synchronized( m_installations )
+        {
+            if( m_installations.containsKey( name ) ||
+                m_deploying.contains( name ) )
+            {
+                final String message =
+                    REZ.format( "deploy.already-deployed.error",
+                                name );
+                throw new LoomException( message );
+            }
+            m_deploying.add( name );
         }
+    }
+
+    /**
+     * Reserve the name of a deployed application so that concurrent callers
+     * can not change the application while the caller does.
+     *
+     * @param name the name of deployment
+     * @throws LoomException if application is not deployed or is being
+     * changed by another caller
+     */
+    private void reserveDeployed( final String name )
+        throws LoomException
+    {
+        synchronized( m_installations )
+        {
+            if( !m_installations.containsKey( name ) )
+            {
+                final String message =
+                    REZ.format( "deploy.no-deployment.error", name );
+                throw new LoomException( message );
+            }
+            if( m_deploying.contains( name ) )
+            {
+                final String message =
+                    REZ.format( "deploy.busy.error", name );
+                throw new LoomException( message );
+            }
+            m_deploying.add( name );
+        }
+    }
 
-        /*
-         * Clear all the reosurces out of ResourceManager cache
-         * so that reloaded applications will have their i18n bundles
-         * reloaded.
-         */
-        ResourceManager.clearResourceCache();
+    /**
+     * Release a name reserved by {@link #reserve} or
+     * {@link #reserveDeployed}.
+     *
+     * @param name the name of deployment
+     */
+    private void release( final String name )
+    {
+        synchronized( m_installations )
+        {
+            m_deploying.remove( name );
+        }
+    }
 
-        Map installation = null;
+    /**
+     * Actually deploy the application. By the time this method is called
+     * the name of application has been reserved by the calling thread.
+     * The installation is uninstalled if the application can not be
+     * deployed.
+     *
+     * @param name the name of deployment
+     * @param installation the installation to deploy
+     * @throws LoomException if an error occurs
+     */
+    private void doDeploy( final String name, final Map installation )
+        throws LoomException
+    {
         boolean success = false;
+        ClassLoaderSet classLoaderSet = null;
         try
         {
-            //m_baseWorkDirectory
-            installation = m_installer.install( name, location );
-
             final Configuration config =
                 getConfigurationFor( installation,
                                      ContainerConstants.INSTALL_CONFIG,
@@ -357,6 +1058,10 @@ public class DefaultDeployer
                 (File)installation.get( ContainerConstants.INSTALL_HOME );
             final File workDirectory =
                 (File)installation.get( ContainerConstants.INSTALL_WORK );
+            final File codeDirectory =
+                getCodeDirectory( installation, workDirectory );
+            final File archive =
+                (File)installation.get( ContainerConstants.INSTALL_ARCHIVE );
 
             final Map data = new HashMap();
             data.put( BlockContext.APP_NAME, name );
@@ -373,11 +1078,12 @@ public class DefaultDeployer
                                               workDirectory,
                                               data );
 
-            final ClassLoaderSet classLoaderSet =
+            classLoaderSet =
                 m_classLoaderManager.createClassLoaderSet( environment,
                                                            data,
                                                            homeDirectory,
-                                                           workDirectory );
+                                                           codeDirectory,
+                                                           archive );
 
             //TODO: Add classLoaderSet to application resources
 
@@ -387,16 +1093,13 @@ public class DefaultDeployer
             final Configuration newConfig =
                 processConfiguration( name, config );
 
-            final Map parameters = new HashMap();
-            parameters.put( ContainerConstants.ASSEMBLY_NAME, name );
-            parameters.put( ContainerConstants.ASSEMBLY_DESCRIPTOR, assembly );
-            parameters.put( ContainerConstants.CONFIG_DESCRIPTOR, newConfig );
-            parameters.put( ContainerConstants.ASSEMBLY_CLASSLOADER,
-                            classLoader );
-
             //assemble all the blocks for application
             final PartitionProfile profile =
-                m_builder.buildProfile( parameters );
+                buildProfile( name,
+                              assembly,
+                              newConfig,
+                              classLoader,
+                              installation );
 
             m_verifier.verifySar( profile, classLoader );
 
@@ -413,6 +1116,10 @@ public class DefaultDeployer
                                      store );
 
             m_installations.put( name, installation );
+            m_deployments.put( name,
+                               new Deployment( profile,
+                                               classLoaderSet,
+                                               newConfig ) );
 
             final String message =
                 REZ.format( "deploy.notice.sar.add",
@@ -431,20 +1138,77 @@ public class DefaultDeployer
         }
         finally
         {
-            if( !success && null != installation )
+            if( !success )
             {
-                try
-                {
-                    m_installer.uninstall( installation );
-                }
-                catch( final LoomException ie )
+                if( null != classLoaderSet )
                 {
-                    getLogger().error( ie.getMessage(), ie );
+                    m_classLoaderManager.releaseClassLoaderSet(
+                        classLoaderSet );
                 }
+                uninstall( installation );
             }
         }
     }
 
+    /**
+     * Assemble the profile of application.
+     *
+     * @param name the name of deployment
+     * @param assembly the assembly descriptor
+     * @param config the processed block configurations
+     * @param classLoader the classloader application is loaded in
+     * @param installation the install data
+     * @return the profile
+     * @throws Exception if an error occurs
+     */
+    private PartitionProfile buildProfile( final String name,
+                                           final Configuration assembly,
+                                           final Configuration config,
+                                           final ClassLoader classLoader,
+                                           final Map installation )
+        throws Exception
+    {
+        final Map parameters = new HashMap();
+        parameters.put( ContainerConstants.ASSEMBLY_NAME, name );
+        parameters.put( ContainerConstants.ASSEMBLY_DESCRIPTOR, assembly );
+        parameters.put( ContainerConstants.CONFIG_DESCRIPTOR, config );
+        parameters.put( ContainerConstants.ASSEMBLY_CLASSLOADER,
+                        classLoader );
+        final File infoCache =
+            (File)installation.get( ContainerConstants.INSTALL_INFO_CACHE );
+        if( null != infoCache )
+        {
+            parameters.put( ContainerConstants.ASSEMBLY_INFO_CACHE,
+                            infoCache );
+        }
+        return m_builder.buildProfile( parameters );
+    }
+
+    /**
+     * Helper method to get the directory containing the code of application.
+     * If the installer did not specify a separate code directory then the
+     * code is located in the work directory.
+     *
+     * @param install the install data
+     * @param workDirectory the work directory of application
+     *
+     * @return the code directory
+     */
+    private File getCodeDirectory( final Map install,
+                                   final File workDirectory )
+    {
+        final File codeDirectory =
+            (File)install.get( ContainerConstants.INSTALL_CODE );
+        if( null != codeDirectory )
+        {
+            return codeDirectory;
+        }
+        else
+        {
+            return workDirectory;
+        }
+    }
+
     /**
      * Helper method to load configuration data.
      *
@@ -568,25 +1332,134 @@ public class DefaultDeployer
         final ComponentProfile[] components = profile.getComponents();
         for( int i = 0; i < components.length; i++ )
         {
-            final ComponentProfile component = components[i];
-            boolean isValid = false;
-            try
-            {
-                isValid = m_validator.isValid( component, classLoader );
-            }
-            catch( final Exception e )
+            validateComponent( components[i], classLoader );
+        }
+    }
+
+    /**
+     * Verify that configuration conforms to schema for a component.
+     *
+     * @param component   the ComponentProfile
+     * @param classLoader the classloader application is loaded in
+     *
+     * @throws LoomException if an error occurs
+     */
+    private void validateComponent( final ComponentProfile component,
+                                    final ClassLoader classLoader )
+        throws LoomException
+    {
+        boolean isValid = false;
+        try
+        {
+            isValid = m_validator.isValid( component, classLoader );
+        }
+        catch( final Exception e )
+        {
+            getLogger().warn( e.getMessage(), e );
+        }
+        if( !isValid )
+        {
+            final String message =
+                "Unable to validate configuration of component " +
+                component.getTemplate().getName() +
+                " of type " +
+                component.getInfo().getType().getName();
+            throw new LoomException( message );
+        }
+    }
+
+    /**
+     * Return a copy of the profile of application in which blocks have
+     * the specified templates.
+     *
+     * @param profile the profile of application
+     * @param templates map from name of block to its new ComponentTemplate
+     * @return the new profile
+     */
+    private static PartitionProfile replaceBlocks(
+        final PartitionProfile profile,
+        final Map templates )
+    {
+        final PartitionProfile[] partitions = profile.getPartitions();
+        final PartitionProfile[] replaced =
+            new PartitionProfile[ partitions.length ];
+        for( int i = 0; i < partitions.length; i++ )
+        {
+            final PartitionProfile partition = partitions[ i ];
+            final String name = partition.getMetaData().getName();
+            if( !ContainerConstants.BLOCK_PARTITION.equals( name ) )
             {
-                getLogger().warn( e.getMessage(), e );
+                replaced[ i ] = partition;
+                continue;
             }
-            if( !isValid )
+            final ComponentProfile[] blocks = partition.getComponents();
+            final ComponentProfile[] updated =
+                new ComponentProfile[ blocks.length ];
+            for( int j = 0; j < blocks.length; j++ )
             {
-                final String message =
-                    "Unable to validate configuration of component " +
-                    component.getTemplate().getName() +
-                    " of type " +
-                    component.getInfo().getType().getName();
-                throw new LoomException( message );
+                final ComponentTemplate template = (ComponentTemplate)
+                    templates.get( blocks[ j ].getTemplate().getName() );
+                updated[ j ] = ( null == template ) ? blocks[ j ] :
+                    new ComponentProfile( blocks[ j ].getInfo(), template );
             }
+            replaced[ i ] = new PartitionProfile( partition.getMetaData(),
+                                                  partition.getPartitions(),
+                                                  updated );
+        }
+        return new PartitionProfile( profile.getMetaData(),
+                                     replaced,
+                                     profile.getComponents() );
+    }
+
+    /**
+     * Return true if the configuration of named component differs between
+     * the two sets of block configurations.
+     */
+    private boolean isChanged( final String name,
+                               final Configuration oldConfig,
+                               final Configuration newConfig )
+    {
+        return !ConfigurationUtil.equals( oldConfig.getChild( name ),
+                                          newConfig.getChild( name ) );
+    }
+
+    /**
+     * The state an application was deployed with that is needed to
+     * reconfigure it.
+     */
+    private static final class Deployment
+    {
+        private final PartitionProfile m_profile;
+        private final ClassLoaderSet m_classLoaderSet;
+        private final Configuration m_configuration;
+
+        Deployment( final PartitionProfile profile,
+                    final ClassLoaderSet classLoaderSet,
+                    final Configuration configuration )
+        {
+            m_profile = profile;
+            m_classLoaderSet = classLoaderSet;
+            m_configuration = configuration;
+        }
+
+        PartitionProfile getProfile()
+        {
+            return m_profile;
+        }
+
+        ClassLoader getClassLoader()
+        {
+            return m_classLoaderSet.getDefaultClassLoader();
+        }
+
+        ClassLoaderSet getClassLoaderSet()
+        {
+            return m_classLoaderSet;
+        }
+
+        Configuration getConfiguration()
+        {
+            return m_configuration;
         }
     }
 }
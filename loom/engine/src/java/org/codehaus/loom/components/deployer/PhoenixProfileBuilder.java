@@ -7,6 +7,7 @@
  */
 package org.codehaus.loom.components.deployer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Map;
 
@@ -41,7 +42,10 @@ public class PhoenixProfileBuilder extends AbstractLogEnabled
         final PartitionTemplate metaData = m_assembler.buildAssembly( parameters );
         final ClassLoader classLoader =
             (ClassLoader)parameters.get( ContainerConstants.ASSEMBLY_CLASSLOADER );
-        final ComponentFactory factory = new DefaultComponentFactory( classLoader, getLogger() );
+        final File infoCache =
+            (File)parameters.get( ContainerConstants.ASSEMBLY_INFO_CACHE );
+        final ComponentFactory factory =
+            new DefaultComponentFactory( classLoader, getLogger(), infoCache );
 
         return assembleSarProfile( metaData, factory, classLoader );
     }
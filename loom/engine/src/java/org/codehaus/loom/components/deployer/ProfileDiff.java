@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.avalon.framework.parameters.Parameters;
+import org.codehaus.dna.Configuration;
+import org.codehaus.dna.impl.ConfigurationUtil;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
+import org.codehaus.loom.components.util.metadata.DependencyDirective;
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+import org.codehaus.loom.components.util.profile.PartitionProfile;
+import org.codehaus.loom.interfaces.ContainerConstants;
+
+/**
+ * Utility class that compares the profiles of two versions of an
+ * application that are loaded by the same class loader to determine which
+ * blocks have to be replaced to move from one to the other.
+ *
+ * @author Peter Donald
+ */
+final class ProfileDiff
+{
+    private ProfileDiff()
+    {
+    }
+
+    /**
+     * Return the profiles of the blocks in current profile that differ from
+     * the blocks of the same name in previous profile. If the two versions
+     * do not have the same set of blocks or their listeners differ then the
+     * versions can not be reconciled by replacing blocks and null is
+     * returned.
+     *
+     * @param previous the profile of running version
+     * @param current the profile of new version
+     * @return the changed blocks or null if application must be redeployed
+     */
+    static ComponentProfile[] getChangedBlocks( final PartitionProfile previous,
+                                                final PartitionProfile current )
+    {
+        final ComponentProfile[] listeners =
+            getChanged( previous, current,
+                        ContainerConstants.LISTENER_PARTITION );
+        if( null == listeners || 0 != listeners.length )
+        {
+            return null;
+        }
+        return getChanged( previous, current,
+                           ContainerConstants.BLOCK_PARTITION );
+    }
+
+    /**
+     * Return the components of named partition that changed or null if the
+     * set of components changed.
+     */
+    private static ComponentProfile[] getChanged(
+        final PartitionProfile previous,
+        final PartitionProfile current,
+        final String partition )
+    {
+        final PartitionProfile before = previous.getPartition( partition );
+        final PartitionProfile after = current.getPartition( partition );
+        final ComponentProfile[] components = after.getComponents();
+        if( before.getComponents().length != components.length )
+        {
+            return null;
+        }
+
+        final List changed = new ArrayList();
+        for( int i = 0; i < components.length; i++ )
+        {
+            final ComponentTemplate template = components[ i ].getTemplate();
+            final ComponentProfile component =
+                before.getComponent( template.getName() );
+            if( null == component )
+            {
+                return null;
+            }
+            if( !isEquivalent( component.getTemplate(), template ) )
+            {
+                changed.add( components[ i ] );
+            }
+        }
+        return (ComponentProfile[])changed.
+            toArray( new ComponentProfile[ changed.size() ] );
+    }
+
+    /**
+     * Return true if the two templates will create identical components.
+     *
+     * @param template1 the first template
+     * @param template2 the second template
+     * @return true if the templates are equivalent
+     */
+    static boolean isEquivalent( final ComponentTemplate template1,
+                                 final ComponentTemplate template2 )
+    {
+        return template1.getName().equals( template2.getName() ) &&
+            template1.getImplementationKey().
+            equals( template2.getImplementationKey() ) &&
+            template1.isDisableProxy() == template2.isDisableProxy() &&
+            isEquivalent( template1.getDependencies(),
+                          template2.getDependencies() ) &&
+            isEquivalent( template1.getParameters(),
+                          template2.getParameters() ) &&
+            isEquivalent( template1.getConfiguration(),
+                          template2.getConfiguration() );
+    }
+
+    private static boolean isEquivalent( final DependencyDirective[] first,
+                                         final DependencyDirective[] second )
+    {
+        if( first.length != second.length )
+        {
+            return false;
+        }
+        for( int i = 0; i < first.length; i++ )
+        {
+            final DependencyDirective dependency1 = first[ i ];
+            final DependencyDirective dependency2 = second[ i ];
+            if( !dependency1.getKey().equals( dependency2.getKey() ) ||
+                !dependency1.getProviderName().
+                equals( dependency2.getProviderName() ) ||
+                !dependency1.getAlias().equals( dependency2.getAlias() ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEquivalent( final Parameters parameters1,
+                                         final Parameters parameters2 )
+    {
+        if( null == parameters1 || null == parameters2 )
+        {
+            return parameters1 == parameters2;
+        }
+        final String[] names = parameters1.getNames();
+        if( names.length != parameters2.getNames().length )
+        {
+            return false;
+        }
+        for( int i = 0; i < names.length; i++ )
+        {
+            final String value = parameters1.getParameter( names[ i ], null );
+            if( !value.equals( parameters2.getParameter( names[ i ], null ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isEquivalent( final Configuration configuration1,
+                                         final Configuration configuration2 )
+    {
+        if( null == configuration1 || null == configuration2 )
+        {
+            return configuration1 == configuration2;
+        }
+        return ConfigurationUtil.equals( configuration1, configuration2 );
+    }
+}
@@ -578,13 +578,14 @@ public class DefaultEmbeddor
         final SystemManager mxExporter =
             systemManager.getSubContext( null, "component" );
 
-        mxExporter.register( "Embeddor", this );
+        final String[] names = getComponentNames();
+        final Object[] objects = new Object[ names.length ];
+        objects[ 0 ] = this;
         for( int i = 0; i < m_entries.length; i++ )
         {
-            final EmbeddorEntry entry = m_entries[ i ];
-            mxExporter.register( entry.getLoggerName(),
-                                 entry.getObject() );
+            objects[ i + 1 ] = m_entries[ i ].getObject();
         }
+        mxExporter.register( names, objects );
     }
 
     /**
@@ -600,13 +601,22 @@ public class DefaultEmbeddor
         final SystemManager mxExporter =
             systemManager.getSubContext( null, "component" );
 
-        mxExporter.unregister( "Embeddor" );
+        mxExporter.unregister( getComponentNames() );
+    }
 
+    /**
+     * Return the names that embeddor and it's components are registered
+     * under in <code>SystemManager</code>.
+     */
+    private String[] getComponentNames()
+    {
+        final String[] names = new String[ m_entries.length + 1 ];
+        names[ 0 ] = "Embeddor";
         for( int i = 0; i < m_entries.length; i++ )
         {
-            final EmbeddorEntry entry = m_entries[ i ];
-            mxExporter.unregister( entry.getLoggerName() );
+            names[ i + 1 ] = m_entries[ i ].getLoggerName();
         }
+        return names;
     }
 
     private ResourceLocator getResourceLocator()
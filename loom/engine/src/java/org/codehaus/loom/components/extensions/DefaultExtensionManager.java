@@ -127,6 +127,13 @@ public class DefaultExtensionManager
         final String extDir =
             configuration.getChild( "extensions-dir" ).getValue();
         m_extDir = new File( extDir );
+
+        final String index =
+            configuration.getChild( "extensions-index" ).getValue( null );
+        if( null != index )
+        {
+            setIndexFile( new File( index ) );
+        }
     }
 
     public void initialize()
@@ -86,19 +86,30 @@
  */
 package org.codehaus.loom.components.extensions.pkgmgr.impl;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 import org.codehaus.loom.components.extensions.pkgmgr.ExtensionManager;
 import org.codehaus.loom.components.extensions.pkgmgr.OptionalPackage;
+import org.codehaus.loom.extension.DeweyDecimal;
 import org.codehaus.loom.extension.Extension;
 
 /**
@@ -107,6 +118,12 @@ import org.codehaus.loom.extension.Extension;
  * single file on the file system. This Repository searches a path to find the
  * Optional Packages.</p>
  *
+ * <p>Each jar is only read when it is first seen or when its size or last
+ * modified time changes. The results of reading jars can also be stored in
+ * an index file so that they survive a restart. The candidates for each
+ * extension name are sorted once per scan and published in a map that is
+ * replaced rather than modified, so lookups do not lock the manager.</p>
+ *
  * @author Peter Donald
  * @version $Revision: 1.4 $ $Date: 2005-02-22 08:57:36 $
  * @see OptionalPackage
@@ -120,8 +137,30 @@ public class DefaultExtensionManager
     /** separator used to separate path elements in a string. */
     private static final String SEPARATOR = "|";
 
-    /** Map between files and {@link OptionalPackage} objects. */
-    private final Map m_packages = new HashMap();
+    /** Identifies the format of the index file. */
+    private static final int MAGIC = 0x4c4d5801;
+
+    /** Empty list of packages returned when no package matches. */
+    private static final OptionalPackage[] EMPTY_SET = new OptionalPackage[ 0 ];
+
+    /**
+     * Map between extension names and arrays of {@link OptionalPackage}
+     * objects sorted by {@link OptionalPackageComparator}. The map is
+     * replaced rather than modified so it can be read without locking.
+     */
+    private volatile Map m_packages = Collections.EMPTY_MAP;
+
+    /**
+     * Map between the files of jars and the {@link IndexEntry} recording
+     * what was read from them. Only accessed while holding the lock.
+     */
+    private Map m_index = new HashMap();
+
+    /** The file in which the index is stored or null if not stored. */
+    private File m_indexFile;
+
+    /** Flag set once the stored index has been read. */
+    private boolean m_indexLoaded;
 
     /** The set of directories in which to look for Optional Packages */
     private File[] m_path;
@@ -130,7 +169,7 @@ public class DefaultExtensionManager
      * Flag set when it is necessary to scan paths to build "Optional Package"
      * list
      */
-    private boolean m_needToScan;
+    private volatile boolean m_needToScan;
 
     /**
      * Construct a package repository with no path specified.
@@ -172,40 +211,32 @@ public class DefaultExtensionManager
      * @return an array of optional packages that satisfy the extension (and the
      *         extensions dependencies)
      */
-    public synchronized OptionalPackage[] getOptionalPackages(
-        final Extension extension )
+    public OptionalPackage[] getOptionalPackages( final Extension extension )
     {
         if( m_needToScan )
         {
-            scanPath();
+            scanIfNeeded();
         }
 
-        final ArrayList results = new ArrayList();
-        final ArrayList candidates = (ArrayList)m_packages.get(
-            extension.getExtensionName() );
-        if( null != candidates )
+        final OptionalPackage[] candidates =
+            (OptionalPackage[])m_packages.get( extension.getExtensionName() );
+        if( null == candidates )
         {
-            final int size = candidates.size();
-            for( int i = 0; i < size; i++ )
-            {
-                final OptionalPackage optionalPackage = (OptionalPackage)candidates.get(
-                    i );
-                final Extension[] extensions = optionalPackage.getAvailableExtensions();
+            return EMPTY_SET;
+        }
 
-                for( int j = 0; j < extensions.length; j++ )
-                {
-                    if( extensions[ j ].isCompatibleWith( extension ) )
-                    {
-                        results.add( optionalPackage );
-                    }
-                }
+        //Candidates are already sorted so the results are too
+        final ArrayList results = new ArrayList( candidates.length );
+        for( int i = 0; i < candidates.length; i++ )
+        {
+            final OptionalPackage optionalPackage = candidates[ i ];
+            if( optionalPackage.isCompatible( extension ) )
+            {
+                results.add( optionalPackage );
             }
         }
-
-        final OptionalPackageComparator comparator =
-            new OptionalPackageComparator( extension.getExtensionName() );
-        Collections.sort( results, comparator );
-        return (OptionalPackage[])results.toArray( new OptionalPackage[ 0 ] );
+        return (OptionalPackage[])results.toArray(
+            new OptionalPackage[ results.size() ] );
     }
 
     /**
@@ -213,22 +244,20 @@ public class DefaultExtensionManager
      *
      * @return all the OptionalPackages stored in ExtensionManager.
      */
-    protected synchronized OptionalPackage[] getAllOptionalPackages()
+    protected OptionalPackage[] getAllOptionalPackages()
     {
-        //This is woefully inefficient - should rewrite it somehow
+        final Set seen = new HashSet();
         final ArrayList packages = new ArrayList();
         final Iterator iterator = m_packages.values().iterator();
         while( iterator.hasNext() )
         {
-            final ArrayList list = (ArrayList)iterator.next();
-            final int size = list.size();
-            for( int i = 0; i < size; i++ )
+            final OptionalPackage[] candidates =
+                (OptionalPackage[])iterator.next();
+            for( int i = 0; i < candidates.length; i++ )
             {
-                final OptionalPackage optionalPackage = (OptionalPackage)list.get(
-                    i );
-                if( !packages.contains( optionalPackage ) )
+                if( seen.add( candidates[ i ] ) )
                 {
-                    packages.add( optionalPackage );
+                    packages.add( candidates[ i ] );
                 }
             }
         }
@@ -237,6 +266,18 @@ public class DefaultExtensionManager
             new OptionalPackage[ packages.size() ] );
     }
 
+    /**
+     * Set the file in which the index of jars is stored so that jars which
+     * have not changed are not read again after a restart.
+     *
+     * @param indexFile the index file or null to not store the index
+     */
+    protected synchronized void setIndexFile( final File indexFile )
+    {
+        m_indexFile = indexFile;
+        m_indexLoaded = false;
+    }
+
     /**
      * Add path elements to repository search path
      *
@@ -308,18 +349,53 @@ public class DefaultExtensionManager
         m_needToScan = true;
     }
 
+    /**
+     * Scan the path unless another thread did so while this thread waited
+     * for the lock.
+     */
+    private synchronized void scanIfNeeded()
+    {
+        if( m_needToScan )
+        {
+            scanPath();
+        }
+    }
+
     /**
      * Scan the path for this repository and reload all the "Optional Packages"
      * found in the path. All of the old Extensions/Optional Packages will be
-     * removed.
+     * removed. Jars whose size and last modified time have not changed since
+     * they were last read are not read again.
      */
     protected final synchronized void scanPath()
     {
-        clearCache();
+        if( !m_indexLoaded )
+        {
+            m_indexLoaded = true;
+            loadIndex();
+        }
 
+        final Map index = new HashMap();
+        final List packages = new ArrayList();
+        boolean changed = false;
         for( int i = 0; i < m_path.length; i++ )
         {
-            scanDirectory( m_path[ i ] );
+            changed |= scanDirectory( m_path[ i ], index, packages );
+        }
+        changed |= index.size() != m_index.size();
+        m_index = index;
+
+        final Map candidates = new HashMap();
+        for( int i = 0; i < packages.size(); i++ )
+        {
+            addCandidate( candidates, (OptionalPackage)packages.get( i ) );
+        }
+        m_packages = sortCandidates( candidates );
+        m_needToScan = false;
+
+        if( changed )
+        {
+            storeIndex();
         }
     }
 
@@ -328,10 +404,20 @@ public class DefaultExtensionManager
      * add them as OptionalPackages.
      *
      * @param directory the directory to scan
+     * @param index the index to add the jars to
+     * @param packages the list to add the OptionalPackages to
+     * @return true if any jar had to be read
      */
-    private synchronized void scanDirectory( final File directory )
+    private boolean scanDirectory( final File directory,
+                                   final Map index,
+                                   final List packages )
     {
+        boolean changed = false;
         final File[] files = directory.listFiles();
+        if( null == files )
+        {
+            return false;
+        }
         for( int i = 0; i < files.length; i++ )
         {
             final File file = files[ i ];
@@ -361,22 +447,35 @@ public class DefaultExtensionManager
                 continue;
             }
 
-            try
+            IndexEntry entry = (IndexEntry)m_index.get( file );
+            if( null == entry || !entry.isCurrent( file ) )
             {
-                final OptionalPackage optionalPackage = getOptionalPackage(
-                    file );
-                cacheOptionalPackage( optionalPackage );
+                try
+                {
+                    entry = new IndexEntry( file.length(),
+                                            file.lastModified(),
+                                            getOptionalPackage( file ) );
+                    changed = true;
+                }
+                catch( final IOException ioe )
+                {
+                    final String message =
+                        "Skipping " +
+                        file +
+                        " as it could not be loaded " +
+                        "due to " + ioe;
+                    debug( message );
+                    continue;
+                }
             }
-            catch( final IOException ioe )
+
+            index.put( file, entry );
+            if( null != entry.getOptionalPackage() )
             {
-                final String message =
-                    "Skipping " +
-                    file +
-                    " as it could not be loaded " +
-                    "due to " + ioe;
-                debug( message );
+                packages.add( entry.getOptionalPackage() );
             }
         }
+        return changed;
     }
 
     /**
@@ -384,7 +483,9 @@ public class DefaultExtensionManager
      */
     protected final synchronized void clearCache()
     {
-        m_packages.clear();
+        m_packages = Collections.EMPTY_MAP;
+        m_index = new HashMap();
+        m_indexLoaded = false;
         m_needToScan = true;
     }
 
@@ -400,22 +501,284 @@ public class DefaultExtensionManager
     {
         m_needToScan = false;
 
-        // added to avoid out of bounds exception
-        if( optionalPackage.getAvailableExtensions().length == 0 )
+        final Map candidates = new HashMap();
+        final Iterator iterator = m_packages.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final Object[] packages = (Object[])entry.getValue();
+            candidates.put( entry.getKey(),
+                            new ArrayList( Arrays.asList( packages ) ) );
+        }
+        addCandidate( candidates, optionalPackage );
+        m_packages = sortCandidates( candidates );
+    }
+
+    /**
+     * Add OptionalPackage to the list of candidates for each extension that
+     * it makes available.
+     *
+     * @param candidates the map from extension name to list of candidates
+     * @param optionalPackage the OptionalPackage
+     */
+    private static void addCandidate( final Map candidates,
+                                      final OptionalPackage optionalPackage )
+    {
+        final Extension[] extensions = optionalPackage.getAvailableExtensions();
+        for( int i = 0; i < extensions.length; i++ )
+        {
+            final String name = extensions[ i ].getExtensionName();
+            List list = (List)candidates.get( name );
+            if( null == list )
+            {
+                list = new ArrayList();
+                candidates.put( name, list );
+            }
+            if( !list.contains( optionalPackage ) )
+            {
+                list.add( optionalPackage );
+            }
+        }
+    }
+
+    /**
+     * Sort the candidates for each extension name into the order in which
+     * they are returned.
+     *
+     * @param candidates the map from extension name to list of candidates
+     * @return the map from extension name to sorted array of candidates
+     */
+    private static Map sortCandidates( final Map candidates )
+    {
+        final Map packages = new HashMap();
+        final Iterator iterator = candidates.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final String name = (String)entry.getKey();
+            final List list = (List)entry.getValue();
+            Collections.sort( list, new OptionalPackageComparator( name ) );
+            packages.put( name,
+                          list.toArray( new OptionalPackage[ list.size() ] ) );
+        }
+        return packages;
+    }
+
+    /**
+     * Read the index from the index file if there is one. An index that
+     * can not be read is ignored and all jars are read again.
+     */
+    private void loadIndex()
+    {
+        if( null == m_indexFile || !m_indexFile.isFile() )
         {
             return;
         }
 
-        final Extension extension = optionalPackage.getAvailableExtensions()[ 0 ];
-        ArrayList candidates = (ArrayList)m_packages.get(
-            extension.getExtensionName() );
-        if( null == candidates )
+        try
         {
-            candidates = new ArrayList();
-            m_packages.put( extension.getExtensionName(), candidates );
+            final DataInputStream input =
+                new DataInputStream(
+                    new BufferedInputStream(
+                        new FileInputStream( m_indexFile ) ) );
+            try
+            {
+                m_index = readIndex( input );
+            }
+            finally
+            {
+                input.close();
+            }
         }
+        catch( final Exception e )
+        {
+            final String message =
+                "Ignoring index " + m_indexFile + " due to " + e;
+            debug( message );
+        }
+    }
 
-        candidates.add( optionalPackage );
+    /**
+     * Write the index to the index file if there is one. The index is
+     * written to a temporary file that then replaces the index file.
+     */
+    private void storeIndex()
+    {
+        if( null == m_indexFile )
+        {
+            return;
+        }
+
+        try
+        {
+            final File directory =
+                m_indexFile.getAbsoluteFile().getParentFile();
+            if( !directory.isDirectory() && !directory.mkdirs() )
+            {
+                throw new IOException( "Unable to create " + directory );
+            }
+            final File temp = File.createTempFile( "index", ".tmp", directory );
+            try
+            {
+                final DataOutputStream output =
+                    new DataOutputStream(
+                        new BufferedOutputStream(
+                            new FileOutputStream( temp ) ) );
+                try
+                {
+                    writeIndex( output, m_index );
+                }
+                finally
+                {
+                    output.close();
+                }
+
+                m_indexFile.delete();
+                if( !temp.renameTo( m_indexFile ) )
+                {
+                    throw new IOException( "Unable to rename " + temp +
+                                           " to " + m_indexFile );
+                }
+            }
+            finally
+            {
+                temp.delete();
+            }
+        }
+        catch( final IOException ioe )
+        {
+            final String message =
+                "Unable to write index " + m_indexFile + " due to " + ioe;
+            debug( message );
+        }
+    }
+
+    private static Map readIndex( final DataInputStream input )
+        throws IOException
+    {
+        if( MAGIC != input.readInt() )
+        {
+            throw new IOException( "Bad index" );
+        }
+        final Map index = new HashMap();
+        final int count = input.readInt();
+        for( int i = 0; i < count; i++ )
+        {
+            final File file = new File( input.readUTF() );
+            final long length = input.readLong();
+            final long lastModified = input.readLong();
+            OptionalPackage optionalPackage = null;
+            if( input.readBoolean() )
+            {
+                final File packageFile = new File( input.readUTF() );
+                final Extension[] available = readExtensions( input );
+                final Extension[] required = readExtensions( input );
+                optionalPackage =
+                    new OptionalPackage( packageFile, available, required );
+            }
+            final IndexEntry entry =
+                new IndexEntry( length, lastModified, optionalPackage );
+            index.put( file, entry );
+        }
+        return index;
+    }
+
+    private static void writeIndex( final DataOutputStream output,
+                                    final Map index )
+        throws IOException
+    {
+        output.writeInt( MAGIC );
+        output.writeInt( index.size() );
+        final Iterator iterator = index.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final IndexEntry indexEntry = (IndexEntry)entry.getValue();
+            output.writeUTF( ( (File)entry.getKey() ).getPath() );
+            output.writeLong( indexEntry.getLength() );
+            output.writeLong( indexEntry.getLastModified() );
+
+            final OptionalPackage optionalPackage =
+                indexEntry.getOptionalPackage();
+            output.writeBoolean( null != optionalPackage );
+            if( null != optionalPackage )
+            {
+                output.writeUTF( optionalPackage.getFile().getPath() );
+                writeExtensions( output,
+                                 optionalPackage.getAvailableExtensions() );
+                writeExtensions( output,
+                                 optionalPackage.getRequiredExtensions() );
+            }
+        }
+    }
+
+    private static Extension[] readExtensions( final DataInputStream input )
+        throws IOException
+    {
+        final Extension[] extensions = new Extension[ input.readInt() ];
+        for( int i = 0; i < extensions.length; i++ )
+        {
+            final String name = input.readUTF();
+            final String specificationVersion = readString( input );
+            final String specificationVendor = readString( input );
+            final String implementationVersion = readString( input );
+            final String implementationVendor = readString( input );
+            final String implementationVendorId = readString( input );
+            final String implementationURL = readString( input );
+            extensions[ i ] = new Extension( name,
+                                             specificationVersion,
+                                             specificationVendor,
+                                             implementationVersion,
+                                             implementationVendor,
+                                             implementationVendorId,
+                                             implementationURL );
+        }
+        return extensions;
+    }
+
+    private static void writeExtensions( final DataOutputStream output,
+                                         final Extension[] extensions )
+        throws IOException
+    {
+        output.writeInt( extensions.length );
+        for( int i = 0; i < extensions.length; i++ )
+        {
+            final Extension extension = extensions[ i ];
+            output.writeUTF( extension.getExtensionName() );
+            final DeweyDecimal specificationVersion =
+                extension.getSpecificationVersion();
+            writeString( output, null == specificationVersion ?
+                                 null : specificationVersion.toString() );
+            writeString( output, extension.getSpecificationVendor() );
+            writeString( output, extension.getImplementationVersion() );
+            writeString( output, extension.getImplementationVendor() );
+            writeString( output, extension.getImplementationVendorID() );
+            writeString( output, extension.getImplementationURL() );
+        }
+    }
+
+    private static String readString( final DataInputStream input )
+        throws IOException
+    {
+        if( input.readBoolean() )
+        {
+            return input.readUTF();
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    private static void writeString( final DataOutputStream output,
+                                     final String value )
+        throws IOException
+    {
+        output.writeBoolean( null != value );
+        if( null != value )
+        {
+            output.writeUTF( value );
+        }
     }
 
     /**
@@ -582,4 +945,48 @@ public class DefaultExtensionManager
 
         return result;
     }
+
+    /**
+     * What was read from a jar along with the size and last modified time
+     * of the jar when it was read.
+     */
+    private static final class IndexEntry
+    {
+        private final long m_length;
+        private final long m_lastModified;
+        private final OptionalPackage m_optionalPackage;
+
+        IndexEntry( final long length,
+                    final long lastModified,
+                    final OptionalPackage optionalPackage )
+        {
+            m_length = length;
+            m_lastModified = lastModified;
+            m_optionalPackage = optionalPackage;
+        }
+
+        long getLength()
+        {
+            return m_length;
+        }
+
+        long getLastModified()
+        {
+            return m_lastModified;
+        }
+
+        /**
+         * Return the OptionalPackage or null if jar has no manifest.
+         */
+        OptionalPackage getOptionalPackage()
+        {
+            return m_optionalPackage;
+        }
+
+        boolean isCurrent( final File file )
+        {
+            return m_length == file.length() &&
+                m_lastModified == file.lastModified();
+        }
+    }
 }
@@ -0,0 +1,535 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.installer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.codehaus.loom.interfaces.LoomException;
+import org.codehaus.spice.salt.i18n.ResourceManager;
+import org.codehaus.spice.salt.i18n.Resources;
+import org.codehaus.spice.salt.io.IOUtil;
+
+/**
+ * Expands entries of a Sar into files. The entries are expanded by
+ * several threads at once. Entries that are stored rather than deflated
+ * are transferred directly from the archive using a FileChannel and each
+ * file is preallocated to the size of the entry before it is written.
+ *
+ * <p>Entries are added using {@link #add} and are expanded when
+ * {@link #expand} is called. The expander keeps a running total of the
+ * entries and bytes expanded so that the throughput of an install can be
+ * reported.</p>
+ *
+ * @author Peter Donald
+ */
+final class ArchiveExpander
+{
+    private static final Resources REZ =
+        ResourceManager.getPackageResources( ArchiveExpander.class );
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    /** The Sar file. */
+    private final File m_file;
+
+    /** The Sar being expanded. */
+    private final ZipFile m_zipFile;
+
+    /** The maximum number of threads used to expand entries. */
+    private final int m_threads;
+
+    /** The entries waiting to be expanded. */
+    private final List m_entries = new ArrayList();
+
+    /** The files that pending entries are expanded to. */
+    private final List m_files = new ArrayList();
+
+    /**
+     * Map from name of stored entry to the offset of its data in Sar.
+     * Created the first time a stored entry is expanded.
+     */
+    private Map m_offsets;
+
+    private int m_entryCount;
+    private long m_byteCount;
+    private long m_duration;
+
+    /**
+     * Create an expander for specified Sar.
+     *
+     * @param file the Sar file
+     * @param zipFile the ZipFile opened on Sar file
+     * @param threads the maximum number of threads used to expand entries
+     */
+    ArchiveExpander( final File file,
+                     final ZipFile zipFile,
+                     final int threads )
+    {
+        m_file = file;
+        m_zipFile = zipFile;
+        m_threads = threads;
+    }
+
+    /**
+     * Add an entry to be expanded into specified file.
+     *
+     * @param entry the entry
+     * @param file the file
+     */
+    void add( final ZipEntry entry, final File file )
+    {
+        m_entries.add( entry );
+        m_files.add( file );
+    }
+
+    /**
+     * Return the number of entries expanded.
+     *
+     * @return the number of entries expanded
+     */
+    int getEntryCount()
+    {
+        return m_entryCount;
+    }
+
+    /**
+     * Return the number of bytes expanded.
+     *
+     * @return the number of bytes expanded
+     */
+    long getByteCount()
+    {
+        return m_byteCount;
+    }
+
+    /**
+     * Return the time spent expanding entries in milliseconds.
+     *
+     * @return the time spent expanding entries
+     */
+    long getDuration()
+    {
+        return m_duration;
+    }
+
+    /**
+     * Expand all the entries that have been added since the last call.
+     *
+     * @throws LoomException if an entry can not be expanded
+     */
+    void expand()
+        throws LoomException
+    {
+        final int count = m_entries.size();
+        if( 0 == count )
+        {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        final ZipEntry[] entries =
+            (ZipEntry[])m_entries.toArray( new ZipEntry[ count ] );
+        final File[] files = (File[])m_files.toArray( new File[ count ] );
+        m_entries.clear();
+        m_files.clear();
+
+        RandomAccessFile archive = null;
+        try
+        {
+            FileChannel channel = null;
+            if( hasStoredEntry( entries ) )
+            {
+                archive = new RandomAccessFile( m_file, "r" );
+                if( null == m_offsets )
+                {
+                    m_offsets = readDataOffsets( archive );
+                }
+                channel = archive.getChannel();
+            }
+
+            final long[] bytes = new long[ count ];
+            expandEntries( entries, files, channel, bytes );
+            for( int i = 0; i < count; i++ )
+            {
+                m_byteCount += bytes[ i ];
+            }
+            m_entryCount += count;
+        }
+        catch( final IOException ioe )
+        {
+            final String message =
+                REZ.format( "expand.bad-archive.error",
+                            m_file,
+                            ioe.getMessage() );
+            throw new LoomException( message, ioe );
+        }
+        finally
+        {
+            shutdown( archive );
+            m_duration += System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Expand the entries using up to the configured number of threads.
+     * Each thread expands the next entry that has not already been taken.
+     */
+    private void expandEntries( final ZipEntry[] entries,
+                                final File[] files,
+                                final FileChannel channel,
+                                final long[] bytes )
+        throws LoomException
+    {
+        final int threadCount = Math.min( m_threads, entries.length );
+        final int[] next = new int[ 1 ];
+        final LoomException[] failure = new LoomException[ 1 ];
+        final Runnable runnable = new Runnable()
+        {
+            public void run()
+            {
+                while( true )
+                {
+                    final int index;
+                    synchronized( next )
+                    {
+                        if( next[ 0 ] >= entries.length ||
+                            null != failure[ 0 ] )
+                        {
+                            return;
+                        }
+                        index = next[ 0 ]++;
+                    }
+                    try
+                    {
+                        bytes[ index ] = expandEntry( entries[ index ],
+                                                      files[ index ],
+                                                      channel );
+                    }
+                    catch( final IOException ioe )
+                    {
+                        final String message =
+                            REZ.format( "failed-to-expand",
+                                        entries[ index ].getName(),
+                                        files[ index ],
+                                        ioe.getMessage() );
+                        synchronized( next )
+                        {
+                            if( null == failure[ 0 ] )
+                            {
+                                failure[ 0 ] =
+                                    new LoomException( message, ioe );
+                            }
+                        }
+                        return;
+                    }
+                }
+            }
+        };
+
+        if( threadCount <= 1 )
+        {
+            runnable.run();
+        }
+        else
+        {
+            final Thread[] threads = new Thread[ threadCount ];
+            for( int i = 0; i < threads.length; i++ )
+            {
+                threads[ i ] = new Thread( runnable, "loom-expander-" + i );
+                threads[ i ].start();
+            }
+
+            //If interrupted the expansion fails but the threads must still
+            //finish the entries they are writing before the archive is
+            //closed, so the interrupt is only restored once they are done
+            boolean interrupted = false;
+            for( int i = 0; i < threads.length; i++ )
+            {
+                while( threads[ i ].isAlive() )
+                {
+                    try
+                    {
+                        threads[ i ].join();
+                    }
+                    catch( final InterruptedException ie )
+                    {
+                        interrupted = true;
+                        final String message =
+                            REZ.format( "expand.interrupted.error", m_file );
+                        synchronized( next )
+                        {
+                            if( null == failure[ 0 ] )
+                            {
+                                failure[ 0 ] =
+                                    new LoomException( message, ie );
+                            }
+                        }
+                    }
+                }
+            }
+            if( interrupted )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized( next )
+        {
+            if( null != failure[ 0 ] )
+            {
+                throw failure[ 0 ];
+            }
+        }
+    }
+
+    /**
+     * Expand a single entry into a file.
+     *
+     * @return the number of bytes written
+     */
+    private long expandEntry( final ZipEntry entry,
+                              final File file,
+                              final FileChannel archive )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        final RandomAccessFile output = new RandomAccessFile( file, "rw" );
+        try
+        {
+            final long size = entry.getSize();
+            if( size >= 0 )
+            {
+                output.setLength( size );
+            }
+
+            final Long offset = getDataOffset( entry );
+            long written = 0;
+            if( null != offset && size >= 0 )
+            {
+                final FileChannel channel = output.getChannel();
+                final long position = offset.longValue();
+                while( written < size )
+                {
+                    final long transferred =
+                        archive.transferTo( position + written,
+                                            size - written,
+                                            channel );
+                    if( transferred <= 0 )
+                    {
+                        throw new IOException( "Unexpected end of archive" );
+                    }
+                    written += transferred;
+                }
+            }
+            else
+            {
+                final InputStream input = m_zipFile.getInputStream( entry );
+                try
+                {
+                    final byte[] buffer = new byte[ BUFFER_SIZE ];
+                    int length;
+                    while( -1 != ( length = input.read( buffer ) ) )
+                    {
+                        output.write( buffer, 0, length );
+                        written += length;
+                    }
+                }
+                finally
+                {
+                    IOUtil.shutdownStream( input );
+                }
+            }
+
+            if( written != size )
+            {
+                output.setLength( written );
+            }
+            return written;
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Return the offset of data for specified entry if it is stored
+     * and the offset is known.
+     */
+    private Long getDataOffset( final ZipEntry entry )
+    {
+        if( ZipEntry.STORED != entry.getMethod() || null == m_offsets )
+        {
+            return null;
+        }
+        else
+        {
+            return (Long)m_offsets.get( entry.getName() );
+        }
+    }
+
+    private boolean hasStoredEntry( final ZipEntry[] entries )
+    {
+        for( int i = 0; i < entries.length; i++ )
+        {
+            if( ZipEntry.STORED == entries[ i ].getMethod() &&
+                !entries[ i ].isDirectory() )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read the central directory of archive to determine where the data
+     * of each stored entry starts. If the archive can not be understood
+     * (for example because it uses zip64 extensions) then an empty map is
+     * returned and stored entries are read through the ZipFile.
+     *
+     * @param archive the archive
+     * @return the map from entry name to offset of data
+     */
+    static Map readDataOffsets( final RandomAccessFile archive )
+    {
+        try
+        {
+            return doReadDataOffsets( archive );
+        }
+        catch( final IOException ioe )
+        {
+            return Collections.EMPTY_MAP;
+        }
+    }
+
+    private static Map doReadDataOffsets( final RandomAccessFile archive )
+        throws IOException
+    {
+        final long length = archive.length();
+        final int tailSize =
+            (int)Math.min( length, END_SIZE + MAX_COMMENT_SIZE );
+        final byte[] tail = new byte[ tailSize ];
+        archive.seek( length - tailSize );
+        archive.readFully( tail );
+
+        int end = -1;
+        for( int i = tailSize - END_SIZE; i >= 0; i-- )
+        {
+            if( END_SIGNATURE == readInt( tail, i ) )
+            {
+                end = i;
+                break;
+            }
+        }
+        if( -1 == end )
+        {
+            throw new IOException( "No central directory" );
+        }
+
+        final int count = readShort( tail, end + 10 );
+        final long directorySize = readUnsignedInt( tail, end + 12 );
+        final long directoryOffset = readUnsignedInt( tail, end + 16 );
+        if( directoryOffset + directorySize > length )
+        {
+            throw new IOException( "Bad central directory" );
+        }
+
+        final byte[] directory = new byte[ (int)directorySize ];
+        archive.seek( directoryOffset );
+        archive.readFully( directory );
+
+        final byte[] header = new byte[ LOCAL_HEADER_SIZE ];
+        final Map offsets = new HashMap();
+        int position = 0;
+        for( int i = 0; i < count; i++ )
+        {
+            if( CENTRAL_HEADER_SIGNATURE != readInt( directory, position ) )
+            {
+                throw new IOException( "Bad central directory entry" );
+            }
+            final int method = readShort( directory, position + 10 );
+            final int nameLength = readShort( directory, position + 28 );
+            final int extraLength = readShort( directory, position + 30 );
+            final int commentLength = readShort( directory, position + 32 );
+            final long headerOffset =
+                readUnsignedInt( directory, position + 42 );
+            if( ZipEntry.STORED == method )
+            {
+                final String name =
+                    new String( directory,
+                                position + CENTRAL_HEADER_SIZE,
+                                nameLength,
+                                "UTF8" );
+                archive.seek( headerOffset );
+                archive.readFully( header );
+                if( LOCAL_HEADER_SIGNATURE != readInt( header, 0 ) )
+                {
+                    throw new IOException( "Bad local header for " + name );
+                }
+                final long dataOffset = headerOffset +
+                    LOCAL_HEADER_SIZE +
+                    readShort( header, 26 ) +
+                    readShort( header, 28 );
+                offsets.put( name, new Long( dataOffset ) );
+            }
+            position += CENTRAL_HEADER_SIZE +
+                nameLength + extraLength + commentLength;
+        }
+        return offsets;
+    }
+
+    private static int readShort( final byte[] data, final int offset )
+    {
+        return ( data[ offset ] & 0xFF ) |
+            ( ( data[ offset + 1 ] & 0xFF ) << 8 );
+    }
+
+    private static int readInt( final byte[] data, final int offset )
+    {
+        return readShort( data, offset ) |
+            ( readShort( data, offset + 2 ) << 16 );
+    }
+
+    private static long readUnsignedInt( final byte[] data, final int offset )
+    {
+        return readInt( data, offset ) & 0xFFFFFFFFL;
+    }
+
+    private static void shutdown( final RandomAccessFile file )
+    {
+        if( null != file )
+        {
+            try
+            {
+                file.close();
+            }
+            catch( final IOException ioe )
+            {
+                //ignore
+            }
+        }
+    }
+}
@@ -87,25 +87,24 @@
 package org.codehaus.loom.components.installer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import org.codehaus.loom.components.util.infobuilder.CachingBlockInfoReader;
 import org.codehaus.loom.interfaces.ContainerConstants;
 import org.codehaus.loom.interfaces.Installer;
 import org.codehaus.loom.interfaces.LoomException;
 import org.codehaus.spice.salt.i18n.ResourceManager;
 import org.codehaus.spice.salt.i18n.Resources;
 import org.codehaus.spice.salt.io.FileUtil;
-import org.codehaus.spice.salt.io.IOUtil;
 import org.codehaus.dna.AbstractLogEnabled;
 import org.codehaus.dna.Active;
 import org.codehaus.dna.Configurable;
@@ -116,6 +115,13 @@ import org.codehaus.dna.ConfigurationException;
  * An Installer is responsible for taking a URL for Sar and installing it as
  * appropriate.
  *
+ * <p>Sars of different applications may be installed at the same time.
+ * Each application has its own work and cache directories, entries of the
+ * shared info cache are written to a temporary file and then renamed, and
+ * the record of which versions in the install cache are used is guarded by
+ * a lock. An application must not be installed or uninstalled by more
+ * than one thread at a time.</p>
+ *
  * @author Peter Donald
  * @version $Revision: 1.4 $ $Date: 2005-02-22 08:57:36 $
  */
@@ -130,6 +136,7 @@ public class DefaultInstaller
     private static final String SAR_INF = "SAR-INF";
     private static final String LIB = "SAR-INF/lib";
     private static final String CLASSES = "SAR-INF/classes/";
+    private static final String ENV_XML = "SAR-INF/environment.xml";
 
     //The names on the native filesystem
     private static final String FS_CONFIG_XML = "SAR-INF" +
@@ -141,8 +148,27 @@ public class DefaultInstaller
     private static final String FS_ENV_XML = "SAR-INF" +
         File.separator +
         "environment.xml";
-    private static final String FS_CLASSES =
-        "SAR-INF" + File.separator + "classes" + File.separator;
+
+    /**
+     * The name of the directory inside the base work directory where the
+     * code of each application is cached between installs. Each version of
+     * the code is kept in its own directory, named after the digest of the
+     * code, so that installing a new version never modifies files that are
+     * in use by a running version.
+     */
+    private static final String CACHE_DIR = "cache";
+
+    /**
+     * The name of the directory inside the base work directory where the
+     * info of components is cached. It is shared by all applications.
+     */
+    private static final String INFO_CACHE_DIR = "info-cache";
+
+    /**
+     * The name of the directory inside the base work directory where the
+     * private copy of Sar is kept for each application installed in place.
+     */
+    private static final String ARCHIVE_DIR = "archives";
 
     /**
      * The directory which is used as the base for extracting all temporary
@@ -154,6 +180,38 @@ public class DefaultInstaller
     /** The base directory in which applications are deployed. */
     private File m_baseDirectory;
 
+    /**
+     * The number of installations using each version directory in the
+     * install cache. Versions that are not in use are not in the map.
+     */
+    private final Map m_cacheUsers = new HashMap();
+
+    /**
+     * The latest version directory in the install cache for each
+     * application, keyed by the cache directory of the application.
+     * Guarded by the lock on m_cacheUsers.
+     */
+    private final Map m_latestCaches = new HashMap();
+
+    /** The number of threads used to expand each Sar. */
+    private int m_expandThreads;
+
+    /**
+     * True if the code of applications is loaded directly from the Sar
+     * rather than being expanded.
+     */
+    private boolean m_inPlace;
+
+    /**
+     * Configure the installer. The optional <code>expand-threads</code>
+     * parameter is the number of threads used to expand the entries of a
+     * Sar and defaults to the number of available processors. If the
+     * optional <code>in-place</code> parameter is true then the code of
+     * applications is not expanded and is loaded directly from the Sar.
+     *
+     * @param configuration the configuration
+     * @throws ConfigurationException if the configuration is invalid
+     */
     public void configure( final Configuration configuration )
         throws ConfigurationException
     {
@@ -163,21 +221,82 @@ public class DefaultInstaller
             configuration.getChild( "base-application-dir" ).getValue();
         m_baseWorkDirectory = new File( workDir );
         m_baseDirectory = new File( appDir );
+
+        final int processors = Runtime.getRuntime().availableProcessors();
+        m_expandThreads = configuration.getChild( "expand-threads" )
+            .getValueAsInteger( processors );
+        if( m_expandThreads < 1 )
+        {
+            final String message =
+                REZ.format( "install.bad-expand-threads.error",
+                            new Integer( m_expandThreads ) );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+
+        m_inPlace =
+            configuration.getChild( "in-place" ).getValueAsBoolean( false );
     }
 
     public void initialize()
         throws Exception
     {
         initWorkDirectory();
+
+        //Remove work directories left over from a previous run
+        //but keep the install and info caches
+        final File[] files = m_baseWorkDirectory.listFiles();
+        for( int i = 0; i < files.length; i++ )
+        {
+            final File file = files[ i ];
+            if( CACHE_DIR.equals( file.getName() ) ||
+                INFO_CACHE_DIR.equals( file.getName() ) )
+            {
+                continue;
+            }
+            try
+            {
+                FileUtil.forceDelete( file );
+            }
+            catch( final IOException ioe )
+            {
+                final String message =
+                    REZ.format( "nodelete-workdir.error",
+                                file,
+                                ioe.getMessage() );
+                getLogger().warn( message, ioe );
+            }
+        }
+
+        //Only the latest version of code of each application is kept
+        final File[] caches =
+            new File( m_baseWorkDirectory, CACHE_DIR ).listFiles();
+        for( int i = 0; null != caches && i < caches.length; i++ )
+        {
+            final File latest = findLatestCache( caches[ i ] );
+            if( null != latest )
+            {
+                setLatestCache( caches[ i ], latest );
+            }
+            pruneCache( caches[ i ], latest );
+        }
+
+        //Cached info that was not used since the last start is for classes
+        //that have changed or are no longer deployed
+        final File infoCache = new File( m_baseWorkDirectory, INFO_CACHE_DIR );
         try
         {
-            FileUtil.cleanDirectory( m_baseWorkDirectory );
+            final int count = CachingBlockInfoReader.prune( infoCache );
+            final String message =
+                REZ.format( "install.info-cache-pruned.notice",
+                            new Integer( count ) );
+            getLogger().debug( message );
         }
         catch( final IOException ioe )
         {
             final String message =
-                REZ.format( "nodelete-workdir.error",
-                            m_baseWorkDirectory,
+                REZ.format( "install.info-cache-prune-failed.warning",
                             ioe.getMessage() );
             getLogger().warn( message, ioe );
         }
@@ -189,7 +308,11 @@ public class DefaultInstaller
     }
 
     /**
-     * Uninstall the Sar designated installation.
+     * Uninstall the Sar designated installation. The work directory and
+     * the copy of an archive installed in place are removed. The latest
+     * version of code in the install cache is kept so that the code does
+     * not need to be extracted again if the Sar is redeployed but an older
+     * version is removed once no installation uses it.
      *
      * @param installation the installation
      * @throws LoomException if an error occurs
@@ -200,6 +323,18 @@ public class DefaultInstaller
         final File work =
             (File)installation.get( ContainerConstants.INSTALL_WORK );
         deleteWorkDir( work );
+        final File archive =
+            (File)installation.get( ContainerConstants.INSTALL_ARCHIVE );
+        if( null != archive )
+        {
+            deleteWorkDir( archive.getParentFile() );
+        }
+        final File code =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+        if( null != code )
+        {
+            releaseCache( code );
+        }
     }
 
     /**
@@ -309,11 +444,26 @@ public class DefaultInstaller
         directory.mkdirs();
 
         final File workDir = getRelativeWorkDir( name );
+        final ArchiveExpander expander =
+            new ArchiveExpander( file, zipFile, m_expandThreads );
+        File codeDir = null;
         boolean success = false;
         try
         {
             workDir.mkdirs();
-            expandZipFile( zipFile, directory, workDir, url );
+            final List code =
+                expandZipFile( zipFile, directory, url, expander );
+            File archive = null;
+            if( m_inPlace )
+            {
+                archive = copyArchive( file, workDir );
+            }
+            else
+            {
+                codeDir = installCode( name, code, workDir, expander );
+            }
+            reportThroughput( name, expander );
+            final String codeDigest = computeCodeDigest( zipFile, code );
 
             //Prepare and create Installation
             final String assembly = getURLAsString(
@@ -328,6 +478,17 @@ public class DefaultInstaller
             install.put( ContainerConstants.INSTALL_SOURCE, file );
             install.put( ContainerConstants.INSTALL_HOME, directory );
             install.put( ContainerConstants.INSTALL_WORK, workDir );
+            if( m_inPlace )
+            {
+                install.put( ContainerConstants.INSTALL_ARCHIVE, archive );
+            }
+            else
+            {
+                install.put( ContainerConstants.INSTALL_CODE, codeDir );
+            }
+            install.put( ContainerConstants.INSTALL_INFO_CACHE,
+                         new File( m_baseWorkDirectory, INFO_CACHE_DIR ) );
+            install.put( ContainerConstants.INSTALL_CODE_DIGEST, codeDigest );
             install.put( ContainerConstants.INSTALL_CONFIG, config );
             install.put( ContainerConstants.INSTALL_ASSEMBLY, assembly );
             install.put( ContainerConstants.INSTALL_ENVIRONMENT, environment );
@@ -338,26 +499,84 @@ public class DefaultInstaller
             if( !success )
             {
                 deleteWorkDir( workDir );
+                if( m_inPlace )
+                {
+                    deleteWorkDir( getArchiveDir( workDir ) );
+                }
+                else if( null != codeDir )
+                {
+                    releaseCache( codeDir );
+                }
             }
         }
     }
 
     /**
-     * Expand the specified Zip file.
+     * Copy a Sar that is installed in place. The code of application is
+     * loaded from a mapping of the copy so the deployed Sar can be replaced
+     * or deleted while the application is running.
+     *
+     * @param file the Sar
+     * @param workDir the work directory of application
+     * @return the copy
+     * @throws LoomException if the Sar can not be copied
+     */
+    private File copyArchive( final File file, final File workDir )
+        throws LoomException
+    {
+        final File archive =
+            new File( getArchiveDir( workDir ), file.getName() );
+        try
+        {
+            FileUtil.copyFile( file, archive );
+            return archive;
+        }
+        catch( final IOException ioe )
+        {
+            final String message =
+                REZ.format( "install.copy-archive.error",
+                            file,
+                            ioe.getMessage() );
+            throw new LoomException( message, ioe );
+        }
+    }
+
+    /**
+     * Return the directory that the copy of Sar is kept in for the
+     * application with specified work directory.
+     */
+    private File getArchiveDir( final File workDir )
+    {
+        final File archives = new File( m_baseWorkDirectory, ARCHIVE_DIR );
+        return new File( archives, workDir.getName() );
+    }
+
+    /**
+     * Expand the specified Zip file. Entries that make up the code of
+     * application (ie jars in SAR-INF/lib and files in SAR-INF/classes)
+     * are not expanded but are returned to the caller. A manifest of the
+     * expanded entries is kept in the SAR-INF directory so that a file is
+     * replaced if its entry changes in a later version of the Sar but is
+     * otherwise left as it is, even if it has been modified.
      *
      * @param zipFile the zip file
      * @param directory the directory where to extract non-jar, non-classes
      * files
-     * @param workDir the directory to extract classes/jar files
      * @param url the url of deployment (for error reporting purposes)
+     * @param expander the expander used to extract files
+     * @return the list of ZipEntry objects that make up code of application
      * @throws LoomException if an error occurs extracting files
      */
-    private void expandZipFile( final ZipFile zipFile,
+    private List expandZipFile( final ZipFile zipFile,
                                 final File directory,
-                                final File workDir,
-                                final URL url )
+                                final URL url,
+                                final ArchiveExpander expander )
         throws LoomException
     {
+        final File manifestDir = new File( directory, SAR_INF );
+        final InstallManifest previous = InstallManifest.load( manifestDir );
+        final InstallManifest manifest = new InstallManifest( null );
+        final List code = new ArrayList();
         final Enumeration entries = zipFile.entries();
         while( entries.hasMoreElements() )
         {
@@ -374,111 +593,460 @@ public class DefaultInstaller
                 continue;
             }
 
-            if( handleClasses( zipFile,
-                               entry,
-                               name,
-                               workDir ) )
-            {
-                continue;
-            }
-
-            if( handleJars( zipFile, entry, name, workDir ) )
+            if( isClasses( name ) || isJar( name ) )
             {
+                code.add( entry );
                 continue;
             }
 
             //Expand the file if necesasry and issue a warning
             //if there is a file in the way
             final File destination = new File( directory, name );
-            handleFile( zipFile, entry, destination, url );
+            handleFile( entry, destination, url, expander, previous, name );
+            manifest.addEntry( name, entry );
         }
+        expander.expand();
+        try
+        {
+            FileUtil.forceMkdir( manifestDir );
+            manifest.store( manifestDir );
+        }
+        catch( final IOException ioe )
+        {
+            final String message =
+                REZ.format( "install.manifest-failed.warning",
+                            directory,
+                            ioe.getMessage() );
+            getLogger().warn( message, ioe );
+        }
+        return code;
     }
 
     /**
-     * Handle the extraction of normal resources from zip file/
+     * Compute the digest of the code of application and the environment
+     * that it is loaded in.
+     *
+     * @param zipFile the zip file
+     * @param code the entries that make up code of application
+     * @return the digest
      */
-    private void handleFile( final ZipFile zipFile,
-                             final ZipEntry entry,
-                             final File destination,
-                             final URL url )
+    private String computeCodeDigest( final ZipFile zipFile,
+                                      final List code )
+    {
+        final List entries = new ArrayList( code );
+        final ZipEntry environment = zipFile.getEntry( ENV_XML );
+        if( null != environment )
+        {
+            entries.add( environment );
+        }
+        return InstallManifest.computeDigest( entries );
+    }
+
+    /**
+     * Install the code of application into the install cache for
+     * application. The code is installed into a directory for its version
+     * and the directory is reused if the same version was installed
+     * before. Otherwise entries that are unchanged since the latest version
+     * are taken from it and only new or modified entries are extracted. If
+     * the cache can not be updated then the code is extracted into the work
+     * directory instead.
+     *
+     * @param name the name of application
+     * @param code the entries that make up code of application
+     * @param workDir the work directory of application
+     * @param expander the expander used to extract files
+     * @return the directory that code was installed into
+     * @throws LoomException if an error occurs extracting files
+     */
+    private File installCode( final String name,
+                              final List code,
+                              final File workDir,
+                              final ArchiveExpander expander )
         throws LoomException
     {
-        if( !destination.exists() )
+        final File caches =
+            new File( new File( m_baseWorkDirectory, CACHE_DIR ), name );
+        final String digest = InstallManifest.computeDigest( code );
+        final File cacheDir = new File( caches, digest );
+        try
         {
-            expandFile( zipFile, entry, destination );
+            updateCache( name, digest, code, cacheDir, expander );
+            acquireCache( cacheDir );
+            return cacheDir;
         }
-        else
+        catch( final IOException ioe )
         {
             final String message =
-                REZ.format( "file-in-the-way",
-                            url,
-                            entry.getName(),
-                            destination );
-            getLogger().warn( message );
+                REZ.format( "install.cache-failed.warning",
+                            name,
+                            ioe.getMessage() );
+            getLogger().warn( message, ioe );
+            try
+            {
+                InstallManifest.delete( cacheDir );
+            }
+            catch( final IOException ioe2 )
+            {
+                //ignore
+            }
+        }
+
+        final int count = code.size();
+        for( int i = 0; i < count; i++ )
+        {
+            final ZipEntry entry = (ZipEntry)code.get( i );
+            final File file = new File( workDir, fixName( entry.getName() ) );
+            expander.add( entry, file );
         }
+        expander.expand();
+        return workDir;
     }
 
     /**
-     * Handle extraction of jars.
+     * Bring the version directory in install cache up to date with the
+     * code of application and make it the latest version.
+     */
+    private void updateCache( final String name,
+                              final String digest,
+                              final List code,
+                              final File cacheDir,
+                              final ArchiveExpander expander )
+        throws IOException, LoomException
+    {
+        final File caches = cacheDir.getParentFile();
+        final InstallManifest existing = InstallManifest.load( cacheDir );
+        if( digest.equals( existing.getDigest() ) &&
+            existing.isComplete( cacheDir ) )
+        {
+            final String message =
+                REZ.format( "install.cache-unchanged.notice", name );
+            getLogger().debug( message );
+            setLatestCache( caches, cacheDir );
+            return;
+        }
+
+        //Make sure that the cache is not used if
+        //the update is interrupted
+        FileUtil.forceMkdir( cacheDir );
+        InstallManifest.delete( cacheDir );
+
+        //Unchanged entries are taken from the latest version. They are
+        //moved if no installation uses that version and copied otherwise
+        final File latest = getLatestCache( caches );
+        final InstallManifest previous =
+            ( null == latest || latest.equals( cacheDir ) ) ?
+            new InstallManifest( null ) : InstallManifest.load( latest );
+        final boolean move = null != latest && !isCacheUsed( latest );
+
+        //A file in the directory is never written in place as an
+        //installation of the same version may have it open. Entries are
+        //extracted to temporary files which then replace the old files
+        final InstallManifest manifest = new InstallManifest( digest );
+        final List replaced = new ArrayList();
+        int extracted = 0;
+        final int count = code.size();
+        for( int i = 0; i < count; i++ )
+        {
+            final ZipEntry entry = (ZipEntry)code.get( i );
+            final String entryName = fixName( entry.getName() );
+            final File file = new File( cacheDir, entryName );
+            manifest.addEntry( entryName, entry );
+            if( existing.isCurrent( entryName, entry, file ) )
+            {
+                continue;
+            }
+            replaced.add( file );
+            final File temp = getTempFile( file );
+            final File old =
+                ( null == latest ) ? null : new File( latest, entryName );
+            if( null != old && previous.isCurrent( entryName, entry, old ) )
+            {
+                if( !move || !moveFile( old, temp ) )
+                {
+                    FileUtil.copyFile( old, temp );
+                }
+            }
+            else
+            {
+                expander.add( entry, temp );
+                extracted++;
+            }
+        }
+        expander.expand();
+
+        final int size = replaced.size();
+        for( int i = 0; i < size; i++ )
+        {
+            replaceFile( (File)replaced.get( i ) );
+        }
+
+        manifest.store( cacheDir );
+        setLatestCache( caches, cacheDir );
+        pruneCache( caches, cacheDir );
+
+        final String message =
+            REZ.format( "install.cache-updated.notice",
+                        name,
+                        new Integer( extracted ),
+                        new Integer( count - extracted ) );
+        getLogger().info( message );
+    }
+
+    /**
+     * Move a file to specified location.
      *
-     * @param zipFile the zipFIle to exrtact from
-     * @param entry the entry to extract
-     * @param name the normalized name of entry
-     * @param workDir the working directory to extract to
-     * @return true if handled, false otherwise
+     * @return true if the file was moved
      */
-    private boolean handleJars( final ZipFile zipFile,
-                                final ZipEntry entry,
-                                final String name,
-                                final File workDir )
-        throws LoomException
+    private boolean moveFile( final File file, final File destination )
     {
-        if( name.startsWith( LIB )
-            &&
-            name.endsWith( ".jar" )
-            && LIB.length() == name.lastIndexOf( "/" ) )
+        destination.getParentFile().mkdirs();
+        return file.renameTo( destination );
+    }
+
+    /**
+     * Return the version directory with the most recently stored manifest
+     * in the install cache of an application.
+     *
+     * @param caches the install cache directory of application
+     * @return the latest version or null if there is no complete version
+     */
+    private File findLatestCache( final File caches )
+    {
+        final File[] files = caches.listFiles();
+        File latest = null;
+        long latestTime = 0;
+        for( int i = 0; null != files && i < files.length; i++ )
         {
-            final File file = new File( workDir, name );
-            expandFile( zipFile, entry, file );
-            return true;
+            final File manifest =
+                new File( files[ i ], InstallManifest.FILENAME );
+            if( manifest.isFile() && manifest.lastModified() >= latestTime )
+            {
+                latest = files[ i ];
+                latestTime = manifest.lastModified();
+            }
         }
-        else
+        return latest;
+    }
+
+    /**
+     * Return the latest version directory in the install cache of an
+     * application.
+     *
+     * @param caches the install cache directory of application
+     * @return the latest version or null if unknown
+     */
+    private File getLatestCache( final File caches )
+    {
+        synchronized( m_cacheUsers )
         {
-            return false;
+            return (File)m_latestCaches.get( caches );
         }
     }
 
     /**
-     * Handle extraction of jars.
+     * Make specified version directory the latest version in the install
+     * cache of an application.
      *
-     * @param zipFile the zipFIle to exrtact from
-     * @param entry the entry to extract
-     * @param name the normalized name of entry
-     * @param workDir the working directory to extract to
-     * @return true if handled, false otherwise
+     * @param caches the install cache directory of application
+     * @param cacheDir the version directory
      */
-    private boolean handleClasses( final ZipFile zipFile,
-                                   final ZipEntry entry,
-                                   final String name,
-                                   final File workDir )
-        throws LoomException
+    private void setLatestCache( final File caches, final File cacheDir )
     {
-        if( name.startsWith( CLASSES ) )
+        synchronized( m_cacheUsers )
         {
-            final File classDir = new File( workDir, FS_CLASSES );
-            if( !classDir.exists() )
+            m_latestCaches.put( caches, cacheDir );
+        }
+    }
+
+    /**
+     * Return true if an installation uses specified version directory.
+     *
+     * @param cacheDir the version directory
+     * @return true if the version is in use
+     */
+    private boolean isCacheUsed( final File cacheDir )
+    {
+        synchronized( m_cacheUsers )
+        {
+            return m_cacheUsers.containsKey( cacheDir );
+        }
+    }
+
+    /**
+     * Record that an installation uses specified version directory.
+     *
+     * @param cacheDir the version directory
+     */
+    private void acquireCache( final File cacheDir )
+    {
+        synchronized( m_cacheUsers )
+        {
+            final Integer count = (Integer)m_cacheUsers.get( cacheDir );
+            final int users = ( null == count ) ? 1 : count.intValue() + 1;
+            m_cacheUsers.put( cacheDir, new Integer( users ) );
+        }
+    }
+
+    /**
+     * Record that an installation no longer uses specified directory. The
+     * directory is deleted if it is a version in install cache that is no
+     * longer used and is not the latest version of application.
+     *
+     * @param codeDir the directory that code was installed into
+     */
+    private void releaseCache( final File codeDir )
+    {
+        synchronized( m_cacheUsers )
+        {
+            final Integer count = (Integer)m_cacheUsers.get( codeDir );
+            if( null == count )
             {
-                final File file = new File( workDir, name );
-                expandFile( zipFile, entry, file );
+                return;
+            }
+            else if( count.intValue() > 1 )
+            {
+                m_cacheUsers.put( codeDir,
+                                  new Integer( count.intValue() - 1 ) );
+                return;
+            }
+            m_cacheUsers.remove( codeDir );
+            if( codeDir.equals(
+                m_latestCaches.get( codeDir.getParentFile() ) ) )
+            {
+                return;
             }
-            return true;
         }
-        else
+        deleteWorkDir( codeDir );
+    }
+
+    /**
+     * Delete the versions in the install cache of an application that are
+     * not used by any installation, except for the specified version.
+     *
+     * @param caches the install cache directory of application
+     * @param keep the version to keep or null
+     */
+    private void pruneCache( final File caches, final File keep )
+    {
+        final File[] files = caches.listFiles();
+        for( int i = 0; null != files && i < files.length; i++ )
         {
-            return false;
+            final File file = files[ i ];
+            if( file.isDirectory() &&
+                !file.equals( keep ) &&
+                !isCacheUsed( file ) )
+            {
+                deleteWorkDir( file );
+            }
         }
     }
 
+    /**
+     * Report the throughput of expanding a Sar.
+     *
+     * @param name the name of application
+     * @param expander the expander used to extract files
+     */
+    private void reportThroughput( final String name,
+                                   final ArchiveExpander expander )
+    {
+        if( getLogger().isInfoEnabled() )
+        {
+            final long bytes = expander.getByteCount();
+            final long duration = expander.getDuration();
+            final long rate =
+                ( bytes * 1000 ) / ( 1024 * Math.max( duration, 1 ) );
+            final String message =
+                REZ.format( "install.expanded.notice",
+                            new Integer( expander.getEntryCount() ),
+                            new Long( bytes ),
+                            name,
+                            new Long( duration ),
+                            new Long( rate ) );
+            getLogger().info( message );
+        }
+    }
+
+    /**
+     * Return the temporary file that an entry is extracted to before it
+     * replaces specified file.
+     */
+    private File getTempFile( final File file )
+    {
+        return new File( file.getPath() + ".part" );
+    }
+
+    /**
+     * Replace specified file with the temporary file that the new version
+     * was extracted to.
+     */
+    private void replaceFile( final File file )
+        throws IOException
+    {
+        final File temp = getTempFile( file );
+        if( file.exists() && !file.delete() )
+        {
+            temp.delete();
+            throw new IOException( "Unable to replace " + file );
+        }
+        if( !temp.renameTo( file ) )
+        {
+            temp.delete();
+            throw new IOException( "Unable to create " + file );
+        }
+    }
+
+    /**
+     * Handle the extraction of normal resources from zip file. An existing
+     * file is only replaced if the entry has changed since it was last
+     * expanded.
+     */
+    private void handleFile( final ZipEntry entry,
+                             final File destination,
+                             final URL url,
+                             final ArchiveExpander expander,
+                             final InstallManifest previous,
+                             final String name )
+    {
+        if( !destination.exists() || previous.isChanged( name, entry ) )
+        {
+            expander.add( entry, destination );
+        }
+        else if( !previous.containsEntry( name ) )
+        {
+            final String message =
+                REZ.format( "file-in-the-way",
+                            url,
+                            entry.getName(),
+                            destination );
+            getLogger().warn( message );
+        }
+    }
+
+    /**
+     * Return true if entry is a jar in the SAR-INF/lib directory.
+     *
+     * @param name the normalized name of entry
+     * @return true if entry is a jar
+     */
+    private boolean isJar( final String name )
+    {
+        return name.startsWith( LIB )
+            && name.endsWith( ".jar" )
+            && LIB.length() == name.lastIndexOf( "/" );
+    }
+
+    /**
+     * Return true if entry is in the SAR-INF/classes directory.
+     *
+     * @param name the normalized name of entry
+     * @return true if entry is in classes directory
+     */
+    private boolean isClasses( final String name )
+    {
+        return name.startsWith( CLASSES );
+    }
+
     /**
      * Handle expansion of dirs in the zipfile.
      *
@@ -568,40 +1136,6 @@ public class DefaultInstaller
         return file;
     }
 
-    /**
-     * Expand a single zipEntry to a file.
-     */
-    private void expandFile( final ZipFile zipFile,
-                             final ZipEntry entry,
-                             final File file )
-        throws LoomException
-    {
-        InputStream input = null;
-        OutputStream output = null;
-
-        try
-        {
-            file.getParentFile().mkdirs();
-            output = new FileOutputStream( file );
-            input = zipFile.getInputStream( entry );
-            IOUtil.copy( input, output );
-        }
-        catch( final IOException ioe )
-        {
-            final String message =
-                REZ.format( "failed-to-expand",
-                            entry.getName(),
-                            file,
-                            ioe.getMessage() );
-            throw new LoomException( message, ioe );
-        }
-        finally
-        {
-            IOUtil.shutdownStream( input );
-            IOUtil.shutdownStream( output );
-        }
-    }
-
     /**
      * Utility method to extract URL from file in safe manner.
      *
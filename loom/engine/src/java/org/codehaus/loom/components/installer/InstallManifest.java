@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.installer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import org.codehaus.spice.salt.io.IOUtil;
+
+/**
+ * Records the entries of a Sar that have been extracted into an install
+ * cache directory. Each entry is recorded with the CRC and size from the
+ * Sars central directory so that an entry only needs to be extracted again
+ * if it has changed. The manifest also records a digest of all the entries
+ * so that unchanged code can be recognised without examining each entry.
+ *
+ * @author Peter Donald
+ */
+final class InstallManifest
+{
+    /** The name of the file the manifest is stored in. */
+    static final String FILENAME = "install.manifest";
+
+    private static final String DIGEST_KEY = "code.digest";
+    private static final String ENTRY_PREFIX = "entry.";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Properties m_properties = new Properties();
+
+    /**
+     * Create an empty manifest for code with specified digest.
+     *
+     * @param digest the digest of code
+     */
+    InstallManifest( final String digest )
+    {
+        if( null != digest )
+        {
+            m_properties.setProperty( DIGEST_KEY, digest );
+        }
+    }
+
+    /**
+     * Load the manifest stored in specified directory. If there is no
+     * manifest or it can not be read then an empty manifest is returned.
+     *
+     * @param directory the install cache directory
+     * @return the manifest
+     */
+    static InstallManifest load( final File directory )
+    {
+        final InstallManifest manifest = new InstallManifest( null );
+        final File file = new File( directory, FILENAME );
+        if( file.isFile() )
+        {
+            InputStream input = null;
+            try
+            {
+                input = new FileInputStream( file );
+                manifest.m_properties.load( input );
+            }
+            catch( final IOException ioe )
+            {
+                manifest.m_properties.clear();
+            }
+            finally
+            {
+                IOUtil.shutdownStream( input );
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Delete the manifest stored in specified directory. This is done
+     * before the contents of directory are modified so that a partially
+     * updated directory is never mistaken for a complete one.
+     *
+     * @param directory the install cache directory
+     * @throws IOException if the manifest can not be deleted
+     */
+    static void delete( final File directory )
+        throws IOException
+    {
+        final File file = new File( directory, FILENAME );
+        if( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Unable to delete " + file );
+        }
+    }
+
+    /**
+     * Store the manifest in specified directory.
+     *
+     * @param directory the install cache directory
+     * @throws IOException if unable to write manifest
+     */
+    void store( final File directory )
+        throws IOException
+    {
+        final File file = new File( directory, FILENAME );
+        final File temp = new File( directory, FILENAME + ".part" );
+        OutputStream output = null;
+        try
+        {
+            output = new FileOutputStream( temp );
+            m_properties.store( output, "Loom install manifest" );
+        }
+        finally
+        {
+            IOUtil.shutdownStream( output );
+        }
+        if( !temp.renameTo( file ) )
+        {
+            temp.delete();
+            throw new IOException( "Unable to create " + file );
+        }
+    }
+
+    /**
+     * Return the digest of code that manifest describes.
+     *
+     * @return the digest or null if unknown
+     */
+    String getDigest()
+    {
+        return m_properties.getProperty( DIGEST_KEY );
+    }
+
+    /**
+     * Record that specified entry has been extracted.
+     *
+     * @param name the normalized name of entry
+     * @param entry the entry
+     */
+    void addEntry( final String name, final ZipEntry entry )
+    {
+        m_properties.setProperty( ENTRY_PREFIX + name, describe( entry ) );
+    }
+
+    /**
+     * Return true if manifest contains specified entry.
+     *
+     * @param name the normalized name of entry
+     * @return true if manifest contains entry
+     */
+    boolean containsEntry( final String name )
+    {
+        return m_properties.containsKey( ENTRY_PREFIX + name );
+    }
+
+    /**
+     * Return true if manifest contains specified entry but with a different
+     * CRC or size.
+     *
+     * @param name the normalized name of entry
+     * @param entry the entry
+     * @return true if the entry has changed
+     */
+    boolean isChanged( final String name, final ZipEntry entry )
+    {
+        final String description =
+            m_properties.getProperty( ENTRY_PREFIX + name );
+        return null != description && !describe( entry ).equals( description );
+    }
+
+    /**
+     * Return true if specified entry was previously extracted to file and
+     * neither the entry nor the file appear to have changed since.
+     *
+     * @param name the normalized name of entry
+     * @param entry the entry
+     * @param file the file the entry was extracted to
+     * @return true if the file can be reused
+     */
+    boolean isCurrent( final String name,
+                       final ZipEntry entry,
+                       final File file )
+    {
+        final String description =
+            m_properties.getProperty( ENTRY_PREFIX + name );
+        return describe( entry ).equals( description ) &&
+            file.isFile() &&
+            file.length() == entry.getSize();
+    }
+
+    /**
+     * Return true if every entry in manifest is present in specified
+     * directory with the expected size.
+     *
+     * @param directory the install cache directory
+     * @return true if all the entries are present
+     */
+    boolean isComplete( final File directory )
+    {
+        final Iterator iterator = m_properties.keySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final String key = (String)iterator.next();
+            if( !key.startsWith( ENTRY_PREFIX ) )
+            {
+                continue;
+            }
+            final String name = key.substring( ENTRY_PREFIX.length() );
+            final String description = m_properties.getProperty( key );
+            final long size =
+                Long.parseLong( description.substring( description.indexOf( ':' ) + 1 ) );
+            final File file = new File( directory, name );
+            if( !file.isFile() || file.length() != size )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compute a digest of the specified entries from the name, CRC and size
+     * recorded in the central directory of Sar. This does not require the
+     * contents of entries to be read.
+     *
+     * @param entries the list of ZipEntry objects
+     * @return the digest as a hex string
+     */
+    static String computeDigest( final List entries )
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "MD5" );
+        }
+        catch( final NoSuchAlgorithmException nsae )
+        {
+            throw new IllegalStateException( nsae.toString() );
+        }
+
+        final int count = entries.size();
+        for( int i = 0; i < count; i++ )
+        {
+            final ZipEntry entry = (ZipEntry)entries.get( i );
+            digest.update( entry.getName().getBytes() );
+            digest.update( (byte)0 );
+            digest.update( describe( entry ).getBytes() );
+            digest.update( (byte)0 );
+        }
+
+        final byte[] bytes = digest.digest();
+        final char[] chars = new char[ bytes.length * 2 ];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            chars[ i * 2 ] = HEX_DIGITS[ ( bytes[ i ] >> 4 ) & 0xF ];
+            chars[ i * 2 + 1 ] = HEX_DIGITS[ bytes[ i ] & 0xF ];
+        }
+        return new String( chars );
+    }
+
+    private static String describe( final ZipEntry entry )
+    {
+        return Long.toHexString( entry.getCrc() ) + ":" + entry.getSize();
+    }
+}
@@ -122,6 +122,10 @@ class DefaultApplicationContext
     private static final Resources REZ =
         ResourceManager.getPackageResources( DefaultApplicationContext.class );
 
+    ///The type and name under which the metrics of a block are exported
+    private static final String METRICS_TYPE = "metrics";
+    private static final String METRICS_NAME = "invocations";
+
     //Log Hierarchy for application
     private final LoggerStore m_store;
 
@@ -316,6 +320,37 @@ class DefaultApplicationContext
         m_blockManager.unregister( name );
     }
 
+    /**
+     * Export the object that records the calls made to a block into
+     * management system alongside the block.
+     *
+     * @param name the name of block
+     * @param metrics the object recording calls to block
+     */
+    public void exportMetrics( final String name,
+                               final Object metrics )
+        throws Exception
+    {
+        getMetricsContext( name ).register( METRICS_NAME, metrics );
+    }
+
+    /**
+     * Unexport the metrics of specified block from management system.
+     *
+     * @param name the name of block
+     */
+    public void unexportMetrics( final String name )
+        throws Exception
+    {
+        getMetricsContext( name ).unregister( METRICS_NAME );
+    }
+
+    private SystemManager getMetricsContext( final String name )
+        throws LoomException
+    {
+        return m_blockManager.getSubContext( name, METRICS_TYPE );
+    }
+
     /**
      * Returns the local SystemManager where the blocks should be registered for
      * management.
@@ -87,7 +87,9 @@
 package org.codehaus.loom.components.kernel;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import org.apache.avalon.framework.container.ContainerUtil;
 import org.apache.excalibur.instrument.InstrumentManager;
 import org.codehaus.loom.components.application.DefaultApplication;
@@ -149,11 +151,28 @@ public class DefaultKernel
     //Instrument Manager
     private InstrumentManager m_instrumentManager;
 
-    private final HashMap m_entries = new HashMap();
+    /**
+     * Map from application name to SarEntry. The map is replaced rather
+     * than modified (while holding the lock on kernel) so that applications
+     * can be added and removed concurrently and looked up without locking.
+     */
+    private volatile Map m_entries = Collections.EMPTY_MAP;
 
     //Allow applications that fail to startup to remain in the kernel in a stopped state?
     private boolean m_addInvalidApplications;
 
+    //Maximum number of threads each application uses to start and stop blocks
+    private int m_phaseThreads;
+
+    //Maximum number of events queued for each listener, 0 for synchronous
+    private int m_listenerQueueSize;
+
+    //Discard events for listeners whose queue is full?
+    private boolean m_discardListenerEvents;
+
+    //Record calls made to blocks and export them to the management system?
+    private boolean m_blockMetrics;
+
     //Counter to provide simple locking. when the count is 0, the kernel is unlocked
     private int m_lockCount;
 
@@ -185,6 +204,45 @@ public class DefaultKernel
         m_addInvalidApplications =
         configuration.getChild( "add-invalid-applications" ).getValueAsBoolean(
             false );
+        m_phaseThreads =
+        configuration.getChild( "block-phase-threads" ).getValueAsInteger( 1 );
+        if( m_phaseThreads < 1 )
+        {
+            final String message =
+                REZ.format( "kernel.error.bad-phase-threads",
+                            new Integer( m_phaseThreads ) );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+
+        m_listenerQueueSize =
+        configuration.getChild( "listener-queue-size" ).getValueAsInteger( 0 );
+        if( m_listenerQueueSize < 0 )
+        {
+            final String message =
+                REZ.format( "kernel.error.bad-listener-queue-size",
+                            new Integer( m_listenerQueueSize ) );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+        final String overflow =
+        configuration.getChild( "listener-overflow" ).getValue( "block" );
+        if( "discard".equals( overflow ) )
+        {
+            m_discardListenerEvents = true;
+        }
+        else if( !"block".equals( overflow ) )
+        {
+            final String message =
+                REZ.format( "kernel.error.bad-listener-overflow", overflow );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+        m_blockMetrics =
+        configuration.getChild( "block-metrics" ).getValueAsBoolean( false );
     }
 
     public void initialize()
@@ -261,14 +319,14 @@ public class DefaultKernel
      */
     public String[] getApplicationNames()
     {
-        if( isLocked() )
-        {
-            return m_lockedApplications;
-        }
-        else
+        synchronized( this )
         {
-            return (String[])m_entries.keySet().toArray( new String[ 0 ] );
+            if( isLocked() )
+            {
+                return m_lockedApplications;
+            }
         }
+        return (String[])m_entries.keySet().toArray( new String[ 0 ] );
     }
 
     private boolean isLocked()
@@ -276,6 +334,39 @@ public class DefaultKernel
         return m_lockCount > 0;
     }
 
+    /**
+     * Add entry to the set of applications, replacing any entry with the
+     * same name.
+     *
+     * @param name the name of application
+     * @param entry the entry
+     */
+    private synchronized void putEntry( final String name,
+                                        final SarEntry entry )
+    {
+        final Map entries = new HashMap( m_entries );
+        entries.put( name, entry );
+        m_entries = entries;
+    }
+
+    /**
+     * Remove entry from the set of applications.
+     *
+     * @param name the name of application
+     * @return the entry removed or null if no such entry
+     */
+    private synchronized SarEntry removeEntry( final String name )
+    {
+        final SarEntry entry = (SarEntry)m_entries.get( name );
+        if( null != entry )
+        {
+            final Map entries = new HashMap( m_entries );
+            entries.remove( name );
+            m_entries = entries;
+        }
+        return entry;
+    }
+
     public Application getApplication( final String name )
     {
         final SarEntry entry = (SarEntry)m_entries.get( name );
@@ -309,7 +400,11 @@ public class DefaultKernel
             {
                 try
                 {
-                    final Application newApp = new DefaultApplication();
+                    final Application newApp =
+                        new DefaultApplication( m_phaseThreads,
+                                                m_listenerQueueSize,
+                                                m_discardListenerEvents,
+                                                m_blockMetrics );
                     final Logger childLogger =
                         getLogger().getChildLogger( name );
                     org.codehaus.dna.impl.ContainerUtil.enableLogging(
@@ -412,7 +507,7 @@ public class DefaultKernel
             new SarEntry( profile, homeDirectory,
                           workDirectory, classLoader,
                           store );
-        m_entries.put( name, entry );
+        putEntry( name, entry );
 
         try
         {
@@ -484,7 +579,7 @@ public class DefaultKernel
     public void removeApplication( final String name )
         throws Exception
     {
-        final SarEntry entry = (SarEntry)m_entries.remove( name );
+        final SarEntry entry = removeEntry( name );
         if( null == entry )
         {
             final String message =
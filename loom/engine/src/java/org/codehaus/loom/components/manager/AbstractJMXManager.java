@@ -86,13 +86,18 @@
  */
 package org.codehaus.loom.components.manager;
 
+import java.util.Map;
+import java.util.WeakHashMap;
 import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.modelmbean.ModelMBean;
+import javax.management.modelmbean.ModelMBeanInfo;
+import javax.management.modelmbean.RequiredModelMBean;
 
 import org.codehaus.loom.interfaces.ContainerConstants;
 import org.codehaus.loom.interfaces.LoomException;
-import org.codehaus.metaclass.jmx.MBeanBinder;
+import org.codehaus.metaclass.jmx.MBeanInfoBuilder;
 import org.codehaus.spice.salt.i18n.ResourceManager;
 import org.codehaus.spice.salt.i18n.Resources;
 
@@ -100,6 +105,11 @@ import org.codehaus.spice.salt.i18n.Resources;
 /**
  * An abstract class via which JMX Managers can extend.
  *
+ * <p>Objects are exported as ModelMBeans. The ModelMBeanInfo of each class
+ * is built from its metadata once and shared by every object of that class
+ * so that exporting many blocks of the same type does not repeat the
+ * introspection.</p>
+ *
  * @author Peter Donald
  * @author <a href="mailto:Huw@mmlive.com">Huw Roberts</a>
  * @version $Revision: 1.5 $ $Date: 2005-02-22 08:57:36 $
@@ -110,7 +120,17 @@ public abstract class AbstractJMXManager
     private static final Resources REZ =
         ResourceManager.getPackageResources( AbstractJMXManager.class );
 
-    private static final MBeanBinder BINDER = new MBeanBinder();
+    private static final MBeanInfoBuilder BUILDER = new MBeanInfoBuilder();
+
+    private static final String OBJECT_REFERENCE = "ObjectReference";
+
+    /**
+     * Map from Class to the ModelMBeanInfo built for it. Classes are only
+     * weakly referenced so that the classes of undeployed applications can
+     * be collected.
+     */
+    private static final Map c_infos = new WeakHashMap();
+
     private MBeanServer m_mBeanServer;
 
     public void initialize()
@@ -141,9 +161,10 @@ public abstract class AbstractJMXManager
     {
         try
         {
-            BINDER.bindMBean( object,
-                              createObjectName( name ),
-                              getMBeanServer() );
+            final ModelMBeanInfo info = getModelMBeanInfo( object.getClass() );
+            final ModelMBean mBean = new RequiredModelMBean( info );
+            mBean.setManagedResource( object, OBJECT_REFERENCE );
+            getMBeanServer().registerMBean( mBean, createObjectName( name ) );
             return object;
         }
         catch( final Exception e )
@@ -168,9 +189,7 @@ public abstract class AbstractJMXManager
     {
         try
         {
-            BINDER.unbindMBean( exportedObject,
-                                createObjectName( name ),
-                                getMBeanServer() );
+            getMBeanServer().unregisterMBean( createObjectName( name ) );
         }
         catch( final Exception e )
         {
@@ -192,6 +211,36 @@ public abstract class AbstractJMXManager
     protected abstract MBeanServer createMBeanServer()
         throws Exception;
 
+    /**
+     * Return a copy of the ModelMBeanInfo for specified class. The info is
+     * built the first time it is requested. A copy is returned as a
+     * ModelMBean may modify the descriptors in its info.
+     *
+     * @param type the class
+     * @return the ModelMBeanInfo
+     * @throws Exception if the info can not be built
+     */
+    private static ModelMBeanInfo getModelMBeanInfo( final Class type )
+        throws Exception
+    {
+        ModelMBeanInfo info;
+        synchronized( c_infos )
+        {
+            info = (ModelMBeanInfo)c_infos.get( type );
+        }
+        if( null == info )
+        {
+            //Built outside the lock as it can be slow. If two threads
+            //race then both build the info and one result is kept
+            info = BUILDER.buildMBeanInfo( type );
+            synchronized( c_infos )
+            {
+                c_infos.put( type, info );
+            }
+        }
+        return (ModelMBeanInfo)info.clone();
+    }
+
     /**
      * Create JMX name for object.
      *
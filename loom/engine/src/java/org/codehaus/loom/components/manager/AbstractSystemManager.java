@@ -87,23 +87,38 @@
 package org.codehaus.loom.components.manager;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import org.codehaus.dna.AbstractLogEnabled;
 import org.codehaus.dna.Active;
 import org.codehaus.loom.interfaces.LoomException;
 import org.codehaus.loom.interfaces.SystemManager;
+import org.codehaus.spice.salt.i18n.ResourceManager;
+import org.codehaus.spice.salt.i18n.Resources;
 
 /**
  * This is abstract implementation of SystemManager.
  *
+ * <p>Names are reserved while holding the lock on manager but objects are
+ * exported and unexported without it so that applications registering
+ * blocks concurrently do not wait upon each other.</p>
+ *
  * @author Peter Donald
  */
 public abstract class AbstractSystemManager
     extends AbstractLogEnabled
     implements SystemManager, Active
 {
+    private static final Resources REZ =
+        ResourceManager.getPackageResources( AbstractSystemManager.class );
+
+    /** Map from name to exported object. Guarded by this. */
     private final Map m_entries = new HashMap();
 
+    /** The names of objects being exported. Guarded by this. */
+    private final Set m_pending = new HashSet();
+
     private SubContext m_subContext;
 
     public void initialize()
@@ -120,29 +135,109 @@ public abstract class AbstractSystemManager
     /**
      * @see SystemManager#register(String, Object)
      */
-    public synchronized void register( final String name,
-                                       final Object object )
+    public void register( final String name,
+                          final Object object )
         throws LoomException, IllegalArgumentException
     {
-        checkRegister( name, object );
+        register( new String[]{name}, new Object[]{object} );
+    }
 
-        final Object exportedObject = export( name, object );
-        m_entries.put( name, exportedObject );
+    /**
+     * @see SystemManager#register(String[], Object[])
+     */
+    public void register( final String[] names,
+                          final Object[] objects )
+        throws LoomException, IllegalArgumentException
+    {
+        if( names.length != objects.length )
+        {
+            throw new IllegalArgumentException( "objects" );
+        }
+        reserve( names, objects );
+
+        final Object[] exported = new Object[ names.length ];
+        int count = 0;
+        try
+        {
+            for( ; count < names.length; count++ )
+            {
+                exported[ count ] = export( names[ count ], objects[ count ] );
+            }
+        }
+        finally
+        {
+            if( count != names.length )
+            {
+                //Remove the objects exported before the failure
+                for( int i = 0; i < count; i++ )
+                {
+                    unexportQuietly( names[ i ], exported[ i ] );
+                }
+            }
+            synchronized( this )
+            {
+                for( int i = 0; i < names.length; i++ )
+                {
+                    m_pending.remove( names[ i ] );
+                    if( count == names.length )
+                    {
+                        m_entries.put( names[ i ], exported[ i ] );
+                    }
+                }
+                notifyAll();
+            }
+        }
     }
 
     /**
      * @see SystemManager#unregister(String)
      */
-    public synchronized void unregister( final String name )
+    public void unregister( final String name )
         throws LoomException
     {
-        final Object entry = m_entries.remove( name );
-        if( null == entry )
+        unregister( new String[]{name} );
+    }
+
+    /**
+     * @see SystemManager#unregister(String[])
+     */
+    public void unregister( final String[] names )
+        throws LoomException
+    {
+        final Object[] entries = new Object[ names.length ];
+        synchronized( this )
         {
-            return;
+            for( int i = 0; i < names.length; i++ )
+            {
+                waitForExport( names[ i ] );
+                entries[ i ] = m_entries.remove( names[ i ] );
+            }
         }
 
-        unexport( name, entry );
+        //Every object is unexported even if an earlier one fails
+        LoomException failure = null;
+        for( int i = 0; i < names.length; i++ )
+        {
+            if( null == entries[ i ] )
+            {
+                continue;
+            }
+            try
+            {
+                unexport( names[ i ], entries[ i ] );
+            }
+            catch( final LoomException le )
+            {
+                if( null == failure )
+                {
+                    failure = le;
+                }
+            }
+        }
+        if( null != failure )
+        {
+            throw failure;
+        }
     }
 
     /**
@@ -161,7 +256,8 @@ public abstract class AbstractSystemManager
 
     /**
      * Export the object to the particular management medium using the supplied
-     * object and interfaces. This needs to be implemented by subclasses.
+     * object and interfaces. This needs to be implemented by subclasses and
+     * may be called concurrently for objects with different names.
      *
      * @param name the name of object
      * @param object the object
@@ -181,6 +277,33 @@ public abstract class AbstractSystemManager
     protected abstract void unexport( String name, Object exportedObject )
         throws LoomException;
 
+    /**
+     * Verify that the objects can be registered and reserve their names.
+     * Either all of the names are reserved or none of them are.
+     *
+     * @param names the names of objects
+     * @param objects the objects to be registered
+     * @throws LoomException if a name already exists
+     * @throws IllegalArgumentException if a name or object is null
+     */
+    private synchronized void reserve( final String[] names,
+                                       final Object[] objects )
+        throws LoomException, IllegalArgumentException
+    {
+        final Set reserved = new HashSet();
+        for( int i = 0; i < names.length; i++ )
+        {
+            checkRegister( names[ i ], objects[ i ] );
+            if( !reserved.add( names[ i ] ) )
+            {
+                final String message =
+                    REZ.format( "manager.error.register.exists", names[ i ] );
+                throw new LoomException( message );
+            }
+        }
+        m_pending.addAll( reserved );
+    }
+
     /**
      * Helper method to help check before an objects registration. Verifies name
      * and object are not null and verifies no entry exists using name.
@@ -202,11 +325,48 @@ public abstract class AbstractSystemManager
             throw new NullPointerException( "name" );
         }
 
-        if( null != m_entries.get( name ) )
+        if( null != m_entries.get( name ) || m_pending.contains( name ) )
         {
-            final String message = name +
-                " already registered in SystemManager";
+            final String message =
+                REZ.format( "manager.error.register.exists", name );
             throw new LoomException( message );
         }
     }
+
+    /**
+     * Wait until named object is no longer being exported. The caller must
+     * hold the lock on manager.
+     */
+    private void waitForExport( final String name )
+        throws LoomException
+    {
+        while( m_pending.contains( name ) )
+        {
+            try
+            {
+                wait();
+            }
+            catch( final InterruptedException ie )
+            {
+                Thread.currentThread().interrupt();
+                throw new LoomException( ie.getMessage(), ie );
+            }
+        }
+    }
+
+    /**
+     * Unexport an object after a failed registration, logging any error.
+     */
+    private void unexportQuietly( final String name,
+                                  final Object exportedObject )
+    {
+        try
+        {
+            unexport( name, exportedObject );
+        }
+        catch( final LoomException le )
+        {
+            getLogger().warn( le.getMessage(), le );
+        }
+    }
 }
@@ -152,6 +152,21 @@ class SubContext
         m_parent.register( jmxName( name ), object );
     }
 
+    /**
+     * Register a set of objects for management.
+     *
+     * @param names the names to register objects under
+     * @param objects the objects in the same order as names
+     * @throws LoomException if an error occurs such as a name already
+     * registered.
+     * @throws IllegalArgumentException if an object is null
+     */
+    public void register( final String[] names, final Object[] objects )
+        throws LoomException, IllegalArgumentException
+    {
+        m_parent.register( jmxNames( names ), objects );
+    }
+
     /**
      * Unregister named object.
      *
@@ -165,6 +180,18 @@ class SubContext
         m_parent.unregister( jmxName( name ) );
     }
 
+    /**
+     * Unregister a set of named objects.
+     *
+     * @param names the names of objects to unregister
+     * @throws LoomException if an error occurs unregistering an object
+     */
+    public void unregister( final String[] names )
+        throws LoomException
+    {
+        m_parent.unregister( jmxNames( names ) );
+    }
+
     /**
      * Returns the subcontext of the specified name.  If it does not exist it is
      * created.
@@ -172,8 +199,8 @@ class SubContext
      * @return the subcontext with the specified name
      * @throws LoomException if context cannot be created or retrieved
      */
-    public SystemManager getSubContext( final String name,
-                                        final String type )
+    public synchronized SystemManager getSubContext( final String name,
+                                                     final String type )
         throws LoomException
     {
         if( null == type || EMPTY_STRING.equals( type ) )
@@ -226,6 +253,19 @@ class SubContext
         return sb.toString();
     }
 
+    /**
+     * Helper method used to generate the jmx names of a set of objects.
+     */
+    private String[] jmxNames( final String[] names )
+    {
+        final String[] jmxNames = new String[ names.length ];
+        for( int i = 0; i < names.length; i++ )
+        {
+            jmxNames[ i ] = jmxName( names[ i ] );
+        }
+        return jmxNames;
+    }
+
     /**
      * Helper method to get key used to store subcontexts in m_subcontexts
      */
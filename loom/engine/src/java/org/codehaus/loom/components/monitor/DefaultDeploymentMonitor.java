@@ -137,6 +137,12 @@ public class DefaultDeploymentMonitor
     /** Frequency to poll the directory */
     private long m_frequency;
 
+    /** Time that a changed archive must be unchanged before it is used */
+    private long m_settleTime;
+
+    /** Maximum number of applications deployed at the same time on startup */
+    private int m_deploymentThreads;
+
     /**
      * Configure the class
      * <br/>
@@ -145,6 +151,17 @@ public class DefaultDeploymentMonitor
      * mandatory. If no <code>scanner-frequency</code> is given it defaults
      * to 5, which means five seconds. If the value is zero or negative five
      * seconds will also be used as the default.
+     * <br/>
+     * The optional <code>scanner-settle-time</code> parameter is the number
+     * of seconds that the size and modification time of an added or
+     * changed archive must stay the same before it is deployed. This
+     * stops an archive that is still being copied from being deployed.
+     * It defaults to 1. Zero deploys archives as soon as they are seen.
+     * <br/>
+     * The optional <code>deployment-threads</code> parameter is the number
+     * of applications that are deployed at the same time when the monitor
+     * starts. It defaults to 1 which deploys applications one at a time in
+     * alphabetical order.
      *
      * @param configuration The configuration object
      */
@@ -158,6 +175,31 @@ public class DefaultDeploymentMonitor
             m_frequency = 5000L;
         }
 
+        final long settleTime =
+          configuration.getChild( "scanner-settle-time" ).getValueAsLong( 1L );
+        if( settleTime < 0 )
+        {
+            final String message =
+              REZ.format( "monitor.bad-settle-time.error",
+                          new Long( settleTime ) );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+        m_settleTime = 1000L * settleTime;
+
+        m_deploymentThreads =
+          configuration.getChild( "deployment-threads" ).getValueAsInteger( 1 );
+        if( m_deploymentThreads < 1 )
+        {
+            final String message =
+              REZ.format( "monitor.bad-deployment-threads.error",
+                          new Integer( m_deploymentThreads ) );
+            throw new ConfigurationException( message,
+                                              configuration.getPath(),
+                                              configuration.getLocation() );
+        }
+
         final String appsDir =
           configuration.getChild( "base-application-directory" ).getValue();
         m_appsDir = new File( appsDir );
@@ -184,6 +226,7 @@ public class DefaultDeploymentMonitor
         m_scanner = new DirectoryScanner();
         m_scanner.setDirectory( m_appsDir.getPath() );
         m_scanner.setFrequency( m_frequency );
+        m_scanner.setSettleTime( m_settleTime );
         m_scanner.setDirectoryChangeListener( this );
         m_scanner.start();
     }
@@ -387,10 +430,50 @@ public class DefaultDeploymentMonitor
         throws Exception
     {
         Arrays.sort( files );
-        for( int i = 0; i < files.length; i++ )
+        final int threadCount = Math.min( m_deploymentThreads, files.length );
+        if( threadCount <= 1 )
+        {
+            for( int i = 0; i < files.length; i++ )
+            {
+                final File file = files[i];
+                deployApplication( file );
+            }
+            return;
+        }
+
+        //Each thread deploys the next file that has not already been
+        //taken. Failures are logged by deployApplication so one bad
+        //application does not stop the others from being deployed.
+        final int[] next = new int[ 1 ];
+        final Runnable runnable = new Runnable()
+        {
+            public void run()
+            {
+                while( true )
+                {
+                    final int index;
+                    synchronized( next )
+                    {
+                        if( next[ 0 ] >= files.length )
+                        {
+                            return;
+                        }
+                        index = next[ 0 ]++;
+                    }
+                    deployApplication( files[ index ] );
+                }
+            }
+        };
+
+        final Thread[] threads = new Thread[ threadCount ];
+        for( int i = 0; i < threads.length; i++ )
+        {
+            threads[ i ] = new Thread( runnable, "loom-deployer-" + i );
+            threads[ i ].start();
+        }
+        for( int i = 0; i < threads.length; i++ )
         {
-            final File file = files[i];
-            deployApplication( file );
+            threads[ i ].join();
         }
     }
 }
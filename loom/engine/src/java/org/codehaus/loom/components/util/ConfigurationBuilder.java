@@ -8,6 +8,10 @@
 package org.codehaus.loom.components.util;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
@@ -27,6 +31,7 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Utility class used to load Configuration trees from XML files.
@@ -38,9 +43,27 @@ public class ConfigurationBuilder
 {
     public static final String ASSEMBLY_SCHEMA = "-//LOOM/Assembly DTD Version 1.0//EN";
 
+    /** The maximum number of idle readers kept for reuse. */
+    private static final int MAX_IDLE_READERS = 8;
+
+    /** The handler set on readers while they are idle. */
+    private static final DefaultHandler IDLE_HANDLER = new DefaultHandler();
+
     /** The resolver that builder uses. */
     private static EntityResolver c_resolver;
 
+    /** The factory used to create readers. */
+    private static SAXParserFactory c_parserFactory;
+
+    /** The readers that are not currently parsing a document. */
+    private static final List c_readers = new ArrayList();
+
+    /**
+     * Map from public id of schema to the compiled {@link ConfigValidator}.
+     * Validators are safe to share as each validation uses its own state.
+     */
+    private static final Map c_validators = new HashMap();
+
     /**
      * Build a configuration object using an XML InputSource object, and
      * optionally validate the xml against the DTD.
@@ -54,28 +77,16 @@ public class ConfigurationBuilder
         final SAXConfigurationHandler handler = new SAXConfigurationHandler();
         if( null == publicId )
         {
-            final SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
-            saxParserFactory.setNamespaceAware( false );
-            final SAXParser saxParser = saxParserFactory.newSAXParser();
-            final XMLReader reader = saxParser.getXMLReader();
-            reader.setEntityResolver( c_resolver );
+            final XMLReader reader = acquireReader();
             reader.setContentHandler( handler );
             reader.setErrorHandler( handler );
             reader.parse( input );
+            //Only readers that completed a parse are known to be reusable
+            releaseReader( reader );
         }
         else
         {
-            final InputSource inputSource = c_resolver.resolveEntity( publicId,
-                                                                      null );
-            if( null == inputSource )
-            {
-                final String message = "Unable to locate schema with publicID=" +
-                    publicId;
-                throw new IllegalStateException( message );
-            }
-
-            final ConfigValidator validator =
-                ConfigValidatorFactory.create( inputSource, c_resolver );
+            final ConfigValidator validator = getValidator( publicId );
             final ValidationResult result = validator.validate( input,
                                                                 (ContentHandler)handler );
             processValidationResults( result, logger );
@@ -123,7 +134,94 @@ public class ConfigurationBuilder
         }
     }
 
-    private static void setupResolver()
+    /**
+     * Return the validator for the schema with specified public id,
+     * compiling the schema the first time it is used.
+     */
+    private static ConfigValidator getValidator( final String publicId )
+        throws Exception
+    {
+        synchronized( c_validators )
+        {
+            final ConfigValidator cached =
+                (ConfigValidator)c_validators.get( publicId );
+            if( null != cached )
+            {
+                return cached;
+            }
+        }
+
+        final InputSource inputSource = c_resolver.resolveEntity( publicId,
+                                                                  null );
+        if( null == inputSource )
+        {
+            final String message = "Unable to locate schema with publicID=" +
+                publicId;
+            throw new IllegalStateException( message );
+        }
+
+        //Schemas are compiled outside the lock so that a slow schema does not
+        //hold up documents using other schemas. If two threads compile the
+        //same schema at once then the first validator is kept.
+        final ConfigValidator validator =
+            ConfigValidatorFactory.create( inputSource, c_resolver );
+        synchronized( c_validators )
+        {
+            final ConfigValidator cached =
+                (ConfigValidator)c_validators.get( publicId );
+            if( null != cached )
+            {
+                return cached;
+            }
+            c_validators.put( publicId, validator );
+            return validator;
+        }
+    }
+
+    /**
+     * Return an idle reader or create a new one if there are none.
+     */
+    private static XMLReader acquireReader()
+        throws ParserConfigurationException, SAXException
+    {
+        synchronized( c_readers )
+        {
+            final int size = c_readers.size();
+            if( 0 != size )
+            {
+                return (XMLReader)c_readers.remove( size - 1 );
+            }
+        }
+
+        final SAXParser saxParser;
+        synchronized( c_parserFactory )
+        {
+            saxParser = c_parserFactory.newSAXParser();
+        }
+        final XMLReader reader = saxParser.getXMLReader();
+        reader.setEntityResolver( c_resolver );
+        return reader;
+    }
+
+    /**
+     * Return reader to the idle readers unless there are already enough.
+     */
+    private static void releaseReader( final XMLReader reader )
+    {
+        //Drop the handler so the idle reader does not hold onto the
+        //configuration it last built
+        reader.setContentHandler( IDLE_HANDLER );
+        reader.setErrorHandler( IDLE_HANDLER );
+        synchronized( c_readers )
+        {
+            if( c_readers.size() < MAX_IDLE_READERS )
+            {
+                c_readers.add( reader );
+            }
+        }
+    }
+
+    private static synchronized void setupResolver()
         throws ParserConfigurationException, SAXException, IOException
     {
         if( null == c_resolver )
@@ -132,5 +230,10 @@ public class ConfigurationBuilder
             ResolverFactory.createResolver(
                 ConfigurationBuilder.class.getClassLoader() );
         }
+        if( null == c_parserFactory )
+        {
+            c_parserFactory = SAXParserFactory.newInstance();
+            c_parserFactory.setNamespaceAware( false );
+        }
     }
 }
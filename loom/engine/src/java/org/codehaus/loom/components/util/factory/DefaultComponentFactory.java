@@ -7,12 +7,14 @@
  */
 package org.codehaus.loom.components.util.factory;
 
+import java.io.File;
 import java.util.Map;
 import java.util.WeakHashMap;
 
 import org.codehaus.dna.Logger;
 import org.codehaus.loom.components.util.info.ComponentInfo;
 import org.codehaus.loom.components.util.infobuilder.BlockInfoReader;
+import org.codehaus.loom.components.util.infobuilder.CachingBlockInfoReader;
 import org.codehaus.loom.components.util.infobuilder.CascadingBlockInfoReader;
 
 /**
@@ -46,6 +48,21 @@ public class DefaultComponentFactory
      * @param logger      the logger to use for the BlockInfoReader
      */
     public DefaultComponentFactory( final ClassLoader classLoader, final Logger logger )
+    {
+        this( classLoader, logger, null );
+    }
+
+    /**
+     * Create a Factory that loads from specified ClassLoader and caches
+     * the info of components in specified directory.
+     *
+     * @param classLoader the classLoader to use in factory, must not be null
+     * @param logger      the logger to use for the BlockInfoReader
+     * @param infoCache   the directory to cache info in, or null to not cache
+     */
+    public DefaultComponentFactory( final ClassLoader classLoader,
+                                    final Logger logger,
+                                    final File infoCache )
     {
         if( null == classLoader )
         {
@@ -57,7 +74,20 @@ public class DefaultComponentFactory
         }
 
         m_classLoader = classLoader;
-        m_blockInfoReader = new CascadingBlockInfoReader( classLoader, logger );
+        final BlockInfoReader reader =
+            new CascadingBlockInfoReader( classLoader, logger );
+        if( null == infoCache )
+        {
+            m_blockInfoReader = reader;
+        }
+        else
+        {
+            m_blockInfoReader =
+                new CachingBlockInfoReader( classLoader,
+                                            reader,
+                                            infoCache,
+                                            logger );
+        }
     }
 
     /**
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.util.infobuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.codehaus.dna.AbstractLogEnabled;
+import org.codehaus.dna.Logger;
+import org.codehaus.loom.components.util.info.ComponentInfo;
+import org.codehaus.loom.components.util.info.DependencyDescriptor;
+import org.codehaus.loom.components.util.info.SchemaDescriptor;
+import org.codehaus.loom.components.util.info.ServiceDescriptor;
+import org.codehaus.spice.salt.i18n.ResourceManager;
+import org.codehaus.spice.salt.i18n.Resources;
+
+/**
+ * A BlockInfoReader that stores the ComponentInfo built by another reader
+ * in a directory so that it does not need to be built again. Each entry is
+ * keyed by a digest of the class name and of the resources that the info
+ * is built from, ie the .class, .xinfo and -meta.binary resources of the
+ * class and the .class and -meta.binary resources of its superclasses. An
+ * entry is therefore shared by every application that contains the same
+ * class and is ignored as soon as any of those resources change.
+ *
+ * <p>Entries are stored in a compact binary form. Failure to read or write
+ * an entry is logged and the info is built by the other reader.</p>
+ *
+ * <p>Each time an entry is used its modification time is updated. The
+ * container calls {@link #prune} when it starts to delete the entries
+ * that were not used since it last started, so entries for classes that
+ * have changed or are no longer deployed do not accumulate.</p>
+ *
+ * @author Peter Donald
+ */
+public class CachingBlockInfoReader
+    extends AbstractLogEnabled
+    implements BlockInfoReader
+{
+    private static final Resources REZ =
+        ResourceManager.getPackageResources( CachingBlockInfoReader.class );
+
+    ///Identifies the format of entries
+    private static final int MAGIC = 0x4c4d4901;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    ///The file whose modification time is when the directory was pruned
+    private static final String PRUNED_FILE = "pruned";
+
+    ///The ClassLoader that resources are loaded from
+    private final ClassLoader m_classLoader;
+
+    ///The reader used to build info that is not in cache
+    private final BlockInfoReader m_reader;
+
+    ///The directory containing entries
+    private final File m_directory;
+
+    /**
+     * Create a reader that caches info in specified directory.
+     *
+     * @param classLoader the ClassLoader that resources are loaded from
+     * @param reader the reader used to build info that is not in cache
+     * @param directory the directory containing entries
+     * @param logger the logger
+     */
+    public CachingBlockInfoReader( final ClassLoader classLoader,
+                                   final BlockInfoReader reader,
+                                   final File directory,
+                                   final Logger logger )
+    {
+        if( null == classLoader )
+        {
+            throw new NullPointerException( "classLoader" );
+        }
+        else if( null == reader )
+        {
+            throw new NullPointerException( "reader" );
+        }
+        else if( null == directory )
+        {
+            throw new NullPointerException( "directory" );
+        }
+        else if( null == logger )
+        {
+            throw new NullPointerException( "logger" );
+        }
+        enableLogging( logger );
+        m_classLoader = classLoader;
+        m_reader = reader;
+        m_directory = directory;
+    }
+
+    /**
+     * Delete the entries in specified directory that have not been used
+     * since the directory was last pruned.
+     *
+     * @param directory the directory containing entries
+     * @return the number of entries deleted
+     * @throws IOException if unable to record when directory was pruned
+     */
+    public static int prune( final File directory )
+        throws IOException
+    {
+        if( !directory.isDirectory() && !directory.mkdirs() &&
+            !directory.isDirectory() )
+        {
+            throw new IOException( "Unable to create " + directory );
+        }
+
+        final File marker = new File( directory, PRUNED_FILE );
+        final long pruned = marker.lastModified();
+        int count = 0;
+        if( 0 != pruned )
+        {
+            final File[] files = directory.listFiles();
+            for( int i = 0; null != files && i < files.length; i++ )
+            {
+                final File file = files[ i ];
+                final String name = file.getName();
+                if( ( name.endsWith( ".info" ) || name.endsWith( ".tmp" ) ) &&
+                    file.lastModified() < pruned &&
+                    file.delete() )
+                {
+                    count++;
+                }
+            }
+        }
+
+        if( !marker.createNewFile() &&
+            !marker.setLastModified( System.currentTimeMillis() ) )
+        {
+            throw new IOException( "Unable to update " + marker );
+        }
+        return count;
+    }
+
+    public ComponentInfo buildComponentInfo( final Class type )
+        throws Exception
+    {
+        final File file;
+        try
+        {
+            file = new File( m_directory, getKey( type ) + ".info" );
+        }
+        catch( final IOException ioe )
+        {
+            warn( "info-cache.read-failed.warning", type, ioe );
+            return m_reader.buildComponentInfo( type );
+        }
+
+        if( file.isFile() )
+        {
+            try
+            {
+                final ComponentInfo info = read( type, file );
+                file.setLastModified( System.currentTimeMillis() );
+                return info;
+            }
+            catch( final IOException ioe )
+            {
+                warn( "info-cache.read-failed.warning", type, ioe );
+            }
+        }
+
+        final ComponentInfo info = m_reader.buildComponentInfo( type );
+        if( null != info )
+        {
+            try
+            {
+                write( info, file );
+            }
+            catch( final IOException ioe )
+            {
+                warn( "info-cache.write-failed.warning", type, ioe );
+            }
+        }
+        return info;
+    }
+
+    /**
+     * Return the key of entry for specified type.
+     */
+    private String getKey( final Class type )
+        throws IOException
+    {
+        final MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "MD5" );
+        }
+        catch( final NoSuchAlgorithmException nsae )
+        {
+            throw new IOException( nsae.getMessage() );
+        }
+
+        digest.update( type.getName().getBytes( "UTF-8" ) );
+        final String base = type.getName().replace( '.', '/' );
+        update( digest, base + ".xinfo" );
+
+        Class clazz = type;
+        while( null != clazz && null != clazz.getClassLoader() )
+        {
+            final String name = clazz.getName().replace( '.', '/' );
+            update( digest, name + ".class" );
+            update( digest, name + "-meta.binary" );
+            clazz = clazz.getSuperclass();
+        }
+
+        final byte[] bytes = digest.digest();
+        final char[] key = new char[ bytes.length * 2 ];
+        for( int i = 0; i < bytes.length; i++ )
+        {
+            key[ i * 2 ] = HEX[ ( bytes[ i ] >> 4 ) & 0xf ];
+            key[ i * 2 + 1 ] = HEX[ bytes[ i ] & 0xf ];
+        }
+        return new String( key );
+    }
+
+    /**
+     * Add the contents of specified resource to digest. A resource that is
+     * not present is recorded as such so that adding it changes the key.
+     */
+    private void update( final MessageDigest digest, final String resource )
+        throws IOException
+    {
+        final InputStream input = m_classLoader.getResourceAsStream( resource );
+        if( null == input )
+        {
+            digest.update( (byte)0 );
+            return;
+        }
+        try
+        {
+            digest.update( (byte)1 );
+            final byte[] buffer = new byte[ 4096 ];
+            int count = input.read( buffer );
+            while( -1 != count )
+            {
+                digest.update( buffer, 0, count );
+                count = input.read( buffer );
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private ComponentInfo read( final Class type, final File file )
+        throws IOException
+    {
+        final DataInputStream input =
+            new DataInputStream(
+                new BufferedInputStream( new FileInputStream( file ) ) );
+        try
+        {
+            if( MAGIC != input.readInt() ||
+                !type.getName().equals( input.readUTF() ) )
+            {
+                throw new IOException( "Bad entry " + file );
+            }
+
+            final ServiceDescriptor[] services =
+                new ServiceDescriptor[ input.readInt() ];
+            for( int i = 0; i < services.length; i++ )
+            {
+                services[ i ] = new ServiceDescriptor( input.readUTF() );
+            }
+
+            final DependencyDescriptor[] dependencies =
+                new DependencyDescriptor[ input.readInt() ];
+            for( int i = 0; i < dependencies.length; i++ )
+            {
+                final String key = input.readUTF();
+                final String dependencyType = input.readUTF();
+                final boolean optional = input.readBoolean();
+                dependencies[ i ] =
+                    new DependencyDescriptor( key, dependencyType, optional );
+            }
+
+            SchemaDescriptor schema = null;
+            if( input.readBoolean() )
+            {
+                final String location = readString( input );
+                final String schemaType = readString( input );
+                schema = new SchemaDescriptor( location, schemaType );
+            }
+            return new ComponentInfo( type, services, dependencies, schema );
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Write entry to a temporary file and then rename it so that other
+     * readers never see a partially written entry.
+     */
+    private void write( final ComponentInfo info, final File file )
+        throws IOException
+    {
+        if( !m_directory.isDirectory() && !m_directory.mkdirs() &&
+            !m_directory.isDirectory() )
+        {
+            throw new IOException( "Unable to create " + m_directory );
+        }
+        final File temp = File.createTempFile( "info", ".tmp", m_directory );
+        try
+        {
+            final DataOutputStream output =
+                new DataOutputStream(
+                    new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            try
+            {
+                output.writeInt( MAGIC );
+                output.writeUTF( info.getType().getName() );
+
+                final ServiceDescriptor[] services = info.getServices();
+                output.writeInt( services.length );
+                for( int i = 0; i < services.length; i++ )
+                {
+                    output.writeUTF( services[ i ].getType() );
+                }
+
+                final DependencyDescriptor[] dependencies =
+                    info.getDependencies();
+                output.writeInt( dependencies.length );
+                for( int i = 0; i < dependencies.length; i++ )
+                {
+                    final DependencyDescriptor dependency = dependencies[ i ];
+                    output.writeUTF( dependency.getKey() );
+                    output.writeUTF( dependency.getType() );
+                    output.writeBoolean( dependency.isOptional() );
+                }
+
+                final SchemaDescriptor schema = info.getConfigurationSchema();
+                output.writeBoolean( null != schema );
+                if( null != schema )
+                {
+                    writeString( output, schema.getLocation() );
+                    writeString( output, schema.getType() );
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+
+            //Another application may have written the same entry first
+            if( !temp.renameTo( file ) && !file.isFile() )
+            {
+                throw new IOException( "Unable to rename " + temp +
+                                       " to " + file );
+            }
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    private static String readString( final DataInputStream input )
+        throws IOException
+    {
+        if( input.readBoolean() )
+        {
+            return input.readUTF();
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    private static void writeString( final DataOutputStream output,
+                                     final String value )
+        throws IOException
+    {
+        output.writeBoolean( null != value );
+        if( null != value )
+        {
+            output.writeUTF( value );
+        }
+    }
+
+    private void warn( final String key,
+                       final Class type,
+                       final IOException ioe )
+    {
+        final String message =
+            REZ.format( key, type.getName(), ioe.getMessage() );
+        getLogger().warn( message, ioe );
+    }
+}
@@ -19,12 +19,28 @@ import java.util.Set;
  * If changes are detected it will notify its
  * <code>DirectoryChangeListener</code>.
  *
+ * <p>The contents of the directory are only listed when the modification
+ * time of the directory itself has changed, as happens when a file is
+ * added, removed or renamed. Otherwise only the files already known are
+ * checked, which is enough to see files being modified in place.</p>
+ *
+ * <p>If a settle time is set then an added or modified file is only
+ * reported once its size and modification time have stayed the same for
+ * that long. This keeps a file that is still being copied into the
+ * directory from being reported before it is complete.</p>
+ *
  * @author Johan Sjoberg
  * @author Peter Donald
  * @version $Revision: 1.5 $ $Date: 2004-12-04 10:45:31 $
  */
 public class DirectoryScanner implements Runnable
 {
+    /**
+     * The coarsest resolution of modification times on the file systems
+     * we expect to run on (FAT stores times to two seconds).
+     */
+    private static final long TIME_RESOLUTION = 2000L;
+
     /** The monitor thread  */
     private final Thread m_monitorThread = new Thread( this );
 
@@ -34,6 +50,9 @@ public class DirectoryScanner implements Runnable
     /** Poll frequency */
     private long m_frequency = 1000L * 5L;
 
+    /** Time that a change must be stable for before it is reported */
+    private long m_settleTime;
+
     /** Priority of the monitor thread */
     private int m_priority = Thread.NORM_PRIORITY;
 
@@ -46,11 +65,17 @@ public class DirectoryScanner implements Runnable
     /** The directory to monitor */
     private File m_directory;
 
-    /** Files in the monitored directory */
-    private Set m_files;
+    /** Modification time of directory when it was last listed */
+    private long m_directoryModified;
 
-    /** File modification times */
-    private Map m_times;
+    /** Time that directory was last listed */
+    private long m_listTime;
+
+    /** Number of times directory has been listed */
+    private int m_listCount;
+
+    /** Map from File to the {@link FileState} of file */
+    private final Map m_states = new HashMap();
 
     /**
      * Set the directory to be scanned.
@@ -67,14 +92,18 @@ public class DirectoryScanner implements Runnable
               "Argument [" + path + "] doesn't seem to be a directory.";
             throw new IllegalArgumentException( message );
         }
-        m_files = new HashSet();
-        m_times = new HashMap();
+        m_states.clear();
+        m_listTime = System.currentTimeMillis();
+        m_directoryModified = m_directory.lastModified();
         final File[] files = m_directory.listFiles();
         for( int i = 0; i < files.length; i++ )
         {
             final File file = files[i];
-            m_files.add( file );
-            m_times.put( file, new Long( file.lastModified() ) );
+            final FileState state = new FileState();
+            state.m_size = file.length();
+            state.m_lastModified = file.lastModified();
+            state.m_known = true;
+            m_states.put( file, state );
         }
         m_lastModified = System.currentTimeMillis();
     }
@@ -100,6 +129,18 @@ public class DirectoryScanner implements Runnable
         m_frequency = frequency;
     }
 
+    /**
+     * Set the time that the size and modification time of an added or
+     * modified file must stay the same before the change is reported.
+     * A settle time of 0 reports changes as soon as they are seen.
+     *
+     * @param settleTime The settle time in milliseconds
+     */
+    public void setSettleTime( final long settleTime )
+    {
+        m_settleTime = settleTime;
+    }
+
     /**
      * Start the background thread
      */
@@ -152,91 +193,202 @@ public class DirectoryScanner implements Runnable
             return;
         }
 
-        final File[] files = m_directory.listFiles();
-
-        // This will be true if there is an IOException,
-        // or if the directory dissapears. Both reasons
-        // to not remove appslications :) -- PR
-        if( null == files )
+        if( !isListingCurrent() || !checkKnownFiles() )
         {
-            m_directoryChangeListener.unableToListContents();
-        }
-        else
-        {
-            final HashSet existingFiles = new HashSet();
-            final HashSet modifiedFiles = new HashSet();
-            final HashSet addedFiles = new HashSet();
-            final int fileCount = files.length;
+            final long directoryModified = m_directory.lastModified();
+            final File[] files = m_directory.listFiles();
 
+            // This will be true if there is an IOException,
+            // or if the directory dissapears. Both reasons
+            // to not remove appslications :) -- PR
+            if( null == files )
+            {
+                m_directoryChangeListener.unableToListContents();
+                return;
+            }
+            m_listCount++;
+            m_listTime = System.currentTimeMillis();
+            m_directoryModified = directoryModified;
             for( int i = 0; i < files.length; i++ )
             {
-                final File file = files[i];
-                final long newModTime = file.lastModified();
-                if( m_files.contains( file ) )
+                final File file = files[ i ];
+                FileState state = (FileState)m_states.get( file );
+                if( null == state )
                 {
-                    existingFiles.add( file );
-                    final Long oldModTime = (Long)m_times.get( file );
-                    if( oldModTime.longValue() != newModTime )
-                    {
-                        modifiedFiles.add( file );
-                    }
+                    state = new FileState();
+                    m_states.put( file, state );
                 }
-                else
-                {
-                    addedFiles.add( file );
-                }
-                m_times.put( file, new Long( newModTime ) );
+                state.m_listCount = m_listCount;
+                state.m_currentSize = file.length();
+                state.m_currentModified = file.lastModified();
             }
+        }
+
+        notifyChanges( time );
+    }
 
-            final int lastCount = m_files.size();
-            final int addedCount = addedFiles.size();
-            final int modifiedCount = modifiedFiles.size();
+    /**
+     * Return true if no files can have been added to or removed from the
+     * directory since it was last listed. This is the case when the
+     * directory has not been modified since then and it was listed late
+     * enough after its last modification that a later one would have
+     * given it a different modification time.
+     */
+    private boolean isListingCurrent()
+    {
+        return m_directory.lastModified() == m_directoryModified &&
+          m_listTime - m_directoryModified > TIME_RESOLUTION;
+    }
 
-            // If no new files have been added and none
-            // deleted then there is nothing to do.
-            if( fileCount == lastCount && 0 == addedCount && 0 == modifiedCount )
+    /**
+     * Read the size and modification time of all the files already seen.
+     *
+     * @return false if one of the files has disappeared, in which case the
+     *         directory needs to be listed again
+     */
+    private boolean checkKnownFiles()
+    {
+        final Iterator iterator = m_states.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final File file = (File)entry.getKey();
+            final FileState state = (FileState)entry.getValue();
+            final long lastModified = file.lastModified();
+            if( 0 == lastModified && !file.exists() )
             {
-                return;
+                return false;
             }
+            state.m_listCount = m_listCount;
+            state.m_currentSize = file.length();
+            state.m_currentModified = lastModified;
+        }
+        return true;
+    }
 
-            final HashSet deletedFiles = new HashSet();
+    /**
+     * Compare the state of each file read in the current scan with the
+     * state last reported and notify the listener of the changes that have
+     * settled.
+     */
+    private void notifyChanges( final long time )
+    {
+        Set addedFiles = null;
+        Set deletedFiles = null;
+        Set modifiedFiles = null;
 
-            // If only new files were added and none were changed
-            // then we don't have to scan for deleted files.
-            if( fileCount != lastCount + addedCount )
+        final Iterator iterator = m_states.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            final Map.Entry entry = (Map.Entry)iterator.next();
+            final File file = (File)entry.getKey();
+            final FileState state = (FileState)entry.getValue();
+            if( state.m_listCount != m_listCount )
             {
-                final Iterator iterator = m_files.iterator();
-                while( iterator.hasNext() )
+                iterator.remove();
+                if( state.m_known )
                 {
-                    final File file = (File)iterator.next();
-                    if( !existingFiles.contains( file ) )
-                    {
-                        deletedFiles.add( file );
-                        m_times.remove( file );
-                    }
+                    deletedFiles = add( deletedFiles, file );
                 }
             }
-
-            final int deletedCount = deletedFiles.size();
-
-            if( 0 != addedCount )
-            {
-                m_directoryChangeListener.directoryChange(
-                  DirectoryChangeListener.ADDITION, addedFiles );
-            }
-            if( 0 != deletedCount )
+            else if( state.m_known &&
+              state.m_currentSize == state.m_size &&
+              state.m_currentModified == state.m_lastModified )
             {
-                m_directoryChangeListener.directoryChange(
-                  DirectoryChangeListener.REMOVAL, deletedFiles );
+                state.m_changed = false;
             }
-            if( 0 != modifiedCount )
+            else if( isSettled( state, time ) )
             {
-                m_directoryChangeListener.directoryChange(
-                  DirectoryChangeListener.MODIFICATION, modifiedFiles );
+                if( state.m_known )
+                {
+                    modifiedFiles = add( modifiedFiles, file );
+                }
+                else
+                {
+                    addedFiles = add( addedFiles, file );
+                }
+                state.m_known = true;
+                state.m_changed = false;
+                state.m_size = state.m_currentSize;
+                state.m_lastModified = state.m_currentModified;
             }
+        }
 
-            existingFiles.addAll( addedFiles );
-            m_files = existingFiles;
+        if( null != addedFiles )
+        {
+            m_directoryChangeListener.directoryChange(
+              DirectoryChangeListener.ADDITION, addedFiles );
+        }
+        if( null != deletedFiles )
+        {
+            m_directoryChangeListener.directoryChange(
+              DirectoryChangeListener.REMOVAL, deletedFiles );
+        }
+        if( null != modifiedFiles )
+        {
+            m_directoryChangeListener.directoryChange(
+              DirectoryChangeListener.MODIFICATION, modifiedFiles );
         }
     }
+
+    /**
+     * Return true if the change to a file has not been followed by any
+     * other change for at least the settle time.
+     */
+    private boolean isSettled( final FileState state, final long time )
+    {
+        if( !state.m_changed ||
+          state.m_currentSize != state.m_changedSize ||
+          state.m_currentModified != state.m_changedModified )
+        {
+            state.m_changed = true;
+            state.m_changedSize = state.m_currentSize;
+            state.m_changedModified = state.m_currentModified;
+            state.m_changedTime = time;
+        }
+        return time - state.m_changedTime >= m_settleTime;
+    }
+
+    private static Set add( final Set set, final File file )
+    {
+        final Set result = ( null == set ) ? new HashSet() : set;
+        result.add( file );
+        return result;
+    }
+
+    /**
+     * The state of a file in the directory.
+     */
+    private static final class FileState
+    {
+        /** True if the listener has been told about the file */
+        boolean m_known;
+
+        /** Size that was last reported */
+        long m_size;
+
+        /** Modification time that was last reported */
+        long m_lastModified;
+
+        /** The listing in which file was last seen */
+        int m_listCount;
+
+        /** Size read in current scan */
+        long m_currentSize;
+
+        /** Modification time read in current scan */
+        long m_currentModified;
+
+        /** True if an unreported change is waiting to settle */
+        boolean m_changed;
+
+        /** Size when the change was first seen */
+        long m_changedSize;
+
+        /** Modification time when the change was first seen */
+        long m_changedModified;
+
+        /** Time when the change was first seen */
+        long m_changedTime;
+    }
 }
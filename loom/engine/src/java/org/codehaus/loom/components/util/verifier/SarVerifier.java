@@ -107,6 +107,9 @@ import org.codehaus.dna.Logger;
  * specified Services.</li> <li>Verify that the Class objects for BlockListeners support the BlockListener
  * interface.</li> </ul>
  *
+ * <p>The verifier holds no state other than its logger so one instance may
+ * verify several Sars at the same time.</p>
+ *
  * @author Peter Donald
  * @version $Revision: 1.4 $ $Date: 2005-02-22 08:57:36 $
  */
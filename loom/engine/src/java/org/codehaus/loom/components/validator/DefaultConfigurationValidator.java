@@ -7,6 +7,9 @@
  */
 package org.codehaus.loom.components.validator;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import org.codehaus.loom.components.util.ConfigUtil;
 import org.codehaus.loom.components.util.ConfigurationBuilder;
 import org.codehaus.loom.components.util.info.SchemaDescriptor;
@@ -26,6 +29,11 @@ import org.w3c.dom.Element;
  * This component validates the components configuration using the ConfigKit
  * toolkit.
  *
+ * <p>Components of different applications may be validated at the same
+ * time. The cache of validators is guarded by its own lock and a validator
+ * is only shared by components loaded from the same ClassLoader, which
+ * belong to one application that is deployed by a single thread.</p>
+ *
  * @author Peter Donald
  * @author Peter Royal
  * @version $Revision: 1.4 $ $Date: 2004-07-02 23:56:13 $
@@ -35,6 +43,15 @@ public class DefaultConfigurationValidator
     extends AbstractLogEnabled
     implements ConfigurationValidator
 {
+    /**
+     * Map from ClassLoader to a map of the validators for schemas loaded
+     * from that ClassLoader. The validators are keyed by component type,
+     * schema location and schema type so each schema is compiled once.
+     * The validators only hold the compiled schema so the ClassLoader may
+     * still be collected once the application is removed.
+     */
+    private final Map m_validators = new WeakHashMap();
+
     /**
      * Check to see if configuration is valid for specified component.
      *
@@ -73,11 +90,8 @@ public class DefaultConfigurationValidator
         //Get the uri of configuration schema type
         try
         {
-            final ConfigValidator validator = ComponentConfigUtil
-              .getComponentConfigValidator( classname,
-                                                          classLoader,
-                                                          schema.getLocation(),
-                                                          schema.getType() );
+            final ConfigValidator validator =
+                getValidator( classname, classLoader, schema );
             if( null == validator )
             {
                 final String message =
@@ -115,4 +129,45 @@ public class DefaultConfigurationValidator
             return false;
         }
     }
+
+    /**
+     * Return the validator for schema of specified component, compiling
+     * the schema the first time it is used.
+     */
+    private ConfigValidator getValidator( final String classname,
+                                          final ClassLoader classLoader,
+                                          final SchemaDescriptor schema )
+        throws Exception
+    {
+        final String key =
+            classname + "#" + schema.getLocation() + "#" + schema.getType();
+        synchronized( m_validators )
+        {
+            final Map validators = (Map)m_validators.get( classLoader );
+            if( null != validators && validators.containsKey( key ) )
+            {
+                return (ConfigValidator)validators.get( key );
+            }
+        }
+
+        final ConfigValidator validator = ComponentConfigUtil
+            .getComponentConfigValidator( classname,
+                                          classLoader,
+                                          schema.getLocation(),
+                                          schema.getType() );
+        if( null != validator )
+        {
+            synchronized( m_validators )
+            {
+                Map validators = (Map)m_validators.get( classLoader );
+                if( null == validators )
+                {
+                    validators = new HashMap();
+                    m_validators.put( classLoader, validators );
+                }
+                validators.put( key, validator );
+            }
+        }
+        return validator;
+    }
 }
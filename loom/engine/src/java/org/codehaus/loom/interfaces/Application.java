@@ -86,6 +86,9 @@
  */
 package org.codehaus.loom.interfaces;
 
+import java.util.Map;
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+
 /**
  * The Application is a self-contained component that performs a specific
  * function.
@@ -119,4 +122,30 @@ public interface Application
      * @return the coresponding block or null if none
      */
     Object getBlock( String name );
+
+    /**
+     * Apply new configuration to running Blocks. Blocks that implement
+     * Reconfigurable are passed their new configuration while other Blocks
+     * are restarted along with every Block that depends upon them. Blocks
+     * not in the map are left untouched.
+     *
+     * @param configurations the map from name of Block to its new
+     * {@link org.codehaus.dna.Configuration}
+     * @throws Exception if a Block could not be reconfigured or restarted
+     */
+    void reconfigure( Map configurations )
+        throws Exception;
+
+    /**
+     * Replace the profiles of running Blocks. Each replaced Block is
+     * restarted along with every Block that depends upon it either before
+     * or after the replacement. Other Blocks keep running and the set of
+     * Blocks in application does not change.
+     *
+     * @param blocks the new profiles of Blocks
+     * @throws Exception if a Block does not exist, the new dependencies are
+     * invalid or a Block could not be restarted
+     */
+    void replaceBlocks( ComponentProfile[] blocks )
+        throws Exception;
 }
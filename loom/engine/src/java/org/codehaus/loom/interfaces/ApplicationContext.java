@@ -127,6 +127,24 @@ public interface ApplicationContext
     void unexportObject( String name )
         throws Exception;
 
+    /**
+     * Export the object that records the calls made to a block into
+     * management system alongside the block.
+     *
+     * @param name the name of block
+     * @param metrics the object recording calls to block
+     */
+    void exportMetrics( String name, Object metrics )
+        throws Exception;
+
+    /**
+     * Unexport the metrics of specified block from management system.
+     *
+     * @param name the name of block
+     */
+    void unexportMetrics( String name )
+        throws Exception;
+
     /**
      * Get ClassLoader for the current application.
      *
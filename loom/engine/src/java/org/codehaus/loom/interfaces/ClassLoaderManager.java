@@ -107,13 +107,25 @@ public interface ClassLoaderManager
      * application
      * @param data the context data used when expanding config files
      * @param baseDirectory the base directory of application
-     * @param workDirectory the work directory of application
+     * @param workDirectory the directory containing code of application
+     * @param archive the Sar to load code from if application is installed
+     * in place, else null
      * @return the ClassLoaderSet created
      * @throws Exception if an error occurs
      */
     ClassLoaderSet createClassLoaderSet( Configuration environment,
                                          Map data,
                                          File baseDirectory,
-                                         File workDirectory )
+                                         File workDirectory,
+                                         File archive )
         throws Exception;
+
+    /**
+     * Release the resources held for a {@link ClassLoaderSet} created by
+     * this manager. This is called when the application is removed and
+     * the ClassLoaders will no longer be used.
+     *
+     * @param classLoaderSet the ClassLoaderSet
+     */
+    void releaseClassLoaderSet( ClassLoaderSet classLoaderSet );
 }
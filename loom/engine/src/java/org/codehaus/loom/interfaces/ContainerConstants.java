@@ -118,6 +118,12 @@ public interface ContainerConstants
     /** The default classloader to use to load components. */
     String ASSEMBLY_CLASSLOADER = "loom:classloader";
 
+    /**
+     * The directory in which the info of components is cached. If not
+     * present then info is not cached. Type: {@link java.io.File}
+     */
+    String ASSEMBLY_INFO_CACHE = "loom:info-cache";
+
     /** The root instrumentation category for all applications. */
     String ROOT_INSTRUMENT_CATEGORY = "applications";
 
@@ -139,6 +145,37 @@ public interface ContainerConstants
      */
     String INSTALL_WORK = "install:work";
 
+    /**
+     * The Directory containing the code of application (ie the SAR-INF/lib
+     * and SAR-INF/classes hierarchies). If not present then the code is
+     * located in the work directory. Type: {@link java.io.File}
+     */
+    String INSTALL_CODE = "install:code";
+
+    /**
+     * The Sar that the code of application is loaded from when the
+     * application is installed in place. This is a private copy of the
+     * deployed Sar that is removed when the application is uninstalled. The
+     * code is not expanded but is still addressed as if it were located in
+     * the code directory. If not present then the code has been expanded.
+     * Type: {@link java.io.File}
+     */
+    String INSTALL_ARCHIVE = "install:archive";
+
+    /**
+     * The directory in which the info of components is cached. The directory
+     * is shared by all applications. Type: {@link java.io.File}
+     */
+    String INSTALL_INFO_CACHE = "install:info-cache";
+
+    /**
+     * A digest of the code of application and the environment it is loaded
+     * in (ie SAR-INF/lib, SAR-INF/classes and SAR-INF/environment.xml). Two
+     * installs with the same digest can share class loaders. Type: {@link
+     * java.lang.String}
+     */
+    String INSTALL_CODE_DIGEST = "install:code-digest";
+
     /** The URL to block configuration data. Type: {@link java.lang.String} */
     String INSTALL_CONFIG = "install:config";
 
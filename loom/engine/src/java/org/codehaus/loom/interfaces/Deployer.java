@@ -119,6 +119,16 @@ public interface Deployer
     void redeploy( String name, URL location )
         throws LoomException;
 
+    /**
+     * Reload the configuration of an installation and apply it to the
+     * Blocks whose configuration changed without redeploying it.
+     *
+     * @param name the name of deployment
+     * @throws LoomException if an error occurs
+     */
+    void reconfigure( String name )
+        throws LoomException;
+
     /**
      * Undeploy a resource from a location.
      *
@@ -110,6 +110,19 @@ public interface SystemManager
     void register( String name, Object object )
         throws LoomException, IllegalArgumentException;
 
+    /**
+     * Register a set of objects for management. Either all of the objects
+     * are registered or, if an error occurs, none of them are.
+     *
+     * @param names the names to register objects under
+     * @param objects the objects in the same order as names
+     * @throws LoomException if an error occurs such as a name already
+     * registered.
+     * @throws IllegalArgumentException if an object is null
+     */
+    void register( String[] names, Object[] objects )
+        throws LoomException, IllegalArgumentException;
+
     /**
      * Unregister named object.
      *
@@ -120,6 +133,16 @@ public interface SystemManager
     void unregister( String name )
         throws LoomException;
 
+    /**
+     * Unregister a set of named objects. Every object is unregistered even
+     * if unregistering an earlier one fails.
+     *
+     * @param names the names of objects to unregister
+     * @throws LoomException if an error occurs unregistering an object
+     */
+    void unregister( String[] names )
+        throws LoomException;
+
     /**
      * Returns the subcontext of the specified name.  If it does not exist it is
      * created.
@@ -8,7 +8,10 @@
 package org.codehaus.loom.components.application;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import junit.framework.TestCase;
 import org.codehaus.dna.Configuration;
@@ -19,6 +22,8 @@ import org.codehaus.loom.components.assembler.data.Component1;
 import org.codehaus.loom.components.assembler.data.Component2;
 import org.codehaus.loom.components.assembler.data.Component3;
 import org.codehaus.loom.components.assembler.data.Component4;
+import org.codehaus.loom.components.assembler.data.Component5;
+import org.codehaus.loom.components.assembler.data.Component6;
 import org.codehaus.loom.components.assembler.data.Service1;
 import org.codehaus.loom.components.deployer.PhoenixProfileBuilder;
 import org.codehaus.loom.components.util.ConfigurationBuilder;
@@ -31,6 +36,7 @@ import org.codehaus.loom.components.util.metadata.PartitionTemplate;
 import org.codehaus.loom.components.util.profile.ComponentProfile;
 import org.codehaus.loom.components.util.profile.PartitionProfile;
 import org.codehaus.loom.interfaces.ContainerConstants;
+import org.codehaus.loom.interfaces.LoomException;
 import org.xml.sax.InputSource;
 
 /**
@@ -47,12 +53,16 @@ public class ApplicationTestCase
     private static final Class C2_TYPE = Component2.class;
     private static final Class C3_TYPE = Component3.class;
     private static final Class C4_TYPE = Component4.class;
+    private static final Class C5_TYPE = Component5.class;
+    private static final Class C6_TYPE = Component6.class;
 
     private static final String S1_NAME = S1_TYPE.getName();
     private static final String C1_NAME = C1_TYPE.getName();
     private static final String C2_NAME = C2_TYPE.getName();
     private static final String C3_NAME = C3_TYPE.getName();
     private static final String C4_NAME = C4_TYPE.getName();
+    private static final String C5_NAME = C5_TYPE.getName();
+    private static final String C6_NAME = C6_TYPE.getName();
 
     private static final String S1_ARRAY_NAME = S1_NAME +
         DependencyDescriptor.ARRAY_POSTFIX;
@@ -149,8 +159,601 @@ public class ApplicationTestCase
         runApplicationTest( partitionProfile );
     }
 
+    private static final ComponentInfo C5 =
+        new ComponentInfo( C5_TYPE,
+                           ServiceDescriptor.EMPTY_SET,
+                           DependencyDescriptor.EMPTY_SET,
+                           null );
+
+    public void testReconfigureRestartsBlockAndConsumers()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createArrayAssembly() );
+        application.initialize();
+        try
+        {
+            final Object c2a = application.getBlock( "c2a" );
+            final Object c2b = application.getBlock( "c2b" );
+            final Object c3 = application.getBlock( "c3" );
+
+            final Map configurations = new HashMap();
+            configurations.put( "c2a",
+                                new DefaultConfiguration( "c2a", "", "" ) );
+            application.reconfigure( configurations );
+
+            assertNotSame( c2a, application.getBlock( "c2a" ) );
+            assertNotSame( c3, application.getBlock( "c3" ) );
+            assertSame( c2b, application.getBlock( "c2b" ) );
+            assertTrue( "running", application.isRunning() );
+            try
+            {
+                c2a.hashCode();
+                fail( "Expected old proxy to be invalidated" );
+            }
+            catch( final IllegalStateException ise )
+            {
+            }
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReconfigureReconfigurableBlock()
+        throws Exception
+    {
+        final ComponentTemplate md5 =
+            new ComponentTemplate( "c5",
+                                   C5_NAME,
+                                   DependencyDirective.EMPTY_SET,
+                                   null,
+                                   new DefaultConfiguration( "c5", "", "" ),
+                                   true );
+        final ComponentProfile cp5 = new ComponentProfile( C5, md5 );
+        final DefaultApplication application =
+            createApplication( createAssembly( new ComponentProfile[]{cp5} ) );
+        application.initialize();
+        try
+        {
+            final Component5 c5 = (Component5)application.getBlock( "c5" );
+            assertEquals( 0, c5.getReconfigureCount() );
+
+            final DefaultConfiguration configuration =
+                new DefaultConfiguration( "c5", "", "" );
+            configuration.setAttribute( "value", "2" );
+            final Map configurations = new HashMap();
+            configurations.put( "c5", configuration );
+            application.reconfigure( configurations );
+
+            assertSame( c5, application.getBlock( "c5" ) );
+            assertEquals( 1, c5.getReconfigureCount() );
+            assertEquals( "2",
+                          c5.getConfiguration().getAttribute( "value" ) );
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    private static final ComponentInfo C6 =
+        new ComponentInfo( C6_TYPE,
+                           ServiceDescriptor.EMPTY_SET,
+                           DependencyDescriptor.EMPTY_SET,
+                           null );
+
+    public void testReconfigureRejectedConfiguration()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createReconfigureAssembly() );
+        application.initialize();
+        try
+        {
+            final Component5 c5 = (Component5)application.getBlock( "c5" );
+            final Component6 c6 = (Component6)application.getBlock( "c6" );
+
+            final Map configurations = new HashMap();
+            configurations.put( "c5", createConfiguration( "c5", "reject" ) );
+            configurations.put( "c6", createConfiguration( "c6", "value" ) );
+            try
+            {
+                application.reconfigure( configurations );
+                fail( "Expected rejected configuration to fail" );
+            }
+            catch( final Exception e )
+            {
+            }
+
+            //Nothing was stopped before the configuration was rejected
+            assertTrue( "running", application.isRunning() );
+            assertSame( c5, application.getBlock( "c5" ) );
+            assertSame( c6, application.getBlock( "c6" ) );
+            assertEquals( 0, c5.getReconfigureCount() );
+            assertNull( c6.getConfiguration().getAttribute( "value", null ) );
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReconfigureFailedStartup()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createReconfigureAssembly() );
+        application.initialize();
+        try
+        {
+            final Component5 c5 = (Component5)application.getBlock( "c5" );
+            final Component6 c6 = (Component6)application.getBlock( "c6" );
+
+            final Map configurations = new HashMap();
+            configurations.put( "c5", createConfiguration( "c5", "value" ) );
+            configurations.put( "c6", createConfiguration( "c6", "fail" ) );
+            try
+            {
+                application.reconfigure( configurations );
+                fail( "Expected failed startup to fail" );
+            }
+            catch( final Exception e )
+            {
+            }
+
+            //The blocks are back with their previous configuration
+            assertTrue( "running", application.isRunning() );
+            assertSame( c5, application.getBlock( "c5" ) );
+            assertEquals( 2, c5.getReconfigureCount() );
+            assertNull( c5.getConfiguration().getAttribute( "value", null ) );
+            final Component6 restarted =
+                (Component6)application.getBlock( "c6" );
+            assertNotNull( "c6 restarted", restarted );
+            assertNotSame( c6, restarted );
+            assertNull( restarted.getConfiguration()
+                        .getAttribute( "value", null ) );
+
+            //The previous profiles are still used by later changes
+            configurations.put( "c6", createConfiguration( "c6", "value" ) );
+            application.reconfigure( configurations );
+            assertEquals( "true", ( (Component6)application.getBlock( "c6" ) )
+                .getConfiguration().getAttribute( "value", null ) );
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReplaceBlocksFailedStartup()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createReconfigureAssembly() );
+        application.initialize();
+        try
+        {
+            final Object c6 = application.getBlock( "c6" );
+            final ComponentTemplate md6 =
+                new ComponentTemplate( "c6",
+                                       C6_NAME,
+                                       DependencyDirective.EMPTY_SET,
+                                       null,
+                                       createConfiguration( "c6", "fail" ),
+                                       true );
+            try
+            {
+                application.replaceBlocks(
+                    new ComponentProfile[]{new ComponentProfile( C6, md6 )} );
+                fail( "Expected failed startup to fail" );
+            }
+            catch( final Exception e )
+            {
+            }
+            assertTrue( "running", application.isRunning() );
+            assertNotNull( "c6 restarted", application.getBlock( "c6" ) );
+            assertNotSame( c6, application.getBlock( "c6" ) );
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReconfigureMissingBlock()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createArrayAssembly() );
+        application.initialize();
+        try
+        {
+            final Map configurations = new HashMap();
+            configurations.put( "missing",
+                                new DefaultConfiguration( "missing", "", "" ) );
+            application.reconfigure( configurations );
+            fail( "Expected reconfigure of missing block to fail" );
+        }
+        catch( final LoomException le )
+        {
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReplaceBlocksRestartsBlockAndConsumers()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createArrayAssembly() );
+        application.initialize();
+        try
+        {
+            final Object c2a = application.getBlock( "c2a" );
+            final Object c2b = application.getBlock( "c2b" );
+            final Object c2c = application.getBlock( "c2c" );
+            final Object c3 = application.getBlock( "c3" );
+
+            final ComponentTemplate md2b =
+                new ComponentTemplate( "c2b",
+                                       C2_NAME,
+                                       DependencyDirective.EMPTY_SET,
+                                       null,
+                                       null,
+                                       true );
+            application.replaceBlocks(
+                new ComponentProfile[]{new ComponentProfile( C2, md2b )} );
+
+            assertNotSame( c2b, application.getBlock( "c2b" ) );
+            assertNotSame( c3, application.getBlock( "c3" ) );
+            assertSame( c2a, application.getBlock( "c2a" ) );
+            assertSame( c2c, application.getBlock( "c2c" ) );
+            assertTrue( "running", application.isRunning() );
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReplaceBlocksChangesDependencies()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createArrayAssembly() );
+        application.initialize();
+        try
+        {
+            final Object c3 = application.getBlock( "c3" );
+            final DependencyDirective[] deps =
+                new DependencyDirective[]{
+                    new DependencyDirective( S1_MAP_NAME, "c2a", "a" ),
+                    new DependencyDirective( S1_MAP_NAME, "c2b", "b" ),
+                    new DependencyDirective( S1_MAP_NAME, "c2a", "c" )};
+            final ComponentTemplate md3 =
+                new ComponentTemplate( "c3", C4_NAME, deps, null, null, false );
+            application.replaceBlocks(
+                new ComponentProfile[]{new ComponentProfile( C4, md3 )} );
+            assertNotSame( c3, application.getBlock( "c3" ) );
+
+            //c2c is no longer used by c3 so it is restarted alone
+            final Object c2a = application.getBlock( "c2a" );
+            final Object c2c = application.getBlock( "c2c" );
+            final Object c3b = application.getBlock( "c3" );
+            final ComponentTemplate md2c =
+                new ComponentTemplate( "c2c",
+                                       C2_NAME,
+                                       DependencyDirective.EMPTY_SET,
+                                       null,
+                                       null,
+                                       true );
+            application.replaceBlocks(
+                new ComponentProfile[]{new ComponentProfile( C2, md2c )} );
+            assertNotSame( c2c, application.getBlock( "c2c" ) );
+            assertSame( c2a, application.getBlock( "c2a" ) );
+            assertSame( c3b, application.getBlock( "c3" ) );
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    public void testReplaceBlocksWithMissingProvider()
+        throws Exception
+    {
+        final DefaultApplication application =
+            createApplication( createArrayAssembly() );
+        application.initialize();
+        try
+        {
+            final Object c3 = application.getBlock( "c3" );
+            final ComponentTemplate md3 =
+                new ComponentTemplate( "c3",
+                                       C3_NAME,
+                                       new DependencyDirective[]{
+                                           new DependencyDirective(
+                                               S1_ARRAY_NAME,
+                                               "missing",
+                                               "missing" )},
+                                       null,
+                                       null,
+                                       false );
+            try
+            {
+                application.replaceBlocks(
+                    new ComponentProfile[]{new ComponentProfile( C3, md3 )} );
+                fail( "Expected replace with missing provider to fail" );
+            }
+            catch( final IllegalStateException ise )
+            {
+            }
+            assertSame( c3, application.getBlock( "c3" ) );
+            c3.hashCode();
+        }
+        finally
+        {
+            application.dispose();
+        }
+    }
+
+    /**
+     * Create an assembly with a Reconfigurable block c5 and a block c6 that
+     * is restarted when reconfigured.
+     */
+    private PartitionProfile createReconfigureAssembly()
+    {
+        final ComponentTemplate md5 =
+            new ComponentTemplate( "c5",
+                                   C5_NAME,
+                                   DependencyDirective.EMPTY_SET,
+                                   null,
+                                   new DefaultConfiguration( "c5", "", "" ),
+                                   true );
+        final ComponentTemplate md6 =
+            new ComponentTemplate( "c6",
+                                   C6_NAME,
+                                   DependencyDirective.EMPTY_SET,
+                                   null,
+                                   new DefaultConfiguration( "c6", "", "" ),
+                                   true );
+        return createAssembly( new ComponentProfile[]{
+            new ComponentProfile( C5, md5 ),
+            new ComponentProfile( C6, md6 )} );
+    }
+
+    /**
+     * Create a configuration with the specified attribute set to true.
+     */
+    private Configuration createConfiguration( final String name,
+                                               final String attribute )
+    {
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( name, "", "" );
+        configuration.setAttribute( attribute, "true" );
+        return configuration;
+    }
+
+    private DefaultApplication createApplication(
+        final PartitionProfile profile )
+    {
+        final DefaultApplication application = new DefaultApplication();
+        application.enableLogging( new ConsoleLogger() );
+        application.setApplicationContext(
+            new MockApplicationContext( profile, new ConsoleLogger() ) );
+        return application;
+    }
+
+    private PartitionProfile createAssembly(
+        final ComponentProfile[] components )
+    {
+        final ComponentTemplate[] templates =
+            new ComponentTemplate[ components.length ];
+        for( int i = 0; i < components.length; i++ )
+        {
+            templates[ i ] = components[ i ].getTemplate();
+        }
+        final PartitionTemplate blockPartitionMD =
+            new PartitionTemplate( ContainerConstants.BLOCK_PARTITION,
+                                   new String[]{
+                                       ContainerConstants.LISTENER_PARTITION},
+                                   PartitionTemplate.EMPTY_SET,
+                                   templates );
+        final PartitionTemplate listenerPartitionMD =
+            new PartitionTemplate( ContainerConstants.LISTENER_PARTITION,
+                                   new String[ 0 ],
+                                   PartitionTemplate.EMPTY_SET,
+                                   ComponentTemplate.EMPTY_SET );
+        final PartitionTemplate partitionMD =
+            new PartitionTemplate( "test",
+                                   new String[ 0 ],
+                                   new PartitionTemplate[]{blockPartitionMD,
+                                                           listenerPartitionMD},
+                                   ComponentTemplate.EMPTY_SET );
+        final PartitionProfile blockPartitionProfile =
+            new PartitionProfile( blockPartitionMD,
+                                  PartitionProfile.EMPTY_SET,
+                                  components );
+        final PartitionProfile listenerPartitionProfile =
+            new PartitionProfile( listenerPartitionMD,
+                                  PartitionProfile.EMPTY_SET,
+                                  ComponentProfile.EMPTY_SET );
+        return new PartitionProfile( partitionMD,
+                                     new PartitionProfile[]{
+                                         blockPartitionProfile,
+                                         listenerPartitionProfile},
+                                     ComponentProfile.EMPTY_SET );
+    }
+
     public void testArrayAssembly()
         throws Exception
+    {
+        runApplicationTest( createArrayAssembly() );
+    }
+
+    public void testBlockMetricsExported()
+        throws Exception
+    {
+        final List exported = new ArrayList();
+        final DefaultApplication application =
+            new DefaultApplication( 1, 0, false, true );
+        application.enableLogging( new ConsoleLogger() );
+        final MockApplicationContext context =
+            new MockApplicationContext( createArrayAssembly(),
+                                        new ConsoleLogger() )
+            {
+                public void exportMetrics( final String name,
+                                           final Object metrics )
+                {
+                    assertTrue( "metrics", metrics instanceof BlockMetrics );
+                    exported.add( name );
+                }
+
+                public void unexportMetrics( final String name )
+                {
+                    exported.remove( name );
+                }
+            };
+        application.setApplicationContext( context );
+        application.initialize();
+        Collections.sort( exported );
+        assertEquals( "[c2a, c2b, c2c, c3]", exported.toString() );
+
+        application.dispose();
+        assertEquals( 0, exported.size() );
+    }
+
+    /**
+     * Look up blocks from several threads while the application is
+     * repeatedly started and stopped. Lookups must only ever see a
+     * complete set of blocks and any proxy that is handed out must either
+     * work or report that the block has been disposed.
+     */
+    public void testConcurrentLookupDuringRedeploy()
+        throws Exception
+    {
+        final PartitionProfile profile = createArrayAssembly();
+        final DefaultApplication application = new DefaultApplication( 4 );
+        application.enableLogging( new ConsoleLogger() );
+        application.setApplicationContext(
+            new MockApplicationContext( profile, new ConsoleLogger() ) );
+
+        final String[] names = new String[]{"c2a", "c2b", "c2c", "c3"};
+        final Throwable[] failure = new Throwable[ 1 ];
+        final boolean[] done = new boolean[ 1 ];
+        final int[] lookups = new int[ 1 ];
+        final Thread[] readers = new Thread[ 4 ];
+        for( int i = 0; i < readers.length; i++ )
+        {
+            readers[ i ] = new Thread( "reader-" + i )
+            {
+                public void run()
+                {
+                    int count = 0;
+                    try
+                    {
+                        while( !isDone( done ) )
+                        {
+                            lookup( application, names );
+                            count++;
+                        }
+                    }
+                    catch( final Throwable t )
+                    {
+                        synchronized( failure )
+                        {
+                            if( null == failure[ 0 ] )
+                            {
+                                failure[ 0 ] = t;
+                            }
+                        }
+                    }
+                    synchronized( lookups )
+                    {
+                        lookups[ 0 ] += count;
+                    }
+                }
+            };
+            readers[ i ].start();
+        }
+
+        try
+        {
+            for( int i = 0; i < 200; i++ )
+            {
+                application.initialize();
+                assertTrue( "running", application.isRunning() );
+                application.dispose();
+            }
+        }
+        finally
+        {
+            synchronized( done )
+            {
+                done[ 0 ] = true;
+            }
+            for( int i = 0; i < readers.length; i++ )
+            {
+                readers[ i ].join();
+            }
+        }
+
+        if( failure[ 0 ] instanceof Error )
+        {
+            throw (Error)failure[ 0 ];
+        }
+        else if( null != failure[ 0 ] )
+        {
+            throw (Exception)failure[ 0 ];
+        }
+        assertTrue( "lookups performed", lookups[ 0 ] > 0 );
+        assertEquals( 0, application.getBlockNames().length );
+    }
+
+    private static boolean isDone( final boolean[] done )
+    {
+        synchronized( done )
+        {
+            return done[ 0 ];
+        }
+    }
+
+    private static void lookup( final DefaultApplication application,
+                                final String[] names )
+    {
+        final int count = application.getBlockNames().length;
+        if( 0 != count && names.length != count )
+        {
+            fail( "Saw " + count + " blocks" );
+        }
+
+        for( int i = 0; i < names.length; i++ )
+        {
+            final Object block = application.getBlock( names[ i ] );
+            if( null == block )
+            {
+                continue;
+            }
+            if( i < 3 && !( block instanceof Service1 ) )
+            {
+                fail( "Block " + names[ i ] + " is not a Service1" );
+            }
+            try
+            {
+                block.hashCode();
+            }
+            catch( final IllegalStateException ise )
+            {
+                //Block was disposed after it was looked up
+            }
+        }
+    }
+
+    private PartitionProfile createArrayAssembly()
     {
         final DependencyDirective[] c3Deps =
             new DependencyDirective[]{new DependencyDirective( S1_ARRAY_NAME,
@@ -232,7 +835,7 @@ public class ApplicationTestCase
                                   new PartitionProfile[]{blockPartitionProfile,
                                                          listenerPartitionProfile},
                                   ComponentProfile.EMPTY_SET );
-        runApplicationTest( partitionProfile );
+        return partitionProfile;
     }
 
     public void testMapAssembly()
@@ -324,7 +927,16 @@ public class ApplicationTestCase
     private void runApplicationTest( final PartitionProfile sarMetaData )
         throws Exception
     {
-        final DefaultApplication application = new DefaultApplication();
+        runApplicationTest( sarMetaData, 1 );
+        runApplicationTest( sarMetaData, 4 );
+    }
+
+    private void runApplicationTest( final PartitionProfile sarMetaData,
+                                     final int phaseThreads )
+        throws Exception
+    {
+        final DefaultApplication application =
+            new DefaultApplication( phaseThreads );
         application.enableLogging( new ConsoleLogger() );
         final MockApplicationContext context =
             new MockApplicationContext( sarMetaData, new ConsoleLogger() );
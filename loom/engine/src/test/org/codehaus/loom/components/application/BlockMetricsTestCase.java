@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import junit.framework.TestCase;
+
+/**
+ * Testcase for BlockMetrics.
+ *
+ * @author Peter Donald
+ */
+public class BlockMetricsTestCase
+    extends TestCase
+{
+    private static final int THREADS = 4;
+    private static final int CALLS = 1000;
+
+    public void testHistogram()
+        throws Exception
+    {
+        final BlockMetrics metrics =
+            new BlockMetrics( new String[]{"a()", "b()"} );
+        metrics.succeeded( 1, toClock( 7 ) );
+        metrics.failed( 1, toClock( 10000 ) );
+
+        assertEquals( 2, metrics.getInvocationCount() );
+        assertEquals( 1, metrics.getErrorCount() );
+        final String[] statistics = metrics.getStatistics();
+        assertEquals( 1, statistics.length );
+        assertEquals( "b() calls=2 errors=1 timed=2 time=10007ms " +
+                      "<=10ms:1 >5000ms:1",
+                      statistics[ 0 ] );
+    }
+
+    public void testUntimedCall()
+        throws Exception
+    {
+        final BlockMetrics metrics = new BlockMetrics( new String[]{"a()"} );
+        metrics.succeeded( 0, -1 );
+        assertEquals( 1, metrics.getInvocationCount() );
+        assertEquals( "a() calls=1 errors=0 timed=0 time=0ms",
+                      metrics.getStatistics()[ 0 ] );
+    }
+
+    public void testSampling()
+        throws Exception
+    {
+        final BlockMetrics metrics = new BlockMetrics( new String[]{"a()"} );
+        assertTrue( "first call timed", metrics.isTimed() );
+
+        //Each thread samples its own calls
+        final boolean[] timed = new boolean[ 1 ];
+        final Thread thread = new Thread()
+        {
+            public void run()
+            {
+                timed[ 0 ] = metrics.isTimed();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertTrue( "first call of thread timed", timed[ 0 ] );
+
+        for( int i = 1; i < BlockMetrics.SAMPLE * 2; i++ )
+        {
+            assertEquals( "call " + i,
+                          0 == i % BlockMetrics.SAMPLE,
+                          metrics.isTimed() );
+        }
+    }
+
+    public void testReset()
+        throws Exception
+    {
+        final BlockMetrics metrics = new BlockMetrics( new String[]{"a()"} );
+        metrics.succeeded( 0, 0 );
+        metrics.failed( 0, 0 );
+        metrics.reset();
+        assertEquals( 0, metrics.getInvocationCount() );
+        assertEquals( 0, metrics.getErrorCount() );
+        assertEquals( 0, metrics.getStatistics().length );
+
+        metrics.failed( 0, 0 );
+        assertEquals( 1, metrics.getInvocationCount() );
+        assertEquals( 1, metrics.getErrorCount() );
+    }
+
+    public void testThreadsMerged()
+        throws Exception
+    {
+        final BlockMetrics metrics = new BlockMetrics( new String[]{"a()"} );
+        final Thread[] threads = new Thread[ THREADS ];
+        for( int i = 0; i < THREADS; i++ )
+        {
+            threads[ i ] = new Thread( "caller-" + i )
+            {
+                public void run()
+                {
+                    for( int j = 0; j < CALLS; j++ )
+                    {
+                        metrics.succeeded( 0, 0 );
+                    }
+                }
+            };
+            threads[ i ].start();
+        }
+        for( int i = 0; i < THREADS; i++ )
+        {
+            threads[ i ].join();
+        }
+        assertEquals( THREADS * CALLS, metrics.getInvocationCount() );
+        assertEquals( 0, metrics.getErrorCount() );
+    }
+
+    public void testShortLivedThreads()
+        throws Exception
+    {
+        //Calls from threads that have exited are kept in the stripes
+        final BlockMetrics metrics = new BlockMetrics( new String[]{"a()"} );
+        for( int i = 0; i < CALLS; i++ )
+        {
+            final Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    metrics.failed( 0, 0 );
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        assertEquals( CALLS, metrics.getInvocationCount() );
+        assertEquals( CALLS, metrics.getErrorCount() );
+        final int stripes = BlockMetrics.STRIPES;
+        assertEquals( "power of two", 0, stripes & ( stripes - 1 ) );
+    }
+
+    /**
+     * Convert milliseconds to the units of clock used by metrics.
+     */
+    private static long toClock( final long millis )
+    {
+        if( "nanoTime".equals( BlockMetrics.getClockMethod() ) )
+        {
+            return millis * 1000000;
+        }
+        return millis;
+    }
+}
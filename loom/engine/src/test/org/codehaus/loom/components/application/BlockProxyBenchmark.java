@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+/**
+ * A simple benchmark comparing direct calls with calls via reflective,
+ * generated and metered proxies. It is not part of the unit tests and is
+ * run by hand, optionally passing the number of calls to make via each
+ * path. The service that is called is the one used by
+ * {@link BlockProxyFactoryTestCase}.
+ *
+ * @author Peter Donald
+ */
+public class BlockProxyBenchmark
+{
+    private static final int DEFAULT_ITERATIONS = 5000000;
+
+    public static void main( final String[] args )
+        throws Exception
+    {
+        final int iterations =
+            ( 0 == args.length ) ?
+            DEFAULT_ITERATIONS : Integer.parseInt( args[ 0 ] );
+
+        final Object service = new BlockProxyFactoryTestCase.Service();
+        final Class[] interfaces =
+            new Class[]{BlockProxyFactoryTestCase.Calculator.class};
+        final Object reflective =
+            new BlockInvocationHandler( service, interfaces ).getProxy();
+        final Object generated =
+            BlockProxyFactory.createProxy( service, interfaces );
+        final Object metered =
+            BlockProxyFactory.createMeteredProxy( service, interfaces );
+
+        //Warm up each path before measuring
+        call( service, iterations );
+        call( reflective, iterations );
+        call( generated, iterations );
+        call( metered, iterations );
+
+        run( "direct", service, iterations );
+        run( "reflective proxy", reflective, iterations );
+        run( "generated proxy", generated, iterations );
+        run( "metered proxy", metered, iterations );
+    }
+
+    private static void run( final String name,
+                             final Object calculator,
+                             final int iterations )
+    {
+        final long start = System.currentTimeMillis();
+        call( calculator, iterations );
+        final long duration = System.currentTimeMillis() - start;
+        System.out.println( iterations + " calls via " + name +
+                            " took " + duration + "ms" );
+    }
+
+    private static void call( final Object calculator, final int iterations )
+    {
+        final int result = BlockProxyFactoryTestCase.call(
+            (BlockProxyFactoryTestCase.Calculator)calculator, iterations );
+        if( iterations != result )
+        {
+            throw new IllegalStateException( "Unexpected result " + result );
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import junit.framework.TestCase;
+
+/**
+ * Testcase for BlockProxyFactory. Also checks that calls via reflective
+ * and generated proxies give the same results as direct calls. The cost of
+ * each kind of call is measured by {@link BlockProxyBenchmark}.
+ *
+ * @author Peter Donald
+ */
+public class BlockProxyFactoryTestCase
+    extends TestCase
+{
+    private static final int ITERATIONS = 1000;
+
+    public interface Calculator
+    {
+        int add( int a, int b );
+
+        long add( long a, long b );
+
+        double scale( double value, float factor );
+
+        String[] split( String value, char separator );
+
+        void reset();
+    }
+
+    public interface Reader
+    {
+        String read( String name ) throws IOException;
+    }
+
+    interface Hidden
+    {
+        String hidden();
+    }
+
+    public static class Service
+        implements Calculator, Reader, Hidden
+    {
+        private int m_resets;
+
+        public int add( final int a, final int b )
+        {
+            return a + b;
+        }
+
+        public long add( final long a, final long b )
+        {
+            return a + b;
+        }
+
+        public double scale( final double value, final float factor )
+        {
+            return value * factor;
+        }
+
+        public String[] split( final String value, final char separator )
+        {
+            final int index = value.indexOf( separator );
+            return new String[]{value.substring( 0, index ),
+                                value.substring( index + 1 )};
+        }
+
+        public void reset()
+        {
+            m_resets++;
+        }
+
+        public String read( final String name )
+            throws IOException
+        {
+            if( null == name )
+            {
+                throw new IOException( "No name" );
+            }
+            return name;
+        }
+
+        public String hidden()
+        {
+            return "hidden";
+        }
+
+        public String toString()
+        {
+            return "Service";
+        }
+    }
+
+    public void testGeneratedProxy()
+        throws Exception
+    {
+        final Service service = new Service();
+        final Object proxy =
+            BlockProxyFactory.createProxy( service,
+                                           new Class[]{Calculator.class, Reader.class} );
+        assertFalse( "generated", Proxy.isProxyClass( proxy.getClass() ) );
+        assertFalse( "Service hidden", proxy instanceof Service );
+
+        final Calculator calculator = (Calculator)proxy;
+        assertEquals( 3, calculator.add( 1, 2 ) );
+        assertEquals( 5000000000L, calculator.add( 2000000000L, 3000000000L ) );
+        assertEquals( 5.0, calculator.scale( 2.0, 2.5f ), 0.0 );
+        final String[] parts = calculator.split( "a:b", ':' );
+        assertEquals( "a", parts[ 0 ] );
+        assertEquals( "b", parts[ 1 ] );
+        calculator.reset();
+        assertEquals( 1, service.m_resets );
+        assertEquals( "Service", proxy.toString() );
+        assertEquals( service.hashCode(), proxy.hashCode() );
+
+        final Reader reader = (Reader)proxy;
+        assertEquals( "x", reader.read( "x" ) );
+        try
+        {
+            reader.read( null );
+            fail( "Expected IOException" );
+        }
+        catch( final IOException ioe )
+        {
+            assertEquals( "No name", ioe.getMessage() );
+        }
+
+        BlockProxyFactory.invalidate( proxy );
+        try
+        {
+            calculator.add( 1, 2 );
+            fail( "Expected invalidated proxy to fail" );
+        }
+        catch( final IllegalStateException ise )
+        {
+        }
+    }
+
+    public void testProxyClassReused()
+        throws Exception
+    {
+        final Class[] interfaces = new Class[]{Calculator.class};
+        final Object proxy1 = BlockProxyFactory.createProxy( new Service(), interfaces );
+        final Object proxy2 = BlockProxyFactory.createProxy( new Service(), interfaces );
+        assertNotSame( proxy1, proxy2 );
+        assertSame( proxy1.getClass(), proxy2.getClass() );
+
+        BlockProxyFactory.invalidate( proxy1 );
+        assertEquals( 3, ( (Calculator)proxy2 ).add( 1, 2 ) );
+    }
+
+    public void testMeteredProxy()
+        throws Exception
+    {
+        final Service service = new Service();
+        final Object proxy =
+            BlockProxyFactory.createMeteredProxy( service,
+                                                  new Class[]{Calculator.class,
+                                                              Reader.class} );
+        final BlockMetrics metrics = BlockProxyFactory.getMetrics( proxy );
+        assertNotNull( "metrics", metrics );
+        assertEquals( 0, metrics.getInvocationCount() );
+        assertEquals( 0, metrics.getStatistics().length );
+
+        final Calculator calculator = (Calculator)proxy;
+        assertEquals( 3, calculator.add( 1, 2 ) );
+        assertEquals( 5000000000L, calculator.add( 2000000000L, 3000000000L ) );
+        assertEquals( 5.0, calculator.scale( 2.0, 2.5f ), 0.0 );
+        assertEquals( "Service", proxy.toString() );
+
+        final Reader reader = (Reader)proxy;
+        assertEquals( "x", reader.read( "x" ) );
+        try
+        {
+            reader.read( null );
+            fail( "Expected IOException" );
+        }
+        catch( final IOException ioe )
+        {
+            assertEquals( "No name", ioe.getMessage() );
+        }
+
+        assertEquals( 5, metrics.getInvocationCount() );
+        assertEquals( 1, metrics.getErrorCount() );
+        final String[] statistics = metrics.getStatistics();
+        assertEquals( 4, statistics.length );
+        assertStatistic( statistics, "add(int,int) calls=1 errors=0 " );
+        assertStatistic( statistics, "add(long,long) calls=1 errors=0 " );
+        assertStatistic( statistics, "read(java.lang.String) calls=2 errors=1 " );
+
+        metrics.reset();
+        assertEquals( 0, metrics.getInvocationCount() );
+        assertEquals( 0, metrics.getErrorCount() );
+    }
+
+    public void testMeteredProxyClassIsSeparate()
+        throws Exception
+    {
+        final Class[] interfaces = new Class[]{Calculator.class};
+        final Object proxy = BlockProxyFactory.createProxy( new Service(), interfaces );
+        final Object metered1 =
+            BlockProxyFactory.createMeteredProxy( new Service(), interfaces );
+        final Object metered2 =
+            BlockProxyFactory.createMeteredProxy( new Service(), interfaces );
+        assertNull( "unmetered", BlockProxyFactory.getMetrics( proxy ) );
+        assertNotSame( proxy.getClass(), metered1.getClass() );
+        assertSame( metered1.getClass(), metered2.getClass() );
+        assertNotSame( BlockProxyFactory.getMetrics( metered1 ),
+                       BlockProxyFactory.getMetrics( metered2 ) );
+
+        ( (Calculator)metered1 ).add( 1, 2 );
+        assertEquals( 1, BlockProxyFactory.getMetrics( metered1 ).getInvocationCount() );
+        assertEquals( 0, BlockProxyFactory.getMetrics( metered2 ).getInvocationCount() );
+
+        BlockProxyFactory.invalidate( metered1 );
+        try
+        {
+            ( (Calculator)metered1 ).add( 1, 2 );
+            fail( "Expected invalidated proxy to fail" );
+        }
+        catch( final IllegalStateException ise )
+        {
+        }
+    }
+
+    private void assertStatistic( final String[] statistics, final String prefix )
+    {
+        for( int i = 0; i < statistics.length; i++ )
+        {
+            if( statistics[ i ].startsWith( prefix ) )
+            {
+                return;
+            }
+        }
+        fail( "Missing statistic " + prefix );
+    }
+
+    public void testNonPublicInterfaceUsesReflection()
+        throws Exception
+    {
+        final Object proxy =
+            BlockProxyFactory.createProxy( new Service(),
+                                           new Class[]{Hidden.class} );
+        assertTrue( "reflective", Proxy.isProxyClass( proxy.getClass() ) );
+        assertEquals( "hidden", ( (Hidden)proxy ).hidden() );
+
+        BlockProxyFactory.invalidate( proxy );
+        try
+        {
+            ( (Hidden)proxy ).hidden();
+            fail( "Expected invalidated proxy to fail" );
+        }
+        catch( final IllegalStateException ise )
+        {
+        }
+    }
+
+    public void testCallPaths()
+        throws Exception
+    {
+        final Service service = new Service();
+        final Class[] interfaces = new Class[]{Calculator.class};
+        final Calculator reflective =
+            (Calculator)new BlockInvocationHandler( service, interfaces ).getProxy();
+        final Calculator generated =
+            (Calculator)BlockProxyFactory.createProxy( service, interfaces );
+
+        assertEquals( ITERATIONS, call( service, ITERATIONS ) );
+        assertEquals( ITERATIONS, call( reflective, ITERATIONS ) );
+        assertEquals( ITERATIONS, call( generated, ITERATIONS ) );
+    }
+
+    public void testMeteredCallPath()
+        throws Exception
+    {
+        final Calculator metered =
+            (Calculator)BlockProxyFactory.createMeteredProxy(
+                new Service(), new Class[]{Calculator.class} );
+        assertEquals( ITERATIONS, call( metered, ITERATIONS ) );
+
+        final BlockMetrics metrics = BlockProxyFactory.getMetrics( metered );
+        assertEquals( ITERATIONS, metrics.getInvocationCount() );
+        assertEquals( 0, metrics.getErrorCount() );
+    }
+
+    static int call( final Calculator calculator, final int count )
+    {
+        int result = 0;
+        for( int i = 0; i < count; i++ )
+        {
+            result = calculator.add( result, 1 );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+
+/**
+ * A simple benchmark that builds the DependencyGraph for the large
+ * synthetic assemblies of {@link DependencyGraphTestCase}. It is not part
+ * of the unit tests and is run by hand, optionally passing the number of
+ * blocks in each assembly.
+ *
+ * @author Peter Donald
+ */
+public class DependencyGraphBenchmark
+{
+    private static final int DEFAULT_SIZE = 10000;
+
+    private static final int ROUNDS = 10;
+
+    public static void main( final String[] args )
+    {
+        final int size =
+            ( 0 == args.length ) ? DEFAULT_SIZE : Integer.parseInt( args[ 0 ] );
+        run( "chain", DependencyGraphTestCase.createChain( size ) );
+        run( "assembly", DependencyGraphTestCase.createAssembly( size ) );
+    }
+
+    private static void run( final String name,
+                             final ComponentProfile[] blocks )
+    {
+        //Warm up before measuring
+        for( int i = 0; i < ROUNDS; i++ )
+        {
+            new DependencyGraph( blocks );
+        }
+
+        final long start = System.currentTimeMillis();
+        for( int i = 0; i < ROUNDS; i++ )
+        {
+            new DependencyGraph( blocks );
+        }
+        final long duration = System.currentTimeMillis() - start;
+        System.out.println( "DependencyGraph for " + blocks.length +
+                            " block " + name + " built in " +
+                            ( duration / ROUNDS ) + "ms" );
+    }
+}
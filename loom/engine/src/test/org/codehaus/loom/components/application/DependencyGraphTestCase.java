@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import org.codehaus.loom.components.util.info.ComponentInfo;
+import org.codehaus.loom.components.util.info.DependencyDescriptor;
+import org.codehaus.loom.components.util.info.ServiceDescriptor;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
+import org.codehaus.loom.components.util.metadata.DependencyDirective;
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+
+/**
+ * Testcase for DependencyGraph. Also builds the graph for large synthetic
+ * assemblies to make sure deep dependency chains are handled. The time
+ * taken is measured by {@link DependencyGraphBenchmark}.
+ *
+ * @author Peter Donald
+ */
+public class DependencyGraphTestCase
+    extends TestCase
+{
+    private static final int LARGE_ASSEMBLY = 10000;
+
+    public void testOrdering()
+        throws Exception
+    {
+        //b and d depend on a, c depends on b, e depends on c and d
+        final ComponentProfile[] blocks = new ComponentProfile[]{
+            createBlock( "e", new String[]{"c", "d"} ),
+            createBlock( "c", new String[]{"b"} ),
+            createBlock( "a", new String[ 0 ] ),
+            createBlock( "d", new String[]{"a"} ),
+            createBlock( "b", new String[]{"a"} )};
+        final DependencyGraph graph = new DependencyGraph( blocks );
+
+        assertEquals( Arrays.asList( new String[]{"a", "b", "c", "d", "e"} ),
+                      Arrays.asList( graph.getStartupOrder() ) );
+        assertEquals( Arrays.asList( new String[]{"e", "c", "d", "b", "a"} ),
+                      Arrays.asList( graph.getShutdownOrder() ) );
+
+        assertEquals( 0, graph.getLevel( "a" ) );
+        assertEquals( 1, graph.getLevel( "b" ) );
+        assertEquals( 2, graph.getLevel( "c" ) );
+        assertEquals( 1, graph.getLevel( "d" ) );
+        assertEquals( 3, graph.getLevel( "e" ) );
+        assertEquals( 3, graph.getMaxLevel() );
+
+        assertEquals( Arrays.asList( new String[]{"c", "d"} ),
+                      Arrays.asList( graph.getProviders( "e" ) ) );
+        assertEquals( Arrays.asList( new String[]{"d", "b"} ),
+                      Arrays.asList( graph.getConsumers( "a" ) ) );
+    }
+
+    public void testCircularDependency()
+        throws Exception
+    {
+        final ComponentProfile[] blocks = new ComponentProfile[]{
+            createBlock( "a", new String[]{"b"} ),
+            createBlock( "b", new String[]{"c"} ),
+            createBlock( "c", new String[]{"a"} )};
+        try
+        {
+            new DependencyGraph( blocks );
+            fail( "Expected circular dependency to be detected" );
+        }
+        catch( final IllegalStateException ise )
+        {
+            final String message = ise.getMessage();
+            assertTrue( message, message.indexOf( "[ a, b, c, a ]" ) != -1 );
+        }
+    }
+
+    public void testMissingProvider()
+        throws Exception
+    {
+        final ComponentProfile[] blocks = new ComponentProfile[]{
+            createBlock( "a", new String[]{"x"} )};
+        try
+        {
+            new DependencyGraph( blocks );
+            fail( "Expected missing provider to be detected" );
+        }
+        catch( final IllegalStateException ise )
+        {
+            final String message = ise.getMessage();
+            assertTrue( message, message.indexOf( "\"x\"" ) != -1 );
+        }
+    }
+
+    public void testLargeChain()
+        throws Exception
+    {
+        final DependencyGraph graph =
+            buildGraph( createChain( LARGE_ASSEMBLY ) );
+        assertEquals( LARGE_ASSEMBLY - 1, graph.getMaxLevel() );
+        assertEquals( "b0", graph.getStartupOrder()[ 0 ] );
+        assertEquals( "b0", graph.getShutdownOrder()[ LARGE_ASSEMBLY - 1 ] );
+    }
+
+    public void testLargeAssembly()
+        throws Exception
+    {
+        final DependencyGraph graph =
+            buildGraph( createAssembly( LARGE_ASSEMBLY ) );
+        verifyOrder( graph, graph.getStartupOrder(), true );
+        verifyOrder( graph, graph.getShutdownOrder(), false );
+    }
+
+    private DependencyGraph buildGraph( final ComponentProfile[] blocks )
+    {
+        final DependencyGraph graph = new DependencyGraph( blocks );
+        assertEquals( blocks.length, graph.getStartupOrder().length );
+        assertEquals( blocks.length, graph.getShutdownOrder().length );
+        return graph;
+    }
+
+    private void verifyOrder( final DependencyGraph graph,
+                              final String[] order,
+                              final boolean forward )
+    {
+        final Map positions = new HashMap();
+        for( int i = 0; i < order.length; i++ )
+        {
+            positions.put( order[ i ], new Integer( i ) );
+        }
+        for( int i = 0; i < order.length; i++ )
+        {
+            final String[] prerequisites =
+                forward ? graph.getProviders( order[ i ] ) :
+                graph.getConsumers( order[ i ] );
+            for( int j = 0; j < prerequisites.length; j++ )
+            {
+                assertTrue( order[ i ] + " after " + prerequisites[ j ],
+                            ( (Integer)positions.get( prerequisites[ j ] ) )
+                            .intValue() < i );
+            }
+        }
+    }
+
+    /**
+     * Create a long chain where every block depends upon the previous block.
+     * The blocks are supplied in reverse so every walk must go deep.
+     *
+     * @param size the number of blocks
+     * @return the blocks
+     */
+    static ComponentProfile[] createChain( final int size )
+    {
+        final ComponentProfile[] blocks = new ComponentProfile[ size ];
+        for( int i = 0; i < size; i++ )
+        {
+            final String[] providers =
+                ( 0 == i ) ? new String[ 0 ] : new String[]{"b" + ( i - 1 )};
+            blocks[ size - i - 1 ] = createBlock( "b" + i, providers );
+        }
+        return blocks;
+    }
+
+    /**
+     * Create a wide assembly where each block depends upon up to three
+     * earlier blocks.
+     *
+     * @param size the number of blocks
+     * @return the blocks
+     */
+    static ComponentProfile[] createAssembly( final int size )
+    {
+        final ComponentProfile[] blocks = new ComponentProfile[ size ];
+        for( int i = 0; i < size; i++ )
+        {
+            final String[] providers;
+            if( i < 3 )
+            {
+                providers = new String[ 0 ];
+            }
+            else
+            {
+                providers = new String[]{"b" + ( i / 2 ),
+                                         "b" + ( i / 3 ),
+                                         "b" + ( i - 3 )};
+            }
+            blocks[ i ] = createBlock( "b" + i, providers );
+        }
+        return blocks;
+    }
+
+    private static ComponentProfile createBlock( final String name,
+                                                 final String[] providers )
+    {
+        final DependencyDescriptor[] descriptors =
+            new DependencyDescriptor[ providers.length ];
+        final DependencyDirective[] directives =
+            new DependencyDirective[ providers.length ];
+        for( int i = 0; i < providers.length; i++ )
+        {
+            final String key = "dep" + i;
+            descriptors[ i ] =
+                new DependencyDescriptor( key, Object.class.getName(), false );
+            directives[ i ] =
+                new DependencyDirective( key, providers[ i ], providers[ i ] );
+        }
+
+        final ComponentInfo info =
+            new ComponentInfo( Object.class,
+                               ServiceDescriptor.EMPTY_SET,
+                               descriptors,
+                               null );
+        final ComponentTemplate template =
+            new ComponentTemplate( name,
+                                   Object.class.getName(),
+                                   directives,
+                                   null,
+                                   null,
+                                   false );
+        return new ComponentProfile( info, template );
+    }
+}
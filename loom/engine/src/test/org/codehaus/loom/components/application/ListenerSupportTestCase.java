@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import org.apache.avalon.phoenix.ApplicationEvent;
+import org.apache.avalon.phoenix.ApplicationListener;
+import org.apache.avalon.phoenix.BlockEvent;
+import org.apache.avalon.phoenix.metadata.BlockListenerMetaData;
+import org.apache.avalon.phoenix.metadata.BlockMetaData;
+import org.apache.avalon.phoenix.metadata.SarMetaData;
+import org.codehaus.dna.impl.ConsoleLogger;
+
+/**
+ * Testcase for ListenerSupport.
+ *
+ * @author Peter Donald
+ */
+public class ListenerSupportTestCase
+    extends TestCase
+{
+    public void testAddAndRemoveListeners()
+        throws Exception
+    {
+        final ListenerSupport support = createSupport( 0, false );
+        final RecordingListener listener1 = new RecordingListener();
+        final RecordingListener listener2 = new RecordingListener();
+        support.addApplicationListener( "l1", listener1 );
+        support.addApplicationListener( "l2", listener2 );
+        support.addBlockListener( "b1", new RecordingListener() );
+        support.addBlockListener( "b2", new RecordingListener() );
+        assertEquals( 4, support.getStatistics().length );
+
+        support.applicationStarted();
+        support.removeApplicationListener( listener1 );
+        support.applicationStopped();
+        assertEquals( 3, support.getStatistics().length );
+
+        assertEquals( "[started]", listener1.getEvents().toString() );
+        assertEquals( "[started, stopped]", listener2.getEvents().toString() );
+    }
+
+    public void testAsynchronousDeliveryDoesNotWait()
+        throws Exception
+    {
+        final ListenerSupport support = createSupport( 10, false );
+        final RecordingListener listener = new RecordingListener();
+        listener.block();
+        support.addApplicationListener( "slow", listener );
+
+        support.applicationStarted();
+        support.applicationStopping();
+        support.applicationStopped();
+        assertTrue( "events waiting", listener.getEvents().size() < 3 );
+
+        listener.release();
+        support.close();
+        assertEquals( "[started, stopping, stopped]",
+                      listener.getEvents().toString() );
+    }
+
+    public void testDiscardOverflow()
+        throws Exception
+    {
+        final ListenerSupport support = createSupport( 1, true );
+        final RecordingListener listener = new RecordingListener();
+        listener.block();
+        support.addApplicationListener( "slow", listener );
+
+        support.applicationStarted();
+        listener.waitForEvent();
+        support.applicationStopping();
+        support.applicationStopped();
+
+        final String statistics = support.getStatistics()[ 0 ];
+        assertTrue( statistics, statistics.indexOf( "1 discarded" ) != -1 );
+
+        listener.release();
+        support.close();
+        assertEquals( "[started, stopping]", listener.getEvents().toString() );
+    }
+
+    public void testListenerErrorDoesNotStopDelivery()
+        throws Exception
+    {
+        final ListenerSupport support = createSupport( 1, false );
+        final RecordingListener listener = new RecordingListener();
+        listener.setError( new NoClassDefFoundError( "missing" ) );
+        support.addApplicationListener( "broken", listener );
+
+        support.applicationStarted();
+        support.applicationStopping();
+        support.applicationStopped();
+        support.close();
+        assertEquals( "[started, stopping, stopped]",
+                      listener.getEvents().toString() );
+    }
+
+    public void testApplicationStartingWaitsForQueuedEvents()
+        throws Exception
+    {
+        final ListenerSupport support = createSupport( 10, false );
+        final RecordingListener listener = new RecordingListener();
+        support.addApplicationListener( "listener", listener );
+
+        support.applicationStopped();
+        support.applicationStopped();
+        listener.setFailure( new Exception( "veto" ) );
+        final SarMetaData metaData =
+            new SarMetaData( "app",
+                             new File( "." ),
+                             new BlockMetaData[ 0 ],
+                             new BlockListenerMetaData[ 0 ] );
+        try
+        {
+            support.fireApplicationStartingEvent( metaData );
+            fail( "Expected listener to veto start" );
+        }
+        catch( final Exception e )
+        {
+            assertEquals( "veto", e.getMessage() );
+        }
+        support.close();
+        assertEquals( "[stopped, stopped, starting]",
+                      listener.getEvents().toString() );
+    }
+
+    private ListenerSupport createSupport( final int queueSize,
+                                           final boolean discard )
+    {
+        final ListenerSupport support =
+            new ListenerSupport( queueSize, discard );
+        support.enableLogging( new ConsoleLogger( ConsoleLogger.LEVEL_NONE ) );
+        return support;
+    }
+
+    /**
+     * Listener that records the events it receives and can be made to
+     * wait before handling them.
+     */
+    private static class RecordingListener
+        implements ApplicationListener
+    {
+        private final List m_events = new ArrayList();
+        private boolean m_blocked;
+        private Exception m_failure;
+        private Error m_error;
+
+        synchronized List getEvents()
+        {
+            return new ArrayList( m_events );
+        }
+
+        synchronized void block()
+        {
+            m_blocked = true;
+        }
+
+        synchronized void release()
+        {
+            m_blocked = false;
+            notifyAll();
+        }
+
+        synchronized void setFailure( final Exception failure )
+        {
+            m_failure = failure;
+        }
+
+        synchronized void setError( final Error error )
+        {
+            m_error = error;
+        }
+
+        synchronized void waitForEvent()
+            throws InterruptedException
+        {
+            while( m_events.isEmpty() )
+            {
+                wait();
+            }
+        }
+
+        private synchronized void record( final String event )
+        {
+            m_events.add( event );
+            notifyAll();
+            if( null != m_error )
+            {
+                throw m_error;
+            }
+            while( m_blocked )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( final InterruptedException ie )
+                {
+                    return;
+                }
+            }
+        }
+
+        public void applicationStarting( final ApplicationEvent event )
+            throws Exception
+        {
+            record( "starting" );
+            if( null != m_failure )
+            {
+                throw m_failure;
+            }
+        }
+
+        public void applicationStarted()
+        {
+            record( "started" );
+        }
+
+        public void applicationStopping()
+        {
+            record( "stopping" );
+        }
+
+        public void applicationStopped()
+        {
+            record( "stopped" );
+        }
+
+        public void applicationFailure( final Exception causeOfFailure )
+        {
+            record( "failure" );
+        }
+
+        public void blockAdded( final BlockEvent event )
+        {
+            record( "added" );
+        }
+
+        public void blockRemoved( final BlockEvent event )
+        {
+            record( "removed" );
+        }
+    }
+}
@@ -55,6 +55,18 @@ class MockApplicationContext
         //ignore
     }
 
+    public void exportMetrics( String name, Object metrics )
+        throws Exception
+    {
+        //ignore
+    }
+
+    public void unexportMetrics( String name )
+        throws Exception
+    {
+        //ignore
+    }
+
     public ClassLoader getClassLoader()
     {
         return getClass().getClassLoader();
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Testcase for PhaseExecutor.
+ *
+ * @author Peter Donald
+ */
+public class PhaseExecutorTestCase
+    extends TestCase
+{
+    private static final String[] ORDER = new String[]{"a", "b", "c", "d", "e"};
+
+    public void testSerialRunsInOrder()
+        throws Exception
+    {
+        final RecordingTask task = new RecordingTask( null );
+        new PhaseExecutor( 1 ).execute( "test", ORDER, createPrerequisites(), task );
+        assertEquals( 5, task.getProcessed().size() );
+        for( int i = 0; i < ORDER.length; i++ )
+        {
+            assertEquals( ORDER[ i ], task.getProcessed().get( i ) );
+        }
+    }
+
+    public void testParallelHonoursPrerequisites()
+        throws Exception
+    {
+        final Map prerequisites = createPrerequisites();
+        for( int count = 0; count < 20; count++ )
+        {
+            final RecordingTask task = new RecordingTask( null );
+            new PhaseExecutor( 4 ).execute( "test", ORDER, prerequisites, task );
+
+            final List processed = task.getProcessed();
+            assertEquals( 5, processed.size() );
+            for( int i = 0; i < ORDER.length; i++ )
+            {
+                final String[] names = (String[])prerequisites.get( ORDER[ i ] );
+                final int index = processed.indexOf( ORDER[ i ] );
+                for( int j = 0; j < names.length; j++ )
+                {
+                    assertTrue( ORDER[ i ] + " processed before " + names[ j ],
+                                processed.indexOf( names[ j ] ) < index );
+                }
+            }
+        }
+    }
+
+    public void testParallelFailureStopsDependents()
+        throws Exception
+    {
+        final RecordingTask task = new RecordingTask( "b" );
+        try
+        {
+            new PhaseExecutor( 4 ).execute( "test", ORDER, createPrerequisites(), task );
+            fail( "Expected failure of block b" );
+        }
+        catch( final IllegalStateException ise )
+        {
+            assertEquals( "b", ise.getMessage() );
+        }
+
+        final List processed = task.getProcessed();
+        assertFalse( "c depends on b", processed.contains( "c" ) );
+        assertFalse( "e depends on c", processed.contains( "e" ) );
+    }
+
+    /**
+     * b and d depend on a, c depends on b, e depends on c and d.
+     */
+    private Map createPrerequisites()
+    {
+        final Map prerequisites = new HashMap();
+        prerequisites.put( "a", new String[ 0 ] );
+        prerequisites.put( "b", new String[]{"a"} );
+        prerequisites.put( "c", new String[]{"b"} );
+        prerequisites.put( "d", new String[]{"a"} );
+        prerequisites.put( "e", new String[]{"c", "d"} );
+        return prerequisites;
+    }
+
+    private static class RecordingTask
+        implements PhaseExecutor.Task
+    {
+        private final List m_processed = new ArrayList();
+        private final String m_failure;
+
+        RecordingTask( final String failure )
+        {
+            m_failure = failure;
+        }
+
+        public void process( final String name )
+            throws Exception
+        {
+            if( name.equals( m_failure ) )
+            {
+                throw new IllegalStateException( name );
+            }
+            Thread.sleep( 5 );
+            synchronized( m_processed )
+            {
+                m_processed.add( name );
+            }
+        }
+
+        List getProcessed()
+        {
+            return m_processed;
+        }
+    }
+}
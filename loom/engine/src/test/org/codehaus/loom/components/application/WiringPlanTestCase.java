@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.application;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
+import org.apache.avalon.framework.parameters.Parameters;
+import org.codehaus.loom.components.assembler.data.Component1;
+import org.codehaus.loom.components.assembler.data.Component2;
+import org.codehaus.loom.components.assembler.data.Service1;
+import org.codehaus.loom.components.util.info.ComponentInfo;
+import org.codehaus.loom.components.util.info.DependencyDescriptor;
+import org.codehaus.loom.components.util.info.ServiceDescriptor;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
+import org.codehaus.loom.components.util.metadata.DependencyDirective;
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+import org.codehaus.loom.interfaces.Application;
+import org.codehaus.loom.interfaces.ApplicationContext;
+
+/**
+ * Testcase for WiringPlan.
+ *
+ * @author Peter Donald
+ */
+public class WiringPlanTestCase
+    extends TestCase
+{
+    private static final String S1_NAME = Service1.class.getName();
+    private static final String S1_ARRAY_NAME =
+        S1_NAME + DependencyDescriptor.ARRAY_POSTFIX;
+    private static final String S1_MAP_NAME =
+        S1_NAME + DependencyDescriptor.MAP_POSTFIX;
+
+    public void testServiceMap()
+        throws Exception
+    {
+        final ComponentInfo info =
+            new ComponentInfo( Component1.class,
+                               ServiceDescriptor.EMPTY_SET,
+                               new DependencyDescriptor[]{
+                                   new DependencyDescriptor( "single",
+                                                             S1_NAME,
+                                                             false ),
+                                   new DependencyDescriptor( S1_ARRAY_NAME,
+                                                             S1_ARRAY_NAME,
+                                                             false ),
+                                   new DependencyDescriptor( "map",
+                                                             S1_MAP_NAME,
+                                                             false )},
+                               null );
+        final ComponentTemplate template =
+            new ComponentTemplate( "c1",
+                                   Component1.class.getName(),
+                                   new DependencyDirective[]{
+                                       new DependencyDirective( "single",
+                                                                "a",
+                                                                "a" ),
+                                       new DependencyDirective( S1_ARRAY_NAME,
+                                                                "a",
+                                                                "a" ),
+                                       new DependencyDirective( S1_ARRAY_NAME,
+                                                                "b",
+                                                                "b" ),
+                                       new DependencyDirective( "map",
+                                                                "a",
+                                                                "x" ),
+                                       new DependencyDirective( "map",
+                                                                "b",
+                                                                "y" )},
+                                   null,
+                                   null,
+                                   false );
+
+        final Component2 a = new Component2();
+        final Component2 b = new Component2();
+        final MockApplication application = new MockApplication();
+        application.m_blocks.put( "a", a );
+        application.m_blocks.put( "b", b );
+
+        final WiringPlan plan = new WiringPlan( info, template );
+        for( int count = 0; count < 2; count++ )
+        {
+            final Map map = plan.createServiceMap( application );
+            assertSame( "single", a, map.get( "single" ) );
+
+            final Object[] array = (Object[])map.get( S1_ARRAY_NAME );
+            assertEquals( "array type",
+                          Service1.class,
+                          array.getClass().getComponentType() );
+            assertEquals( "array length", 2, array.length );
+            assertSame( "array[0]", a, array[ 0 ] );
+            assertSame( "array[1]", b, array[ 1 ] );
+            assertSame( "array by type",
+                        array,
+                        map.get( "[L" + S1_NAME + ";" ) );
+
+            final Map services = (Map)map.get( "map" );
+            assertEquals( "map size", 2, services.size() );
+            assertSame( "map x", a, services.get( "x" ) );
+            assertSame( "map y", b, services.get( "y" ) );
+        }
+    }
+
+    public void testConfigurationCopied()
+        throws Exception
+    {
+        final org.codehaus.dna.impl.DefaultConfiguration configuration =
+            new org.codehaus.dna.impl.DefaultConfiguration( "c1", "", "" );
+        configuration.setAttribute( "key", "value" );
+        final ComponentInfo info =
+            new ComponentInfo( Component1.class,
+                               ServiceDescriptor.EMPTY_SET,
+                               new DependencyDescriptor[ 0 ],
+                               null );
+        final ComponentTemplate template =
+            new ComponentTemplate( "c1",
+                                   Component1.class.getName(),
+                                   new DependencyDirective[ 0 ],
+                                   null,
+                                   configuration,
+                                   false );
+        final WiringPlan plan = new WiringPlan( info, template );
+
+        final Configuration first = plan.getConfiguration();
+        final Configuration second = plan.getConfiguration();
+        assertNotSame( first, second );
+        ( (DefaultConfiguration)first ).setAttribute( "key", "changed" );
+        assertEquals( "value", second.getAttribute( "key" ) );
+
+    }
+
+    public void testParametersReadOnly()
+        throws Exception
+    {
+        final org.codehaus.dna.impl.DefaultConfiguration configuration =
+            new org.codehaus.dna.impl.DefaultConfiguration( "c1", "", "" );
+        final ComponentInfo info =
+            new ComponentInfo( Component1.class,
+                               ServiceDescriptor.EMPTY_SET,
+                               new DependencyDescriptor[ 0 ],
+                               null );
+        final ComponentTemplate template =
+            new ComponentTemplate( "c1",
+                                   Component1.class.getName(),
+                                   new DependencyDirective[ 0 ],
+                                   null,
+                                   configuration,
+                                   false );
+        final WiringPlan plan = new WiringPlan( info, template );
+
+        final Parameters parameters = plan.getParameters();
+        assertSame( parameters, plan.getParameters() );
+        try
+        {
+            parameters.setParameter( "key", "changed" );
+            fail( "Expected parameters to be read only" );
+        }
+        catch( final IllegalStateException ise )
+        {
+        }
+    }
+
+    private static class MockApplication
+        implements Application
+    {
+        final Map m_blocks = new HashMap();
+
+        public void setApplicationContext( final ApplicationContext context )
+        {
+        }
+
+        public String[] getBlockNames()
+        {
+            return (String[])m_blocks.keySet().toArray( new String[ 0 ] );
+        }
+
+        public Object getBlock( final String name )
+        {
+            return m_blocks.get( name );
+        }
+
+        public void reconfigure( final Map configurations )
+        {
+        }
+
+        public void replaceBlocks( final ComponentProfile[] blocks )
+        {
+        }
+    }
+}
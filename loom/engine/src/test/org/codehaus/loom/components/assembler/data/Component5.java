@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.assembler.data;
+
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.configuration.Reconfigurable;
+
+/**
+ * A component that accepts new configuration while running unless the
+ * configuration has a "reject" attribute that is true.
+ *
+ * @author Peter Donald
+ * @dna.component
+ */
+public class Component5
+    implements Reconfigurable
+{
+    private Configuration m_configuration;
+    private int m_reconfigureCount;
+
+    public void configure( final Configuration configuration )
+    {
+        m_configuration = configuration;
+    }
+
+    public void reconfigure( final Configuration configuration )
+        throws ConfigurationException
+    {
+        if( configuration.getAttributeAsBoolean( "reject", false ) )
+        {
+            throw new ConfigurationException( "Rejected configuration" );
+        }
+        m_configuration = configuration;
+        m_reconfigureCount++;
+    }
+
+    public Configuration getConfiguration()
+    {
+        return m_configuration;
+    }
+
+    public int getReconfigureCount()
+    {
+        return m_reconfigureCount;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.assembler.data;
+
+import org.apache.avalon.framework.configuration.Configurable;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+
+/**
+ * A component that can not be reconfigured while running and that fails
+ * to start if its configuration has a "fail" attribute that is true.
+ *
+ * @author Peter Donald
+ * @dna.component
+ */
+public class Component6
+    implements Configurable
+{
+    private Configuration m_configuration;
+
+    public void configure( final Configuration configuration )
+        throws ConfigurationException
+    {
+        if( configuration.getAttributeAsBoolean( "fail", false ) )
+        {
+            throw new ConfigurationException( "Failed to start" );
+        }
+        m_configuration = configuration;
+    }
+
+    public Configuration getConfiguration()
+    {
+        return m_configuration;
+    }
+}
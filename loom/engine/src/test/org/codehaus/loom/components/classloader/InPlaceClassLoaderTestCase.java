@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.Policy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.loom.components.extensions.pkgmgr.ExtensionManager;
+import org.codehaus.loom.components.extensions.pkgmgr.OptionalPackage;
+import org.codehaus.loom.components.extensions.pkgmgr.PackageManager;
+import org.codehaus.loom.extension.Extension;
+import org.codehaus.spice.salt.io.FileUtil;
+import org.codehaus.spice.salt.io.IOUtil;
+
+/**
+ * Testcase for loading classes and resources directly from a Sar.
+ *
+ * @author Peter Donald
+ */
+public class InPlaceClassLoaderTestCase
+    extends TestCase
+{
+    private static final String COMPONENT =
+        "org.codehaus.loom.components.classloader.data.Component1";
+    private static final String COMPONENT_FILE =
+        COMPONENT.replace( '.', '/' ) + ".class";
+    private static final RuntimePermission PERMISSION =
+        new RuntimePermission( "loom.test" );
+
+    private File m_directory;
+    private File m_sar;
+    private File m_home;
+    private File m_work;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_inplace_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_home = new File( m_directory, "home" );
+        m_work = new File( m_directory, "work" );
+        m_home.mkdirs();
+        m_work.mkdirs();
+        m_sar = new File( m_directory, "test.sar" );
+        writeSar();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testResolveClasspath()
+        throws Exception
+    {
+        final SarLoaderResolver resolver = createResolver( new Permissions() );
+        final URL[] urls =
+            resolver.resolveFileSet( ".",
+                                     new String[]{"SAR-INF/lib/*.jar"},
+                                     new String[ 0 ] );
+        final List expected = new ArrayList();
+        expected.add( getCodeURL( "SAR-INF/lib/deflated.jar" ) );
+        expected.add( getCodeURL( "SAR-INF/lib/stored.jar" ) );
+        assertEquals( expected, Arrays.asList( urls ) );
+
+        assertEquals( getCodeURL( "SAR-INF/classes/" ),
+                      resolver.resolveURL( "SAR-INF/classes/" ) );
+        assertEquals( getCodeURL( "SAR-INF/classes/" ),
+                      resolver.resolveURL( "SAR-INF/classes" ) );
+    }
+
+    public void testLoadClass()
+        throws Exception
+    {
+        final ClassLoader loader = createClassLoader();
+        final Class clazz = loader.loadClass( COMPONENT );
+        assertSame( loader, clazz.getClassLoader() );
+
+        final ProtectionDomain domain = clazz.getProtectionDomain();
+        assertEquals( getCodeURL( "SAR-INF/lib/stored.jar" ),
+                      domain.getCodeSource().getLocation() );
+        assertTrue( "permission", domain.implies( PERMISSION ) );
+
+        final Package pkg = clazz.getPackage();
+        assertNotNull( "package", pkg );
+        assertEquals( "Test Component", pkg.getImplementationTitle() );
+        assertEquals( 0, m_work.list().length );
+    }
+
+    public void testLoadResources()
+        throws Exception
+    {
+        final ClassLoader loader = createClassLoader();
+
+        final URL resource = loader.getResource( "data/deflated.txt" );
+        assertEquals( "jar:" + getCodeURL( "SAR-INF/lib/deflated.jar" ) +
+                      "!/data/deflated.txt",
+                      resource.toString() );
+        assertEquals( "deflated", read( resource ) );
+
+        final URL classes = loader.getResource( "data/classes.txt" );
+        assertEquals( getCodeURL( "SAR-INF/classes/data/classes.txt" ),
+                      classes );
+        assertEquals( "classes", read( classes ) );
+
+        final Enumeration resources = loader.getResources( "shared.txt" );
+        final List contents = new ArrayList();
+        while( resources.hasMoreElements() )
+        {
+            contents.add( read( (URL)resources.nextElement() ) );
+        }
+        Collections.sort( contents );
+        final List expected = new ArrayList();
+        expected.add( "classes" );
+        expected.add( "deflated" );
+        expected.add( "stored" );
+        assertEquals( expected, contents );
+
+        assertNull( loader.getResource( "data/missing.txt" ) );
+        assertEquals( 0, m_work.list().length );
+    }
+
+    public void testPackageIndex()
+        throws Exception
+    {
+        final SarArchive archive = new SarArchive( m_sar, m_work );
+        final ArchiveSource classes =
+            archive.createSource( getCodeURL( "SAR-INF/classes/" ) );
+        final ArchiveSource deflated =
+            archive.createSource( getCodeURL( "SAR-INF/lib/deflated.jar" ) );
+        final ArchiveSource stored =
+            archive.createSource( getCodeURL( "SAR-INF/lib/stored.jar" ) );
+        final ArchiveSource[] sources =
+            new ArchiveSource[]{classes, deflated, stored};
+
+        final File external = new File( m_directory, "external" );
+        final File file = new File( external, "ext/one.txt" );
+        file.getParentFile().mkdirs();
+        new FileOutputStream( file ).close();
+
+        final PackageIndex index =
+            new PackageIndex( sources, new URL[]{external.toURL()} );
+        assertEquals( Arrays.asList( sources ),
+                      Arrays.asList( index.getSources( "shared.txt" ) ) );
+        assertEquals( Arrays.asList( new ArchiveSource[]{classes, deflated} ),
+                      Arrays.asList( index.getSources( "data/classes.txt" ) ) );
+        assertEquals( Arrays.asList( new ArchiveSource[]{stored} ),
+                      Arrays.asList( index.getSources( COMPONENT_FILE ) ) );
+        assertEquals( 0, index.getSources( "ext/one.txt" ).length );
+        assertEquals( 0, index.getSources( "missing/one.txt" ).length );
+
+        assertTrue( "ext", index.isExternal( "ext/one.txt" ) );
+        assertFalse( "data", index.isExternal( "data/classes.txt" ) );
+        assertFalse( "missing", index.isExternal( "missing/one.txt" ) );
+        assertTrue( "relative", index.isExternal( "missing/../ext/one.txt" ) );
+
+        final PackageIndex unindexed =
+            new PackageIndex( sources,
+                              new URL[]{new URL( "http://localhost/x.jar" )} );
+        assertTrue( "unindexed", unindexed.isExternal( "missing/one.txt" ) );
+    }
+
+    public void testDeflatedJarInflatedNextToSar()
+        throws Exception
+    {
+        final SarArchive archive = new SarArchive( m_sar, m_work );
+        final int count = m_directory.list().length;
+        archive.createSource( getCodeURL( "SAR-INF/lib/stored.jar" ) );
+        assertEquals( count, m_directory.list().length );
+
+        final ArchiveSource deflated =
+            archive.createSource( getCodeURL( "SAR-INF/lib/deflated.jar" ) );
+        assertEquals( count + 1, m_directory.list().length );
+        assertEquals( "deflated",
+                      new String( deflated.read( "shared.txt" ) ) );
+
+        //The jar is inflated once for all the sources of application
+        archive.createSource( getCodeURL( "SAR-INF/lib/deflated.jar" ) );
+        assertEquals( count + 1, m_directory.list().length );
+        assertEquals( 0, m_work.list().length );
+    }
+
+    private ClassLoader createClassLoader()
+        throws Exception
+    {
+        final Permissions permissions = new Permissions();
+        permissions.add( PERMISSION );
+        final SarLoaderResolver resolver = createResolver( permissions );
+        final URL[] jars =
+            resolver.resolveFileSet( ".",
+                                     new String[]{"SAR-INF/lib/*.jar"},
+                                     new String[ 0 ] );
+        final URL[] urls = new URL[ jars.length + 1 ];
+        urls[ 0 ] = resolver.resolveURL( "SAR-INF/classes/" );
+        System.arraycopy( jars, 0, urls, 1, jars.length );
+        final ClassLoader loader = resolver.createClassLoader( null, urls );
+        final URL[] classpath = ( (PolicyClassLoader)loader ).getURLs();
+        assertEquals( Arrays.asList( urls ), Arrays.asList( classpath ) );
+        return loader;
+    }
+
+    /**
+     * Create a resolver whose policy grants specified permissions to the
+     * stored jar.
+     */
+    private SarLoaderResolver createResolver( final Permissions permissions )
+        throws Exception
+    {
+        final URL jar = getCodeURL( "SAR-INF/lib/stored.jar" );
+        final Policy policy = new Policy()
+        {
+            public PermissionCollection getPermissions(
+                final CodeSource codeSource )
+            {
+                if( jar.equals( codeSource.getLocation() ) )
+                {
+                    return permissions;
+                }
+                return new Permissions();
+            }
+
+            public void refresh()
+            {
+            }
+        };
+
+        final ExtensionManager extensions = new ExtensionManager()
+        {
+            public OptionalPackage[] getOptionalPackages(
+                final Extension extension )
+            {
+                return new OptionalPackage[ 0 ];
+            }
+        };
+        final PackageManager manager = new PackageManager( extensions );
+        final SarArchive archive = new SarArchive( m_sar, m_work );
+        final SarLoaderResolver resolver =
+            new SarLoaderResolver( manager, policy, m_home, m_work, archive );
+        resolver.enableLogging( new ConsoleLogger() );
+        return resolver;
+    }
+
+    private URL getCodeURL( final String name )
+        throws IOException
+    {
+        return new URL( m_work.toURL() + name );
+    }
+
+    private String read( final URL url )
+        throws IOException
+    {
+        final InputStream input = url.openStream();
+        try
+        {
+            return new String( IOUtil.toByteArray( input ) );
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private void writeSar()
+        throws IOException
+    {
+        final byte[] component = readComponent();
+
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final ZipOutputStream storedJar = new ZipOutputStream( stored );
+        final String manifest =
+            "Manifest-Version: 1.0\r\n" +
+            "Implementation-Title: Test Component\r\n\r\n";
+        writeEntry( storedJar, "META-INF/MANIFEST.MF", manifest, false );
+        writeEntry( storedJar, COMPONENT_FILE, component, false );
+        writeEntry( storedJar, "shared.txt", "stored", false );
+        storedJar.close();
+
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        final ZipOutputStream deflatedJar = new ZipOutputStream( deflated );
+        writeEntry( deflatedJar, "data/deflated.txt", "deflated", false );
+        writeEntry( deflatedJar, "shared.txt", "deflated", true );
+        deflatedJar.close();
+
+        //The stored jar is read straight from the mapping of Sar
+        //while the deflated jar has to be inflated first
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( m_sar ) );
+        try
+        {
+            writeEntry( output, "SAR-INF/config.xml", "<config/>", false );
+            writeEntry( output, "SAR-INF/lib/stored.jar",
+                        stored.toByteArray(), true );
+            writeEntry( output, "SAR-INF/lib/deflated.jar",
+                        deflated.toByteArray(), false );
+            writeEntry( output, "SAR-INF/classes/data/classes.txt",
+                        "classes", false );
+            writeEntry( output, "SAR-INF/classes/shared.txt", "classes", true );
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    private byte[] readComponent()
+        throws IOException
+    {
+        final InputStream input =
+            getClass().getClassLoader().getResourceAsStream( COMPONENT_FILE );
+        try
+        {
+            return IOUtil.toByteArray( input );
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    private void writeEntry( final ZipOutputStream output,
+                             final String name,
+                             final String content,
+                             final boolean store )
+        throws IOException
+    {
+        writeEntry( output, name, content.getBytes(), store );
+    }
+
+    private void writeEntry( final ZipOutputStream output,
+                             final String name,
+                             final byte[] data,
+                             final boolean store )
+        throws IOException
+    {
+        final ZipEntry entry = new ZipEntry( name );
+        if( store )
+        {
+            final CRC32 crc = new CRC32();
+            crc.update( data );
+            entry.setMethod( ZipEntry.STORED );
+            entry.setSize( data.length );
+            entry.setCrc( crc.getValue() );
+        }
+        output.putNextEntry( entry );
+        output.write( data );
+        output.closeEntry();
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.Policy;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.loom.classman.runtime.JoinClassLoader;
+import org.codehaus.spice.salt.io.FileUtil;
+
+/**
+ * Stress test that loads classes of an application from several threads
+ * at once.
+ *
+ * <p>As in a Sar the application classloader has a join of the library
+ * classloaders as its parent and each application class extends a library
+ * class.</p>
+ *
+ * @author Peter Donald
+ */
+public class ParallelClassLoadingTestCase
+    extends TestCase
+{
+    private static final int CLASSES = 200;
+    private static final int THREADS = 8;
+    private static final long TIMEOUT = 60 * 1000;
+    private static final RuntimePermission PERMISSION =
+        new RuntimePermission( "loom.test" );
+    private static final String[] PACKAGES =
+        new String[]{"app", "lib1", "lib2"};
+
+    private File m_directory;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_parallel_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+        writeJar( "lib1" );
+        writeJar( "lib2" );
+        writeJar( "app" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testConcurrentLoading()
+        throws Exception
+    {
+        final ClassLoader classLoader = createClassLoader();
+        final Class[][] results = load( classLoader );
+
+        final String[] names = getNames();
+        for( int i = 0; i < names.length; i++ )
+        {
+            final Class clazz = results[ 0 ][ i ];
+            assertEquals( names[ i ], clazz.getName() );
+            assertTrue( "permission",
+                        clazz.getProtectionDomain().implies( PERMISSION ) );
+            for( int j = 1; j < THREADS; j++ )
+            {
+                assertSame( names[ i ], clazz, results[ j ][ i ] );
+            }
+        }
+
+        final Class application = classLoader.loadClass( "app.C1" );
+        assertSame( classLoader, application.getClassLoader() );
+        assertEquals( "lib2.C1", application.getSuperclass().getName() );
+    }
+
+    /**
+     * While one thread is blocked loading a class another thread must be
+     * able to load a class with a different name.
+     */
+    public void testLoadingNotSerialized()
+        throws Exception
+    {
+        if( !PolicyClassLoader.isParallelCapable() )
+        {
+            //Loading is serialized on this virtual machine
+            return;
+        }
+
+        final URL[] urls =
+            new URL[]{new File( m_directory, "lib1.jar" ).toURL()};
+        final Latch latch = new Latch();
+        final ClassLoader parent = new ClassLoader( null )
+        {
+            protected Class loadClass( final String name,
+                                       final boolean resolve )
+                throws ClassNotFoundException
+            {
+                if( name.equals( "lib1.C0" ) )
+                {
+                    latch.block();
+                }
+                return super.loadClass( name, resolve );
+            }
+        };
+        final ClassLoader classLoader = createClassLoader( urls, parent );
+
+        final Thread blocked = startLoading( classLoader, "lib1.C0" );
+        try
+        {
+            assertTrue( "blocked", latch.waitForBlocked( TIMEOUT ) );
+            final Thread other = startLoading( classLoader, "lib1.C1" );
+            other.join( TIMEOUT );
+            assertFalse( "Loading serialized", other.isAlive() );
+        }
+        finally
+        {
+            latch.release();
+        }
+        blocked.join( TIMEOUT );
+        assertFalse( "blocked thread finished", blocked.isAlive() );
+        assertSame( classLoader,
+                    classLoader.loadClass( "lib1.C0" ).getClassLoader() );
+    }
+
+    private Thread startLoading( final ClassLoader classLoader,
+                                 final String name )
+    {
+        final Thread thread = new Thread( "loader-" + name )
+        {
+            public void run()
+            {
+                try
+                {
+                    classLoader.loadClass( name );
+                }
+                catch( final ClassNotFoundException cnfe )
+                {
+                }
+            }
+        };
+        thread.setDaemon( true );
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Load every class through classloader from each thread. Each thread
+     * starts at a different class.
+     *
+     * @return the classes loaded by each thread
+     */
+    private Class[][] load( final ClassLoader classLoader )
+        throws Exception
+    {
+        final String[] names = getNames();
+        final Class[][] results = new Class[ THREADS ][ names.length ];
+        final Throwable[] failures = new Throwable[ THREADS ];
+        final Thread[] threads = new Thread[ THREADS ];
+        for( int i = 0; i < THREADS; i++ )
+        {
+            final int thread = i;
+            threads[ i ] = new Thread( "loader-" + i )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        final int offset = thread * names.length / THREADS;
+                        for( int j = 0; j < names.length; j++ )
+                        {
+                            final int index = ( offset + j ) % names.length;
+                            results[ thread ][ index ] =
+                                classLoader.loadClass( names[ index ] );
+                        }
+                    }
+                    catch( final Throwable t )
+                    {
+                        failures[ thread ] = t;
+                    }
+                }
+            };
+        }
+        for( int i = 0; i < THREADS; i++ )
+        {
+            threads[ i ].start();
+        }
+
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        for( int i = 0; i < THREADS; i++ )
+        {
+            threads[ i ].join( Math.max( 1, end - System.currentTimeMillis() ) );
+            if( threads[ i ].isAlive() )
+            {
+                fail( "Deadlock loading classes in " + threads[ i ].getName() );
+            }
+            if( null != failures[ i ] )
+            {
+                fail( "Error loading classes: " + failures[ i ] );
+            }
+        }
+        return results;
+    }
+
+    private String[] getNames()
+    {
+        final String[] names = new String[ PACKAGES.length * CLASSES ];
+        for( int i = 0; i < names.length; i++ )
+        {
+            names[ i ] = PACKAGES[ i % PACKAGES.length ] + ".C" +
+                ( i / PACKAGES.length );
+        }
+        return names;
+    }
+
+    /**
+     * Create the application classloader with a join of the library
+     * classloaders as its parent.
+     */
+    private ClassLoader createClassLoader()
+        throws IOException
+    {
+        final ClassLoader[] libraries = new ClassLoader[]
+        {
+            createClassLoader( "lib1", null ),
+            createClassLoader( "lib2", null )
+        };
+        final ClassLoader join = new JoinClassLoader( libraries, null );
+        return createClassLoader( "app", join );
+    }
+
+    private ClassLoader createClassLoader( final String name,
+                                           final ClassLoader parent )
+        throws IOException
+    {
+        final URL[] urls =
+            new URL[]{new File( m_directory, name + ".jar" ).toURL()};
+        return createClassLoader( urls, parent );
+    }
+
+    private ClassLoader createClassLoader( final URL[] urls,
+                                           final ClassLoader parent )
+    {
+        final Permissions permissions = new Permissions();
+        permissions.add( PERMISSION );
+        final Policy policy = new Policy()
+        {
+            public PermissionCollection getPermissions(
+                final CodeSource codeSource )
+            {
+                return permissions;
+            }
+
+            public void refresh()
+            {
+            }
+        };
+
+        final PolicyClassLoader classLoader =
+            new PolicyClassLoader( urls, parent, policy );
+        classLoader.enableLogging( new ConsoleLogger( ConsoleLogger.LEVEL_NONE ) );
+        return classLoader;
+    }
+
+    /**
+     * Write a jar of classes named C0, C1 and so on in a package with the
+     * same name as jar. The classes of the app package alternately extend
+     * the class with the same name in the lib1 and lib2 packages.
+     */
+    private void writeJar( final String name )
+        throws IOException
+    {
+        final File file = new File( m_directory, name + ".jar" );
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            for( int i = 0; i < CLASSES; i++ )
+            {
+                final String className = name + "/C" + i;
+                final String superName;
+                if( name.equals( "app" ) )
+                {
+                    superName = "lib" + ( 1 + i % 2 ) + "/C" + i;
+                }
+                else
+                {
+                    superName = "java/lang/Object";
+                }
+                output.putNextEntry( new ZipEntry( className + ".class" ) );
+                output.write( createClass( className, superName ) );
+                output.closeEntry();
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Create the bytecode of an empty class.
+     */
+    private static byte[] createClass( final String name,
+                                       final String superName )
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream( bytes );
+        output.writeInt( 0xCAFEBABE );
+        output.writeShort( 0 );
+        output.writeShort( 46 );
+        output.writeShort( 5 );
+        output.writeByte( 1 );
+        output.writeUTF( name );
+        output.writeByte( 7 );
+        output.writeShort( 1 );
+        output.writeByte( 1 );
+        output.writeUTF( superName );
+        output.writeByte( 7 );
+        output.writeShort( 3 );
+        //public super, this class, super class and no interfaces,
+        //fields, methods or attributes
+        output.writeShort( 0x21 );
+        output.writeShort( 2 );
+        output.writeShort( 4 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Blocks a loading thread until released.
+     */
+    private static class Latch
+    {
+        private boolean m_blocked;
+        private boolean m_released;
+
+        synchronized void block()
+        {
+            m_blocked = true;
+            notifyAll();
+            while( !m_released )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( final InterruptedException ie )
+                {
+                    return;
+                }
+            }
+        }
+
+        synchronized boolean waitForBlocked( final long timeout )
+            throws InterruptedException
+        {
+            final long end = System.currentTimeMillis() + timeout;
+            while( !m_blocked && System.currentTimeMillis() < end )
+            {
+                wait( Math.max( 1, end - System.currentTimeMillis() ) );
+            }
+            return m_blocked;
+        }
+
+        synchronized void release()
+        {
+            m_released = true;
+            notifyAll();
+        }
+    }
+}
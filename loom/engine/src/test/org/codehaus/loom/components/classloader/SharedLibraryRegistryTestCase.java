@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.classloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.security.PermissionCollection;
+import java.security.Permissions;
+import java.security.Policy;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.loom.components.extensions.pkgmgr.ExtensionManager;
+import org.codehaus.loom.components.extensions.pkgmgr.OptionalPackage;
+import org.codehaus.loom.components.extensions.pkgmgr.PackageManager;
+import org.codehaus.loom.extension.Extension;
+import org.codehaus.spice.salt.io.FileUtil;
+
+/**
+ * Testcase for {@link SharedLibraryRegistry}.
+ *
+ * <p>Each application has an identical library jar and its own jar with a
+ * class that extends the library class.</p>
+ *
+ * @author Peter Donald
+ */
+public class SharedLibraryRegistryTestCase
+    extends TestCase
+{
+    private static final RuntimePermission PERMISSION =
+        new RuntimePermission( "loom.test" );
+
+    private File m_directory;
+    private ClassLoader m_parent;
+    private SharedLibraryRegistry m_registry;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_shared_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+
+        m_parent = new URLClassLoader( new URL[ 0 ], null );
+        m_registry =
+            new SharedLibraryRegistry( new File( m_directory, "store" ),
+                                       new String[]{"lib*.jar"},
+                                       new String[ 0 ],
+                                       new ClassLoader[]{m_parent} );
+        m_registry.enableLogging(
+            new ConsoleLogger( ConsoleLogger.LEVEL_NONE ) );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testLibraryShared()
+        throws Exception
+    {
+        final SarLoaderResolver resolver1 = createResolver( "app1", true );
+        final SarLoaderResolver resolver2 = createResolver( "app2", true );
+        final ClassLoader loader1 = createClassLoader( resolver1 );
+        final ClassLoader loader2 = createClassLoader( resolver2 );
+
+        final Class library = loader1.loadClass( "lib.C" );
+        assertSame( library, loader2.loadClass( "lib.C" ) );
+        assertSame( loader1.getParent(), library.getClassLoader() );
+        assertSame( m_parent, library.getClassLoader().getParent() );
+        assertTrue( "permission",
+                    library.getProtectionDomain().implies( PERMISSION ) );
+
+        final Class application = loader2.loadClass( "app2.C" );
+        assertSame( loader2, application.getClassLoader() );
+        assertSame( library, application.getSuperclass() );
+        assertEquals( 1, ( (PolicyClassLoader)loader2 ).getURLs().length );
+
+        final SharedLibraryRegistry.Library[] libraries =
+            m_registry.getLibraries();
+        assertEquals( 1, libraries.length );
+        assertEquals( Arrays.asList( new String[]{"lib.jar"} ),
+                      Arrays.asList( libraries[ 0 ].getNames() ) );
+        assertEquals( 2, libraries[ 0 ].getReferences() );
+        assertTrue( libraries[ 0 ].getClassBytes() > 0 );
+        assertEquals( libraries[ 0 ].getClassBytes(),
+                      m_registry.getSavedClassBytes() );
+
+        release( resolver1 );
+        assertEquals( 1, m_registry.getLibraries().length );
+        assertEquals( 0, m_registry.getSavedClassBytes() );
+        release( resolver2 );
+        assertEquals( 0, m_registry.getLibraries().length );
+    }
+
+    public void testDifferentPermissionsNotShared()
+        throws Exception
+    {
+        final ClassLoader loader1 =
+            createClassLoader( createResolver( "app1", true ) );
+        final ClassLoader loader2 =
+            createClassLoader( createResolver( "app2", false ) );
+
+        final Class library = loader1.loadClass( "lib.C" );
+        final Class other = loader2.loadClass( "lib.C" );
+        assertNotSame( library, other );
+        assertTrue( library.getProtectionDomain().implies( PERMISSION ) );
+        assertFalse( other.getProtectionDomain().implies( PERMISSION ) );
+        assertEquals( 2, m_registry.getLibraries().length );
+        assertEquals( 0, m_registry.getSavedClassBytes() );
+    }
+
+    public void testOtherParentNotShared()
+        throws Exception
+    {
+        final SarLoaderResolver resolver = createResolver( "app1", true );
+        final URL[] urls = getURLs( resolver );
+        final ClassLoader parent = new URLClassLoader( new URL[ 0 ], null );
+        final ClassLoader loader = resolver.createClassLoader( parent, urls );
+        assertSame( parent, loader.getParent() );
+        assertSame( loader, loader.loadClass( "lib.C" ).getClassLoader() );
+        assertEquals( 0, resolver.getSharedLibraries().length );
+    }
+
+    public void testStoredJarDeletedOnRelease()
+        throws Exception
+    {
+        final SarLoaderResolver resolver1 = createResolver( "app1", true );
+        final SarLoaderResolver resolver2 = createResolver( "app2", true );
+        createClassLoader( resolver1 );
+        createClassLoader( resolver2 );
+        final File store = new File( m_directory, "store" );
+        assertEquals( 1, store.list().length );
+
+        release( resolver1 );
+        assertEquals( 1, store.list().length );
+        release( resolver2 );
+        assertEquals( 0, store.list().length );
+
+        //The jar is stored again when next used
+        createClassLoader( createResolver( "app3", true ) );
+        assertEquals( 1, store.list().length );
+    }
+
+    public void testUnchangedJarNotRead()
+        throws Exception
+    {
+        final SarLoaderResolver resolver = createResolver( "app1", true );
+        createClassLoader( resolver );
+        final SharedLibraryRegistry.Library library =
+            resolver.getSharedLibraries()[ 0 ];
+
+        //Overwrite the jar keeping its size and time of modification
+        final File jar =
+            new File( m_directory, "app1/work/SAR-INF/lib/lib.jar" );
+        final long lastModified = jar.lastModified();
+        final byte[] data = new byte[ (int)jar.length() ];
+        final FileOutputStream output = new FileOutputStream( jar );
+        output.write( data );
+        output.close();
+        jar.setLastModified( lastModified );
+
+        final SarLoaderResolver other = createResolver( "app1", true );
+        createClassLoader( other );
+        assertSame( library, other.getSharedLibraries()[ 0 ] );
+        assertEquals( 2, library.getReferences() );
+    }
+
+    public void testChangedJarReadAgain()
+        throws Exception
+    {
+        final SarLoaderResolver resolver = createResolver( "app1", true );
+        createClassLoader( resolver );
+
+        final File jar =
+            new File( m_directory, "app1/work/SAR-INF/lib/lib.jar" );
+        final long lastModified = jar.lastModified();
+        writeJar( jar, "lib/D", "java/lang/Object" );
+        jar.setLastModified( lastModified + 2000 );
+
+        final SarLoaderResolver other = createResolver( "app1", true );
+        final ClassLoader loader = createClassLoader( other );
+        assertNotSame( resolver.getSharedLibraries()[ 0 ],
+                       other.getSharedLibraries()[ 0 ] );
+        assertNotNull( loader.loadClass( "lib.D" ) );
+    }
+
+    public void testGrantedPermissionsCopied()
+        throws Exception
+    {
+        final Permissions permissions = new Permissions();
+        permissions.add( PERMISSION );
+        final ClassLoader loader =
+            createClassLoader( createResolver( "app1", permissions ) );
+        final Class library = loader.loadClass( "lib.C" );
+        assertTrue( library.getProtectionDomain().implies( PERMISSION ) );
+        assertFalse( "policy permissions read only",
+                     permissions.isReadOnly() );
+    }
+
+    private void release( final SarLoaderResolver resolver )
+    {
+        final SharedLibraryRegistry.Library[] libraries =
+            resolver.getSharedLibraries();
+        for( int i = 0; i < libraries.length; i++ )
+        {
+            m_registry.release( libraries[ i ] );
+        }
+    }
+
+    private ClassLoader createClassLoader( final SarLoaderResolver resolver )
+        throws Exception
+    {
+        final ClassLoader loader =
+            resolver.createClassLoader( m_parent, getURLs( resolver ) );
+        assertEquals( 1, resolver.getSharedLibraries().length );
+        return loader;
+    }
+
+    private URL[] getURLs( final SarLoaderResolver resolver )
+        throws Exception
+    {
+        return resolver.resolveFileSet( ".",
+                                        new String[]{"SAR-INF/lib/*.jar"},
+                                        new String[ 0 ] );
+    }
+
+    /**
+     * Create an application and a resolver for it whose policy grants the
+     * test permission to all code if specified.
+     */
+    private SarLoaderResolver createResolver( final String name,
+                                              final boolean granted )
+        throws IOException
+    {
+        final Permissions permissions = new Permissions();
+        if( granted )
+        {
+            permissions.add( PERMISSION );
+        }
+        return createResolver( name, permissions );
+    }
+
+    /**
+     * Create an application, unless it exists, and a resolver for it whose
+     * policy grants the specified permissions to all code.
+     */
+    private SarLoaderResolver createResolver( final String name,
+                                              final Permissions permissions )
+        throws IOException
+    {
+        final File home = new File( m_directory, name );
+        final File work = new File( home, "work" );
+        final File lib = new File( work, "SAR-INF/lib" );
+        if( !lib.exists() )
+        {
+            lib.mkdirs();
+            writeJar( new File( lib, "lib.jar" ),
+                      "lib/C",
+                      "java/lang/Object" );
+            writeJar( new File( lib, name + ".jar" ), name + "/C", "lib/C" );
+        }
+
+        final Policy policy = new Policy()
+        {
+            public PermissionCollection getPermissions(
+                final CodeSource codeSource )
+            {
+                return permissions;
+            }
+
+            public void refresh()
+            {
+            }
+        };
+
+        final ExtensionManager extensions = new ExtensionManager()
+        {
+            public OptionalPackage[] getOptionalPackages(
+                final Extension extension )
+            {
+                return new OptionalPackage[ 0 ];
+            }
+        };
+        final SarLoaderResolver resolver =
+            new SarLoaderResolver( new PackageManager( extensions ),
+                                   policy,
+                                   home,
+                                   work,
+                                   null,
+                                   m_registry );
+        resolver.enableLogging( new ConsoleLogger( ConsoleLogger.LEVEL_NONE ) );
+        return resolver;
+    }
+
+    /**
+     * Write a jar containing a single class. The entries have a fixed time
+     * so that jars with the same class are identical.
+     */
+    private static void writeJar( final File file,
+                                  final String className,
+                                  final String superName )
+        throws IOException
+    {
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            final ZipEntry entry = new ZipEntry( className + ".class" );
+            entry.setTime( 0 );
+            output.putNextEntry( entry );
+            output.write( createClass( className, superName ) );
+            output.closeEntry();
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Create the bytecode of an empty class.
+     */
+    private static byte[] createClass( final String name,
+                                       final String superName )
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream( bytes );
+        output.writeInt( 0xCAFEBABE );
+        output.writeShort( 0 );
+        output.writeShort( 46 );
+        output.writeShort( 5 );
+        output.writeByte( 1 );
+        output.writeUTF( name );
+        output.writeByte( 7 );
+        output.writeShort( 1 );
+        output.writeByte( 1 );
+        output.writeUTF( superName );
+        output.writeByte( 7 );
+        output.writeShort( 3 );
+        //public super, this class, super class and no interfaces,
+        //fields, methods or attributes
+        output.writeShort( 0x21 );
+        output.writeShort( 2 );
+        output.writeShort( 4 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.close();
+        return bytes.toByteArray();
+    }
+}
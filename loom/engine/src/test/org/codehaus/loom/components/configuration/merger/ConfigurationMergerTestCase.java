@@ -87,6 +87,8 @@
 package org.codehaus.loom.components.configuration.merger;
 
 import junit.framework.TestCase;
+import org.codehaus.dna.Configuration;
+import org.codehaus.dna.ConfigurationException;
 import org.codehaus.dna.impl.ConfigurationUtil;
 import org.codehaus.dna.impl.DefaultConfiguration;
 import org.codehaus.loom.components.configuration.merger.ConfigurationMerger;
@@ -188,4 +190,70 @@ public class ConfigurationMergerTestCase
                                                   result,
                                                   base ) ) );
     }
+
+    public void testMergeKeyedChildren()
+        throws Exception
+    {
+        final DefaultConfiguration base =
+            new DefaultConfiguration( "a", "", "" );
+        final DefaultConfiguration layer =
+            new DefaultConfiguration( "a", "", "" );
+        for( int i = 0; i < 100; i++ )
+        {
+            final DefaultConfiguration bkid =
+                new DefaultConfiguration( "kid", "", "" );
+            bkid.setAttribute( "name", "kid" + i );
+            bkid.setAttribute( "test", "0" );
+            base.addChild( bkid );
+        }
+        for( int i = 0; i < 100; i += 10 )
+        {
+            final DefaultConfiguration lkid =
+                new DefaultConfiguration( "kid", "", "" );
+            lkid.setAttribute( "name", "kid" + i );
+            lkid.setAttribute( "test", "1" );
+            lkid.setAttribute( "excalibur-configuration:merge", "true" );
+            lkid.setAttribute( "excalibur-configuration:key-attribute",
+                               "name" );
+            layer.addChild( lkid );
+        }
+
+        final Configuration merged = ConfigurationMerger.merge( layer, base );
+        final Configuration[] kids = merged.getChildren();
+        assertEquals( 100, kids.length );
+        for( int i = 0; i < kids.length; i++ )
+        {
+            final String name = kids[ i ].getAttribute( "name" );
+            final int index = Integer.parseInt( name.substring( 3 ) );
+            final String expected = ( 0 == index % 10 ) ? "1" : "0";
+            assertEquals( name, expected, kids[ i ].getAttribute( "test" ) );
+            assertNull( kids[ i ].getAttribute(
+                "excalibur-configuration:merge", null ) );
+        }
+    }
+
+    public void testMergeWithMultipleMatchesFails()
+        throws Exception
+    {
+        final DefaultConfiguration base =
+            new DefaultConfiguration( "a", "", "" );
+        base.addChild( new DefaultConfiguration( "kid", "", "" ) );
+        base.addChild( new DefaultConfiguration( "kid", "", "" ) );
+
+        final DefaultConfiguration layer =
+            new DefaultConfiguration( "a", "", "" );
+        final DefaultConfiguration lkid =
+            new DefaultConfiguration( "kid", "", "" );
+        lkid.setAttribute( "excalibur-configuration:merge", "true" );
+        layer.addChild( lkid );
+
+        try
+        {
+            ConfigurationMerger.merge( layer, base );
+            fail( "Expected merge with multiple matches to fail" );
+        }
+        catch( final ConfigurationException ce )
+        {
+        }
+    }
 }
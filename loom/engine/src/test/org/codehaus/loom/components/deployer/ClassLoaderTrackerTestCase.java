@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.deployer;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import junit.framework.TestCase;
+
+/**
+ * Testcase for {@link ClassLoaderTracker}.
+ *
+ * @author Peter Donald
+ */
+public class ClassLoaderTrackerTestCase
+    extends TestCase
+{
+    private static final long DELAY = 60 * 1000;
+    private static final long TIME = 1000000;
+
+    public void testCollectedClassLoaderNotReported()
+        throws Exception
+    {
+        final ClassLoaderTracker tracker = new ClassLoaderTracker();
+        tracker.track( "app", "default", createClassLoader(), TIME );
+        assertEquals( 1, tracker.getPendingCount() );
+
+        assertEquals( 0, tracker.check( TIME + DELAY, DELAY, true ).length );
+        for( int i = 0; i < 100 && 0 != tracker.getPendingCount(); i++ )
+        {
+            System.gc();
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, tracker.getPendingCount() );
+        assertEquals( 1, tracker.getCollectedCount() );
+        assertEquals( 0, tracker.getLeakedCount() );
+    }
+
+    public void testLeakNotReportedBeforeDelay()
+        throws Exception
+    {
+        final ClassLoader classLoader = createClassLoader();
+        final ClassLoaderTracker tracker = new ClassLoaderTracker();
+        tracker.track( "app", "default", classLoader, TIME );
+
+        assertEquals( 0,
+                      tracker.check( TIME + DELAY - 1, DELAY, false ).length );
+        assertEquals( 1, tracker.getPendingCount() );
+        assertEquals( 0, tracker.getLeakedCount() );
+    }
+
+    public void testContextClassLoaderLeak()
+        throws Exception
+    {
+        final ClassLoader classLoader = createClassLoader();
+        final ClassLoaderTracker tracker = new ClassLoaderTracker();
+        tracker.track( "app", "default", classLoader, TIME );
+
+        final Object lock = new Object();
+        final Thread thread = new Thread( "pooled" )
+        {
+            public void run()
+            {
+                synchronized( lock )
+                {
+                    try
+                    {
+                        lock.wait();
+                    }
+                    catch( final InterruptedException ie )
+                    {
+                    }
+                }
+            }
+        };
+        thread.setDaemon( true );
+        thread.setContextClassLoader( new URLClassLoader( new URL[ 0 ],
+                                                          classLoader ) );
+        thread.start();
+        try
+        {
+            final ClassLoaderTracker.Leak[] leaks =
+                tracker.check( TIME + DELAY, DELAY, false );
+            assertEquals( 1, leaks.length );
+            assertEquals( "app", leaks[ 0 ].getApplication() );
+            assertEquals( "default", leaks[ 0 ].getName() );
+            assertEquals( DELAY, leaks[ 0 ].getAge() );
+            final String[] referrers = leaks[ 0 ].getReferrers();
+            assertEquals( 1, referrers.length );
+            assertEquals( "context ClassLoader of thread \"pooled\"",
+                          referrers[ 0 ] );
+
+            assertEquals( 1, tracker.getLeakedCount() );
+            assertEquals( "app/default", tracker.getLeaked()[ 0 ] );
+
+            //Leaks are only reported once
+            assertEquals( 0,
+                          tracker.check( TIME + DELAY * 2, DELAY, false )
+                          .length );
+
+            final ClassLoader replacement = getClass().getClassLoader();
+            assertEquals( 1,
+                          ClassLoaderTracker.clearContextClassLoaders(
+                              classLoader, replacement ) );
+            assertSame( replacement, thread.getContextClassLoader() );
+            assertEquals( 0,
+                          ClassLoaderTracker.getReferrers( classLoader ).length );
+        }
+        finally
+        {
+            thread.interrupt();
+        }
+    }
+
+    public void testDescendants()
+        throws Exception
+    {
+        final ClassLoader classLoader = createClassLoader();
+        final ClassLoader child =
+            new URLClassLoader( new URL[ 0 ], classLoader );
+        assertTrue( ClassLoaderTracker.isDescendant( child, classLoader ) );
+        assertTrue( ClassLoaderTracker.isDescendant( classLoader, classLoader ) );
+        assertFalse( ClassLoaderTracker.isDescendant( classLoader, child ) );
+        assertFalse( ClassLoaderTracker.isDescendant( null, classLoader ) );
+    }
+
+    private ClassLoader createClassLoader()
+    {
+        return new URLClassLoader( new URL[ 0 ], null );
+    }
+}
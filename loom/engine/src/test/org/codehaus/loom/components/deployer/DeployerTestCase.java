@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.deployer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.codehaus.dna.Configuration;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.dna.impl.DefaultConfiguration;
+import org.codehaus.dna.impl.DefaultResourceLocator;
+import org.codehaus.loom.components.installer.DefaultInstaller;
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+import org.codehaus.loom.components.util.profile.PartitionProfile;
+import org.codehaus.loom.interfaces.Application;
+import org.codehaus.loom.interfaces.ApplicationContext;
+import org.codehaus.loom.interfaces.ClassLoaderManager;
+import org.codehaus.loom.interfaces.ClassLoaderSet;
+import org.codehaus.loom.interfaces.ConfigurationInterceptor;
+import org.codehaus.loom.interfaces.ConfigurationValidator;
+import org.codehaus.loom.interfaces.Installer;
+import org.codehaus.loom.interfaces.Kernel;
+import org.codehaus.loom.interfaces.LogManager;
+import org.codehaus.loom.interfaces.LoomException;
+import org.codehaus.spice.loggerstore.LoggerStore;
+import org.codehaus.spice.salt.io.FileUtil;
+
+/**
+ * Testcase for deploying, redeploying and reconfiguring applications with
+ * DefaultDeployer. The applications are installed by DefaultInstaller but
+ * the kernel and the other services are replaced by stubs.
+ *
+ * @author Peter Donald
+ */
+public class DeployerTestCase
+    extends TestCase
+{
+    private static final String NAME = "test";
+    private static final String BLOCK =
+        "org.codehaus.loom.components.deployer.data.Block1";
+
+    private File m_directory;
+    private File m_sar;
+    private DefaultDeployer m_deployer;
+    private final Map m_applications = new HashMap();
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_deployer_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+        m_sar = new File( m_directory, "test.sar" );
+        m_deployer = createDeployer();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        m_deployer.dispose();
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testReconfigureUpdatesProfile()
+        throws Exception
+    {
+        writeSar( "1" );
+        m_deployer.deploy( NAME, m_sar.toURL() );
+        final TestApplication application = getApplication();
+
+        writeFile( new File( getHome(), "SAR-INF/config.xml" ),
+                   getConfig( "2" ) );
+        m_deployer.reconfigure( NAME );
+        assertEquals( 1, application.m_reconfigured.size() );
+
+        //The running blocks already have the configuration in Sar
+        writeSar( "2" );
+        m_deployer.redeploy( NAME, m_sar.toURL() );
+        assertSame( application, getApplication() );
+        assertEquals( 0, application.m_replaced.size() );
+    }
+
+    public void testReconfigureReservesName()
+        throws Exception
+    {
+        writeSar( "1" );
+        m_deployer.deploy( NAME, m_sar.toURL() );
+        final TestApplication application = getApplication();
+        application.m_undeployDuringReconfigure = true;
+
+        writeFile( new File( getHome(), "SAR-INF/config.xml" ),
+                   getConfig( "2" ) );
+        m_deployer.reconfigure( NAME );
+        assertNotNull( "undeploy rejected", application.m_undeployFailure );
+        assertSame( application, getApplication() );
+
+        m_deployer.undeploy( NAME );
+        assertNull( getApplication() );
+    }
+
+    public void testFailedReconfigureRedeploys()
+        throws Exception
+    {
+        writeSar( "1" );
+        m_deployer.deploy( NAME, m_sar.toURL() );
+        final TestApplication application = getApplication();
+        application.m_failReconfigure = true;
+
+        writeFile( new File( getHome(), "SAR-INF/config.xml" ),
+                   getConfig( "2" ) );
+        m_deployer.reconfigure( NAME );
+        assertSame( application, getApplication() );
+        assertEquals( 1, application.m_replaced.size() );
+        assertEquals( "b1", application.m_replaced.get( 0 ) );
+    }
+
+    public void testRedeployAppliesChangedConfiguration()
+        throws Exception
+    {
+        writeSar( "1" );
+        m_deployer.deploy( NAME, m_sar.toURL() );
+        final TestApplication application = getApplication();
+
+        writeSar( "2" );
+        m_deployer.redeploy( NAME, m_sar.toURL() );
+        assertSame( application, getApplication() );
+        assertEquals( 1, application.m_replaced.size() );
+        assertEquals( "b1", application.m_replaced.get( 0 ) );
+    }
+
+    public void testFailedReplaceRedeploys()
+        throws Exception
+    {
+        writeSar( "1" );
+        m_deployer.deploy( NAME, m_sar.toURL() );
+        final TestApplication application = getApplication();
+        application.m_failReplace = true;
+
+        writeSar( "2" );
+        m_deployer.redeploy( NAME, m_sar.toURL() );
+        assertNotNull( getApplication() );
+        assertNotSame( application, getApplication() );
+
+        //The new deployment is the one that later redeploys compare with
+        final TestApplication redeployed = getApplication();
+        m_deployer.redeploy( NAME, m_sar.toURL() );
+        assertSame( redeployed, getApplication() );
+        assertEquals( 0, redeployed.m_replaced.size() );
+    }
+
+    public void testRedeployAppliesChangedAssembly()
+        throws Exception
+    {
+        writeSar( "1" );
+        m_deployer.deploy( NAME, m_sar.toURL() );
+        final TestApplication application = getApplication();
+
+        writeSar( "1", new String[]{"b1", "b2"} );
+        m_deployer.redeploy( NAME, m_sar.toURL() );
+        assertNotNull( getApplication() );
+        assertNotSame( application, getApplication() );
+    }
+
+    private TestApplication getApplication()
+    {
+        return (TestApplication)m_applications.get( NAME );
+    }
+
+    private File getHome()
+    {
+        return new File( m_directory, "apps/" + NAME );
+    }
+
+    private DefaultDeployer createDeployer()
+        throws Exception
+    {
+        final DefaultResourceLocator locator = new DefaultResourceLocator();
+        locator.put( Kernel.class.getName(), new TestKernel() );
+        locator.put( ConfigurationInterceptor.class.getName(),
+                     new ConfigurationInterceptor()
+                     {
+                         public Configuration processConfiguration(
+                             final String application,
+                             final String block,
+                             final Configuration configuration )
+                         {
+                             return configuration;
+                         }
+                     } );
+        locator.put( ClassLoaderManager.class.getName(),
+                     new ClassLoaderManager()
+                     {
+                         public ClassLoaderSet createClassLoaderSet(
+                             final Configuration environment,
+                             final Map data,
+                             final File baseDirectory,
+                             final File workDirectory,
+                             final File archive )
+                         {
+                             final ClassLoader classLoader =
+                                 DeployerTestCase.class.getClassLoader();
+                             final Map classLoaders = new HashMap();
+                             classLoaders.put( "default", classLoader );
+                             return new ClassLoaderSet( classLoader,
+                                                        classLoaders );
+                         }
+
+                         public void releaseClassLoaderSet(
+                             final ClassLoaderSet classLoaderSet )
+                         {
+                         }
+                     } );
+        locator.put( LogManager.class.getName(), new LogManager()
+        {
+            public LoggerStore createHierarchy( final Configuration logs,
+                                                final File homeDirectory,
+                                                final File workDirectory,
+                                                final Map context )
+            {
+                return null;
+            }
+        } );
+        locator.put( ConfigurationValidator.class.getName(),
+                     new ConfigurationValidator()
+                     {
+                         public boolean isValid(
+                             final ComponentProfile component,
+                             final ClassLoader classLoader )
+                         {
+                             return true;
+                         }
+                     } );
+        locator.put( Installer.class.getName(), createInstaller() );
+
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( "deployer", "", "" );
+        final DefaultConfiguration leakDelay =
+            new DefaultConfiguration( "classloader-leak-delay", "", "" );
+        leakDelay.setValue( "0" );
+        configuration.addChild( leakDelay );
+
+        final DefaultDeployer deployer = new DefaultDeployer();
+        deployer.enableLogging( new ConsoleLogger( ConsoleLogger.LEVEL_NONE ) );
+        deployer.compose( locator );
+        deployer.configure( configuration );
+        deployer.initialize();
+        return deployer;
+    }
+
+    private DefaultInstaller createInstaller()
+        throws Exception
+    {
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( "installer", "", "" );
+        final DefaultConfiguration workDir =
+            new DefaultConfiguration( "base-work-dir", "", "" );
+        workDir.setValue( new File( m_directory, "work" ).getPath() );
+        configuration.addChild( workDir );
+        final DefaultConfiguration appsDir =
+            new DefaultConfiguration( "base-application-dir", "", "" );
+        appsDir.setValue( new File( m_directory, "apps" ).getPath() );
+        configuration.addChild( appsDir );
+
+        final DefaultInstaller installer = new DefaultInstaller();
+        installer.enableLogging(
+            new ConsoleLogger( ConsoleLogger.LEVEL_NONE ) );
+        installer.configure( configuration );
+        installer.initialize();
+        return installer;
+    }
+
+    /**
+     * Write the test Sar with a single block whose configuration has the
+     * specified value.
+     */
+    private void writeSar( final String value )
+        throws IOException
+    {
+        writeSar( value, new String[]{"b1"} );
+    }
+
+    /**
+     * Write the test Sar with the specified blocks. The configuration of
+     * the first block has the specified value.
+     */
+    private void writeSar( final String value, final String[] blocks )
+        throws IOException
+    {
+        final StringBuffer assembly = new StringBuffer( "<assembly>" );
+        for( int i = 0; i < blocks.length; i++ )
+        {
+            assembly.append( "<block class=\"" + BLOCK + "\" name=\"" );
+            assembly.append( blocks[ i ] );
+            assembly.append( "\"/>" );
+        }
+        assembly.append( "</assembly>" );
+
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( m_sar ) );
+        try
+        {
+            writeEntry( output, "SAR-INF/assembly.xml", assembly.toString() );
+            writeEntry( output, "SAR-INF/config.xml", getConfig( value ) );
+            writeEntry( output, "SAR-INF/environment.xml", "<environment/>" );
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    private String getConfig( final String value )
+    {
+        return "<config><b1><value>" + value + "</value></b1></config>";
+    }
+
+    private void writeEntry( final ZipOutputStream output,
+                             final String name,
+                             final String content )
+        throws IOException
+    {
+        output.putNextEntry( new ZipEntry( name ) );
+        output.write( content.getBytes() );
+        output.closeEntry();
+    }
+
+    private void writeFile( final File file, final String content )
+        throws IOException
+    {
+        final OutputStream output = new FileOutputStream( file );
+        try
+        {
+            output.write( content.getBytes() );
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * A kernel that records the applications added to it.
+     */
+    private class TestKernel
+        implements Kernel
+    {
+        public void addApplication( final PartitionProfile profile,
+                                    final File homeDirectory,
+                                    final File workDirectory,
+                                    final ClassLoader classLoader,
+                                    final LoggerStore store )
+        {
+            m_applications.put( profile.getMetaData().getName(),
+                                new TestApplication() );
+        }
+
+        public void removeApplication( final String name )
+        {
+            m_applications.remove( name );
+        }
+
+        public Application getApplication( final String name )
+        {
+            return (Application)m_applications.get( name );
+        }
+
+        public String[] getApplicationNames()
+        {
+            return (String[])m_applications.keySet().
+                toArray( new String[ m_applications.size() ] );
+        }
+
+        public void lock()
+        {
+        }
+
+        public void unlock()
+        {
+        }
+    }
+
+    /**
+     * An application that records how it was changed.
+     */
+    private class TestApplication
+        implements Application
+    {
+        final List m_reconfigured = new ArrayList();
+        final List m_replaced = new ArrayList();
+        boolean m_undeployDuringReconfigure;
+        boolean m_failReconfigure;
+        boolean m_failReplace;
+        LoomException m_undeployFailure;
+
+        public void setApplicationContext( final ApplicationContext context )
+        {
+        }
+
+        public String[] getBlockNames()
+        {
+            return new String[]{"b1"};
+        }
+
+        public Object getBlock( final String name )
+        {
+            return null;
+        }
+
+        public void reconfigure( final Map configurations )
+            throws Exception
+        {
+            if( m_failReconfigure )
+            {
+                throw new Exception( "Failed to reconfigure" );
+            }
+            m_reconfigured.addAll( configurations.keySet() );
+            if( m_undeployDuringReconfigure )
+            {
+                try
+                {
+                    m_deployer.undeploy( NAME );
+                }
+                catch( final LoomException le )
+                {
+                    m_undeployFailure = le;
+                }
+            }
+        }
+
+        public void replaceBlocks( final ComponentProfile[] blocks )
+            throws Exception
+        {
+            if( m_failReplace )
+            {
+                throw new Exception( "Failed to replace blocks" );
+            }
+            for( int i = 0; i < blocks.length; i++ )
+            {
+                m_replaced.add( blocks[ i ].getTemplate().getName() );
+            }
+        }
+    }
+}
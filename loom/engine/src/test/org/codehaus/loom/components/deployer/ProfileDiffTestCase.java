@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.deployer;
+
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.DefaultConfiguration;
+import org.codehaus.loom.components.assembler.data.Component2;
+import org.codehaus.loom.components.util.info.ComponentInfo;
+import org.codehaus.loom.components.util.info.DependencyDescriptor;
+import org.codehaus.loom.components.util.info.ServiceDescriptor;
+import org.codehaus.loom.components.util.metadata.ComponentTemplate;
+import org.codehaus.loom.components.util.metadata.DependencyDirective;
+import org.codehaus.loom.components.util.metadata.PartitionTemplate;
+import org.codehaus.loom.components.util.profile.ComponentProfile;
+import org.codehaus.loom.components.util.profile.PartitionProfile;
+import org.codehaus.loom.interfaces.ContainerConstants;
+
+/**
+ * Testcase for comparing the profiles of two versions of an application.
+ *
+ * @author Peter Donald
+ */
+public class ProfileDiffTestCase
+    extends TestCase
+{
+    private static final ComponentInfo INFO =
+        new ComponentInfo( Component2.class,
+                           ServiceDescriptor.EMPTY_SET,
+                           DependencyDescriptor.EMPTY_SET,
+                           null );
+
+    public void testUnchanged()
+        throws Exception
+    {
+        final PartitionProfile previous =
+            createProfile( new ComponentProfile[]{create( "a", "1" ),
+                                                  create( "b", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        final PartitionProfile current =
+            createProfile( new ComponentProfile[]{create( "b", "1" ),
+                                                  create( "a", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        final ComponentProfile[] changed =
+            ProfileDiff.getChangedBlocks( previous, current );
+        assertEquals( 0, changed.length );
+    }
+
+    public void testChangedConfiguration()
+        throws Exception
+    {
+        final ComponentProfile b = create( "b", "2" );
+        final PartitionProfile previous =
+            createProfile( new ComponentProfile[]{create( "a", "1" ),
+                                                  create( "b", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        final PartitionProfile current =
+            createProfile( new ComponentProfile[]{create( "a", "1" ), b},
+                           ComponentProfile.EMPTY_SET );
+        final ComponentProfile[] changed =
+            ProfileDiff.getChangedBlocks( previous, current );
+        assertEquals( 1, changed.length );
+        assertSame( b, changed[ 0 ] );
+    }
+
+    public void testChangedDependencies()
+        throws Exception
+    {
+        final ComponentTemplate template =
+            new ComponentTemplate( "b",
+                                   Component2.class.getName(),
+                                   new DependencyDirective[]{
+                                       new DependencyDirective( "key",
+                                                                "a",
+                                                                "a" )},
+                                   null,
+                                   null,
+                                   false );
+        final ComponentProfile b = new ComponentProfile( INFO, template );
+        assertFalse( "dependencies",
+                     ProfileDiff.isEquivalent( create( "b", "1" )
+                                               .getTemplate(),
+                                               template ) );
+        assertTrue( "same",
+                    ProfileDiff.isEquivalent( template, b.getTemplate() ) );
+    }
+
+    public void testAddedBlock()
+        throws Exception
+    {
+        final PartitionProfile previous =
+            createProfile( new ComponentProfile[]{create( "a", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        final PartitionProfile current =
+            createProfile( new ComponentProfile[]{create( "a", "1" ),
+                                                  create( "b", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        assertNull( ProfileDiff.getChangedBlocks( previous, current ) );
+    }
+
+    public void testRenamedBlock()
+        throws Exception
+    {
+        final PartitionProfile previous =
+            createProfile( new ComponentProfile[]{create( "a", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        final PartitionProfile current =
+            createProfile( new ComponentProfile[]{create( "b", "1" )},
+                           ComponentProfile.EMPTY_SET );
+        assertNull( ProfileDiff.getChangedBlocks( previous, current ) );
+    }
+
+    public void testChangedListener()
+        throws Exception
+    {
+        final PartitionProfile previous =
+            createProfile( new ComponentProfile[]{create( "a", "1" )},
+                           new ComponentProfile[]{create( "l", "1" )} );
+        final PartitionProfile current =
+            createProfile( new ComponentProfile[]{create( "a", "1" )},
+                           new ComponentProfile[]{create( "l", "2" )} );
+        assertNull( ProfileDiff.getChangedBlocks( previous, current ) );
+    }
+
+    private ComponentProfile create( final String name, final String value )
+    {
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( name, "", "" );
+        configuration.setAttribute( "value", value );
+        final ComponentTemplate template =
+            new ComponentTemplate( name,
+                                   Component2.class.getName(),
+                                   DependencyDirective.EMPTY_SET,
+                                   null,
+                                   configuration,
+                                   false );
+        return new ComponentProfile( INFO, template );
+    }
+
+    private PartitionProfile createProfile( final ComponentProfile[] blocks,
+                                            final ComponentProfile[] listeners )
+    {
+        final PartitionTemplate blockTemplate =
+            new PartitionTemplate( ContainerConstants.BLOCK_PARTITION,
+                                   new String[]{
+                                       ContainerConstants.LISTENER_PARTITION},
+                                   PartitionTemplate.EMPTY_SET,
+                                   ComponentTemplate.EMPTY_SET );
+        final PartitionTemplate listenerTemplate =
+            new PartitionTemplate( ContainerConstants.LISTENER_PARTITION,
+                                   new String[ 0 ],
+                                   PartitionTemplate.EMPTY_SET,
+                                   ComponentTemplate.EMPTY_SET );
+        final PartitionTemplate template =
+            new PartitionTemplate( "test",
+                                   new String[ 0 ],
+                                   new PartitionTemplate[]{blockTemplate,
+                                                           listenerTemplate},
+                                   ComponentTemplate.EMPTY_SET );
+        return new PartitionProfile( template,
+                                     new PartitionProfile[]{
+                                         new PartitionProfile(
+                                             blockTemplate,
+                                             PartitionProfile.EMPTY_SET,
+                                             blocks ),
+                                         new PartitionProfile(
+                                             listenerTemplate,
+                                             PartitionProfile.EMPTY_SET,
+                                             listeners )},
+                                     ComponentProfile.EMPTY_SET );
+    }
+}
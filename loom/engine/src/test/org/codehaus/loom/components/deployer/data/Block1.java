@@ -0,0 +1,17 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.deployer.data;
+
+/**
+ * A test block that is deployed by the deployer.
+ *
+ * @author Peter Donald
+ */
+public class Block1
+{
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.extension;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.dna.impl.DefaultConfiguration;
+import org.codehaus.loom.components.extensions.DefaultExtensionManager;
+import org.codehaus.loom.components.extensions.pkgmgr.OptionalPackage;
+import org.codehaus.loom.extension.Extension;
+import org.codehaus.spice.salt.io.FileUtil;
+
+/**
+ * Testcase for the index of jars kept by the extension manager.
+ *
+ * @author Peter Donald
+ */
+public class ExtensionIndexTestCase
+    extends TestCase
+{
+    private static final String NAME = "Extension1";
+    private static final long TIME = 1000000000000L;
+
+    private File m_directory;
+    private File m_extDir;
+    private File m_index;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_extindex_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_extDir = new File( m_directory, "ext" );
+        m_extDir.mkdirs();
+        m_index = new File( m_directory, "work/extensions.index" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testCandidatesSorted()
+        throws Exception
+    {
+        writeJar( "a.jar", "1.0" );
+        writeJar( "b.jar", "2.0" );
+        writeJar( "c.jar", null );
+        writeJar( "d.jar", "3.0", "Extension2" );
+
+        final OptionalPackage[] packages =
+            getOptionalPackages( createManager( null ) );
+        assertEquals( 3, packages.length );
+        assertEquals( "b.jar", packages[ 0 ].getFile().getName() );
+        assertEquals( "a.jar", packages[ 1 ].getFile().getName() );
+        assertEquals( "c.jar", packages[ 2 ].getFile().getName() );
+    }
+
+    public void testUnchangedJarNotRead()
+        throws Exception
+    {
+        final File jar = writeJar( "a.jar", "1.0" );
+        final DefaultExtensionManager manager = createManager( null );
+        final OptionalPackage[] packages = getOptionalPackages( manager );
+        assertEquals( 1, packages.length );
+
+        //The jar can no longer be read but appears unchanged
+        corrupt( jar );
+        manager.rescanPath();
+        final OptionalPackage[] rescanned = getOptionalPackages( manager );
+        assertEquals( 1, rescanned.length );
+        assertSame( packages[ 0 ], rescanned[ 0 ] );
+
+        jar.setLastModified( TIME + 1000 );
+        manager.rescanPath();
+        assertEquals( 0, getOptionalPackages( manager ).length );
+    }
+
+    public void testIndexFileUsedOnStartup()
+        throws Exception
+    {
+        final File jar = writeJar( "a.jar", "1.0" );
+        writeJar( "b.jar", "2.0" );
+        final OptionalPackage[] packages =
+            getOptionalPackages( createManager( m_index ) );
+        assertEquals( 2, packages.length );
+        assertTrue( "index", m_index.isFile() );
+
+        corrupt( jar );
+        final OptionalPackage[] indexed =
+            getOptionalPackages( createManager( m_index ) );
+        assertEquals( 2, indexed.length );
+        assertEquals( packages[ 0 ].getFile(), indexed[ 0 ].getFile() );
+        assertEquals( packages[ 1 ].getFile(), indexed[ 1 ].getFile() );
+        final Extension extension = indexed[ 1 ].getAvailableExtensions()[ 0 ];
+        assertEquals( "1.0", extension.getSpecificationVersion().toString() );
+        assertEquals( "Vendor", extension.getImplementationVendor() );
+    }
+
+    public void testCorruptIndexIgnored()
+        throws Exception
+    {
+        writeJar( "a.jar", "1.0" );
+        m_index.getParentFile().mkdirs();
+        final FileOutputStream output = new FileOutputStream( m_index );
+        output.write( new byte[]{1, 2, 3} );
+        output.close();
+
+        assertEquals( 1, getOptionalPackages( createManager( m_index ) ).length );
+        assertTrue( "rewritten", m_index.length() > 3 );
+    }
+
+    private DefaultExtensionManager createManager( final File index )
+        throws Exception
+    {
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( "manager", "", "" );
+        final DefaultConfiguration extDir =
+            new DefaultConfiguration( "extensions-dir", "", "" );
+        extDir.setValue( m_extDir.getPath() );
+        configuration.addChild( extDir );
+        if( null != index )
+        {
+            final DefaultConfiguration indexFile =
+                new DefaultConfiguration( "extensions-index", "", "" );
+            indexFile.setValue( index.getPath() );
+            configuration.addChild( indexFile );
+        }
+
+        final DefaultExtensionManager manager = new DefaultExtensionManager();
+        manager.enableLogging( new ConsoleLogger() );
+        manager.configure( configuration );
+        manager.initialize();
+        return manager;
+    }
+
+    private OptionalPackage[] getOptionalPackages(
+        final DefaultExtensionManager manager )
+    {
+        return manager.getOptionalPackages(
+            new Extension( NAME, null, null, null, null, null, null ) );
+    }
+
+    private File writeJar( final String name, final String specVersion )
+        throws Exception
+    {
+        return writeJar( name, specVersion, NAME );
+    }
+
+    private File writeJar( final String name,
+                           final String specVersion,
+                           final String extensionName )
+        throws Exception
+    {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.put( Extension.EXTENSION_NAME, extensionName );
+        attributes.put( Extension.IMPLEMENTATION_VENDOR, "Vendor" );
+        if( null != specVersion )
+        {
+            attributes.put( Extension.SPECIFICATION_VERSION, specVersion );
+        }
+
+        final File file = new File( m_extDir, name );
+        final JarOutputStream output =
+            new JarOutputStream( new FileOutputStream( file ), manifest );
+        output.close();
+        file.setLastModified( TIME );
+        return file;
+    }
+
+    /**
+     * Overwrite jar so that it can not be read without changing its size
+     * or last modified time.
+     */
+    private void corrupt( final File jar )
+        throws Exception
+    {
+        final byte[] bytes = new byte[ (int)jar.length() ];
+        final FileOutputStream output = new FileOutputStream( jar );
+        output.write( bytes );
+        output.close();
+        jar.setLastModified( TIME );
+    }
+}
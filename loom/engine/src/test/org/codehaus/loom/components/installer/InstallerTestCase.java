@@ -0,0 +1,631 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.installer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.dna.impl.DefaultConfiguration;
+import org.codehaus.loom.interfaces.ContainerConstants;
+import org.codehaus.loom.interfaces.LoomException;
+import org.codehaus.spice.salt.io.FileUtil;
+
+/**
+ * Testcase for installation of Sars by DefaultInstaller.
+ *
+ * @author Peter Donald
+ */
+public class InstallerTestCase
+    extends TestCase
+{
+    private static final int CLASS_COUNT = 5;
+    private static final long OLD_TIME = 1000000000000L;
+
+    private File m_directory;
+    private File m_sar;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_installer_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+        m_sar = new File( m_directory, "test.sar" );
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testInstall()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        final Map installation = install( installer );
+
+        final File work =
+            (File)installation.get( ContainerConstants.INSTALL_WORK );
+        final File code =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+        assertTrue( "work", work.isDirectory() );
+        assertTrue( "code", code.isDirectory() );
+        assertTrue( "manifest",
+                    new File( code, InstallManifest.FILENAME ).isFile() );
+        assertTrue( "a.jar", new File( code, "SAR-INF/lib/a.jar" ).isFile() );
+        assertTrue( "b.jar", new File( code, "SAR-INF/lib/b.jar" ).isFile() );
+        for( int i = 0; i < CLASS_COUNT; i++ )
+        {
+            final String name = "SAR-INF/classes/test/C" + i + ".class";
+            assertTrue( name, new File( code, name ).isFile() );
+        }
+
+        final File home =
+            (File)installation.get( ContainerConstants.INSTALL_HOME );
+        assertTrue( "config",
+                    new File( home, "SAR-INF/config.xml" ).isFile() );
+        assertFalse( "jar in home",
+                     new File( home, "SAR-INF/lib/a.jar" ).exists() );
+
+        installer.uninstall( installation );
+        assertFalse( "work", work.exists() );
+        assertTrue( "code", code.isDirectory() );
+    }
+
+    public void testReinstallReusesUnchangedEntries()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        Map installation = install( installer );
+        final File code =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+        final File jar = new File( code, "SAR-INF/lib/a.jar" );
+        jar.setLastModified( OLD_TIME );
+        installer.uninstall( installation );
+
+        //Rewrite Sar with same content
+        writeSar( "a", "b" );
+        installation = install( installer );
+        assertEquals( code,
+                      installation.get( ContainerConstants.INSTALL_CODE ) );
+        assertEquals( OLD_TIME, jar.lastModified() );
+        installer.uninstall( installation );
+    }
+
+    public void testReinstallUpdatesChangedEntries()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        Map installation = install( installer );
+        final File code =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+        final File a = new File( code, "SAR-INF/lib/a.jar" );
+        final File c0 = new File( code, "SAR-INF/classes/test/C0.class" );
+        a.setLastModified( OLD_TIME );
+        c0.setLastModified( OLD_TIME );
+        installer.uninstall( installation );
+
+        writeSar( "a-changed", null );
+        installation = install( installer );
+        final File other =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+        assertFalse( "new version", code.equals( other ) );
+        assertFalse( "old version removed", code.exists() );
+        final File changed = new File( other, "SAR-INF/lib/a.jar" );
+        assertTrue( "a changed", OLD_TIME != changed.lastModified() );
+        assertEquals( "a-changed".length(), changed.length() );
+        assertFalse( "b removed",
+                     new File( other, "SAR-INF/lib/b.jar" ).exists() );
+        //Unchanged entries are moved from the unused version
+        assertEquals( OLD_TIME,
+                      new File( other, "SAR-INF/classes/test/C0.class" )
+                      .lastModified() );
+        installer.uninstall( installation );
+    }
+
+    public void testReinstallKeepsCodeInUse()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        final Map installation = install( installer );
+        final File code =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+
+        //The previous version is still running when the Sar is redeployed
+        writeSar( "a-changed", "b" );
+        final Map other = install( installer );
+        final File otherCode =
+            (File)other.get( ContainerConstants.INSTALL_CODE );
+        assertFalse( "new version", code.equals( otherCode ) );
+        assertEquals( "a", new String( readFile(
+            new File( code, "SAR-INF/lib/a.jar" ) ) ) );
+        assertEquals( "b", new String( readFile(
+            new File( code, "SAR-INF/lib/b.jar" ) ) ) );
+        assertEquals( "a-changed", new String( readFile(
+            new File( otherCode, "SAR-INF/lib/a.jar" ) ) ) );
+        assertEquals( "b", new String( readFile(
+            new File( otherCode, "SAR-INF/lib/b.jar" ) ) ) );
+
+        installer.uninstall( installation );
+        assertFalse( "old version removed", code.exists() );
+        installer.uninstall( other );
+        assertTrue( "latest version kept", otherCode.isDirectory() );
+    }
+
+    public void testRestartKeepsLatestCode()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        final File code = (File)install( installer )
+            .get( ContainerConstants.INSTALL_CODE );
+        writeSar( "a-changed", "b" );
+        final File otherCode = (File)install( installer )
+            .get( ContainerConstants.INSTALL_CODE );
+        new File( code, InstallManifest.FILENAME ).setLastModified( OLD_TIME );
+
+        //Neither installation was uninstalled before the restart
+        createInstaller();
+        assertFalse( "old version removed", code.exists() );
+        assertTrue( "latest version kept", otherCode.isDirectory() );
+    }
+
+    public void testCodeDigestIgnoresConfiguration()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        Map installation = install( installer );
+        final Object digest =
+            installation.get( ContainerConstants.INSTALL_CODE_DIGEST );
+        assertNotNull( "digest", digest );
+        installer.uninstall( installation );
+
+        writeSar( "a", "b", "<config><block/></config>" );
+        installation = install( installer );
+        assertEquals( digest,
+                      installation.get(
+                          ContainerConstants.INSTALL_CODE_DIGEST ) );
+        installer.uninstall( installation );
+
+        writeSar( "a-changed", "b" );
+        installation = install( installer );
+        assertFalse( "code changed",
+                     digest.equals( installation.get(
+                         ContainerConstants.INSTALL_CODE_DIGEST ) ) );
+        installer.uninstall( installation );
+    }
+
+    public void testInstallRepairsModifiedCache()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        Map installation = install( installer );
+        final File code =
+            (File)installation.get( ContainerConstants.INSTALL_CODE );
+        installer.uninstall( installation );
+
+        final File jar = new File( code, "SAR-INF/lib/a.jar" );
+        jar.delete();
+
+        installation = install( installer );
+        assertTrue( "a.jar", jar.isFile() );
+        installer.uninstall( installation );
+    }
+
+    public void testReinstallReplacesChangedFiles()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        Map installation = install( installer );
+        final File home =
+            (File)installation.get( ContainerConstants.INSTALL_HOME );
+        final File config = new File( home, "SAR-INF/config.xml" );
+        installer.uninstall( installation );
+
+        //A file that was modified is kept while its entry is unchanged
+        final FileOutputStream output = new FileOutputStream( config );
+        output.write( "<config><edited/></config>".getBytes() );
+        output.close();
+        installation = install( installer );
+        assertEquals( "<config><edited/></config>",
+                      new String( readFile( config ) ) );
+        installer.uninstall( installation );
+
+        writeSar( "a", "b", "<config><block/></config>" );
+        installation = install( installer );
+        assertEquals( "<config><block/></config>",
+                      new String( readFile( config ) ) );
+        installer.uninstall( installation );
+    }
+
+    public void testInstallInPlace()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller( true );
+        final Map installation = install( installer );
+
+        final File work =
+            (File)installation.get( ContainerConstants.INSTALL_WORK );
+        final File archive =
+            (File)installation.get( ContainerConstants.INSTALL_ARCHIVE );
+        assertNull( installation.get( ContainerConstants.INSTALL_CODE ) );
+        assertEquals( 0, work.list().length );
+        assertFalse( "cache", new File( m_directory, "work/cache" ).exists() );
+
+        //The archive is a private copy that is unaffected when the
+        //deployed Sar is overwritten
+        final byte[] content = readFile( m_sar );
+        assertFalse( "copy", m_sar.getAbsoluteFile().equals( archive ) );
+        assertContent( content, archive );
+        writeSar( "c", null );
+        assertContent( content, archive );
+
+        final File home =
+            (File)installation.get( ContainerConstants.INSTALL_HOME );
+        assertTrue( "config",
+                    new File( home, "SAR-INF/config.xml" ).isFile() );
+        installer.uninstall( installation );
+        assertFalse( "archive removed", archive.exists() );
+        assertFalse( "archive directory removed",
+                     archive.getParentFile().exists() );
+    }
+
+    public void testExpandStoredAndDeflatedEntries()
+        throws Exception
+    {
+        final int count = 40;
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( m_sar ) );
+        try
+        {
+            output.setComment( "test archive" );
+            for( int i = 0; i < count; i++ )
+            {
+                final byte[] data = createData( i );
+                final ZipEntry entry = new ZipEntry( "entry" + i + ".jar" );
+                if( 0 == i % 2 )
+                {
+                    final CRC32 crc = new CRC32();
+                    crc.update( data );
+                    entry.setMethod( ZipEntry.STORED );
+                    entry.setSize( data.length );
+                    entry.setCrc( crc.getValue() );
+                }
+                output.putNextEntry( entry );
+                output.write( data );
+                output.closeEntry();
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+
+        final RandomAccessFile archive = new RandomAccessFile( m_sar, "r" );
+        try
+        {
+            final Map offsets = ArchiveExpander.readDataOffsets( archive );
+            assertEquals( count / 2, offsets.size() );
+        }
+        finally
+        {
+            archive.close();
+        }
+
+        final ZipFile zipFile = new ZipFile( m_sar );
+        try
+        {
+            final ArchiveExpander expander =
+                new ArchiveExpander( m_sar, zipFile, 4 );
+            final File directory = new File( m_directory, "expanded" );
+            long size = 0;
+            for( int i = 0; i < count; i++ )
+            {
+                final String name = "entry" + i + ".jar";
+                final File file = new File( directory, name );
+                //Existing files are replaced rather than appended to
+                if( 0 == i % 3 )
+                {
+                    file.getParentFile().mkdirs();
+                    final FileOutputStream existing =
+                        new FileOutputStream( file );
+                    existing.write( new byte[ 100000 ] );
+                    existing.close();
+                }
+                expander.add( zipFile.getEntry( name ), file );
+                size += createData( i ).length;
+            }
+            expander.expand();
+
+            assertEquals( count, expander.getEntryCount() );
+            assertEquals( size, expander.getByteCount() );
+            for( int i = 0; i < count; i++ )
+            {
+                final File file = new File( directory, "entry" + i + ".jar" );
+                assertContent( createData( i ), file );
+            }
+        }
+        finally
+        {
+            zipFile.close();
+        }
+    }
+
+    public void testConcurrentInstalls()
+        throws Exception
+    {
+        writeSar( "a", "b" );
+        final DefaultInstaller installer = createInstaller();
+        final int count = 8;
+        final Map[] installations = new Map[ count ];
+        final Exception[] failures = new Exception[ count ];
+        final Thread[] threads = new Thread[ count ];
+        for( int i = 0; i < count; i++ )
+        {
+            final int index = i;
+            threads[ i ] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        installations[ index ] =
+                            installer.install( "app" + index, m_sar.toURL() );
+                    }
+                    catch( final Exception e )
+                    {
+                        failures[ index ] = e;
+                    }
+                }
+            };
+            threads[ i ].start();
+        }
+        for( int i = 0; i < count; i++ )
+        {
+            threads[ i ].join();
+        }
+
+        for( int i = 0; i < count; i++ )
+        {
+            if( null != failures[ i ] )
+            {
+                throw failures[ i ];
+            }
+            final File code =
+                (File)installations[ i ].get( ContainerConstants.INSTALL_CODE );
+            final File lib = new File( code, "SAR-INF/lib" );
+            assertTrue( "a.jar", new File( lib, "a.jar" ).isFile() );
+            assertTrue( "b.jar", new File( lib, "b.jar" ).isFile() );
+            for( int j = 0; j < i; j++ )
+            {
+                assertFalse( "separate code",
+                             code.equals( installations[ j ].get(
+                                 ContainerConstants.INSTALL_CODE ) ) );
+            }
+        }
+        for( int i = 0; i < count; i++ )
+        {
+            installer.uninstall( installations[ i ] );
+        }
+    }
+
+    public void testInterruptedExpandFails()
+        throws Exception
+    {
+        final int count = 8;
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( m_sar ) );
+        try
+        {
+            for( int i = 0; i < count; i++ )
+            {
+                output.putNextEntry( new ZipEntry( "entry" + i + ".jar" ) );
+                output.write( createData( i ) );
+                output.closeEntry();
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+
+        final ZipFile zipFile = new ZipFile( m_sar );
+        try
+        {
+            final ArchiveExpander expander =
+                new ArchiveExpander( m_sar, zipFile, 4 );
+            final File directory = new File( m_directory, "expanded" );
+            for( int i = 0; i < count; i++ )
+            {
+                final String name = "entry" + i + ".jar";
+                expander.add( zipFile.getEntry( name ),
+                              new File( directory, name ) );
+            }
+
+            Thread.currentThread().interrupt();
+            try
+            {
+                expander.expand();
+                fail( "Expected interrupted expand to fail" );
+            }
+            catch( final LoomException le )
+            {
+                assertTrue( "interrupt restored", Thread.interrupted() );
+            }
+        }
+        finally
+        {
+            Thread.interrupted();
+            zipFile.close();
+        }
+    }
+
+    private byte[] createData( final int index )
+    {
+        final byte[] data = new byte[ 1000 + index * 1371 ];
+        for( int i = 0; i < data.length; i++ )
+        {
+            data[ i ] = (byte)( i * 31 + index );
+        }
+        return data;
+    }
+
+    private void assertContent( final byte[] expected, final File file )
+        throws IOException
+    {
+        assertEquals( file.getName(), expected.length, file.length() );
+        final byte[] actual = new byte[ expected.length ];
+        final InputStream input = new FileInputStream( file );
+        try
+        {
+            int offset = 0;
+            while( offset < actual.length )
+            {
+                offset += input.read( actual, offset, actual.length - offset );
+            }
+        }
+        finally
+        {
+            input.close();
+        }
+        for( int i = 0; i < expected.length; i++ )
+        {
+            assertEquals( file.getName(), expected[ i ], actual[ i ] );
+        }
+    }
+
+    private byte[] readFile( final File file )
+        throws IOException
+    {
+        final byte[] data = new byte[ (int)file.length() ];
+        final RandomAccessFile input = new RandomAccessFile( file, "r" );
+        try
+        {
+            input.readFully( data );
+        }
+        finally
+        {
+            input.close();
+        }
+        return data;
+    }
+
+    private Map install( final DefaultInstaller installer )
+        throws Exception
+    {
+        return installer.install( "test", m_sar.toURL() );
+    }
+
+    private DefaultInstaller createInstaller()
+        throws Exception
+    {
+        return createInstaller( false );
+    }
+
+    private DefaultInstaller createInstaller( final boolean inPlace )
+        throws Exception
+    {
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( "installer", "", "" );
+        final DefaultConfiguration workDir =
+            new DefaultConfiguration( "base-work-dir", "", "" );
+        workDir.setValue( new File( m_directory, "work" ).getPath() );
+        configuration.addChild( workDir );
+        final DefaultConfiguration appsDir =
+            new DefaultConfiguration( "base-application-dir", "", "" );
+        appsDir.setValue( new File( m_directory, "apps" ).getPath() );
+        configuration.addChild( appsDir );
+        final DefaultConfiguration inPlaceConfig =
+            new DefaultConfiguration( "in-place", "", "" );
+        inPlaceConfig.setValue( String.valueOf( inPlace ) );
+        configuration.addChild( inPlaceConfig );
+
+        final DefaultInstaller installer = new DefaultInstaller();
+        installer.enableLogging( new ConsoleLogger() );
+        installer.configure( configuration );
+        installer.initialize();
+        return installer;
+    }
+
+    /**
+     * Write the test Sar. The jars contain the specified text rather than
+     * being real jars as the installer does not look inside them.
+     */
+    private void writeSar( final String a,
+                           final String b )
+        throws IOException
+    {
+        writeSar( a, b, "<config/>" );
+    }
+
+    private void writeSar( final String a,
+                           final String b,
+                           final String config )
+        throws IOException
+    {
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( m_sar ) );
+        try
+        {
+            writeEntry( output, "SAR-INF/assembly.xml", "<assembly/>" );
+            writeEntry( output, "SAR-INF/config.xml", config );
+            writeEntry( output, "SAR-INF/environment.xml", "<environment/>" );
+            writeEntry( output, "SAR-INF/lib/a.jar", a );
+            if( null != b )
+            {
+                writeEntry( output, "SAR-INF/lib/b.jar", b );
+            }
+            for( int i = 0; i < CLASS_COUNT; i++ )
+            {
+                writeEntry( output,
+                            "SAR-INF/classes/test/C" + i + ".class",
+                            "C" + i );
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    private void writeEntry( final ZipOutputStream output,
+                             final String name,
+                             final String content )
+        throws IOException
+    {
+        output.putNextEntry( new ZipEntry( name ) );
+        output.write( content.getBytes() );
+        output.closeEntry();
+    }
+}
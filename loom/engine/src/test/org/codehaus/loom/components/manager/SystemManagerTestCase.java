@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.loom.interfaces.LoomException;
+import org.codehaus.loom.interfaces.SystemManager;
+
+/**
+ * Testcase for registering objects with {@link AbstractSystemManager}.
+ *
+ * @author Peter Donald
+ */
+public class SystemManagerTestCase
+    extends TestCase
+{
+    public void testRegisterSet()
+        throws Exception
+    {
+        final RecordingSystemManager manager = createManager( null );
+        final SystemManager context = manager.getSubContext( null, "block" );
+        context.register( new String[]{"a", "b"},
+                          new Object[]{"A", "B"} );
+        assertEquals( "[block=a, block=b]", manager.getExported().toString() );
+
+        context.unregister( new String[]{"a", "b"} );
+        assertEquals( 0, manager.getExported().size() );
+    }
+
+    public void testRegisterDuplicateName()
+        throws Exception
+    {
+        final RecordingSystemManager manager = createManager( null );
+        manager.register( "a", "A" );
+        try
+        {
+            manager.register( new String[]{"b", "a"},
+                              new Object[]{"B", "A"} );
+            fail( "Expected duplicate name to be rejected" );
+        }
+        catch( final LoomException le )
+        {
+        }
+        assertEquals( "[a]", manager.getExported().toString() );
+
+        //The rejected name is not left reserved
+        manager.register( "b", "B" );
+        assertEquals( "[a, b]", manager.getExported().toString() );
+    }
+
+    public void testRegisterSetFailure()
+        throws Exception
+    {
+        final RecordingSystemManager manager = createManager( "c" );
+        try
+        {
+            manager.register( new String[]{"a", "b", "c"},
+                              new Object[]{"A", "B", "C"} );
+            fail( "Expected export to fail" );
+        }
+        catch( final LoomException le )
+        {
+        }
+        assertEquals( 0, manager.getExported().size() );
+
+        manager.register( new String[]{"a", "b"},
+                          new Object[]{"A", "B"} );
+        assertEquals( "[a, b]", manager.getExported().toString() );
+    }
+
+    public void testUnregisterContinuesAfterFailure()
+        throws Exception
+    {
+        final RecordingSystemManager manager = createManager( null );
+        manager.register( new String[]{"a", "b", "c"},
+                          new Object[]{"A", "B", "C"} );
+        manager.setFailName( "a" );
+        try
+        {
+            manager.unregister( new String[]{"a", "b", "c"} );
+            fail( "Expected unexport to fail" );
+        }
+        catch( final LoomException le )
+        {
+        }
+        assertEquals( "[a]", manager.getExported().toString() );
+    }
+
+    private RecordingSystemManager createManager( final String failName )
+        throws Exception
+    {
+        final RecordingSystemManager manager = new RecordingSystemManager();
+        manager.enableLogging( new ConsoleLogger() );
+        manager.initialize();
+        manager.setFailName( failName );
+        return manager;
+    }
+
+    /**
+     * Manager that records the names of exported objects and fails to
+     * export or unexport the object with a specified name.
+     */
+    private static class RecordingSystemManager
+        extends AbstractSystemManager
+    {
+        private final List m_exported = new ArrayList();
+        private String m_failName;
+
+        synchronized void setFailName( final String failName )
+        {
+            m_failName = failName;
+        }
+
+        synchronized List getExported()
+        {
+            return new ArrayList( m_exported );
+        }
+
+        protected synchronized Object export( final String name,
+                                              final Object object )
+            throws LoomException
+        {
+            if( name.equals( m_failName ) )
+            {
+                throw new LoomException( "Unable to export " + name );
+            }
+            m_exported.add( name );
+            return object;
+        }
+
+        protected synchronized void unexport( final String name,
+                                              final Object exportedObject )
+            throws LoomException
+        {
+            if( name.equals( m_failName ) )
+            {
+                throw new LoomException( "Unable to unexport " + name );
+            }
+            m_exported.remove( name );
+        }
+    }
+}
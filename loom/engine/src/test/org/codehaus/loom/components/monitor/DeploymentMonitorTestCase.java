@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.monitor;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.dna.impl.DefaultConfiguration;
+import org.codehaus.dna.impl.DefaultResourceLocator;
+import org.codehaus.loom.interfaces.Deployer;
+import org.codehaus.loom.interfaces.LoomException;
+
+/**
+ * Testcase for deployment of applications when DefaultDeploymentMonitor
+ * starts.
+ *
+ * @author Peter Donald
+ */
+public class DeploymentMonitorTestCase
+    extends TestCase
+{
+    private static final int APPLICATION_COUNT = 12;
+
+    private File m_directory;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_deployment_monitor_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+
+        for( int i = 0; i < APPLICATION_COUNT; i++ )
+        {
+            new File( m_directory, "app" + i + ".sar" ).createNewFile();
+        }
+        new File( m_directory, "readme.txt" ).createNewFile();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        final File[] files = m_directory.listFiles();
+        for( int i = 0; i < files.length; i++ )
+        {
+            files[ i ].delete();
+        }
+        m_directory.delete();
+    }
+
+    public void testSerialDeployment()
+        throws Exception
+    {
+        final MockDeployer deployer = new MockDeployer();
+        deploy( deployer, 1 );
+
+        assertEquals( 1, deployer.getMaxConcurrent() );
+        final List expected = new ArrayList();
+        for( int i = 0; i < APPLICATION_COUNT; i++ )
+        {
+            expected.add( "app" + i );
+        }
+        Collections.sort( expected );
+        assertEquals( expected, deployer.getDeployed() );
+    }
+
+    public void testParallelDeployment()
+        throws Exception
+    {
+        final MockDeployer deployer = new MockDeployer();
+        deploy( deployer, 4 );
+
+        assertTrue( "concurrent deployments: " + deployer.getMaxConcurrent(),
+                    deployer.getMaxConcurrent() <= 4 );
+        final List deployed = new ArrayList( deployer.getDeployed() );
+        assertEquals( APPLICATION_COUNT, deployed.size() );
+        for( int i = 0; i < APPLICATION_COUNT; i++ )
+        {
+            assertTrue( "app" + i, deployed.contains( "app" + i ) );
+        }
+    }
+
+    public void testFailedDeploymentDoesNotStopOthers()
+        throws Exception
+    {
+        final MockDeployer deployer = new MockDeployer();
+        deployer.setFailure( "app3" );
+        deploy( deployer, 4 );
+
+        assertEquals( APPLICATION_COUNT - 1, deployer.getDeployed().size() );
+        assertFalse( "app3", deployer.getDeployed().contains( "app3" ) );
+    }
+
+    public void testBadThreadCount()
+        throws Exception
+    {
+        final DefaultDeploymentMonitor monitor = new DefaultDeploymentMonitor();
+        monitor.enableLogging( new ConsoleLogger() );
+        try
+        {
+            monitor.configure( createConfiguration( 0 ) );
+            fail( "Expected bad thread count to be rejected" );
+        }
+        catch( final org.codehaus.dna.ConfigurationException ce )
+        {
+        }
+    }
+
+    private void deploy( final Deployer deployer, final int threads )
+        throws Exception
+    {
+        final DefaultDeploymentMonitor monitor = new DefaultDeploymentMonitor();
+        monitor.enableLogging( new ConsoleLogger() );
+        monitor.configure( createConfiguration( threads ) );
+        final DefaultResourceLocator locator = new DefaultResourceLocator();
+        locator.put( Deployer.class.getName(), deployer );
+        monitor.compose( locator );
+        monitor.deployDefaultApplications();
+    }
+
+    private DefaultConfiguration createConfiguration( final int threads )
+    {
+        final DefaultConfiguration configuration =
+            new DefaultConfiguration( "monitor", "", "" );
+        final DefaultConfiguration directory =
+            new DefaultConfiguration( "base-application-directory", "", "" );
+        directory.setValue( m_directory.getPath() );
+        configuration.addChild( directory );
+        final DefaultConfiguration deploymentThreads =
+            new DefaultConfiguration( "deployment-threads", "", "" );
+        deploymentThreads.setValue( String.valueOf( threads ) );
+        configuration.addChild( deploymentThreads );
+        return configuration;
+    }
+
+    /**
+     * Deployer that records the applications deployed and the maximum
+     * number of deployments that were in progress at the same time.
+     */
+    private static class MockDeployer
+        implements Deployer
+    {
+        private final List m_deployed = new ArrayList();
+        private int m_concurrent;
+        private int m_maxConcurrent;
+        private String m_failure;
+
+        synchronized void setFailure( final String failure )
+        {
+            m_failure = failure;
+        }
+
+        synchronized List getDeployed()
+        {
+            return m_deployed;
+        }
+
+        synchronized int getMaxConcurrent()
+        {
+            return m_maxConcurrent;
+        }
+
+        public void deploy( final String name, final URL location )
+            throws LoomException
+        {
+            synchronized( this )
+            {
+                m_concurrent++;
+                m_maxConcurrent = Math.max( m_maxConcurrent, m_concurrent );
+            }
+            try
+            {
+                Thread.sleep( 20 );
+            }
+            catch( final InterruptedException ie )
+            {
+                //ignore
+            }
+            synchronized( this )
+            {
+                m_concurrent--;
+                if( name.equals( m_failure ) )
+                {
+                    throw new LoomException( "Failed to deploy " + name );
+                }
+                m_deployed.add( name );
+            }
+        }
+
+        public void redeploy( final String name, final URL location )
+        {
+        }
+
+        public void reconfigure( final String name )
+        {
+        }
+
+        public void undeploy( final String name )
+        {
+        }
+    }
+}
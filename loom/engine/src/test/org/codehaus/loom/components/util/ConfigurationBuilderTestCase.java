@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.util;
+
+import java.io.StringReader;
+import junit.framework.TestCase;
+import org.codehaus.dna.Configuration;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Testcase for building configuration from XML.
+ *
+ * @author Peter Donald
+ */
+public class ConfigurationBuilderTestCase
+    extends TestCase
+{
+    public void testReadersReused()
+        throws Exception
+    {
+        for( int i = 0; i < 20; i++ )
+        {
+            final Configuration configuration = build( "doc" + i, "" + i );
+            assertEquals( "doc" + i, configuration.getName() );
+            assertEquals( "" + i, configuration.getValue() );
+        }
+    }
+
+    public void testBuildAfterMalformedDocument()
+        throws Exception
+    {
+        try
+        {
+            ConfigurationBuilder.build( createInput( "<doc>" ),
+                                        null,
+                                        new ConsoleLogger() );
+            fail( "Expected malformed document to fail" );
+        }
+        catch( final SAXException se )
+        {
+        }
+        final Configuration configuration = build( "doc", "value" );
+        assertEquals( "doc", configuration.getName() );
+        assertEquals( "value", configuration.getValue() );
+    }
+
+    public void testConcurrentBuilds()
+        throws Exception
+    {
+        final Throwable[] failures = new Throwable[ 4 ];
+        final Thread[] threads = new Thread[ failures.length ];
+        for( int i = 0; i < threads.length; i++ )
+        {
+            final int index = i;
+            threads[ i ] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for( int j = 0; j < 50; j++ )
+                        {
+                            final String value = index + "-" + j;
+                            final Configuration configuration =
+                                build( "doc", value );
+                            assertEquals( value, configuration.getValue() );
+                        }
+                    }
+                    catch( final Throwable t )
+                    {
+                        failures[ index ] = t;
+                    }
+                }
+            };
+            threads[ i ].start();
+        }
+        for( int i = 0; i < threads.length; i++ )
+        {
+            threads[ i ].join();
+            if( null != failures[ i ] )
+            {
+                fail( "Thread " + i + " failed: " + failures[ i ] );
+            }
+        }
+    }
+
+    private static Configuration build( final String name,
+                                        final String value )
+        throws Exception
+    {
+        final String xml = "<" + name + ">" + value + "</" + name + ">";
+        return ConfigurationBuilder.build( createInput( xml ),
+                                           null,
+                                           new ConsoleLogger() );
+    }
+
+    private static InputSource createInput( final String xml )
+    {
+        return new InputSource( new StringReader( xml ) );
+    }
+}
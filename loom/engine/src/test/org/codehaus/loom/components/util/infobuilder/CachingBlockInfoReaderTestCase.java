@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) The Loom Group. All rights reserved.
+ *
+ * This software is published under the terms of the Loom
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.components.util.infobuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+import org.codehaus.dna.impl.ConsoleLogger;
+import org.codehaus.loom.components.util.info.ComponentInfo;
+import org.codehaus.loom.components.util.info.DependencyDescriptor;
+import org.codehaus.loom.components.util.info.SchemaDescriptor;
+import org.codehaus.loom.components.util.info.ServiceDescriptor;
+import org.codehaus.spice.salt.io.FileUtil;
+
+/**
+ * Testcase for caching the info of components.
+ *
+ * @author Peter Donald
+ */
+public class CachingBlockInfoReaderTestCase
+    extends TestCase
+{
+    private static final String XINFO =
+        CachingBlockInfoReaderTestCase.class.getName().replace( '.', '/' ) +
+        ".xinfo";
+
+    private File m_directory;
+    private ResourceClassLoader m_classLoader;
+    private CountingBlockInfoReader m_reader;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/loom_infocache_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_classLoader = new ResourceClassLoader();
+        m_reader = new CountingBlockInfoReader();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        FileUtil.deleteDirectory( m_directory );
+    }
+
+    public void testInfoReadFromCache()
+        throws Exception
+    {
+        final ComponentInfo info =
+            createReader().buildComponentInfo( getClass() );
+        assertEquals( 1, m_reader.getCount() );
+        assertEquals( 1, m_directory.list().length );
+
+        final ComponentInfo cached =
+            createReader().buildComponentInfo( getClass() );
+        assertEquals( 1, m_reader.getCount() );
+        assertNotSame( info, cached );
+        assertInfoEquals( info, cached );
+    }
+
+    public void testChangedResourceRebuildsInfo()
+        throws Exception
+    {
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 1, m_reader.getCount() );
+
+        m_classLoader.setResource( XINFO, "<blockinfo/>" );
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 2, m_reader.getCount() );
+
+        m_classLoader.setResource( XINFO, "<blockinfo></blockinfo>" );
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 3, m_reader.getCount() );
+        assertEquals( 3, m_directory.list().length );
+
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 3, m_reader.getCount() );
+    }
+
+    public void testCorruptEntryRebuildsInfo()
+        throws Exception
+    {
+        final ComponentInfo info =
+            createReader().buildComponentInfo( getClass() );
+        final File[] files = m_directory.listFiles();
+        assertEquals( 1, files.length );
+        final FileOutputStream output = new FileOutputStream( files[ 0 ] );
+        output.write( new byte[]{1, 2, 3} );
+        output.close();
+
+        final ComponentInfo rebuilt =
+            createReader().buildComponentInfo( getClass() );
+        assertEquals( 2, m_reader.getCount() );
+        assertInfoEquals( info, rebuilt );
+
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 2, m_reader.getCount() );
+    }
+
+    public void testUnusedEntriesPruned()
+        throws Exception
+    {
+        final Class other = CountingBlockInfoReader.class;
+        createReader().buildComponentInfo( getClass() );
+        createReader().buildComponentInfo( other );
+        assertEquals( 2, m_reader.getCount() );
+        assertEquals( 0, CachingBlockInfoReader.prune( m_directory ) );
+        assertEquals( 3, m_directory.list().length );
+
+        //Make the entries look as if they were last used before the
+        //previous start and then use only one of them
+        final long now = System.currentTimeMillis();
+        final File[] files = m_directory.listFiles();
+        for( int i = 0; i < files.length; i++ )
+        {
+            files[ i ].setLastModified( now - 20000 );
+        }
+        new File( m_directory, "pruned" ).setLastModified( now - 10000 );
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 2, m_reader.getCount() );
+
+        assertEquals( 1, CachingBlockInfoReader.prune( m_directory ) );
+        assertEquals( 2, m_directory.list().length );
+        createReader().buildComponentInfo( getClass() );
+        assertEquals( 2, m_reader.getCount() );
+        createReader().buildComponentInfo( other );
+        assertEquals( 3, m_reader.getCount() );
+    }
+
+    private BlockInfoReader createReader()
+    {
+        return new CachingBlockInfoReader( m_classLoader,
+                                           m_reader,
+                                           m_directory,
+                                           new ConsoleLogger() );
+    }
+
+    private void assertInfoEquals( final ComponentInfo expected,
+                                   final ComponentInfo actual )
+    {
+        assertSame( expected.getType(), actual.getType() );
+
+        final ServiceDescriptor[] services = actual.getServices();
+        assertEquals( expected.getServices().length, services.length );
+        for( int i = 0; i < services.length; i++ )
+        {
+            assertEquals( expected.getServices()[ i ].getType(),
+                          services[ i ].getType() );
+        }
+
+        final DependencyDescriptor[] dependencies = actual.getDependencies();
+        assertEquals( expected.getDependencies().length, dependencies.length );
+        for( int i = 0; i < dependencies.length; i++ )
+        {
+            final DependencyDescriptor dependency =
+                expected.getDependencies()[ i ];
+            assertEquals( dependency.getKey(), dependencies[ i ].getKey() );
+            assertEquals( dependency.getType(), dependencies[ i ].getType() );
+            assertEquals( dependency.isOptional(),
+                          dependencies[ i ].isOptional() );
+        }
+
+        final SchemaDescriptor schema = actual.getConfigurationSchema();
+        assertNotNull( "schema", schema );
+        assertEquals( expected.getConfigurationSchema().getLocation(),
+                      schema.getLocation() );
+        assertEquals( expected.getConfigurationSchema().getType(),
+                      schema.getType() );
+    }
+
+    /**
+     * Reader that builds the same info for every class and counts the
+     * number of times it is asked to.
+     */
+    private static class CountingBlockInfoReader
+        implements BlockInfoReader
+    {
+        private int m_count;
+
+        public ComponentInfo buildComponentInfo( final Class type )
+        {
+            m_count++;
+            final ServiceDescriptor[] services = new ServiceDescriptor[]
+            {
+                new ServiceDescriptor( "org.example.Service1" ),
+                new ServiceDescriptor( "org.example.Service2" )
+            };
+            final DependencyDescriptor[] dependencies =
+                new DependencyDescriptor[]
+                {
+                    new DependencyDescriptor( "service1",
+                                              "org.example.Service1",
+                                              false ),
+                    new DependencyDescriptor( "services",
+                                              "org.example.Service2[]",
+                                              true )
+                };
+            final SchemaDescriptor schema =
+                new SchemaDescriptor( "Component-schema.xml",
+                                      "http://relaxng.org/ns/structure/1.0" );
+            return new ComponentInfo( type, services, dependencies, schema );
+        }
+
+        int getCount()
+        {
+            return m_count;
+        }
+    }
+
+    /**
+     * ClassLoader that can be given extra resources.
+     */
+    private static class ResourceClassLoader
+        extends ClassLoader
+    {
+        private final Map m_resources = new HashMap();
+
+        ResourceClassLoader()
+        {
+            super( CachingBlockInfoReaderTestCase.class.getClassLoader() );
+        }
+
+        void setResource( final String name, final String content )
+        {
+            m_resources.put( name, content.getBytes() );
+        }
+
+        public InputStream getResourceAsStream( final String name )
+        {
+            final byte[] data = (byte[])m_resources.get( name );
+            if( null != data )
+            {
+                return new ByteArrayInputStream( data );
+            }
+            return super.getResourceAsStream( name );
+        }
+    }
+}
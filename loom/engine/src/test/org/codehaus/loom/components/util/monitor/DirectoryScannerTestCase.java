@@ -298,6 +298,86 @@ public class DirectoryScannerTestCase extends TestCase
         deleteDirectory( testDirectory );
     }
 
+    /**
+     * Test that an added file is only reported once its size and
+     * modification time have stayed the same for the settle time.
+     */
+    public void testAdditionSettles() throws Exception
+    {
+        File testDirectory = createTestDirectory();
+
+        MockDirectoryChangeListener changeListener =
+          new MockDirectoryChangeListener();
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setDirectory( testDirectory.getAbsolutePath() );
+        scanner.setDirectoryChangeListener( changeListener );
+        scanner.setSettleTime( 2000 );
+
+        final long time = System.currentTimeMillis();
+        createFile( testDirectory, "a.sar" );
+        scanner.testModifiedAfter( time );
+        assertEquals( 0, changeListener.m_changeType );
+
+        // File is still being written so it has not settled
+        modifyFile( testDirectory, "a.sar" );
+        scanner.testModifiedAfter( time + 3000 );
+        assertEquals( 0, changeListener.m_changeType );
+
+        scanner.testModifiedAfter( time + 4000 );
+        assertEquals( 0, changeListener.m_changeType );
+
+        scanner.testModifiedAfter( time + 5000 );
+        assertEquals( DirectoryChangeListener.ADDITION,
+                      changeListener.m_changeType );
+        assertEquals( 1, changeListener.m_fileSet.size() );
+        File changedFile = (File)changeListener.m_fileSet.iterator().next();
+        assertEquals( "a.sar", changedFile.getName() );
+
+        // Nothing more to report once the addition has been reported
+        changeListener.m_changeType = 0;
+        scanner.testModifiedAfter( time + 9000 );
+        assertEquals( 0, changeListener.m_changeType );
+
+        deleteDirectory( testDirectory );
+    }
+
+    /**
+     * Test that a modification is only reported once the file has settled
+     * and that a file removed before its addition settled is never
+     * reported.
+     */
+    public void testModificationSettles() throws Exception
+    {
+        File testDirectory = createTestDirectory();
+        createFile( testDirectory, "m.sar" );
+
+        MockDirectoryChangeListener changeListener =
+          new MockDirectoryChangeListener();
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setDirectory( testDirectory.getAbsolutePath() );
+        scanner.setDirectoryChangeListener( changeListener );
+        scanner.setSettleTime( 2000 );
+
+        final long time = System.currentTimeMillis();
+        modifyFile( testDirectory, "m.sar" );
+        createFile( testDirectory, "t.sar" );
+        scanner.testModifiedAfter( time );
+        assertEquals( 0, changeListener.m_changeType );
+
+        deleteFile( testDirectory, "t.sar" );
+        scanner.testModifiedAfter( time + 2000 );
+        assertEquals( DirectoryChangeListener.MODIFICATION,
+                      changeListener.m_changeType );
+        assertEquals( 1, changeListener.m_fileSet.size() );
+        File changedFile = (File)changeListener.m_fileSet.iterator().next();
+        assertEquals( "m.sar", changedFile.getName() );
+
+        changeListener.m_changeType = 0;
+        scanner.testModifiedAfter( time + 4000 );
+        assertEquals( 0, changeListener.m_changeType );
+
+        deleteDirectory( testDirectory );
+    }
 
     /**
      * Create a directory for testing
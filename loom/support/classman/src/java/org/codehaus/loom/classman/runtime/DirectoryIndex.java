@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) The Spice Group. All rights reserved.
+ *
+ * This software is published under the terms of the Spice
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.classman.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Utility methods for indexing the directories (ie packages) in a
+ * classpath so that a ClassLoader only needs to look for a class or
+ * resource in the classpath elements that contain its directory.
+ *
+ * <p>Only local directories and jars that do not refer to other jars via
+ * their manifest can be indexed.</p>
+ *
+ * @author Peter Donald
+ */
+public final class DirectoryIndex
+{
+    private DirectoryIndex()
+    {
+    }
+
+    /**
+     * Return the set of directories containing resources in specified
+     * classpath elements or null if an element can not be indexed.
+     *
+     * @param urls the classpath elements
+     * @return the set of directories or null
+     */
+    public static Set getDirectories( final URL[] urls )
+    {
+        final Set directories = new HashSet();
+        for( int i = 0; i < urls.length; i++ )
+        {
+            final URL url = urls[ i ];
+            if( !"file".equals( url.getProtocol() ) )
+            {
+                return null;
+            }
+            final File file = new File( url.getFile() );
+            if( file.isDirectory() )
+            {
+                addDirectories( directories, file, "" );
+            }
+            else if( !file.isFile() || !addJarDirectories( directories, file ) )
+            {
+                return null;
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Return the directory part of a resource name.
+     *
+     * @param name the name of resource
+     * @return the directory or the empty string if resource is at root
+     */
+    public static String getDirectory( final String name )
+    {
+        final int index = name.lastIndexOf( '/' );
+        if( -1 == index )
+        {
+            return "";
+        }
+        else
+        {
+            return name.substring( 0, index );
+        }
+    }
+
+    /**
+     * Add the directories that contain files in specified directory tree.
+     *
+     * @param directories the set of directories
+     * @param directory the directory to scan
+     * @param path the name of directory relative to root of tree
+     */
+    private static void addDirectories( final Set directories,
+                                        final File directory,
+                                        final String path )
+    {
+        final File[] files = directory.listFiles();
+        if( null == files )
+        {
+            return;
+        }
+        for( int i = 0; i < files.length; i++ )
+        {
+            final File file = files[ i ];
+            if( file.isDirectory() )
+            {
+                final String name = ( 0 == path.length() ) ?
+                    file.getName() : path + "/" + file.getName();
+                addDirectories( directories, file, name );
+            }
+            else
+            {
+                directories.add( path );
+            }
+        }
+    }
+
+    /**
+     * Add the directories that contain files in specified jar.
+     *
+     * @param directories the set of directories
+     * @param file the jar
+     * @return false if the jar could not be read or refers to other jars
+     */
+    private static boolean addJarDirectories( final Set directories,
+                                              final File file )
+    {
+        try
+        {
+            final JarFile jar = new JarFile( file, false );
+            try
+            {
+                final Manifest manifest = jar.getManifest();
+                if( null != manifest &&
+                    null != manifest.getMainAttributes()
+                    .getValue( Attributes.Name.CLASS_PATH ) )
+                {
+                    return false;
+                }
+                final Enumeration entries = jar.entries();
+                while( entries.hasMoreElements() )
+                {
+                    final ZipEntry entry = (ZipEntry)entries.nextElement();
+                    if( !entry.isDirectory() )
+                    {
+                        directories.add( getDirectory( entry.getName() ) );
+                    }
+                }
+                return true;
+            }
+            finally
+            {
+                jar.close();
+            }
+        }
+        catch( final IOException ioe )
+        {
+            return false;
+        }
+    }
+}
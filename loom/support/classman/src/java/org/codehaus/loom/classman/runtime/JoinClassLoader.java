@@ -8,9 +8,18 @@
 package org.codehaus.loom.classman.runtime;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.URL;
+import java.net.URLClassLoader;
 import java.security.SecureClassLoader;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
 /**
@@ -24,18 +33,58 @@ import java.util.Vector;
  * non-overlapping sets of resources or else ClassCastExceptions may result
  * along with other undersired behaviour. </p>
  *
+ * <p>When constructed the JoinClassLoader indexes the directories (ie
+ * packages) that are present in each {@link URLClassLoader} whose URLs are
+ * local jars or directories. A class or resource is then only requested
+ * from the ClassLoaders that contain its directory. ClassLoaders that can
+ * not be indexed are always searched. The names of classes that could not
+ * be found are remembered so that repeated misses are cheap.</p>
+ *
+ * <p>On virtual machines that support it the JoinClassLoader is registered
+ * as parallel capable so that classes with different names can be loaded
+ * by several threads at once. On earlier virtual machines loading is
+ * serialized on the ClassLoader as usual.</p>
+ *
  * @author Peter Donald
  * @version $Revision: 1.1 $ $Date: 2004-04-19 22:19:26 $
  */
 public class JoinClassLoader
     extends SecureClassLoader
 {
+    /**
+     * The maximum number of names of missing classes that are remembered.
+     */
+    private static final int MAX_MISSING = 1000;
+
+    /**
+     * The reason this class could not be registered as parallel capable or
+     * null if it was registered.
+     */
+    private static final Exception c_parallelFailure = enableParallelLoading();
+
     /**
      * The list of classLoaders to search through each time a class or resource
      * is requested.
      */
     private final ClassLoader[] m_classLoaders;
 
+    /**
+     * Map from the name of a directory to the array of ClassLoaders that
+     * may contain resources in directory.
+     */
+    private final Map m_index = new HashMap();
+
+    /**
+     * The ClassLoaders to search for resources in directories that are not
+     * in index.
+     */
+    private final ClassLoader[] m_unindexed;
+
+    /**
+     * The names of classes that could not be found.
+     */
+    private final Set m_missing = new HashSet();
+
     /**
      * Construct a join ClassLoader that defines parent ClassLoader and list of
      * ClassLoaders to search for classes or resources when requested.
@@ -59,6 +108,7 @@ public class JoinClassLoader
             }
         }
         m_classLoaders = classLoaders;
+        m_unindexed = buildIndex( parent );
     }
 
     /**
@@ -73,11 +123,18 @@ public class JoinClassLoader
     protected Class findClass( final String name )
         throws ClassNotFoundException
     {
-        for( int i = 0; i < m_classLoaders.length; i++ )
+        if( isMissing( name ) )
+        {
+            throw new ClassNotFoundException( name );
+        }
+
+        final ClassLoader[] classLoaders =
+            getClassLoaders( name.replace( '.', '/' ) );
+        for( int i = 0; i < classLoaders.length; i++ )
         {
             try
             {
-                return m_classLoaders[ i ].loadClass( name );
+                return classLoaders[ i ].loadClass( name );
             }
             catch( final ClassNotFoundException cnfe )
             {
@@ -85,6 +142,7 @@ public class JoinClassLoader
             }
         }
 
+        addMissing( name );
         return super.findClass( name );
     }
 
@@ -102,12 +160,13 @@ public class JoinClassLoader
     {
         final Vector result = new Vector();
 
-        for( int i = 0; i < m_classLoaders.length; i++ )
+        final ClassLoader[] classLoaders = getClassLoaders( name );
+        for( int i = 0; i < classLoaders.length; i++ )
         {
             try
             {
                 final Enumeration resources =
-                    m_classLoaders[ i ].getResources( name );
+                    classLoaders[ i ].getResources( name );
                 addAll( result, resources );
             }
             catch( final IOException ioe )
@@ -144,9 +203,10 @@ public class JoinClassLoader
      */
     protected URL findResource( final String name )
     {
-        for( int i = 0; i < m_classLoaders.length; i++ )
+        final ClassLoader[] classLoaders = getClassLoaders( name );
+        for( int i = 0; i < classLoaders.length; i++ )
         {
-            final URL resource = m_classLoaders[ i ].getResource( name );
+            final URL resource = classLoaders[ i ].getResource( name );
             if( null != resource )
             {
                 return resource;
@@ -154,4 +214,193 @@ public class JoinClassLoader
         }
         return super.findResource( name );
     }
+
+    /**
+     * Return the ClassLoaders that may contain the resource with specified
+     * name in the order they should be searched.
+     *
+     * @param name the name of resource
+     * @return the ClassLoaders to search
+     */
+    private ClassLoader[] getClassLoaders( final String name )
+    {
+        final ClassLoader[] classLoaders =
+            (ClassLoader[])m_index.get( DirectoryIndex.getDirectory( name ) );
+        if( null != classLoaders )
+        {
+            return classLoaders;
+        }
+        else
+        {
+            return m_unindexed;
+        }
+    }
+
+    private boolean isMissing( final String name )
+    {
+        synchronized( m_missing )
+        {
+            return m_missing.contains( name );
+        }
+    }
+
+    private void addMissing( final String name )
+    {
+        synchronized( m_missing )
+        {
+            if( m_missing.size() >= MAX_MISSING )
+            {
+                m_missing.clear();
+            }
+            m_missing.add( name );
+        }
+    }
+
+    /**
+     * Return true if JoinClassLoaders are registered as parallel capable.
+     * When false classes are loaded one at a time.
+     *
+     * @return true if classes with different names can be loaded at once
+     */
+    public static boolean isParallelCapable()
+    {
+        return null == c_parallelFailure;
+    }
+
+    /**
+     * Register this class as parallel capable if the virtual machine
+     * supports it. The method is protected and registers the class that
+     * calls it so it must be invoked from this class.
+     *
+     * @return the reason registration failed or null if it succeeded
+     */
+    private static Exception enableParallelLoading()
+    {
+        try
+        {
+            final Method method =
+                ClassLoader.class.getDeclaredMethod( "registerAsParallelCapable",
+                                                     new Class[ 0 ] );
+            final Object result = method.invoke( null, new Object[ 0 ] );
+            if( Boolean.FALSE.equals( result ) )
+            {
+                return new IllegalStateException( "Superclass not registered" );
+            }
+            return null;
+        }
+        catch( final Exception e )
+        {
+            //Not supported so loading is serialized on the ClassLoader
+            return e;
+        }
+    }
+
+    /**
+     * Index the directories in the ClassLoaders.
+     *
+     * <p>An indexed ClassLoader only needs to be searched for resources in
+     * the directories it contains as anything else comes from its parent.
+     * When that parent is the parent of this ClassLoader it has already
+     * been searched. Otherwise the parent is searched directly, at the
+     * position the indexed ClassLoader would have been searched, so that
+     * the order of the search is unchanged. The ClassLoaders that can not
+     * be indexed are always searched.</p>
+     *
+     * @param parent the parent of this ClassLoader
+     * @return the ClassLoaders to search for directories not in index
+     */
+    private ClassLoader[] buildIndex( final ClassLoader parent )
+    {
+        final Set[] directories = new Set[ m_classLoaders.length ];
+        final ClassLoader[] parents = new ClassLoader[ m_classLoaders.length ];
+        final Set allDirectories = new HashSet();
+        for( int i = 0; i < m_classLoaders.length; i++ )
+        {
+            final ClassLoader classLoader = m_classLoaders[ i ];
+            final ClassLoader classLoaderParent;
+            try
+            {
+                classLoaderParent = classLoader.getParent();
+            }
+            catch( final SecurityException se )
+            {
+                //Unable to tell where it delegates so always search it
+                continue;
+            }
+            directories[ i ] = getDirectories( classLoader );
+            if( null != directories[ i ] )
+            {
+                allDirectories.addAll( directories[ i ] );
+                //The bootstrap ClassLoader is always searched first
+                if( parent != classLoaderParent )
+                {
+                    parents[ i ] = classLoaderParent;
+                }
+            }
+        }
+
+        final Iterator iterator = allDirectories.iterator();
+        while( iterator.hasNext() )
+        {
+            final String directory = (String)iterator.next();
+            m_index.put( directory,
+                         getClassLoaders( directories, parents, directory ) );
+        }
+        return getClassLoaders( directories, parents, null );
+    }
+
+    /**
+     * Return the ClassLoaders to search for resources in specified
+     * directory. An indexed ClassLoader that does not contain directory is
+     * replaced by its parent if that parent must be searched.
+     *
+     * @param directories the directories of each ClassLoader or null
+     * @param parents the parent to search in place of each ClassLoader
+     * @param directory the directory or null if no ClassLoader contains it
+     * @return the ClassLoaders to search
+     */
+    private ClassLoader[] getClassLoaders( final Set[] directories,
+                                           final ClassLoader[] parents,
+                                           final String directory )
+    {
+        final List classLoaders = new ArrayList();
+        for( int i = 0; i < m_classLoaders.length; i++ )
+        {
+            final Set contained = directories[ i ];
+            if( null == contained ||
+                ( null != directory && contained.contains( directory ) ) )
+            {
+                classLoaders.add( m_classLoaders[ i ] );
+            }
+            else if( null != parents[ i ] &&
+                !classLoaders.contains( parents[ i ] ) )
+            {
+                classLoaders.add( parents[ i ] );
+            }
+        }
+        return toArray( classLoaders );
+    }
+
+    private static ClassLoader[] toArray( final List classLoaders )
+    {
+        return (ClassLoader[])classLoaders.toArray(
+            new ClassLoader[ classLoaders.size() ] );
+    }
+
+    /**
+     * Return the set of directories containing resources in specified
+     * ClassLoader or null if the ClassLoader can not be indexed.
+     *
+     * @param classLoader the ClassLoader
+     * @return the set of directories or null
+     */
+    private static Set getDirectories( final ClassLoader classLoader )
+    {
+        if( !( classLoader instanceof URLClassLoader ) )
+        {
+            return null;
+        }
+        final URL[] urls = ( (URLClassLoader)classLoader ).getURLs();
+        return DirectoryIndex.getDirectories( urls );
+    }
 }
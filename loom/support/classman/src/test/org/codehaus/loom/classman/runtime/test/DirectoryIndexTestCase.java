@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) The Spice Group. All rights reserved.
+ *
+ * This software is published under the terms of the Spice
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.classman.runtime.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import junit.framework.TestCase;
+
+import org.codehaus.loom.classman.runtime.DirectoryIndex;
+
+/**
+ * Unit test for directory index.
+ *
+ * @author Peter Donald
+ */
+public class DirectoryIndexTestCase
+    extends TestCase
+{
+    private File m_directory;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/classman_index_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        deleteDirectory( m_directory );
+    }
+
+    public void testGetDirectory()
+    {
+        assertEquals( "", DirectoryIndex.getDirectory( "a.txt" ) );
+        assertEquals( "a/b", DirectoryIndex.getDirectory( "a/b/C.class" ) );
+    }
+
+    public void testDirectoriesIndexed()
+        throws Exception
+    {
+        final File classes = new File( m_directory, "classes" );
+        createFile( new File( classes, "a/b/C.class" ) );
+        createFile( new File( classes, "d.txt" ) );
+        final File jar = new File( m_directory, "lib.jar" );
+        writeJar( jar, null );
+
+        final URL[] urls = new URL[]{classes.toURL(), jar.toURL()};
+        final String[] expected = new String[]{"", "a/b", "META-INF", "e"};
+        assertEquals( new HashSet( Arrays.asList( expected ) ),
+                      DirectoryIndex.getDirectories( urls ) );
+    }
+
+    public void testJarWithClassPathNotIndexed()
+        throws Exception
+    {
+        final File jar = new File( m_directory, "lib.jar" );
+        writeJar( jar, "other.jar" );
+        assertNull( DirectoryIndex.getDirectories( new URL[]{jar.toURL()} ) );
+    }
+
+    public void testRemoteElementNotIndexed()
+        throws Exception
+    {
+        final URL url = new URL( "http://localhost/lib.jar" );
+        assertNull( DirectoryIndex.getDirectories( new URL[]{url} ) );
+    }
+
+    private void createFile( final File file )
+        throws IOException
+    {
+        file.getParentFile().mkdirs();
+        new FileOutputStream( file ).close();
+    }
+
+    /**
+     * Write a jar with a single entry in directory "e" and a manifest with
+     * the specified Class-Path if not null.
+     */
+    private void writeJar( final File file, final String classPath )
+        throws IOException
+    {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        if( null != classPath )
+        {
+            attributes.put( Attributes.Name.CLASS_PATH, classPath );
+        }
+        final JarOutputStream output =
+            new JarOutputStream( new FileOutputStream( file ), manifest );
+        try
+        {
+            output.putNextEntry( new ZipEntry( "e/" ) );
+            output.closeEntry();
+            output.putNextEntry( new ZipEntry( "e/F.class" ) );
+            output.closeEntry();
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    private void deleteDirectory( final File directory )
+    {
+        final File[] files = directory.listFiles();
+        for( int i = 0; i < files.length; i++ )
+        {
+            final File file = files[ i ];
+            if( file.isDirectory() )
+            {
+                deleteDirectory( file );
+            }
+            else
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
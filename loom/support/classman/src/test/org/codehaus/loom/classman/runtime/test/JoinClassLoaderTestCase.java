@@ -8,6 +8,8 @@
 package org.codehaus.loom.classman.runtime.test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
@@ -131,6 +133,176 @@ public class JoinClassLoaderTestCase
         }
     }
 
+    public void testOnlyIndexedClassLoaderSearched()
+        throws Exception
+    {
+        final File directory = createTestDirectory();
+        try
+        {
+            final CountingClassLoader cl1 =
+                createClassLoader( directory, "cl1", "a/one.txt", null );
+            final CountingClassLoader cl2 =
+                createClassLoader( directory, "cl2", "b/two.txt", null );
+            final JoinClassLoader join =
+                new JoinClassLoader( new ClassLoader[]{cl1, cl2}, null );
+
+            assertNotNull( "b/two.txt", join.getResource( "b/two.txt" ) );
+            assertEquals( "cl1 lookups", 0, cl1.m_resourceCount );
+            assertEquals( "cl2 lookups", 1, cl2.m_resourceCount );
+
+            assertNull( "c/none.txt", join.getResource( "c/none.txt" ) );
+            assertEquals( "cl1 lookups", 0, cl1.m_resourceCount );
+            assertEquals( "cl2 lookups", 1, cl2.m_resourceCount );
+
+            final Enumeration resources = join.getResources( "a/one.txt" );
+            assertTrue( "a/one.txt found", resources.hasMoreElements() );
+            resources.nextElement();
+            assertTrue( "a/one.txt found once", !resources.hasMoreElements() );
+        }
+        finally
+        {
+            deleteDirectory( directory );
+        }
+    }
+
+    public void testMissingClassRemembered()
+        throws Exception
+    {
+        final File directory = createTestDirectory();
+        try
+        {
+            final CountingClassLoader cl1 =
+                createClassLoader( directory, "cl1", "a/one.txt", null );
+            final JoinClassLoader join =
+                new JoinClassLoader( new ClassLoader[]{cl1}, null );
+
+            assertMissing( join, "c.Missing" );
+            assertEquals( "lookups in unknown package", 0, cl1.m_classCount );
+
+            assertMissing( join, "a.Missing" );
+            assertEquals( "lookups in indexed package", 1, cl1.m_classCount );
+            assertMissing( join, "a.Missing" );
+            assertEquals( "repeated lookups", 1, cl1.m_classCount );
+        }
+        finally
+        {
+            deleteDirectory( directory );
+        }
+    }
+
+    public void testParentOfClassLoaderSearched()
+        throws Exception
+    {
+        final File directory = createTestDirectory();
+        try
+        {
+            final ClassLoader parent = getClass().getClassLoader();
+            final CountingClassLoader cl1 =
+                createClassLoader( directory, "cl1", "a/one.txt", parent );
+            final JoinClassLoader join =
+                new JoinClassLoader( new ClassLoader[]{cl1}, null );
+
+            assertEquals( "Loading from parent of classloader",
+                          getClass(),
+                          join.loadClass( getClass().getName() ) );
+        }
+        finally
+        {
+            deleteDirectory( directory );
+        }
+    }
+
+    /**
+     * The parent of a ClassLoader that does not contain a directory must
+     * still be searched before the ClassLoaders that come after it.
+     */
+    public void testParentSearchedInOrder()
+        throws Exception
+    {
+        final File directory = createTestDirectory();
+        try
+        {
+            final ClassLoader parent =
+                createClassLoader( directory, "parent", "x/shared.txt", null );
+            final CountingClassLoader cl1 =
+                createClassLoader( directory, "cl1", "a/one.txt", parent );
+            final CountingClassLoader cl2 =
+                createClassLoader( directory, "cl2", "x/shared.txt", null );
+            final JoinClassLoader join =
+                new JoinClassLoader( new ClassLoader[]{cl1, cl2}, null );
+
+            assertEquals( "shadowed by parent of cl1",
+                          parent.getResource( "x/shared.txt" ),
+                          join.getResource( "x/shared.txt" ) );
+            assertEquals( "cl2 lookups", 0, cl2.m_resourceCount );
+        }
+        finally
+        {
+            deleteDirectory( directory );
+        }
+    }
+
+    private void assertMissing( final ClassLoader classLoader,
+                                final String name )
+    {
+        try
+        {
+            classLoader.loadClass( name );
+            fail( "Expected to be unable to load " + name );
+        }
+        catch( final ClassNotFoundException cnfe )
+        {
+        }
+    }
+
+    private CountingClassLoader createClassLoader( final File directory,
+                                                   final String name,
+                                                   final String resource,
+                                                   final ClassLoader parent )
+        throws IOException
+    {
+        final File root = new File( directory, name );
+        final File file = new File( root, resource );
+        file.getParentFile().mkdirs();
+        final FileOutputStream output = new FileOutputStream( file );
+        output.write( name.getBytes() );
+        output.close();
+        return new CountingClassLoader( new URL[]{root.toURL()}, parent );
+    }
+
+    private File createTestDirectory()
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/classman_join_testcase";
+        int counter = 0;
+        File directory = new File( testDirectoryName );
+        while( directory.exists() )
+        {
+            directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        directory.mkdirs();
+        return directory;
+    }
+
+    private void deleteDirectory( final File directory )
+    {
+        final File[] files = directory.listFiles();
+        for( int i = 0; i < files.length; i++ )
+        {
+            final File file = files[ i ];
+            if( file.isDirectory() )
+            {
+                deleteDirectory( file );
+            }
+            else
+            {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
     private URLClassLoader createClassLoader( final String filename ) throws MalformedURLException
     {
         final File baseDirectory = getBaseDirectory();
@@ -139,4 +311,33 @@ public class JoinClassLoaderTestCase
         final URL[] urls = new URL[]{url};
         return new URLClassLoader( urls, ClassLoader.getSystemClassLoader() );
     }
+
+    /**
+     * ClassLoader that counts the lookups made in it.
+     */
+    private static class CountingClassLoader
+        extends URLClassLoader
+    {
+        int m_classCount;
+        int m_resourceCount;
+
+        CountingClassLoader( final URL[] urls, final ClassLoader parent )
+        {
+            super( urls, parent );
+        }
+
+        protected synchronized Class loadClass( final String name,
+                                                final boolean resolve )
+            throws ClassNotFoundException
+        {
+            m_classCount++;
+            return super.loadClass( name, resolve );
+        }
+
+        public URL getResource( final String name )
+        {
+            m_resourceCount++;
+            return super.getResource( name );
+        }
+    }
 }
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) The Spice Group. All rights reserved.
+ *
+ * This software is published under the terms of the Spice
+ * Software License version 1.1, a copy of which has been included
+ * with this distribution in the LICENSE.txt file.
+ */
+package org.codehaus.loom.classman.runtime.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+import org.codehaus.loom.classman.runtime.JoinClassLoader;
+
+/**
+ * Stress test that loads classes through a graph of join classloaders
+ * from several threads at once.
+ *
+ * <p>The graph joins two application classloaders whose parent joins
+ * two library classloaders. Each application class extends a library
+ * class so defining it loads the superclass through the inner join.</p>
+ *
+ * @author Peter Donald
+ */
+public class ParallelJoinClassLoaderTestCase
+    extends TestCase
+{
+    private static final int CLASSES = 200;
+    private static final int THREADS = 8;
+    private static final long TIMEOUT = 60 * 1000;
+    private static final String[] LIBRARIES = new String[]{"lib1", "lib2"};
+    private static final String[] APPLICATIONS = new String[]{"app1", "app2"};
+
+    private File m_directory;
+
+    protected void setUp()
+        throws Exception
+    {
+        final String tempDirectoryName = System.getProperty( "java.io.tmpdir" );
+        final String testDirectoryName =
+            tempDirectoryName + "/classman_parallel_testcase";
+        int counter = 0;
+        m_directory = new File( testDirectoryName );
+        while( m_directory.exists() )
+        {
+            m_directory = new File( testDirectoryName + "-" + counter++ );
+        }
+        m_directory.mkdirs();
+
+        for( int i = 0; i < LIBRARIES.length; i++ )
+        {
+            writeJar( LIBRARIES[ i ], null );
+        }
+        for( int i = 0; i < APPLICATIONS.length; i++ )
+        {
+            writeJar( APPLICATIONS[ i ], LIBRARIES[ i ] );
+        }
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        final File[] files = m_directory.listFiles();
+        for( int i = 0; i < files.length; i++ )
+        {
+            files[ i ].delete();
+        }
+        m_directory.delete();
+    }
+
+    public void testConcurrentLoading()
+        throws Exception
+    {
+        final Graph graph = new Graph();
+        final Class[][] results = load( graph );
+
+        final String[] names = getNames();
+        for( int i = 0; i < names.length; i++ )
+        {
+            final Class clazz = results[ 0 ][ i ];
+            assertEquals( names[ i ], clazz.getName() );
+            for( int j = 1; j < THREADS; j++ )
+            {
+                assertSame( names[ i ], clazz, results[ j ][ i ] );
+            }
+        }
+
+        final Class application =
+            graph.m_top.loadClass( APPLICATIONS[ 1 ] + ".C0" );
+        assertSame( graph.m_applications[ 1 ], application.getClassLoader() );
+        assertSame( graph.m_libraries[ 1 ],
+                    application.getSuperclass().getClassLoader() );
+    }
+
+    /**
+     * While one thread is blocked loading a class another thread must be
+     * able to load a class with a different name.
+     */
+    public void testLoadingNotSerialized()
+        throws Exception
+    {
+        if( !JoinClassLoader.isParallelCapable() )
+        {
+            //Loading is serialized on this virtual machine
+            return;
+        }
+
+        final File file = new File( m_directory, LIBRARIES[ 0 ] + ".jar" );
+        final String blockedName = LIBRARIES[ 0 ] + ".C0";
+        final Latch latch = new Latch();
+        final ClassLoader library =
+            new URLClassLoader( new URL[]{file.toURL()}, null )
+            {
+                protected Class loadClass( final String name,
+                                           final boolean resolve )
+                    throws ClassNotFoundException
+                {
+                    if( name.equals( blockedName ) )
+                    {
+                        latch.block();
+                    }
+                    return super.loadClass( name, resolve );
+                }
+            };
+        final ClassLoader join =
+            new JoinClassLoader( new ClassLoader[]{library}, null );
+
+        final Thread blocked = startLoading( join, blockedName );
+        try
+        {
+            assertTrue( "blocked", latch.waitForBlocked( TIMEOUT ) );
+            final Thread other = startLoading( join, LIBRARIES[ 0 ] + ".C1" );
+            other.join( TIMEOUT );
+            assertFalse( "Loading serialized", other.isAlive() );
+        }
+        finally
+        {
+            latch.release();
+        }
+        blocked.join( TIMEOUT );
+        assertFalse( "blocked thread finished", blocked.isAlive() );
+        assertSame( library, join.loadClass( blockedName ).getClassLoader() );
+    }
+
+    private Thread startLoading( final ClassLoader classLoader,
+                                 final String name )
+    {
+        final Thread thread = new Thread( "loader-" + name )
+        {
+            public void run()
+            {
+                try
+                {
+                    classLoader.loadClass( name );
+                }
+                catch( final ClassNotFoundException cnfe )
+                {
+                }
+            }
+        };
+        thread.setDaemon( true );
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Load every class in graph from each thread. Each thread starts at a
+     * different class and alternates between loading through the top of
+     * graph and through the classloader nearest to class.
+     *
+     * @return the classes loaded by each thread
+     */
+    private Class[][] load( final Graph graph )
+        throws Exception
+    {
+        final String[] names = getNames();
+        final Class[][] results = new Class[ THREADS ][ names.length ];
+        final Throwable[] failures = new Throwable[ THREADS ];
+        final Thread[] threads = new Thread[ THREADS ];
+        for( int i = 0; i < THREADS; i++ )
+        {
+            final int thread = i;
+            threads[ i ] = new Thread( "loader-" + i )
+            {
+                public void run()
+                {
+                    try
+                    {
+                        final int offset = thread * names.length / THREADS;
+                        for( int j = 0; j < names.length; j++ )
+                        {
+                            final int index = ( offset + j ) % names.length;
+                            final ClassLoader classLoader =
+                                graph.getClassLoader( names[ index ],
+                                                      thread + j );
+                            results[ thread ][ index ] =
+                                classLoader.loadClass( names[ index ] );
+                        }
+                    }
+                    catch( final Throwable t )
+                    {
+                        failures[ thread ] = t;
+                    }
+                }
+            };
+        }
+        for( int i = 0; i < THREADS; i++ )
+        {
+            threads[ i ].start();
+        }
+
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        for( int i = 0; i < THREADS; i++ )
+        {
+            threads[ i ].join( Math.max( 1, end - System.currentTimeMillis() ) );
+            if( threads[ i ].isAlive() )
+            {
+                fail( "Deadlock loading classes in " + threads[ i ].getName() );
+            }
+            if( null != failures[ i ] )
+            {
+                fail( "Error loading classes: " + failures[ i ] );
+            }
+        }
+        return results;
+    }
+
+    private String[] getNames()
+    {
+        final String[] packages = new String[]
+        {
+            APPLICATIONS[ 0 ], APPLICATIONS[ 1 ], LIBRARIES[ 0 ], LIBRARIES[ 1 ]
+        };
+        final String[] names = new String[ packages.length * CLASSES ];
+        for( int i = 0; i < names.length; i++ )
+        {
+            names[ i ] = packages[ i % packages.length ] + ".C" +
+                ( i / packages.length );
+        }
+        return names;
+    }
+
+    /**
+     * Write a jar of classes named C0, C1 and so on in a package with the
+     * same name as jar. The classes extend the class with the same name in
+     * the specified package or Object if none is specified.
+     */
+    private void writeJar( final String name, final String superPackage )
+        throws IOException
+    {
+        final File file = new File( m_directory, name + ".jar" );
+        final ZipOutputStream output =
+            new ZipOutputStream( new FileOutputStream( file ) );
+        try
+        {
+            for( int i = 0; i < CLASSES; i++ )
+            {
+                final String className = name + "/C" + i;
+                final String superName = ( null == superPackage ) ?
+                    "java/lang/Object" : superPackage + "/C" + i;
+                output.putNextEntry( new ZipEntry( className + ".class" ) );
+                output.write( createClass( className, superName ) );
+                output.closeEntry();
+            }
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Create the bytecode of an empty class.
+     */
+    private static byte[] createClass( final String name,
+                                       final String superName )
+        throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream( bytes );
+        output.writeInt( 0xCAFEBABE );
+        output.writeShort( 0 );
+        output.writeShort( 46 );
+        output.writeShort( 5 );
+        output.writeByte( 1 );
+        output.writeUTF( name );
+        output.writeByte( 7 );
+        output.writeShort( 1 );
+        output.writeByte( 1 );
+        output.writeUTF( superName );
+        output.writeByte( 7 );
+        output.writeShort( 3 );
+        //public super, this class, super class and no interfaces,
+        //fields, methods or attributes
+        output.writeShort( 0x21 );
+        output.writeShort( 2 );
+        output.writeShort( 4 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.writeShort( 0 );
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A fresh graph of classloaders over the jars.
+     */
+    private class Graph
+    {
+        final ClassLoader[] m_libraries;
+        final ClassLoader m_join;
+        final ClassLoader[] m_applications;
+        final ClassLoader m_top;
+
+        Graph()
+            throws IOException
+        {
+            m_libraries = createClassLoaders( LIBRARIES, null );
+            m_join = new JoinClassLoader( m_libraries, null );
+            m_applications = createClassLoaders( APPLICATIONS, m_join );
+            m_top = new JoinClassLoader( m_applications, null );
+        }
+
+        /**
+         * Return the top of graph or the application classloader or join
+         * of libraries that can load class with specified name.
+         */
+        ClassLoader getClassLoader( final String name, final int index )
+        {
+            if( 0 == index % 2 )
+            {
+                return m_top;
+            }
+            for( int i = 0; i < APPLICATIONS.length; i++ )
+            {
+                if( name.startsWith( APPLICATIONS[ i ] + "." ) )
+                {
+                    return m_applications[ i ];
+                }
+            }
+            return m_join;
+        }
+
+        private ClassLoader[] createClassLoaders( final String[] names,
+                                                  final ClassLoader parent )
+            throws IOException
+        {
+            final ClassLoader[] classLoaders = new ClassLoader[ names.length ];
+            for( int i = 0; i < names.length; i++ )
+            {
+                final File file = new File( m_directory, names[ i ] + ".jar" );
+                classLoaders[ i ] =
+                    new URLClassLoader( new URL[]{file.toURL()}, parent );
+            }
+            return classLoaders;
+        }
+    }
+
+    /**
+     * Blocks a loading thread until released.
+     */
+    private static class Latch
+    {
+        private boolean m_blocked;
+        private boolean m_released;
+
+        synchronized void block()
+        {
+            m_blocked = true;
+            notifyAll();
+            while( !m_released )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( final InterruptedException ie )
+                {
+                    return;
+                }
+            }
+        }
+
+        synchronized boolean waitForBlocked( final long timeout )
+            throws InterruptedException
+        {
+            final long end = System.currentTimeMillis() + timeout;
+            while( !m_blocked && System.currentTimeMillis() < end )
+            {
+                wait( Math.max( 1, end - System.currentTimeMillis() ) );
+            }
+            return m_blocked;
+        }
+
+        synchronized void release()
+        {
+            m_released = true;
+            notifyAll();
+        }
+    }
+}
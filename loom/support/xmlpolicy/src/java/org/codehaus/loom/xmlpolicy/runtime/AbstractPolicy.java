@@ -18,12 +18,21 @@ import java.security.Policy;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.codehaus.spice.salt.io.FileUtil;
 
 /**
  * Abstract Policy class that makes it easy to add permission
  * sets to policy.
  *
+ * <p>The permissions of each unsigned CodeSource are resolved once and
+ * cached until the policy is refreshed or a permission set is added. The
+ * cached collections are read-only and shared between callers. Entries
+ * whose codebase is a single location are indexed by that location so
+ * that resolving permissions only checks the entries that can match.</p>
+ *
  * @author Peter Donald
  */
 public abstract class AbstractPolicy
@@ -34,37 +43,84 @@ public abstract class AbstractPolicy
      */
     private final ArrayList m_entries = new ArrayList();
 
+    /**
+     * Map from the file part of codebase to list of PolicyEntry objects
+     * for entries whose codebase is a single location. Built when first
+     * needed and discarded when an entry is added.
+     */
+    private Map m_locations;
+
+    /**
+     * List of PolicyEntry objects for entries whose codebase is not a
+     * single location and thus must be checked for every CodeSource.
+     */
+    private List m_wildcards;
+
+    /**
+     * Map from location of unsigned CodeSource to the read-only
+     * Permissions granted to it.
+     */
+    private final Map m_cache = new HashMap();
+
     /**
      * Overide so we can have a per-application security policy with
-     * no side-effects to other applications.
+     * no side-effects to other applications. The returned collection is
+     * a new copy as callers such as
+     * {@link Policy#getPermissions(java.security.ProtectionDomain)} add
+     * permissions to it.
      *
      * @param codeSource the CodeSource to get permissions for
      * @return the PermissionCollection
      */
     public PermissionCollection getPermissions( final CodeSource codeSource )
     {
-        final CodeSource target = normalize( codeSource );
+        final String key = getCacheKey( codeSource );
+        if( null != key )
+        {
+            final Permissions cached;
+            synchronized( m_cache )
+            {
+                cached = (Permissions)m_cache.get( key );
+            }
+            if( null != cached )
+            {
+                final Permissions permissions = new Permissions();
+                copyPermissions( permissions, cached );
+                return permissions;
+            }
+        }
 
+        final CodeSource target = normalize( codeSource );
         final Permissions permissions = new Permissions();
-        final int size = m_entries.size();
-
-        for( int i = 0; i < size; i++ )
+        final PolicyEntry[] entries = getCandidates( target );
+        for( int i = 0; i < entries.length; i++ )
         {
-            final PolicyEntry entry = (PolicyEntry)m_entries.get( i );
+            final PolicyEntry entry = entries[ i ];
             if( entry.getCodeSource().implies( target ) )
             {
                 copyPermissions( permissions, entry.getPermissions() );
             }
         }
 
+        if( null != key )
+        {
+            final Permissions cached = new Permissions();
+            copyPermissions( cached, permissions );
+            cached.setReadOnly();
+            synchronized( m_cache )
+            {
+                m_cache.put( key, cached );
+            }
+        }
         return permissions;
     }
 
     /**
-     * Refresh policy. Ignored in this implementation.
+     * Refresh policy. Discards the cached permissions of each CodeSource.
      */
     public void refresh()
     {
+        clearCache();
     }
 
     /**
@@ -80,10 +136,114 @@ public abstract class AbstractPolicy
         final CodeSource target = normalize( codeSource );
         final PolicyEntry entry =
             new PolicyEntry( target, new Permissions() );
-        m_entries.add( entry );
+        synchronized( this )
+        {
+            m_entries.add( entry );
+            m_locations = null;
+            m_wildcards = null;
+        }
+        clearCache();
         return entry.getPermissions();
     }
 
+    private void clearCache()
+    {
+        synchronized( m_cache )
+        {
+            m_cache.clear();
+        }
+    }
+
+    /**
+     * Return the entries that may imply specified normalized CodeSource.
+     *
+     * @param target the CodeSource
+     * @return the candidate entries
+     */
+    private synchronized PolicyEntry[] getCandidates( final CodeSource target )
+    {
+        if( null == m_locations )
+        {
+            buildIndex();
+        }
+
+        final ArrayList candidates = new ArrayList( m_wildcards );
+        final URL location = target.getLocation();
+        if( null != location )
+        {
+            //CodeSource also matches a codebase of file without trailing /
+            final String file = location.getFile();
+            addCandidates( candidates, file );
+            if( file.endsWith( "/" ) )
+            {
+                addCandidates( candidates,
+                               file.substring( 0, file.length() - 1 ) );
+            }
+        }
+        return (PolicyEntry[])candidates.toArray(
+            new PolicyEntry[ candidates.size() ] );
+    }
+
+    private void addCandidates( final List candidates, final String file )
+    {
+        final List entries = (List)m_locations.get( file );
+        if( null != entries )
+        {
+            candidates.addAll( entries );
+        }
+    }
+
+    /**
+     * Index the entries by the file part of their codebase. Entries with
+     * no codebase or whose codebase ends with a wildcard are not indexed.
+     */
+    private void buildIndex()
+    {
+        m_locations = new HashMap();
+        m_wildcards = new ArrayList();
+        final int size = m_entries.size();
+        for( int i = 0; i < size; i++ )
+        {
+            final PolicyEntry entry = (PolicyEntry)m_entries.get( i );
+            final URL location = entry.getCodeSource().getLocation();
+            final String file =
+                ( null == location ) ? null : location.getFile();
+            if( null == file || file.endsWith( "/-" ) || file.endsWith( "/*" ) )
+            {
+                m_wildcards.add( entry );
+            }
+            else
+            {
+                List entries = (List)m_locations.get( file );
+                if( null == entries )
+                {
+                    entries = new ArrayList();
+                    m_locations.put( file, entries );
+                }
+                entries.add( entry );
+            }
+        }
+    }
+
+    /**
+     * Return the key under which the permissions of CodeSource are cached
+     * or null if they are not cached. The permissions of signed code are
+     * not cached.
+     *
+     * @param codeSource the CodeSource
+     * @return the key or null
+     */
+    private String getCacheKey( final CodeSource codeSource )
+    {
+        final Certificate[] certificates = codeSource.getCertificates();
+        if( null != certificates && 0 != certificates.length )
+        {
+            return null;
+        }
+        final URL location = codeSource.getLocation();
+        return ( null == location ) ? "" : location.toExternalForm();
+    }
+
     /**
      * Normalizing CodeSource involves removing relative addressing
      * (like .. and .) for file urls.
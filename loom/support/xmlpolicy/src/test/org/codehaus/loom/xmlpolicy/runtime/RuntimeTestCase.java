@@ -14,6 +14,7 @@ import java.security.AllPermission;
 import java.security.Policy;
 import java.security.PermissionCollection;
 import java.security.Permission;
+import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
 import java.util.HashMap;
 import java.util.Enumeration;
@@ -144,4 +145,126 @@ public class RuntimeTestCase
         final PermissionCollection otherPermissions = policy.getPermissions( otherCodeSource );
         assertEquals( "Expect no permissions for null location", false, otherPermissions.elements().hasMoreElements() );
     }
+
+    public void testPermissionsCached()
+        throws Exception
+    {
+        final CodeSource codeSource =
+            new CodeSource( new URL( "file:/app/lib/a.jar" ), new Certificate[ 0 ] );
+        final HashMap grants = new HashMap();
+        grants.put( codeSource, new Permission[]{new AllPermission()} );
+        final Policy policy = new DefaultPolicy( grants );
+
+        final PermissionCollection permissions = policy.getPermissions( codeSource );
+        assertTrue( "AllPermission", permissions.implies( new AllPermission() ) );
+        assertFalse( "read-only", permissions.isReadOnly() );
+
+        assertNotSame( permissions, policy.getPermissions( codeSource ) );
+
+        policy.refresh();
+        final PermissionCollection refreshed = policy.getPermissions( codeSource );
+        assertNotSame( permissions, refreshed );
+        assertTrue( "AllPermission", refreshed.implies( new AllPermission() ) );
+    }
+
+    public void testCachedPermissionsCopied()
+        throws Exception
+    {
+        final CodeSource codeSource =
+            new CodeSource( new URL( "file:/app/lib/a.jar" ), new Certificate[ 0 ] );
+        final HashMap grants = new HashMap();
+        grants.put( codeSource, new Permission[]{new RuntimePermission( "x" )} );
+        final Policy policy = new DefaultPolicy( grants );
+
+        final PermissionCollection permissions = policy.getPermissions( codeSource );
+        permissions.add( new RuntimePermission( "added" ) );
+        final PermissionCollection other = policy.getPermissions( codeSource );
+        assertTrue( "x", other.implies( new RuntimePermission( "x" ) ) );
+        assertFalse( "added", other.implies( new RuntimePermission( "added" ) ) );
+    }
+
+    public void testImpliesForProtectionDomain()
+        throws Exception
+    {
+        final CodeSource codeSource =
+            new CodeSource( new URL( "file:/app/lib/a.jar" ), new Certificate[ 0 ] );
+        final HashMap grants = new HashMap();
+        grants.put( codeSource, new Permission[]{new RuntimePermission( "x" )} );
+        final Policy policy = new DefaultPolicy( grants );
+
+        //The domain of a SecureClassLoader carries static permissions that
+        //are added to the permissions returned by the policy
+        final Permissions permissions = new Permissions();
+        permissions.add( new RuntimePermission( "static" ) );
+        final ProtectionDomain domain =
+            new ProtectionDomain( codeSource, permissions, null, null );
+        for( int i = 0; i < 2; i++ )
+        {
+            assertTrue( "x", policy.implies( domain, new RuntimePermission( "x" ) ) );
+            assertTrue( "static",
+                        policy.implies( domain, new RuntimePermission( "static" ) ) );
+            assertFalse( "y", policy.implies( domain, new RuntimePermission( "y" ) ) );
+        }
+    }
+
+    public void testAddedPermissionSetClearsCache()
+        throws Exception
+    {
+        final CodeSource codeSource =
+            new CodeSource( new URL( "file:/app/lib/a.jar" ), new Certificate[ 0 ] );
+        final TestPolicy policy = new TestPolicy();
+        assertFalse( "no permissions",
+                     policy.getPermissions( codeSource ).elements().hasMoreElements() );
+
+        policy.grant( codeSource, new AllPermission() );
+        assertTrue( "AllPermission",
+                    policy.getPermissions( codeSource ).implies( new AllPermission() ) );
+    }
+
+    public void testCodeBaseMatching()
+        throws Exception
+    {
+        final TestPolicy policy = new TestPolicy();
+        policy.grant( createCodeSource( "file:/app/lib/a.jar" ),
+                      new RuntimePermission( "a" ) );
+        policy.grant( createCodeSource( "file:/app/lib/-" ),
+                      new RuntimePermission( "lib" ) );
+        policy.grant( createCodeSource( "file:/app/classes" ),
+                      new RuntimePermission( "classes" ) );
+        policy.grant( createCodeSource( null ),
+                      new RuntimePermission( "all" ) );
+
+        final PermissionCollection a =
+            policy.getPermissions( createCodeSource( "file:/app/lib/a.jar" ) );
+        assertTrue( "a", a.implies( new RuntimePermission( "a" ) ) );
+        assertTrue( "lib", a.implies( new RuntimePermission( "lib" ) ) );
+        assertFalse( "classes", a.implies( new RuntimePermission( "classes" ) ) );
+        assertTrue( "all", a.implies( new RuntimePermission( "all" ) ) );
+
+        final PermissionCollection b =
+            policy.getPermissions( createCodeSource( "file:/app/lib/b.jar" ) );
+        assertFalse( "a", b.implies( new RuntimePermission( "a" ) ) );
+        assertTrue( "lib", b.implies( new RuntimePermission( "lib" ) ) );
+
+        final PermissionCollection classes =
+            policy.getPermissions( createCodeSource( "file:/app/classes/" ) );
+        assertTrue( "classes", classes.implies( new RuntimePermission( "classes" ) ) );
+        assertFalse( "lib", classes.implies( new RuntimePermission( "lib" ) ) );
+    }
+
+    private CodeSource createCodeSource( final String location )
+        throws Exception
+    {
+        final URL url = ( null == location ) ? null : new URL( location );
+        return new CodeSource( url, new Certificate[ 0 ] );
+    }
+
+    private static class TestPolicy
+        extends AbstractPolicy
+    {
+        void grant( final CodeSource codeSource, final Permission permission )
+        {
+            createPermissionSetFor( codeSource ).add( permission );
+        }
+    }
 }